@@ -5,9 +5,10 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import com.electronwill.nightconfig.core.conversion.InvalidValueException;
 import jp.kusumotolab.kgenprog.Configuration;
+import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
 
 /**
- * kGenProg のオプションに {@code --host <host>} と {@code --port <port>} を追加したもの．
+ * kGenProg のオプションに {@code --host <host>}，{@code --port <port>}，{@code --weight <weight>} を追加したもの．
  * 従来の kGenProg のオプションは {@code --kgp-args <args...>} として記述する．
  * <br>
  * FIXME: 現状 kGenProg オプションにスペースが入っているとバグる．
@@ -27,11 +28,13 @@ public class ClientConfiguration {
   private final Configuration config;
   private final String host;
   private final int port;
+  private final int weight;
 
   protected ClientConfiguration(final Builder builder) {
     config = builder.config;
     host = builder.host;
     port = builder.port;
+    weight = builder.weight;
   }
 
   public Configuration getConfig() {
@@ -46,11 +49,16 @@ public class ClientConfiguration {
 	  return port;
   }
 
+  public int getWeight() {
+    return weight;
+  }
+
   public static class Builder {
     
     private Configuration config;    
     private String host = DEFAULT_HOST;
     private int port = DEFAULT_PORT;
+    private int weight = ClusterConfiguration.DEFAULT_WEIGHT;
     private String[] kgpArgs;
 
     private Builder() {}
@@ -89,6 +97,12 @@ public class ClientConfiguration {
       this.port = port;
     }
     
+    @Option(name = "--weight", metaVar = "<weight>",
+        usage = "Weight of this project when the coordinator shares workers among projects.")
+    private void setWeightFromCmdLineParser(final int weight) {
+      this.weight = weight;
+    }
+    
     @Option(name = "--kgp-args", metaVar = "<kGenProg's args...>",
         usage = "kGenProg's arguments.")
     private void setKgpArgsFromCmdLineParser(final String kgpArgs) {
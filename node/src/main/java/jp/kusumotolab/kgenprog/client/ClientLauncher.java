@@ -52,7 +52,8 @@ public class ClientLauncher {
     final SourceCodeValidation sourceCodeValidation = new DefaultCodeValidation();
     final VariantSelection variantSelection = new DefaultVariantSelection(config.getHeadcount());
     final TestExecutor testExecutor =
-        new RemoteTestExecutor(config, clientConfig.getHost(), clientConfig.getPort());
+        new RemoteTestExecutor(config, clientConfig.getHost(), clientConfig.getPort(),
+            clientConfig.getWeight());
     final PatchGenerator patchGenerator = new PatchGenerator();
 
     final KGenProgMain kGenProgMain =
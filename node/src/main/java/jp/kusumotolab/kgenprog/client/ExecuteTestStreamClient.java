@@ -0,0 +1,182 @@
+package jp.kusumotolab.kgenprog.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterFutureStub;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterStub;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
+
+/**
+ * executeTestStreamを使い，1本のストリームで複数のテストを実行する
+ *
+ * コーディネータがストリームに対応していない場合は，単発のexecuteTestで実行する
+ */
+class ExecuteTestStreamClient {
+
+  private static final Logger log = LoggerFactory.getLogger(ExecuteTestStreamClient.class);
+
+  private final KGenProgClusterStub asyncStub;
+  private final KGenProgClusterFutureStub futureStub;
+
+  // 以下のフィールドはthisで同期してアクセスする
+  private final Map<Long, PendingTest> pendingTests = new HashMap<>();
+  private StreamObserver<GrpcExecuteTestStreamRequest> requestObserver;
+  private boolean streamSupported = true;
+  private long idCounter = 0;
+
+  ExecuteTestStreamClient(final KGenProgClusterStub asyncStub,
+      final KGenProgClusterFutureStub futureStub) {
+    this.asyncStub = asyncStub;
+    this.futureStub = futureStub;
+  }
+
+  /**
+   * テストの実行を依頼する．購読するたびにリクエストを送る
+   *
+   * @param request リクエスト
+   * @return レスポンス
+   */
+  Single<GrpcExecuteTestResponse> executeTest(final GrpcExecuteTestRequest request) {
+    return Single.create(emitter -> {
+      synchronized (this) {
+        if (!streamSupported) {
+          executeUnary(request, emitter);
+          return;
+        }
+        final long id = idCounter++;
+        pendingTests.put(id, new PendingTest(request, emitter));
+        emitter.setCancellable(() -> cancel(id));
+        getRequestObserver().onNext(GrpcExecuteTestStreamRequest.newBuilder()
+            .setId(id)
+            .setRequest(request)
+            .build());
+      }
+    });
+  }
+
+  /**
+   * ストリームを閉じる
+   */
+  synchronized void close() {
+    if (requestObserver != null) {
+      requestObserver.onCompleted();
+      requestObserver = null;
+    }
+  }
+
+  private StreamObserver<GrpcExecuteTestStreamRequest> getRequestObserver() {
+    if (requestObserver == null) {
+      requestObserver = asyncStub.executeTestStream(new ResponseObserver());
+    }
+    return requestObserver;
+  }
+
+  private synchronized void cancel(final long id) {
+    if (pendingTests.remove(id) == null || requestObserver == null) {
+      return;
+    }
+    requestObserver.onNext(GrpcExecuteTestStreamRequest.newBuilder()
+        .setId(id)
+        .setCancel(true)
+        .build());
+  }
+
+  private void executeUnary(final GrpcExecuteTestRequest request,
+      final SingleEmitter<GrpcExecuteTestResponse> emitter) {
+    emitter.setDisposable(RemoteTestExecutor.toSingle(futureStub.executeTest(request))
+        .subscribe(emitter::onSuccess, emitter::tryOnError));
+  }
+
+  private Throwable toException(final GrpcExecuteTestStreamResponse response) {
+    final Status.Code code = Status.fromCodeValue(response.getErrorCode())
+        .getCode();
+    if (code == Status.Code.RESOURCE_EXHAUSTED) {
+      return RetryAfter.createException(response.getErrorDescription(),
+          response.getRetryAfterMillis());
+    }
+    return Status.fromCode(code)
+        .withDescription(response.getErrorDescription())
+        .asRuntimeException();
+  }
+
+  private class ResponseObserver implements StreamObserver<GrpcExecuteTestStreamResponse> {
+
+    @Override
+    public void onNext(final GrpcExecuteTestStreamResponse value) {
+      final PendingTest pendingTest;
+      synchronized (ExecuteTestStreamClient.this) {
+        pendingTest = pendingTests.remove(value.getId());
+      }
+      if (pendingTest == null) {
+        return;
+      }
+
+      if (value.getErrorCode() == Status.Code.OK.value()) {
+        pendingTest.emitter.onSuccess(value.getResponse());
+      } else {
+        pendingTest.emitter.tryOnError(toException(value));
+      }
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      final boolean unimplemented = Status.fromThrowable(t)
+          .getCode() == Status.Code.UNIMPLEMENTED;
+      final List<PendingTest> failedTests;
+      synchronized (ExecuteTestStreamClient.this) {
+        requestObserver = null;
+        if (unimplemented) {
+          streamSupported = false;
+        }
+        failedTests = new ArrayList<>(pendingTests.values());
+        pendingTests.clear();
+      }
+
+      if (unimplemented) {
+        // ストリームに対応していないコーディネータなので，単発の呼び出しで送り直す
+        log.info("executeTestStream is not supported, fall back to executeTest");
+        failedTests.forEach(test -> executeUnary(test.request, test.emitter));
+      } else {
+        log.error("executeTestStream failed", t);
+        failedTests.forEach(test -> test.emitter.tryOnError(t));
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      final List<PendingTest> remainingTests;
+      synchronized (ExecuteTestStreamClient.this) {
+        requestObserver = null;
+        remainingTests = new ArrayList<>(pendingTests.values());
+        pendingTests.clear();
+      }
+      remainingTests.forEach(test -> test.emitter.tryOnError(Status.UNAVAILABLE
+          .withDescription("executeTestStream closed")
+          .asRuntimeException()));
+    }
+  }
+
+  private static class PendingTest {
+
+    private final GrpcExecuteTestRequest request;
+    private final SingleEmitter<GrpcExecuteTestResponse> emitter;
+
+    private PendingTest(final GrpcExecuteTestRequest request,
+        final SingleEmitter<GrpcExecuteTestResponse> emitter) {
+      this.request = request;
+      this.emitter = emitter;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package jp.kusumotolab.kgenprog.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectStreamRequest;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterStub;
+
+/**
+ * registerProjectStreamを使い，zip圧縮したプロジェクトをファイルから少しずつ送る
+ *
+ * コーディネータが受け取れる分だけ読み込んで送るので，プロジェクト全体をメモリに置くことはない
+ */
+class ProjectUploader
+    implements ClientResponseObserver<GrpcRegisterProjectStreamRequest, GrpcRegisterProjectResponse> {
+
+  /**
+   * 1つのメッセージで送るbyte数
+   */
+  static final int PIECE_SIZE = 1024 * 1024;
+
+  private final GrpcConfiguration configuration;
+  private final int weight;
+  private final InputStream input;
+  private final byte[] buffer = new byte[PIECE_SIZE];
+  private final SettableFuture<GrpcRegisterProjectResponse> response = SettableFuture.create();
+  private ClientCallStreamObserver<GrpcRegisterProjectStreamRequest> requestStream;
+  private boolean headerSent = false;
+  private boolean finished = false;
+
+  private ProjectUploader(final GrpcConfiguration configuration, final int weight,
+      final InputStream input) {
+    this.configuration = configuration;
+    this.weight = weight;
+    this.input = input;
+  }
+
+  /**
+   * プロジェクトを登録する．登録が終わるまでブロックする
+   *
+   * @param asyncStub コーディネータのスタブ
+   * @param configuration プロジェクトやKGenProgに関する設定
+   * @param weight プロジェクトの重み
+   * @param zip zip圧縮したプロジェクトのファイル
+   * @return コーディネータからのレスポンス
+   * @throws IOException ファイルを読み込めなかったとき
+   * @throws io.grpc.StatusRuntimeException 通信に失敗したとき
+   */
+  static GrpcRegisterProjectResponse upload(final KGenProgClusterStub asyncStub,
+      final GrpcConfiguration configuration, final int weight, final Path zip)
+      throws IOException {
+    try (final InputStream input = Files.newInputStream(zip)) {
+      final ProjectUploader uploader = new ProjectUploader(configuration, weight, input);
+      asyncStub.registerProjectStream(uploader);
+      return uploader.response.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread()
+          .interrupt();
+      throw new IOException(e);
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  @Override
+  public void beforeStart(
+      final ClientCallStreamObserver<GrpcRegisterProjectStreamRequest> requestStream) {
+    this.requestStream = requestStream;
+    requestStream.setOnReadyHandler(this::sendPieces);
+  }
+
+  @Override
+  public void onNext(final GrpcRegisterProjectResponse value) {
+    response.set(value);
+  }
+
+  @Override
+  public void onError(final Throwable t) {
+    finished = true;
+    response.setException(t);
+  }
+
+  @Override
+  public void onCompleted() {
+    if (!response.isDone()) {
+      response.setException(new IllegalStateException("no response from coordinator"));
+    }
+  }
+
+  private void sendPieces() {
+    // コーディネータが受け取れなくなったら，次に呼ばれるまで待つ
+    while (!finished && requestStream.isReady()) {
+      final int length;
+      try {
+        length = ByteStreams.read(input, buffer, 0, buffer.length);
+      } catch (final IOException e) {
+        finished = true;
+        requestStream.onError(e);
+        response.setException(e);
+        return;
+      }
+
+      final GrpcRegisterProjectStreamRequest.Builder builder =
+          GrpcRegisterProjectStreamRequest.newBuilder()
+              .setData(ByteString.copyFrom(buffer, 0, length));
+      if (!headerSent) {
+        headerSent = true;
+        builder.setConfiguration(configuration)
+            .setWeight(weight);
+      }
+      requestStream.onNext(builder.build());
+
+      if (length < buffer.length) {
+        finished = true;
+        requestStream.onCompleted();
+      }
+    }
+  }
+}
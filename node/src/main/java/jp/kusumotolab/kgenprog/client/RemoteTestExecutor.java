@@ -1,10 +1,14 @@
 package jp.kusumotolab.kgenprog.client;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.google.common.util.concurrent.FutureCallback;
@@ -14,6 +18,9 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.reactivex.Flowable;
 import io.reactivex.Single;
 import jp.kusumotolab.kgenprog.Configuration;
 import jp.kusumotolab.kgenprog.ga.variant.Variant;
@@ -29,7 +36,9 @@ import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterBlockingStub;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterFutureStub;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterStub;
 import jp.kusumotolab.kgenprog.grpc.ProjectZipper;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
 import jp.kusumotolab.kgenprog.grpc.Serializer;
 import jp.kusumotolab.kgenprog.project.factory.TargetProject;
 import jp.kusumotolab.kgenprog.project.test.EmptyTestResults;
@@ -39,14 +48,32 @@ import jp.kusumotolab.kgenprog.project.test.TestResults;
 public class RemoteTestExecutor implements TestExecutor {
 
   private static final Logger log = LoggerFactory.getLogger(RemoteTestExecutor.class);
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+  /**
+   * 混雑を理由に拒否された要求を再送する最大の回数と，最初の送信から再送をやめるまでの時間
+   */
+  private static final int MAX_RETRIES = 30;
+  private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
   private final KGenProgClusterBlockingStub blockingStub;
   private final KGenProgClusterFutureStub futureStub;
+  private final KGenProgClusterStub asyncStub;
+  private final ExecuteTestStreamClient streamClient;
   private final Configuration config;
+  private final int weight;
   private Optional<Integer> projectId = Optional.empty();
+  private boolean streamSupported = true;
 
   public RemoteTestExecutor(final Configuration config, final String name, final int port) {
+    this(config, name, port, ClusterConfiguration.DEFAULT_WEIGHT);
+  }
+
+  public RemoteTestExecutor(final Configuration config, final String name, final int port,
+      final int weight) {
     this.config = config;
+    this.weight = weight;
     final ManagedChannel managedChannel = ManagedChannelBuilder.forAddress(name, port)
         .usePlaintext()
         .keepAliveTime(ClusterConfiguration.DEFAULT_KEEPALIVE_SECONDS, TimeUnit.SECONDS)
@@ -54,12 +81,17 @@ public class RemoteTestExecutor implements TestExecutor {
         .build();
     blockingStub = KGenProgClusterGrpc.newBlockingStub(managedChannel);
     futureStub = KGenProgClusterGrpc.newFutureStub(managedChannel);
+    asyncStub = KGenProgClusterGrpc.newStub(managedChannel);
+    streamClient = new ExecuteTestStreamClient(asyncStub, futureStub);
   }
 
   public RemoteTestExecutor(final Configuration config, final ManagedChannel managedChannel) {
     this.config = config;
+    this.weight = ClusterConfiguration.DEFAULT_WEIGHT;
     blockingStub = KGenProgClusterGrpc.newBlockingStub(managedChannel);
     futureStub = KGenProgClusterGrpc.newFutureStub(managedChannel);
+    asyncStub = KGenProgClusterGrpc.newStub(managedChannel);
+    streamClient = new ExecuteTestStreamClient(asyncStub, futureStub);
   }
 
   @Override
@@ -83,7 +115,37 @@ public class RemoteTestExecutor implements TestExecutor {
 
     log.debug("executeTest request");
 
-    return toSingle(futureStub.executeTest(request));
+    // コーディネータが混雑している場合は，指示された時間以上待ってから再送する．
+    // 混雑が解けない場合に待ち続けないよう，回数と時間に上限を設ける
+    final AtomicInteger attempts = new AtomicInteger(0);
+    final long startMillis = System.currentTimeMillis();
+    return streamClient.executeTest(request)
+        .retryWhen(errors -> errors.flatMap(error -> {
+          final Optional<Long> retryAfter = RetryAfter.getRetryAfterMillis(error);
+          if (!retryAfter.isPresent()) {
+            return Flowable.error(error);
+          }
+          final int attempt = attempts.getAndIncrement();
+          final long delay = computeBackoffMillis(retryAfter.get(), attempt);
+          final long elapsed = System.currentTimeMillis() - startMillis;
+          if (attempt >= MAX_RETRIES || elapsed + delay > MAX_RETRY_MILLIS) {
+            log.error("executeTest rejected {} times, give up", attempt + 1);
+            return Flowable.error(error);
+          }
+          log.debug("executeTest rejected, retry after {} ms", delay);
+          return Flowable.timer(delay, TimeUnit.MILLISECONDS);
+        }));
+  }
+
+  /**
+   * 指数バックオフで再送までの時間を決める．複数のクライアントが一斉に再送しないようにゆらぎを加える
+   */
+  private long computeBackoffMillis(final long retryAfterMillis, final int attempt) {
+    final long backoff =
+        Math.min(INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16), MAX_BACKOFF_MILLIS);
+    final long base = Math.max(backoff, retryAfterMillis);
+    return base + ThreadLocalRandom.current()
+        .nextLong(base / 2 + 1);
   }
 
   private TestResults deserializeResponse(final GrpcExecuteTestResponse response) {
@@ -100,39 +162,88 @@ public class RemoteTestExecutor implements TestExecutor {
 
   @Override
   public void initialize() {
-    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    final TargetProject targetProject;
+    // プロジェクト全体をメモリに置かないよう，一時ファイルにzip圧縮する
+    final Path zip;
     try {
-      targetProject = ProjectZipper.zipProject(config.getTargetProject(), () -> stream);
+      zip = Files.createTempFile("kgenprog-project", ".zip");
     } catch (final IOException e) {
-      log.error("failed to zip project", e);
+      log.error("failed to create temporary file", e);
       throw new RuntimeException("failed to zip project");
     }
 
-    final GrpcConfiguration configuration = Serializer
-        .updateConfiguration(Serializer.serialize(config)
-            .toBuilder(), targetProject)
-        .build();
+    // 圧縮と登録のどちらで失敗しても一時ファイルを残さない
+    final GrpcRegisterProjectResponse response;
+    try {
+      final TargetProject targetProject;
+      try {
+        final OutputStream stream = new BufferedOutputStream(Files.newOutputStream(zip));
+        targetProject = ProjectZipper.zipProject(config.getTargetProject(), () -> stream);
+      } catch (final IOException e) {
+        log.error("failed to zip project", e);
+        throw new RuntimeException("failed to zip project");
+      }
+
+      final GrpcConfiguration configuration = Serializer
+          .updateConfiguration(Serializer.serialize(config)
+              .toBuilder(), targetProject)
+          .build();
+
+      try {
+        response = registerProject(configuration, zip);
+      } catch (final IOException e) {
+        log.error("failed to read zipped project", e);
+        throw new RuntimeException("failed to register project");
+      }
+    } finally {
+      try {
+        Files.deleteIfExists(zip);
+      } catch (final IOException e) {
+        log.warn("failed to delete " + zip, e);
+      }
+    }
+
+    if (response.getStatus() == GrpcStatus.FAILED) {
+      log.error("failed to register project");
+      throw new RuntimeException("failed to register project");
+    }
+    projectId = Optional.of(response.getProjectId());
+  }
+
+  private GrpcRegisterProjectResponse registerProject(final GrpcConfiguration configuration,
+      final Path zip) throws IOException {
+    if (streamSupported) {
+      log.debug("registerProjectStream request");
+      try {
+        final GrpcRegisterProjectResponse response =
+            ProjectUploader.upload(asyncStub, configuration, weight, zip);
+        log.debug("registerProjectStream response");
+        return response;
+      } catch (final StatusRuntimeException e) {
+        if (e.getStatus()
+            .getCode() != Status.Code.UNIMPLEMENTED) {
+          throw e;
+        }
+        // ストリームに対応していない古いコーディネータ
+        log.debug("registerProjectStream is not supported, fall back to registerProject");
+        streamSupported = false;
+      }
+    }
 
-    final ByteString zip = ByteString.copyFrom(stream.toByteArray());
     final GrpcRegisterProjectRequest request = GrpcRegisterProjectRequest.newBuilder()
         .setConfiguration(configuration)
-        .setProject(zip)
+        .setProject(ByteString.copyFrom(Files.readAllBytes(zip)))
+        .setWeight(weight)
         .build();
     log.debug("registerProject request");
 
     final GrpcRegisterProjectResponse response = blockingStub.registerProject(request);
     log.debug("registerProject response");
-
-    if (response.getStatus() == GrpcStatus.FAILED) {
-      log.error("failed to register project");
-      throw new RuntimeException("failed to register project");
-    }
-    projectId = Optional.of(response.getProjectId());
+    return response;
   }
 
   @Override
   public void finish() {
+    streamClient.close();
     if (!projectId.isPresent()) {
       log.error("project id is not present");
       return;
@@ -167,7 +278,7 @@ public class RemoteTestExecutor implements TestExecutor {
     throw new UnsupportedOperationException();
   }
 
-  private static <T> Single<T> toSingle(final ListenableFuture<T> listenableFuture) {
+  static <T> Single<T> toSingle(final ListenableFuture<T> listenableFuture) {
     return Single.create(subscriber -> {
       Futures.addCallback(listenableFuture, new FutureCallback<T>() {
 
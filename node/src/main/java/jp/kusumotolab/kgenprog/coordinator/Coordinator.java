@@ -2,36 +2,49 @@ package jp.kusumotolab.kgenprog.coordinator;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerInterceptors;
 import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import io.reactivex.Completable;
-import io.reactivex.Flowable;
-import io.reactivex.Single;
-import io.reactivex.schedulers.Schedulers;
 import jp.kusumotolab.kgenprog.coordinator.log.CoordinatorLogger;
 import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
+import jp.kusumotolab.kgenprog.grpc.ContentDefinedChunker;
+import jp.kusumotolab.kgenprog.grpc.GrpcChunk;
 import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetChunksRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcPeer;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectStreamRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcWorkerReadiness;
 import jp.kusumotolab.kgenprog.grpc.Worker;
 
 public class Coordinator {
@@ -39,18 +52,47 @@ public class Coordinator {
   private static final CoordinatorLogger coordinatorLogger =
       CoordinatorLogger.getCoordinatorLogger();
 
+  /**
+   * 作業ディレクトリの中で，プロジェクトのチャンクを書き出すディレクトリ
+   */
+  private static final String CHUNK_DIRECTORY = "chunks";
+
+  /**
+   * マニフェストとともにワーカーへ伝える，チャンクの取得元となるワーカーの最大数
+   */
+  static final int MAX_PEERS = 3;
+
   private final Server server;
   private final AtomicInteger projectIdCounter;
   private final AtomicInteger workerIdCounter;
   private final AtomicInteger testIdCounter;
-  private final WorkerSet workerSet = new WorkerSet();
+  private final WorkerSet workerSet;
+  private final TestSharder testSharder;
+  private final TestResultCache testResultCache;
   private final List<ServerServiceDefinition> services = new ArrayList<>();
-  private final ConcurrentMap<Integer, ByteString> binaryMap = new ConcurrentHashMap<>();
+  private final ProjectChunkStore chunkStore;
+  private final ProjectRegistry projectRegistry = new ProjectRegistry();
   private final ConcurrentHashMap<Integer, GrpcConfiguration> configurationMap =
       new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, GrpcPeer> peerMap = new ConcurrentHashMap<>();
   private final CoordinatorInterceptor interceptor = new CoordinatorInterceptor();
+  private final ExecutorService workerCallExecutor =
+      Executors.newFixedThreadPool(WorkerSet.EVENT_LOOP_THREADS,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("remote-worker-%d")
+              .build());
 
   public Coordinator(final ClusterConfiguration config) {
+    workerSet = new WorkerSet(WorkerSetSettings.from(config));
+    testSharder = new TestSharder(workerSet, config.getTestShards());
+    testResultCache = new TestResultCache(testSharder, config.getResultCacheEntries(),
+        config.getResultCacheBytes());
+    try {
+      chunkStore = new ProjectChunkStore(config.getWorkingDir()
+          .resolve(CHUNK_DIRECTORY));
+    } catch (final IOException e) {
+      throw new RuntimeException("Creating a chunk directory has failed.", e);
+    }
     server = ServerBuilder.forPort(config.getPort())
         .addService(ServerInterceptors.intercept(new KGenProgCluster(this), interceptor))
         .addService(ServerInterceptors.intercept(new CoordinatorService(this), interceptor))
@@ -78,19 +120,81 @@ public class Coordinator {
   // 以下，各Serviceから呼び出されるメソッド
   public void registerProject(final GrpcRegisterProjectRequest request,
       final StreamObserver<GrpcRegisterProjectResponse> responseObserver) {
+    final ProjectChunkStore.Upload upload = chunkStore.startUpload();
+    try {
+      upload.write(request.getProject());
+    } catch (final IOException e) {
+      upload.abort();
+      failRegistering(e, responseObserver);
+      return;
+    }
+    registerProject(request.getConfiguration(), request.getWeight(), upload, responseObserver);
+  }
+
+  public StreamObserver<GrpcRegisterProjectStreamRequest> registerProjectStream(
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver) {
+    return new RegisterProjectStream(this, chunkStore.startUpload(), responseObserver);
+  }
+
+  /**
+   * 受け取り終えたプロジェクトを登録し，全ワーカーに配る
+   *
+   * 内容と設定が同じプロジェクトが登録済みであれば，それを共有して保持も展開もし直さない
+   */
+  void registerProject(final GrpcConfiguration configuration, final int weight,
+      final ProjectChunkStore.Upload upload,
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver) {
     final int requestId = interceptor.getRequestId();
     final int projectId = projectIdCounter.getAndIncrement();
 
-    binaryMap.put(projectId, request.getProject());
-    configurationMap.put(projectId, request.getConfiguration());
-    distributeAllWorker(projectId);
+    final List<ByteString> digests;
+    try {
+      digests = upload.commit(projectId);
+    } catch (final IOException e) {
+      upload.abort();
+      failRegistering(e, responseObserver);
+      return;
+    }
+
+    // 同じ内容の登録が同時に届いても，共有された側が設定を参照できるよう先に置く
+    configurationMap.put(projectId, configuration);
+    final ProjectRegistry.Registration registration =
+        projectRegistry.register(ProjectRegistry.computeKey(digests, configuration), projectId,
+            weight);
+    if (registration.isChanged()) {
+      workerSet.setWeight(projectId, weight);
+      testSharder.addProject(projectId, configuration.getExecutionTestsList());
+      distributeAllWorker(projectId);
+    } else {
+      // チャンクは共有しているので，手放しても登録済みのプロジェクトには影響しない
+      configurationMap.remove(projectId);
+      chunkStore.remove(projectId);
+      workerSet.setWeight(registration.getProjectId(), registration.getWeight());
+    }
 
     final GrpcRegisterProjectResponse response = GrpcRegisterProjectResponse.newBuilder()
         .setProjectId(projectId)
         .setStatus(GrpcStatus.SUCCESS)
         .build();
 
-    coordinatorLogger.registerProject(requestId, request, response);
+    coordinatorLogger.registerProject(requestId, response, upload.getSize());
+
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  /**
+   * プロジェクトを保持できなかったことをクライアントに伝える
+   */
+  void failRegistering(final Throwable error,
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver) {
+    final int requestId = interceptor.getRequestId();
+    final GrpcRegisterProjectResponse response = GrpcRegisterProjectResponse.newBuilder()
+        .setStatus(GrpcStatus.FAILED)
+        .build();
+
+    coordinatorLogger.error(requestId, error);
+    coordinatorLogger.registerProject(requestId, response, 0);
 
     responseObserver.onNext(response);
     responseObserver.onCompleted();
@@ -102,18 +206,38 @@ public class Coordinator {
     final int testId = testIdCounter.getAndIncrement();
     final String hostName = interceptor.getHostName();
     final int port = interceptor.getPort();
-    workerSet.executeTest(
-        new ExecuteTestRequest(request, responseObserver, hostName, port, requestId, testId));
+    final ExecuteTestRequest testRequest = new ExecuteTestRequest(resolve(request),
+        responseObserver, hostName, port, requestId, testId);
+
+    // クライアントが取り消したり期限が切れたりしたら，待機中・実行中のテストも取り消す
+    if (responseObserver instanceof ServerCallStreamObserver) {
+      ((ServerCallStreamObserver<GrpcExecuteTestResponse>) responseObserver)
+          .setOnCancelHandler(() -> testResultCache.cancelTest(testRequest));
+    }
+    testResultCache.executeTest(testRequest);
   }
 
   public void unregisterProject(final GrpcUnregisterProjectRequest request,
       final StreamObserver<GrpcUnregisterProjectResponse> responseObserver) {
     final int requestId = interceptor.getRequestId();
 
-    workerSet.unregister(requestId, request);
+    // 共有している他の登録が残っていれば，重みを減らすだけにする
+    final ProjectRegistry.Registration registration =
+        projectRegistry.unregister(request.getProjectId());
+    if (registration != null && !registration.isChanged()) {
+      workerSet.setWeight(registration.getProjectId(), registration.getWeight());
+    } else {
+      final int projectId =
+          registration != null ? registration.getProjectId() : request.getProjectId();
+      workerSet.unregister(requestId, request.toBuilder()
+          .setProjectId(projectId)
+          .build());
+      testResultCache.removeProject(projectId);
+      testSharder.removeProject(projectId);
 
-    binaryMap.remove(request.getProjectId());
-    configurationMap.remove(request.getProjectId());
+      configurationMap.remove(projectId);
+      chunkStore.remove(projectId);
+    }
 
     final GrpcUnregisterProjectResponse response = GrpcUnregisterProjectResponse.newBuilder()
         .setStatus(GrpcStatus.SUCCESS)
@@ -125,46 +249,54 @@ public class Coordinator {
     responseObserver.onCompleted();
   }
 
+  public void getProjectStatus(final GrpcGetProjectStatusRequest request,
+      final StreamObserver<GrpcGetProjectStatusResponse> responseObserver) {
+    final int requestId = interceptor.getRequestId();
+    final OptionalInt projectId = projectRegistry.resolve(request.getProjectId());
+    final GrpcGetProjectStatusResponse response;
+    if (!projectId.isPresent() || !configurationMap.containsKey(projectId.getAsInt())) {
+      response = GrpcGetProjectStatusResponse.newBuilder()
+          .setStatus(GrpcStatus.FAILED)
+          .build();
+    } else {
+      final List<GrpcWorkerReadiness> workers = workerSet.getReadiness(projectId.getAsInt());
+      final long readyWorkerCount = workers.stream()
+          .filter(e -> e.getState() == GrpcWorkerReadiness.State.READY)
+          .count();
+      response = GrpcGetProjectStatusResponse.newBuilder()
+          .setStatus(GrpcStatus.SUCCESS)
+          .addAllWorkers(workers)
+          .setReadyWorkerCount((int) readyWorkerCount)
+          .build();
+    }
+
+    coordinatorLogger.getProjectStatus(requestId, request, response);
+
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
   public void registerWorker(final GrpcRegisterWorkerRequest request,
       final StreamObserver<GrpcRegisterWorkerResponse> responseObserver) {
     final int requestId = interceptor.getRequestId();
     final int workerId = workerIdCounter.getAndIncrement();
     final String hostName = interceptor.getHostName();
     final int port = request.getPort();
+    final int slots = Math.max(request.getSlots(), 1);
 
-    // Workerに抱えているプロジェクトをを全て送る
-    // TODO: リファクリングする
+    // 展開を待たずに参加させ，登録済みのプロジェクトは裏で並列に展開させる
     final Worker remoteWorker = createWorker(workerId, hostName, port);
-    Flowable<GrpcExecuteTestResponse> flowable = null;
-    for (final Integer projectId : binaryMap.keySet()) {
-      final GrpcExecuteTestRequest testRequest = GrpcExecuteTestRequest.newBuilder()
-          .setProjectId(projectId)
-          .build();
-
-      final Single<GrpcExecuteTestResponse> responseSingle = remoteWorker.executeTest(
-          testRequest);
-      if (flowable == null) {
-        flowable = responseSingle.toFlowable();
-      } else {
-        flowable = flowable.concatWith(responseSingle);
-      }
-    }
-
-    if (flowable == null) {
-      finishRegistering(requestId, remoteWorker, responseObserver);
-    } else {
-      flowable.subscribe(e -> finishRegistering(requestId, remoteWorker, responseObserver));
-    }
-  }
-
-  private void finishRegistering(final int requestId, final Worker worker, final StreamObserver<GrpcRegisterWorkerResponse> responseObserver) {
-    addWorker(worker);
+    peerMap.put(workerId, GrpcPeer.newBuilder()
+        .setHost(hostName)
+        .setPort(port)
+        .build());
+    addWorker(remoteWorker, slots);
 
     final GrpcRegisterWorkerResponse response = GrpcRegisterWorkerResponse.newBuilder()
         .setStatus(GrpcStatus.SUCCESS)
         .build();
 
-    coordinatorLogger.registerWorker(requestId, worker, response);
+    coordinatorLogger.registerWorker(requestId, remoteWorker, response);
 
     responseObserver.onNext(response);
     responseObserver.onCompleted();
@@ -174,7 +306,8 @@ public class Coordinator {
       final StreamObserver<GrpcGetProjectResponse> responseObserver) {
     final int requestId = interceptor.getRequestId();
     final int projectId = request.getProjectId();
-    final ByteString byteString = binaryMap.get(projectId);
+    final ByteString byteString = chunkStore.getProject(projectId)
+        .orElse(null);
     final GrpcConfiguration configuration = configurationMap.get(projectId);
     final GrpcGetProjectResponse response;
     if (byteString == null || configuration == null) {
@@ -195,37 +328,202 @@ public class Coordinator {
     responseObserver.onCompleted();
   }
 
+  public void getProjectStream(final GrpcGetProjectRequest request,
+      final StreamObserver<GrpcGetProjectStreamResponse> responseObserver) {
+    final int requestId = interceptor.getRequestId();
+    final int projectId = request.getProjectId();
+    final Optional<List<ByteString>> digests = chunkStore.getManifest(projectId);
+    final GrpcConfiguration configuration = configurationMap.get(projectId);
+    if (!digests.isPresent() || configuration == null) {
+      final GrpcGetProjectStreamResponse response = GrpcGetProjectStreamResponse.newBuilder()
+          .setStatus(GrpcStatus.FAILED)
+          .build();
+      coordinatorLogger.getProjectStream(requestId, request, response.getStatus(), 0, 0);
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+      return;
+    }
+
+    // ワーカーが受け取れる分だけチャンクを読み込んで送る
+    final ServerCallStreamObserver<GrpcGetProjectStreamResponse> serverCallStreamObserver =
+        (ServerCallStreamObserver<GrpcGetProjectStreamResponse>) responseObserver;
+    final Iterator<ByteString> iterator = digests.get()
+        .iterator();
+    final Runnable sender = new Runnable() {
+
+      private boolean headerSent = false;
+      private boolean finished = false;
+      private long bytes = 0;
+
+      @Override
+      public synchronized void run() {
+        while (!finished && serverCallStreamObserver.isReady()) {
+          if (!headerSent) {
+            headerSent = true;
+            serverCallStreamObserver.onNext(GrpcGetProjectStreamResponse.newBuilder()
+                .setStatus(GrpcStatus.SUCCESS)
+                .setConfiguration(configuration)
+                .build());
+          } else if (iterator.hasNext()) {
+            final ByteString digest = iterator.next();
+            final Optional<ByteString> chunk = chunkStore.getChunk(digest);
+            if (!chunk.isPresent()) {
+              // 送っている間にプロジェクトが登録解除された
+              finished = true;
+              final StatusRuntimeException e = Status.NOT_FOUND
+                  .withDescription("chunk " + ContentDefinedChunker.toHex(digest) + " is not found")
+                  .asRuntimeException();
+              coordinatorLogger.error(requestId, e);
+              serverCallStreamObserver.onError(e);
+              return;
+            }
+            bytes += chunk.get()
+                .size();
+            serverCallStreamObserver.onNext(GrpcGetProjectStreamResponse.newBuilder()
+                .setData(chunk.get())
+                .build());
+          } else {
+            finished = true;
+            coordinatorLogger.getProjectStream(requestId, request, GrpcStatus.SUCCESS,
+                digests.get()
+                    .size(),
+                bytes);
+            serverCallStreamObserver.onCompleted();
+          }
+        }
+      }
+    };
+    serverCallStreamObserver.setOnReadyHandler(sender);
+    sender.run();
+  }
+
+  public void getProjectManifest(final GrpcGetProjectRequest request,
+      final StreamObserver<GrpcGetProjectManifestResponse> responseObserver) {
+    final int requestId = interceptor.getRequestId();
+    final int projectId = request.getProjectId();
+    final Optional<List<ByteString>> digests = chunkStore.getManifest(projectId);
+    final GrpcConfiguration configuration = configurationMap.get(projectId);
+    final GrpcGetProjectManifestResponse response;
+    if (!digests.isPresent() || configuration == null) {
+      response = GrpcGetProjectManifestResponse.newBuilder()
+          .setStatus(GrpcStatus.FAILED)
+          .build();
+    } else {
+      response = GrpcGetProjectManifestResponse.newBuilder()
+          .setConfiguration(configuration)
+          .addAllChunkDigests(digests.get())
+          .addAllPeers(selectPeers(projectId))
+          .setStatus(GrpcStatus.SUCCESS)
+          .build();
+    }
+
+    coordinatorLogger.getProjectManifest(requestId, request, response);
+
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  public void getChunks(final GrpcGetChunksRequest request,
+      final StreamObserver<GrpcChunk> responseObserver) {
+    final int requestId = interceptor.getRequestId();
+
+    // ワーカーが受け取れる分だけチャンクを読み込んで送る
+    final ServerCallStreamObserver<GrpcChunk> serverCallStreamObserver =
+        (ServerCallStreamObserver<GrpcChunk>) responseObserver;
+    final Iterator<ByteString> iterator = request.getDigestsList()
+        .iterator();
+    final Runnable sender = new Runnable() {
+
+      private boolean finished = false;
+      private long bytes = 0;
+
+      @Override
+      public synchronized void run() {
+        while (!finished && serverCallStreamObserver.isReady()) {
+          if (iterator.hasNext()) {
+            final ByteString digest = iterator.next();
+            final Optional<ByteString> chunk = chunkStore.getChunk(digest);
+            if (!chunk.isPresent()) {
+              // 取得している間にプロジェクトが登録解除された
+              finished = true;
+              final StatusRuntimeException e = Status.NOT_FOUND
+                  .withDescription("chunk " + ContentDefinedChunker.toHex(digest) + " is not found")
+                  .asRuntimeException();
+              coordinatorLogger.error(requestId, e);
+              serverCallStreamObserver.onError(e);
+              return;
+            }
+            bytes += chunk.get()
+                .size();
+            serverCallStreamObserver.onNext(GrpcChunk.newBuilder()
+                .setDigest(digest)
+                .setData(chunk.get())
+                .build());
+          } else {
+            finished = true;
+            coordinatorLogger.getChunks(requestId, request.getDigestsCount(), bytes);
+            serverCallStreamObserver.onCompleted();
+          }
+        }
+      }
+    };
+    serverCallStreamObserver.setOnReadyHandler(sender);
+    sender.run();
+  }
+
+  /**
+   * クライアントに返したプロジェクトIDを，共有しているプロジェクトのIDに置き換える
+   */
+  private GrpcExecuteTestRequest resolve(final GrpcExecuteTestRequest request) {
+    final OptionalInt projectId = projectRegistry.resolve(request.getProjectId());
+    if (!projectId.isPresent() || projectId.getAsInt() == request.getProjectId()) {
+      return request;
+    }
+    return request.toBuilder()
+        .setProjectId(projectId.getAsInt())
+        .build();
+  }
+
+  /**
+   * プロジェクトを展開済みのワーカーから，チャンクの取得元を無作為に選ぶ
+   *
+   * 取得元を散らすことで，展開済みのワーカーが次々に他のワーカーへチャンクを配る
+   */
+  private List<GrpcPeer> selectPeers(final int projectId) {
+    final List<GrpcPeer> peers = new ArrayList<>();
+    for (final Worker worker : workerSet.getWarmWorkers(projectId)) {
+      final GrpcPeer peer = peerMap.get(worker.getId());
+      if (peer != null) {
+        peers.add(peer);
+      }
+    }
+    Collections.shuffle(peers);
+    return peers.subList(0, Math.min(peers.size(), MAX_PEERS));
+  }
+
   // 以下はテスト用メソッド
   protected List<ServerServiceDefinition> getServices() {
     return services;
   }
 
   protected Worker createWorker(final int workerId, final String name, final int port) {
-    return new RemoteWorker(workerId, name, port);
+    return new RemoteWorker(workerId, name, port, workerCallExecutor);
   }
 
   protected void addWorker(final Worker worker) {
-    for (final Integer projectId : binaryMap.keySet()) {
-      final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
-          .setProjectId(projectId)
-          .build();
-      worker.executeTest(request)
-          .blockingGet();
-    }
-    workerSet.addWorker(worker);
+    addWorker(worker, 1);
+  }
+
+  protected void addWorker(final Worker worker, final int slots) {
+    workerSet.addWorker(worker, slots);
+    workerSet.warmUp(worker, configurationMap.keySet(), slots);
   }
 
   private void distributeAllWorker(final int projectId) {
-    final Collection<Worker> allWorker = workerSet.getAllWorker();
-    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
-        .setProjectId(projectId)
-        .build();
-    final List<Completable> completableList = allWorker.stream()
-        .map(e -> e.executeTest(request)
-            .subscribeOn(Schedulers.from(workerSet.getExecutorService())))
-        .map(Completable::fromSingle)
-        .collect(Collectors.toList());
-    Completable.merge(completableList)
-        .blockingGet();
+    // 展開は待たない．展開を終えたワーカーから順にテストが割り当てられる
+    for (final Worker worker : workerSet.getAllWorker()) {
+      workerSet.warmUp(worker, Collections.singletonList(projectId), 1);
+    }
   }
+
 }
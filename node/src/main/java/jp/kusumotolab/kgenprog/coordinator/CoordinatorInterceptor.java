@@ -77,6 +77,7 @@ public class CoordinatorInterceptor implements ServerInterceptor {
     private final int requestId;
     private final String clientIp;
     private final String requestMethod;
+    private boolean started = false;
 
     protected ServerCallWrapper(final ServerCall<ReqT, RespT> delegate, final int requestId,
         final String clientIp) {
@@ -89,7 +90,11 @@ public class CoordinatorInterceptor implements ServerInterceptor {
 
     @Override
     public void request(final int numMessages) {
-      coordinatorLogger.startRequest(requestId, requestMethod, clientIp);
+      // ストリームでは何度も呼ばれるので，最初の1回だけ記録する
+      if (!started) {
+        started = true;
+        coordinatorLogger.startRequest(requestId, requestMethod, clientIp);
+      }
       super.request(numMessages);
     }
 
@@ -2,8 +2,12 @@ package jp.kusumotolab.kgenprog.coordinator;
 
 import io.grpc.stub.StreamObserver;
 import jp.kusumotolab.kgenprog.grpc.CoordinatorServiceGrpc.CoordinatorServiceImplBase;
+import jp.kusumotolab.kgenprog.grpc.GrpcChunk;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetChunksRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStreamResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerResponse;
 
@@ -26,4 +30,22 @@ public class CoordinatorService extends CoordinatorServiceImplBase {
       final StreamObserver<GrpcGetProjectResponse> responseObserver) {
     coordinator.getProject(request, responseObserver);
   }
+
+  @Override
+  public void getProjectStream(final GrpcGetProjectRequest request,
+      final StreamObserver<GrpcGetProjectStreamResponse> responseObserver) {
+    coordinator.getProjectStream(request, responseObserver);
+  }
+
+  @Override
+  public void getProjectManifest(final GrpcGetProjectRequest request,
+      final StreamObserver<GrpcGetProjectManifestResponse> responseObserver) {
+    coordinator.getProjectManifest(request, responseObserver);
+  }
+
+  @Override
+  public void getChunks(final GrpcGetChunksRequest request,
+      final StreamObserver<GrpcChunk> responseObserver) {
+    coordinator.getChunks(request, responseObserver);
+  }
 }
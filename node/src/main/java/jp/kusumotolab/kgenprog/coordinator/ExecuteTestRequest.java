@@ -18,13 +18,22 @@ public class ExecuteTestRequest {
   public ExecuteTestRequest(final GrpcExecuteTestRequest request,
       final StreamObserver<GrpcExecuteTestResponse> streamObserver, final String senderName,
       final int senderPort, final int requestId, final int testId) {
+    this(request, streamObserver, senderName, senderPort, requestId, testId, Instant.now());
+  }
+
+  /**
+   * @param time リクエストを受け付けた時刻．他のリクエストの代わりに実行する場合は元のリクエストの時刻を引き継ぐ
+   */
+  public ExecuteTestRequest(final GrpcExecuteTestRequest request,
+      final StreamObserver<GrpcExecuteTestResponse> streamObserver, final String senderName,
+      final int senderPort, final int requestId, final int testId, final Instant time) {
     this.request = request;
     this.streamObserver = streamObserver;
     this.senderName = senderName;
     this.senderPort = senderPort;
     this.requestId = requestId;
     this.testId = testId;
-    this.time = Instant.now();
+    this.time = time;
   }
 
   public GrpcExecuteTestRequest getRequest() {
@@ -0,0 +1,237 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
+
+/**
+ * executeTestStreamの1本のストリームを扱う
+ *
+ * ストリームで届いたリクエストを1つずつ {@link Coordinator#executeTest} に渡し，
+ * 結果が返ってきたものから順にIDを付けてストリームに書き出す．
+ * 結果はクライアントが受け取れる分だけ書き出し，残りは溜めておく．
+ * 溜まった結果が上限に達したら，書き出し終えるまで次のリクエストを読まない
+ */
+public class ExecuteTestStream implements StreamObserver<GrpcExecuteTestStreamRequest> {
+
+  /**
+   * クライアントへ書き出せずに溜めておく結果の数の上限．これに達したらリクエストを読むのを止める
+   */
+  static final int MAX_BUFFERED_RESPONSES = 64;
+
+  private final Coordinator coordinator;
+  private final ServerCallStreamObserver<GrpcExecuteTestStreamResponse> responseObserver;
+
+  // 以下のフィールドはthisで同期してアクセスする
+  private final Map<Long, TestObserver> pendingTests = new HashMap<>();
+  private final Deque<GrpcExecuteTestStreamResponse> bufferedResponses = new ArrayDeque<>();
+  private boolean halfClosed = false;
+  private boolean closed = false;
+  private boolean readingPaused = false;
+
+  public ExecuteTestStream(final Coordinator coordinator,
+      final ServerCallStreamObserver<GrpcExecuteTestStreamResponse> responseObserver) {
+    this.coordinator = coordinator;
+    this.responseObserver = responseObserver;
+    responseObserver.setOnCancelHandler(this::cancelAll);
+    responseObserver.setOnReadyHandler(this::drain);
+    responseObserver.disableAutoInboundFlowControl();
+    responseObserver.request(1);
+  }
+
+  @Override
+  public void onNext(final GrpcExecuteTestStreamRequest value) {
+    final long id = value.getId();
+    if (value.getCancel()) {
+      final TestObserver testObserver;
+      synchronized (this) {
+        testObserver = pendingTests.remove(id);
+      }
+      if (testObserver != null) {
+        testObserver.cancel();
+      }
+      requestNext();
+      return;
+    }
+
+    final TestObserver testObserver = new TestObserver(id);
+    synchronized (this) {
+      pendingTests.put(id, testObserver);
+    }
+    coordinator.executeTest(value.getRequest(), testObserver);
+    requestNext();
+  }
+
+  @Override
+  public void onError(final Throwable t) {
+    // クライアントとの通信が途絶えた
+    cancelAll();
+  }
+
+  @Override
+  public void onCompleted() {
+    synchronized (this) {
+      halfClosed = true;
+      closeIfFinished();
+    }
+  }
+
+  private void cancelAll() {
+    final List<TestObserver> testObservers;
+    synchronized (this) {
+      closed = true;
+      testObservers = new ArrayList<>(pendingTests.values());
+      pendingTests.clear();
+      bufferedResponses.clear();
+    }
+    testObservers.forEach(TestObserver::cancel);
+  }
+
+  /**
+   * 溜まっている結果が上限に達していなければ次のリクエストを読む．達していれば書き出すまで止める
+   */
+  private void requestNext() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (bufferedResponses.size() >= MAX_BUFFERED_RESPONSES) {
+        readingPaused = true;
+        return;
+      }
+    }
+    // 呼び出しスレッドで次のリクエストが届くことがあるので，ロックの外で呼ぶ
+    responseObserver.request(1);
+  }
+
+  private void send(final long id, final GrpcExecuteTestStreamResponse response) {
+    synchronized (this) {
+      if (closed || pendingTests.remove(id) == null) {
+        return;
+      }
+      bufferedResponses.addLast(response);
+    }
+    drain();
+  }
+
+  /**
+   * クライアントが受け取れる分だけ溜まっている結果を書き出す
+   */
+  private void drain() {
+    final boolean resume;
+    synchronized (this) {
+      while (!closed && !bufferedResponses.isEmpty() && responseObserver.isReady()) {
+        responseObserver.onNext(bufferedResponses.pollFirst());
+      }
+      closeIfFinished();
+      resume = readingPaused && bufferedResponses.size() < MAX_BUFFERED_RESPONSES;
+      if (resume) {
+        readingPaused = false;
+      }
+    }
+    if (resume) {
+      requestNext();
+    }
+  }
+
+  private void closeIfFinished() {
+    if (halfClosed && !closed && pendingTests.isEmpty() && bufferedResponses.isEmpty()) {
+      closed = true;
+      responseObserver.onCompleted();
+    }
+  }
+
+  /**
+   * ストリーム内の1つのテストの結果を受け取る
+   *
+   * {@link ServerCallStreamObserver} として振る舞うので，単発の呼び出しと同じく取り消しを伝えられる
+   */
+  private class TestObserver extends ServerCallStreamObserver<GrpcExecuteTestResponse> {
+
+    private final long id;
+    private volatile boolean cancelled = false;
+    private volatile Runnable onCancelHandler;
+
+    private TestObserver(final long id) {
+      this.id = id;
+    }
+
+    private void cancel() {
+      cancelled = true;
+      final Runnable handler = onCancelHandler;
+      if (handler != null) {
+        handler.run();
+      }
+    }
+
+    @Override
+    public void onNext(final GrpcExecuteTestResponse value) {
+      send(id, GrpcExecuteTestStreamResponse.newBuilder()
+          .setId(id)
+          .setResponse(value)
+          .build());
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      final Status status = Status.fromThrowable(t);
+      final Optional<Long> retryAfter = RetryAfter.getRetryAfterMillis(t);
+      final GrpcExecuteTestStreamResponse.Builder builder =
+          GrpcExecuteTestStreamResponse.newBuilder()
+              .setId(id)
+              .setErrorCode(status.getCode()
+                  .value())
+              .setRetryAfterMillis(retryAfter.orElse(0L));
+      if (status.getDescription() != null) {
+        builder.setErrorDescription(status.getDescription());
+      }
+      send(id, builder.build());
+    }
+
+    @Override
+    public void onCompleted() {
+      // 結果はonNextで送り終えている
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public void setOnCancelHandler(final Runnable onCancelHandler) {
+      this.onCancelHandler = onCancelHandler;
+    }
+
+    @Override
+    public void setCompression(final String compression) {}
+
+    @Override
+    public boolean isReady() {
+      return responseObserver.isReady();
+    }
+
+    @Override
+    public void setOnReadyHandler(final Runnable onReadyHandler) {}
+
+    @Override
+    public void disableAutoInboundFlowControl() {}
+
+    @Override
+    public void request(final int count) {}
+
+    @Override
+    public void setMessageCompression(final boolean enable) {}
+  }
+}
@@ -0,0 +1,154 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
+
+/**
+ * プロジェクトごとのキューを持ち，重み付き公平キューイングでリクエストを取り出す順序を決める
+ *
+ * 各プロジェクトは仮想時刻を持ち，リクエストを1つ取り出すたびに {@code 1 / weight} だけ進む．
+ * 取り出しは仮想時刻の最も小さいプロジェクトの先頭から行うので，
+ * 長期的には各プロジェクトに重みに比例した数のワーカーが割り当てられる．
+ * 同一プロジェクト内では到着順に取り出される．
+ *
+ * このクラスはスレッドセーフではない
+ */
+public class FairShareQueue {
+
+  private final Map<Integer, ProjectQueue> queueMap = new HashMap<>();
+  private final Map<Integer, Integer> weightMap = new HashMap<>();
+  private double virtualTime = 0.0d;
+  private int size = 0;
+
+  /**
+   * プロジェクトの重みを設定する
+   *
+   * @param projectId プロジェクトID
+   * @param weight 重み．1未満の場合は1として扱う
+   */
+  public void setWeight(final int projectId, final int weight) {
+    weightMap.put(projectId, Math.max(weight, 1));
+  }
+
+  public int getWeight(final int projectId) {
+    return weightMap.getOrDefault(projectId, ClusterConfiguration.DEFAULT_WEIGHT);
+  }
+
+  public void removeWeight(final int projectId) {
+    weightMap.remove(projectId);
+    final ProjectQueue queue = queueMap.get(projectId);
+    if (queue != null && queue.requests.isEmpty()) {
+      queueMap.remove(projectId);
+    }
+  }
+
+  /**
+   * リクエストをプロジェクトのキューの末尾に追加する
+   */
+  public void add(final ExecuteTestRequest request) {
+    final int projectId = getProjectId(request);
+    final ProjectQueue queue = queueMap.computeIfAbsent(projectId, id -> new ProjectQueue());
+    if (queue.requests.isEmpty()) {
+      // 待機していなかった間の分を貯め込まないよう，現在の仮想時刻まで進める
+      queue.pass = Math.max(queue.pass, virtualTime);
+    }
+    queue.requests.addLast(request);
+    size++;
+  }
+
+  /**
+   * 各プロジェクトの先頭のリクエストを，取り出すべき順に返す
+   */
+  public List<ExecuteTestRequest> heads() {
+    return queueMap.values()
+        .stream()
+        .filter(q -> !q.requests.isEmpty())
+        .sorted(Comparator.comparingDouble((ProjectQueue q) -> q.pass)
+            .thenComparing(q -> q.requests.peekFirst()
+                .getTime()))
+        .map(q -> q.requests.peekFirst())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * {@link #heads()} で得られたリクエストをキューから取り除き，そのプロジェクトの仮想時刻を進める
+   *
+   * @param request 取り除くリクエスト
+   */
+  public void remove(final ExecuteTestRequest request) {
+    final int projectId = getProjectId(request);
+    final ProjectQueue queue = queueMap.get(projectId);
+    if (queue == null || queue.requests.peekFirst() != request) {
+      throw new IllegalArgumentException("request is not at the head of its queue");
+    }
+    queue.requests.removeFirst();
+    size--;
+
+    virtualTime = Math.max(virtualTime, queue.pass);
+    queue.pass += 1.0d / getWeight(projectId);
+
+    if (queue.requests.isEmpty() && !weightMap.containsKey(projectId)) {
+      queueMap.remove(projectId);
+    }
+  }
+
+  /**
+   * 取り消されたリクエストをキューから取り除く．仮想時刻は進めない
+   *
+   * @param request 取り除くリクエスト
+   * @return キューに入っていた場合はtrue
+   */
+  public boolean discard(final ExecuteTestRequest request) {
+    final int projectId = getProjectId(request);
+    final ProjectQueue queue = queueMap.get(projectId);
+    if (queue == null || !queue.requests.removeIf(r -> r == request)) {
+      return false;
+    }
+    size--;
+
+    if (queue.requests.isEmpty() && !weightMap.containsKey(projectId)) {
+      queueMap.remove(projectId);
+    }
+    return true;
+  }
+
+  /**
+   * プロジェクトのキューに溜まっているリクエストの数を返す
+   */
+  public int size(final int projectId) {
+    final ProjectQueue queue = queueMap.get(projectId);
+    return queue == null ? 0 : queue.requests.size();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public Stream<ExecuteTestRequest> stream() {
+    return queueMap.values()
+        .stream()
+        .flatMap(q -> q.requests.stream());
+  }
+
+  private int getProjectId(final ExecuteTestRequest request) {
+    return request.getRequest()
+        .getProjectId();
+  }
+
+  private static class ProjectQueue {
+
+    private final Deque<ExecuteTestRequest> requests = new ArrayDeque<>();
+    private double pass = 0.0d;
+  }
+}
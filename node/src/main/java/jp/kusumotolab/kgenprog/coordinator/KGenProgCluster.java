@@ -1,11 +1,17 @@
 package jp.kusumotolab.kgenprog.coordinator;
 
 
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectStreamRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterImplBase;
@@ -24,15 +30,34 @@ public class KGenProgCluster extends KGenProgClusterImplBase {
     coordinator.registerProject(request, responseObserver);
   }
 
+  @Override
+  public StreamObserver<GrpcRegisterProjectStreamRequest> registerProjectStream(
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver) {
+    return coordinator.registerProjectStream(responseObserver);
+  }
+
   @Override
   public void executeTest(final GrpcExecuteTestRequest request,
       final StreamObserver<GrpcExecuteTestResponse> responseObserver) {
     coordinator.executeTest(request, responseObserver);
   }
 
+  @Override
+  public StreamObserver<GrpcExecuteTestStreamRequest> executeTestStream(
+      final StreamObserver<GrpcExecuteTestStreamResponse> responseObserver) {
+    return new ExecuteTestStream(coordinator,
+        (ServerCallStreamObserver<GrpcExecuteTestStreamResponse>) responseObserver);
+  }
+
   @Override
   public void unregisterProject(final GrpcUnregisterProjectRequest request,
       final StreamObserver<GrpcUnregisterProjectResponse> responseObserver) {
     coordinator.unregisterProject(request, responseObserver);
   }
+
+  @Override
+  public void getProjectStatus(final GrpcGetProjectStatusRequest request,
+      final StreamObserver<GrpcGetProjectStatusResponse> responseObserver) {
+    coordinator.getProjectStatus(request, responseObserver);
+  }
 }
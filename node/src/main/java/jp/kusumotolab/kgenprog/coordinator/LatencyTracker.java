@@ -0,0 +1,49 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+/**
+ * 直近のテスト実行にかかった時間を保持し，そのパーセンタイルを求める
+ *
+ * このクラスはスレッドセーフではない
+ */
+public class LatencyTracker {
+
+  private final long[] samples;
+  private int size = 0;
+  private int next = 0;
+
+  /**
+   * @param capacity 保持する実行時間の数．古いものから捨てられる
+   */
+  public LatencyTracker(final int capacity) {
+    samples = new long[capacity];
+  }
+
+  public void add(final long latencyMillis) {
+    samples[next] = latencyMillis;
+    next = (next + 1) % samples.length;
+    size = Math.min(size + 1, samples.length);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * 保持している実行時間のパーセンタイルを返す
+   *
+   * @param percentile 0より大きく1以下の値
+   * @return 実行時間（ミリ秒）．まだ記録がない場合は空
+   */
+  public OptionalLong getPercentile(final double percentile) {
+    if (size == 0) {
+      return OptionalLong.empty();
+    }
+    final long[] sorted = Arrays.copyOf(samples, size);
+    Arrays.sort(sorted);
+    final int rank = (int) Math.ceil(percentile * size);
+    return OptionalLong.of(sorted[Math.min(Math.max(rank, 1), size) - 1]);
+  }
+}
@@ -0,0 +1,298 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import jp.kusumotolab.kgenprog.grpc.ContentDefinedChunker;
+
+/**
+ * 登録されたプロジェクトをチャンクに分割して保持する
+ *
+ * チャンクはディレクトリにファイルとして書き出し，送るときに1つずつヒープに読み込む．
+ * そのため，登録されたプロジェクトの数やサイズに関わらずヒープの使用量は増えない．
+ * チャンクごとにメモリマップすると，マップの数がOSの上限を超えたり，
+ * 削除したファイルのディスク領域がマップの解放まで戻らなかったりするので，マップはしない．
+ * 同じ内容のチャンクは複数のプロジェクトで共有し，どのプロジェクトからも参照されなくなったら捨てる
+ */
+public class ProjectChunkStore {
+
+  private static final Logger log = LoggerFactory.getLogger(ProjectChunkStore.class);
+
+  private final Path directory;
+
+  // 以下のフィールドはthisで同期してアクセスする
+  private final Map<ByteString, Chunk> chunks = new HashMap<>();
+  private final Map<Integer, List<ByteString>> manifests = new HashMap<>();
+
+  /**
+   * @param directory チャンクを書き出すディレクトリ．存在しなければ作成する
+   * @throws IOException ディレクトリを作成できなかったとき
+   */
+  public ProjectChunkStore(final Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+
+    // 前回の実行で残ったチャンクはどのプロジェクトからも参照されないので消す
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (final Path path : stream) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /**
+   * プロジェクトをチャンクに分割して保持する
+   *
+   * @param projectId プロジェクトID
+   * @param project zip圧縮したプロジェクト
+   * @return チャンクのダイジェストの列
+   * @throws IOException チャンクを書き出せなかったとき
+   */
+  public List<ByteString> put(final int projectId, final ByteString project) throws IOException {
+    final Upload upload = startUpload();
+    upload.write(project);
+    return upload.commit(projectId);
+  }
+
+  /**
+   * プロジェクトを少しずつ受け取って保持し始める
+   *
+   * 受け取ったチャンクはその場で保持するので，プロジェクト全体を一度にメモリに置くことはない
+   *
+   * @return 受け取り口
+   */
+  public Upload startUpload() {
+    return new Upload();
+  }
+
+  /**
+   * プロジェクトを構成するチャンクのダイジェストを取得する
+   *
+   * @param projectId プロジェクトID
+   * @return 先頭から順に並んだダイジェスト．登録されていなければ空
+   */
+  public synchronized Optional<List<ByteString>> getManifest(final int projectId) {
+    return Optional.ofNullable(manifests.get(projectId));
+  }
+
+  /**
+   * チャンクをつなげてプロジェクト全体を復元する
+   *
+   * @param projectId プロジェクトID
+   * @return zip圧縮したプロジェクト．登録されていなければ空
+   */
+  public Optional<ByteString> getProject(final int projectId) {
+    final Optional<List<ByteString>> digests = getManifest(projectId);
+    if (!digests.isPresent()) {
+      return Optional.empty();
+    }
+    final List<ByteString> projectChunks = new ArrayList<>(digests.get()
+        .size());
+    for (final ByteString digest : digests.get()) {
+      final Optional<ByteString> chunk = getChunk(digest);
+      if (!chunk.isPresent()) {
+        // 読み込んでいる間にプロジェクトが登録解除された
+        return Optional.empty();
+      }
+      projectChunks.add(chunk.get());
+    }
+    // チャンクをコピーせずに連結する
+    return Optional.of(ByteString.copyFrom(projectChunks));
+  }
+
+  /**
+   * チャンクをファイルから読み込む
+   *
+   * @param digest チャンクのダイジェスト
+   * @return チャンク．保持していないか，読み込めなければ空
+   */
+  public Optional<ByteString> getChunk(final ByteString digest) {
+    final Path path;
+    synchronized (this) {
+      final Chunk chunk = chunks.get(digest);
+      if (chunk == null) {
+        return Optional.empty();
+      }
+      path = chunk.path;
+    }
+
+    // 読み込みの間は他のリクエストを止めないよう，ロックの外で読む
+    try {
+      return Optional.of(UnsafeByteOperations.unsafeWrap(Files.readAllBytes(path)));
+    } catch (final NoSuchFileException e) {
+      // 読み込む前にどのプロジェクトからも参照されなくなり，削除された
+      return Optional.empty();
+    } catch (final IOException e) {
+      log.warn("failed to read " + path, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * プロジェクトを捨てる．他のプロジェクトと共有していないチャンクも捨てる
+   *
+   * @param projectId プロジェクトID
+   */
+  public synchronized void remove(final int projectId) {
+    release(manifests.remove(projectId));
+  }
+
+  synchronized int getChunkCount() {
+    return chunks.size();
+  }
+
+  private ByteString retain(final ByteString data) throws IOException {
+    final ByteString digest = ContentDefinedChunker.digest(data);
+    synchronized (this) {
+      final Chunk chunk = chunks.get(digest);
+      if (chunk != null) {
+        chunk.refCount++;
+        return digest;
+      }
+    }
+
+    // 書き出しの間は他のリクエストを止めないよう，ロックの外で一時ファイルに書く
+    final Path temporary = Files.createTempFile(directory, "chunk", ".tmp");
+    try {
+      try (final FileChannel channel =
+          FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        for (final ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+      }
+      synchronized (this) {
+        // 書き出している間に，他のリクエストが同じチャンクを保持した
+        final Chunk chunk = chunks.get(digest);
+        if (chunk != null) {
+          chunk.refCount++;
+          return digest;
+        }
+        final Path path = directory.resolve(ContentDefinedChunker.toHex(digest));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        final Chunk newChunk = new Chunk(path);
+        newChunk.refCount++;
+        chunks.put(digest, newChunk);
+        return digest;
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private synchronized void release(final List<ByteString> digests) {
+    if (digests == null) {
+      return;
+    }
+    for (final ByteString digest : digests) {
+      final Chunk chunk = chunks.get(digest);
+      chunk.refCount--;
+      if (chunk.refCount == 0) {
+        chunks.remove(digest);
+        try {
+          Files.deleteIfExists(chunk.path);
+        } catch (final IOException e) {
+          log.warn("failed to delete " + chunk.path, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * 少しずつ受け取ったプロジェクトをチャンクに分割して保持する
+   */
+  public class Upload {
+
+    private final ContentDefinedChunker chunker = new ContentDefinedChunker();
+    private final List<ByteString> digests = new ArrayList<>();
+    private long size = 0;
+    private boolean closed = false;
+
+    private Upload() {}
+
+    /**
+     * 続きのbyte列を受け取る
+     *
+     * @param piece 続きのbyte列
+     * @throws IOException チャンクを書き出せなかったとき
+     */
+    public void write(final ByteString piece) throws IOException {
+      if (closed) {
+        throw new IllegalStateException("upload is already closed");
+      }
+      size += piece.size();
+      for (final ByteString chunk : chunker.update(piece)) {
+        digests.add(retain(chunk));
+      }
+    }
+
+    /**
+     * 受け取ったbyte列をプロジェクトとして登録する
+     *
+     * @param projectId プロジェクトID
+     * @return チャンクのダイジェストの列
+     * @throws IOException チャンクを書き出せなかったとき
+     */
+    public List<ByteString> commit(final int projectId) throws IOException {
+      if (closed) {
+        throw new IllegalStateException("upload is already closed");
+      }
+      final Optional<ByteString> last = chunker.finish();
+      if (last.isPresent()) {
+        digests.add(retain(last.get()));
+      }
+      closed = true;
+      final List<ByteString> manifest = Collections.unmodifiableList(new ArrayList<>(digests));
+      synchronized (ProjectChunkStore.this) {
+        release(manifests.put(projectId, manifest));
+      }
+      return manifest;
+    }
+
+    /**
+     * 受け取りを中断し，保持したチャンクを手放す
+     */
+    public void abort() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      release(digests);
+    }
+
+    /**
+     * これまでに受け取ったbyte数
+     */
+    public long getSize() {
+      return size;
+    }
+  }
+
+  private static class Chunk {
+
+    private final Path path;
+    private int refCount = 0;
+
+    private Chunk(final Path path) {
+      this.path = path;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
+
+/**
+ * クライアントに返したプロジェクトIDと，コーディネータが保持するプロジェクトとの対応を管理する
+ *
+ * 内容と設定が同じプロジェクトが複数回登録された場合は，最初に登録されたプロジェクトを参照カウントで共有する．
+ * 保持・ワーカーへの展開・テストの割り当ては共有したプロジェクトのIDで行い，
+ * クライアントには登録ごとに別のIDを返して個別に登録解除できるようにする
+ */
+public class ProjectRegistry {
+
+  private final Map<Integer, Integer> aliasMap = new HashMap<>();
+  private final Map<Integer, Integer> weightMap = new HashMap<>();
+  private final Map<Integer, Entry> entryMap = new HashMap<>();
+  private final Map<ByteString, Integer> keyMap = new HashMap<>();
+
+  /**
+   * プロジェクトの内容と設定からキーを求める
+   *
+   * @param chunkDigests zip圧縮したプロジェクトを構成するチャンクのダイジェストの列
+   * @param configuration プロジェクトの設定
+   * @return キー
+   */
+  public static ByteString computeKey(final List<ByteString> chunkDigests,
+      final GrpcConfiguration configuration) {
+    final MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    for (final ByteString digest : chunkDigests) {
+      messageDigest.update(digest.asReadOnlyByteBuffer());
+    }
+    messageDigest.update(configuration.toByteString()
+        .asReadOnlyByteBuffer());
+    return ByteString.copyFrom(messageDigest.digest());
+  }
+
+  /**
+   * 登録を記録する
+   *
+   * @param key {@link #computeKey(List, GrpcConfiguration)} で求めたキー
+   * @param projectId クライアントに返すプロジェクトID
+   * @param weight 登録で指定された重み
+   * @return 共有するプロジェクト．同じキーのプロジェクトがなければ projectId のプロジェクトが新たに作られる
+   */
+  public synchronized Registration register(final ByteString key, final int projectId,
+      final int weight) {
+    final Integer existing = keyMap.get(key);
+    final int canonicalId = existing == null ? projectId : existing;
+    final Entry entry = entryMap.computeIfAbsent(canonicalId, id -> new Entry(key));
+    entry.references++;
+    entry.weight += Math.max(weight, 1);
+    keyMap.put(key, canonicalId);
+    aliasMap.put(projectId, canonicalId);
+    weightMap.put(projectId, Math.max(weight, 1));
+    return new Registration(canonicalId, existing == null, entry.weight);
+  }
+
+  /**
+   * クライアントに返したプロジェクトIDから，共有しているプロジェクトのIDを求める
+   *
+   * @param projectId クライアントに返したプロジェクトID
+   * @return 共有しているプロジェクトのID．登録されていなければ空
+   */
+  public synchronized OptionalInt resolve(final int projectId) {
+    final Integer canonicalId = aliasMap.get(projectId);
+    return canonicalId == null ? OptionalInt.empty() : OptionalInt.of(canonicalId);
+  }
+
+  /**
+   * 登録解除を記録する
+   *
+   * @param projectId クライアントに返したプロジェクトID
+   * @return 共有していたプロジェクト．登録されていなければnull
+   */
+  public synchronized Registration unregister(final int projectId) {
+    final Integer canonicalId = aliasMap.remove(projectId);
+    if (canonicalId == null) {
+      return null;
+    }
+    final Entry entry = entryMap.get(canonicalId);
+    entry.references--;
+    entry.weight -= weightMap.remove(projectId);
+    if (entry.references > 0) {
+      return new Registration(canonicalId, false, entry.weight);
+    }
+    entryMap.remove(canonicalId);
+    keyMap.remove(entry.key);
+    return new Registration(canonicalId, true, 0);
+  }
+
+  /**
+   * 共有しているプロジェクトを参照している登録の数
+   *
+   * @param canonicalId 共有しているプロジェクトのID
+   */
+  public synchronized int getReferenceCount(final int canonicalId) {
+    final Entry entry = entryMap.get(canonicalId);
+    return entry == null ? 0 : entry.references;
+  }
+
+  /**
+   * 登録または登録解除の結果
+   */
+  public static class Registration {
+
+    private final int projectId;
+    private final boolean changed;
+    private final int weight;
+
+    private Registration(final int projectId, final boolean changed, final int weight) {
+      this.projectId = projectId;
+      this.changed = changed;
+      this.weight = weight;
+    }
+
+    /**
+     * 共有しているプロジェクトのID
+     */
+    public int getProjectId() {
+      return projectId;
+    }
+
+    /**
+     * 登録ではプロジェクトが新たに作られたとき，登録解除ではプロジェクトがどこからも参照されなくなったときに真
+     */
+    public boolean isChanged() {
+      return changed;
+    }
+
+    /**
+     * 共有しているプロジェクトを参照している登録の重みの合計
+     */
+    public int getWeight() {
+      return weight;
+    }
+  }
+
+  private static class Entry {
+
+    private final ByteString key;
+    private int references;
+    private int weight;
+
+    private Entry(final ByteString key) {
+      this.key = key;
+    }
+  }
+}
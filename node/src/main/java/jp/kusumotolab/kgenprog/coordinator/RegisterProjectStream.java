@@ -0,0 +1,71 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.io.IOException;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectStreamRequest;
+
+/**
+ * registerProjectStreamの1本のストリームを扱う
+ *
+ * 届いたbyte列をその場でチャンクに分割して保持し，ストリームが閉じられたらプロジェクトとして登録する
+ */
+public class RegisterProjectStream implements StreamObserver<GrpcRegisterProjectStreamRequest> {
+
+  private final Coordinator coordinator;
+  private final ProjectChunkStore.Upload upload;
+  private final StreamObserver<GrpcRegisterProjectResponse> responseObserver;
+  private GrpcConfiguration configuration = null;
+  private int weight = 0;
+  private boolean failed = false;
+
+  public RegisterProjectStream(final Coordinator coordinator,
+      final ProjectChunkStore.Upload upload,
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver) {
+    this.coordinator = coordinator;
+    this.upload = upload;
+    this.responseObserver = responseObserver;
+  }
+
+  @Override
+  public void onNext(final GrpcRegisterProjectStreamRequest value) {
+    if (failed) {
+      return;
+    }
+    // 設定は最初のメッセージでのみ送られてくる
+    if (configuration == null) {
+      configuration = value.getConfiguration();
+      weight = value.getWeight();
+    }
+    try {
+      upload.write(value.getData());
+    } catch (final IOException e) {
+      // 残りのメッセージは読み捨て，失敗したことはすぐに伝える
+      failed = true;
+      upload.abort();
+      coordinator.failRegistering(e, responseObserver);
+    }
+  }
+
+  @Override
+  public void onError(final Throwable t) {
+    // クライアントとの通信が途絶えた
+    upload.abort();
+  }
+
+  @Override
+  public void onCompleted() {
+    if (failed) {
+      return;
+    }
+    if (configuration == null) {
+      upload.abort();
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("no project is sent")
+          .asRuntimeException());
+      return;
+    }
+    coordinator.registerProject(configuration, weight, upload, responseObserver);
+  }
+}
@@ -1,6 +1,11 @@
 package jp.kusumotolab.kgenprog.coordinator;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.reactivex.Single;
@@ -10,42 +15,65 @@ import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc;
-import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterBlockingStub;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterFutureStub;
 import jp.kusumotolab.kgenprog.grpc.Worker;
 
+/**
+ * gRPCで通信するワーカー
+ *
+ * 呼び出しは全て非同期で行うので，実行中のテストがスレッドを占有することはない
+ */
 public class RemoteWorker implements Worker {
 
   private final int workerId;
   private final String workerName;
-  private final KGenProgClusterBlockingStub blockingStub;
+  private final KGenProgClusterFutureStub futureStub;
   private final ManagedChannel managedChannel;
 
   public RemoteWorker(final int workerId, final String name, final int port) {
+    this(workerId, name, port, null);
+  }
+
+  /**
+   * @param workerId ワーカーID
+   * @param name ワーカーのホスト名
+   * @param port ワーカーのポート番号
+   * @param executor 応答を処理するExecutor．nullの場合はgRPCの既定のものを用いる
+   */
+  public RemoteWorker(final int workerId, final String name, final int port,
+      final Executor executor) {
+    this(workerId, name + ":" + port, createChannel(name, port, executor));
+  }
+
+  public RemoteWorker(final int workerId, final String workerName,
+      final ManagedChannel managedChannel) {
     this.workerId = workerId;
-    this.workerName = name + ":" + port;
-    managedChannel = ManagedChannelBuilder.forAddress(name, port)
+    this.workerName = workerName;
+    this.managedChannel = managedChannel;
+    futureStub = KGenProgClusterGrpc.newFutureStub(managedChannel);
+  }
+
+  private static ManagedChannel createChannel(final String name, final int port,
+      final Executor executor) {
+    final ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forAddress(name, port)
         .usePlaintext()
         .keepAliveTime(ClusterConfiguration.DEFAULT_KEEPALIVE_SECONDS, TimeUnit.SECONDS)
-        .maxInboundMessageSize(Integer.MAX_VALUE)
-        .build();
-    blockingStub = KGenProgClusterGrpc.newBlockingStub(managedChannel);
+        .maxInboundMessageSize(Integer.MAX_VALUE);
+    if (executor != null) {
+      builder.executor(executor);
+    }
+    return builder.build();
   }
 
   @Override
   public Single<GrpcExecuteTestResponse> executeTest(final GrpcExecuteTestRequest request) {
-    return Single.create(emitter -> {
-      final GrpcExecuteTestResponse response = blockingStub.executeTest(request);
-      emitter.onSuccess(response);
-    });
+    return Single.defer(() -> toSingle(futureStub.executeTest(request)));
   }
 
   @Override
   public Single<GrpcUnregisterProjectResponse> unregisterProject(
       final GrpcUnregisterProjectRequest request) {
-    return Single.create(emitter -> {
-      final GrpcUnregisterProjectResponse response = blockingStub.unregisterProject(request);
-      emitter.onSuccess(response);
-    });
+    return Single.defer(() -> toSingle(futureStub.unregisterProject(request)));
   }
 
   @Override
@@ -62,4 +90,26 @@ public class RemoteWorker implements Worker {
   public String getName() {
     return workerName;
   }
+
+  /**
+   * 購読が破棄されたら呼び出しも取り消すSingleに変換する
+   */
+  private static <T> Single<T> toSingle(final ListenableFuture<T> listenableFuture) {
+    return Single.create(emitter -> {
+      emitter.setCancellable(() -> listenableFuture.cancel(true));
+      Futures.addCallback(listenableFuture, new FutureCallback<T>() {
+
+        @Override
+        public void onSuccess(final T result) {
+          emitter.onSuccess(result);
+        }
+
+        @Override
+        public void onFailure(final Throwable t) {
+          emitter.tryOnError(t);
+        }
+
+      }, MoreExecutors.directExecutor());
+    });
+  }
 }
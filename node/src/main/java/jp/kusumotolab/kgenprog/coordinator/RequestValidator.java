@@ -3,9 +3,13 @@ package jp.kusumotolab.kgenprog.coordinator;
 import java.time.Instant;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 
 public class RequestValidator {
 
+  private static final String INVALIDATED_DESCRIPTION = "test request was invalidated";
+
   private final Map<String, Instant> invalidateTimeMap = new ConcurrentHashMap<>();
 
   public void addInvalidateRequest(final ExecuteTestRequest request) {
@@ -27,6 +31,23 @@ public class RequestValidator {
         .isAfter(time);
   }
 
+  /**
+   * 無効にしたリクエストを実行せずに捨てたことを伝える例外を作る
+   */
+  public static StatusRuntimeException createInvalidatedException() {
+    return Status.ABORTED.withDescription(INVALIDATED_DESCRIPTION)
+        .asRuntimeException();
+  }
+
+  /**
+   * リクエストを無効にしたために実行しなかったことを表す例外かを確認する
+   */
+  public static boolean isInvalidated(final Throwable t) {
+    final Status status = Status.fromThrowable(t);
+    return status.getCode() == Status.Code.ABORTED
+        && INVALIDATED_DESCRIPTION.equals(status.getDescription());
+  }
+
   private String getKey(final String host, final int port) {
     return host + ":" + port;
   }
@@ -0,0 +1,28 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+/**
+ * テストの実行を依頼する先
+ */
+public interface TestDispatcher {
+
+  /**
+   * テストの実行を依頼する．結果はリクエストのStreamObserverに送られる
+   *
+   * @param testRequest リクエスト
+   */
+  void executeTest(ExecuteTestRequest testRequest);
+
+  /**
+   * クライアントが取り消したリクエストの実行を取り消す
+   *
+   * @param testRequest 取り消されたリクエスト
+   */
+  void cancelTest(ExecuteTestRequest testRequest);
+
+  /**
+   * 結果を送れなかったクライアントから，それより前に受け付けたリクエストを実行しないようにする
+   *
+   * @param testRequest 結果を送れなかったリクエスト
+   */
+  void invalidateRequests(ExecuteTestRequest testRequest);
+}
@@ -0,0 +1,387 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.coordinator.log.CoordinatorLogger;
+import jp.kusumotolab.kgenprog.coordinator.log.WorkerSetLogger;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGene;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.GrpcTestResults;
+
+/**
+ * 遺伝子ごとにテスト結果をキャッシュする
+ *
+ * 同じプロジェクトに同じ遺伝子と実行対象テストケースのリクエストが来たら，キャッシュした結果をそのまま返す．
+ * 実行中のリクエストと同じものが来たら，新たに実行せずに同じ結果を待たせる．
+ * 実行を代表するリクエストのクライアントが無効になったら，待っている他のリクエストの情報で実行し直す．
+ * キャッシュは件数と合計サイズの上限を超えたら，最も長く使われていないものから捨てる
+ */
+public class TestResultCache {
+
+  private static final WorkerSetLogger workerSetLogger = WorkerSetLogger.getWorkerSetLogger();
+  private static final CoordinatorLogger coordinatorLogger =
+      CoordinatorLogger.getCoordinatorLogger();
+
+  private final TestDispatcher dispatcher;
+  private final int maxEntries;
+  private final long maxBytes;
+
+  // 以下のフィールドはthisで同期してアクセスする
+  private final LinkedHashMap<Key, GrpcTestResults> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Key, SharedTest> sharedTests = new HashMap<>();
+  private final Map<ExecuteTestRequest, SharedTest> waitingRequests = new HashMap<>();
+  private long bytes = 0;
+
+  /**
+   * @param dispatcher キャッシュにない場合にテストの実行を依頼する先
+   * @param maxEntries キャッシュする結果の最大件数．0ならキャッシュも重複排除もしない
+   * @param maxBytes キャッシュする結果の最大合計サイズ
+   */
+  public TestResultCache(final TestDispatcher dispatcher, final int maxEntries,
+      final long maxBytes) {
+    this.dispatcher = dispatcher;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * キャッシュを使ってテストを実行する
+   *
+   * @param testRequest リクエスト
+   */
+  public void executeTest(final ExecuteTestRequest testRequest) {
+    if (maxEntries <= 0) {
+      dispatcher.executeTest(testRequest);
+      return;
+    }
+
+    final Key key = new Key(testRequest.getRequest()
+        .getProjectId(), digest(testRequest.getRequest()
+            .getGene()), testRequest.getRequest()
+                .getExecutionTestsList());
+    final GrpcTestResults cachedResults;
+    final SharedTest sharedTest;
+    final ExecuteTestRequest sharedRequest;
+    final boolean leader;
+    final int entries;
+    final long cachedBytes;
+    synchronized (this) {
+      cachedResults = cache.get(key);
+      if (cachedResults == null) {
+        final SharedTest runningTest = sharedTests.get(key);
+        leader = runningTest == null;
+        sharedTest = leader ? new SharedTest(key, testRequest) : runningTest;
+        sharedTest.waiters.add(testRequest);
+        sharedTests.put(key, sharedTest);
+        waitingRequests.put(testRequest, sharedTest);
+        sharedRequest = sharedTest.testRequest;
+      } else {
+        sharedTest = null;
+        sharedRequest = null;
+        leader = false;
+      }
+      entries = cache.size();
+      cachedBytes = bytes;
+    }
+
+    if (cachedResults != null) {
+      workerSetLogger.accessTestResultCache(testRequest, TestResultCacheAccess.HIT, entries,
+          cachedBytes);
+      send(testRequest, GrpcExecuteTestResponse.newBuilder()
+          .setStatus(GrpcStatus.SUCCESS)
+          .setTestResults(cachedResults)
+          .build());
+      return;
+    }
+
+    if (!leader) {
+      // 同じ遺伝子のテストが実行中なので，その結果を待つ
+      workerSetLogger.accessTestResultCache(testRequest, TestResultCacheAccess.SHARED, entries,
+          cachedBytes);
+      return;
+    }
+
+    workerSetLogger.accessTestResultCache(testRequest, TestResultCacheAccess.MISS, entries,
+        cachedBytes);
+    dispatcher.executeTest(sharedRequest);
+  }
+
+  /**
+   * クライアントが取り消したリクエストを結果の待ち合わせから外す．
+   * 誰も結果を待たなくなったら，実行中のテストも取り消す
+   *
+   * @param testRequest 取り消されたリクエスト
+   */
+  public void cancelTest(final ExecuteTestRequest testRequest) {
+    if (maxEntries <= 0) {
+      dispatcher.cancelTest(testRequest);
+      return;
+    }
+
+    final ExecuteTestRequest abandonedRequest;
+    synchronized (this) {
+      final SharedTest sharedTest = waitingRequests.remove(testRequest);
+      if (sharedTest == null) {
+        return;
+      }
+      sharedTest.waiters.remove(testRequest);
+      if (!sharedTest.waiters.isEmpty()) {
+        return;
+      }
+      sharedTests.remove(sharedTest.key, sharedTest);
+      abandonedRequest = sharedTest.testRequest;
+    }
+
+    dispatcher.cancelTest(abandonedRequest);
+  }
+
+  /**
+   * プロジェクトのキャッシュを捨てる
+   *
+   * @param projectId プロジェクトID
+   */
+  public synchronized void removeProject(final int projectId) {
+    final Iterator<Map.Entry<Key, GrpcTestResults>> iterator = cache.entrySet()
+        .iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<Key, GrpcTestResults> entry = iterator.next();
+      if (entry.getKey().projectId == projectId) {
+        bytes -= entry.getValue()
+            .getSerializedSize();
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized int size() {
+    return cache.size();
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  private void finish(final SharedTest sharedTest, final GrpcExecuteTestResponse response) {
+    final List<ExecuteTestRequest> waiters;
+    synchronized (this) {
+      if (sharedTest.finished) {
+        return;
+      }
+      waiters = removeWaiters(sharedTest);
+
+      // ワーカーでの実行に失敗した結果はキャッシュしない
+      if (response.getStatus() == GrpcStatus.SUCCESS) {
+        put(sharedTest.key, response.getTestResults());
+      }
+    }
+    waiters.forEach(waiter -> send(waiter, response));
+  }
+
+  private void fail(final SharedTest sharedTest, final Throwable t) {
+    final List<ExecuteTestRequest> waiters;
+    final ExecuteTestRequest retryRequest;
+    synchronized (this) {
+      if (sharedTest.finished) {
+        return;
+      }
+      if (RequestValidator.isInvalidated(t)) {
+        // 最初のリクエストのクライアントが無効になっても，他のリクエストが結果を待っていれば，
+        // そのリクエストの情報で実行し直す
+        final ExecuteTestRequest invalidated = sharedTest.leader;
+        waiters = sharedTest.waiters.remove(invalidated) ? Collections.singletonList(invalidated)
+            : Collections.emptyList();
+        waitingRequests.remove(invalidated);
+        if (sharedTest.waiters.isEmpty()) {
+          removeWaiters(sharedTest);
+          retryRequest = null;
+        } else {
+          sharedTest.lead(sharedTest.waiters.get(0));
+          retryRequest = sharedTest.testRequest;
+        }
+      } else {
+        waiters = removeWaiters(sharedTest);
+        retryRequest = null;
+      }
+    }
+    if (retryRequest != null) {
+      dispatcher.executeTest(retryRequest);
+    }
+    for (final ExecuteTestRequest waiter : waiters) {
+      try {
+        waiter.getStreamObserver()
+            .onError(t);
+      } catch (final RuntimeException e) {
+        coordinatorLogger.error(waiter.getRequestId(), e);
+      }
+    }
+  }
+
+  private List<ExecuteTestRequest> removeWaiters(final SharedTest sharedTest) {
+    sharedTest.finished = true;
+    sharedTests.remove(sharedTest.key, sharedTest);
+    final List<ExecuteTestRequest> waiters = new ArrayList<>(sharedTest.waiters);
+    sharedTest.waiters.clear();
+    waiters.forEach(waitingRequests::remove);
+    return waiters;
+  }
+
+  private void put(final Key key, final GrpcTestResults testResults) {
+    final int size = testResults.getSerializedSize();
+    if (size > maxBytes) {
+      return;
+    }
+    final GrpcTestResults previous = cache.put(key, testResults);
+    if (previous != null) {
+      bytes -= previous.getSerializedSize();
+    }
+    bytes += size;
+
+    final Iterator<GrpcTestResults> iterator = cache.values()
+        .iterator();
+    while (cache.size() > maxEntries || bytes > maxBytes) {
+      bytes -= iterator.next()
+          .getSerializedSize();
+      iterator.remove();
+    }
+  }
+
+  private void send(final ExecuteTestRequest testRequest,
+      final GrpcExecuteTestResponse response) {
+    final StreamObserver<GrpcExecuteTestResponse> responseObserver =
+        testRequest.getStreamObserver();
+    if (responseObserver instanceof ServerCallStreamObserver
+        && ((ServerCallStreamObserver<GrpcExecuteTestResponse>) responseObserver).isCancelled()) {
+      // クライアントが既に取り消しているので結果は送らない
+      return;
+    }
+    try {
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    } catch (final RuntimeException e) {
+      dispatcher.invalidateRequests(testRequest);
+      coordinatorLogger.error(testRequest.getRequestId(), e);
+    }
+  }
+
+  /**
+   * 遺伝子の正規形（決定的な直列化）のダイジェストを求める
+   */
+  static ByteString digest(final GrpcGene gene) {
+    try {
+      final byte[] serialized = new byte[gene.getSerializedSize()];
+      final CodedOutputStream output = CodedOutputStream.newInstance(serialized);
+      output.useDeterministicSerialization();
+      gene.writeTo(output);
+      output.checkNoSpaceLeft();
+      return ByteString.copyFrom(MessageDigest.getInstance("SHA-256")
+          .digest(serialized));
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * キャッシュを引いた結果
+   */
+  public enum TestResultCacheAccess {
+    /** キャッシュした結果を返した */
+    HIT,
+    /** 実行中の同じテストの結果を待つ */
+    SHARED,
+    /** ワーカーで実行する */
+    MISS
+  }
+
+  private static class Key {
+
+    private final int projectId;
+    private final ByteString digest;
+
+    /**
+     * 実行対象テストケース．シャードごとの結果を区別する．空ならプロジェクトの全てのテストケース
+     */
+    private final List<String> executionTests;
+
+    private Key(final int projectId, final ByteString digest, final List<String> executionTests) {
+      this.projectId = projectId;
+      this.digest = digest;
+      this.executionTests = new ArrayList<>(executionTests);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final Key key = (Key) o;
+      return projectId == key.projectId && digest.equals(key.digest)
+          && executionTests.equals(key.executionTests);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projectId, digest, executionTests);
+    }
+  }
+
+  /**
+   * 同じ遺伝子のリクエストで共有する1回のテスト実行
+   */
+  private class SharedTest implements StreamObserver<GrpcExecuteTestResponse> {
+
+    private final Key key;
+    private final List<ExecuteTestRequest> waiters = new ArrayList<>();
+    private ExecuteTestRequest leader;
+    private ExecuteTestRequest testRequest;
+    private boolean finished = false;
+
+    private SharedTest(final Key key, final ExecuteTestRequest leader) {
+      this.key = key;
+      lead(leader);
+    }
+
+    /**
+     * 代表するリクエストの情報で実行し，結果は待っている全員に送る
+     */
+    private void lead(final ExecuteTestRequest leader) {
+      this.leader = leader;
+      this.testRequest = new ExecuteTestRequest(leader.getRequest(), this, leader.getSenderName(),
+          leader.getSenderPort(), leader.getRequestId(), leader.getTestId(), leader.getTime());
+    }
+
+    @Override
+    public void onNext(final GrpcExecuteTestResponse value) {
+      finish(this, value);
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      fail(this, t);
+    }
+
+    @Override
+    public void onCompleted() {
+      // 結果はonNextで送り終えている
+    }
+  }
+}
@@ -0,0 +1,409 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.coordinator.log.CoordinatorLogger;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.GrpcTestResults;
+
+/**
+ * 1つの遺伝子のテストをシャードに分け，複数のワーカーで実行する
+ *
+ * プロジェクトの実行対象テストケース（executionTests）を，以前の実行から見積もった実行時間が均等になるようにシャードに分け，
+ * シャードごとに {@link WorkerSet} へ依頼する．全てのシャードの結果がそろったら，テスト結果を1つにまとめて返す．
+ * テストケースごとの実行時間は，ワーカーが報告したシャードの実行時間を見積もりの比で按分して記録する．
+ *
+ * シャードの分け方はプロジェクトごとに保持し，見積もりが変わって分け直した方が大きく速くなる場合にだけ分け直す．
+ * シャードの構成が変わるとワーカーのシャードごとのテスト実行環境やテスト結果のキャッシュを使い回せないため．
+ *
+ * コーディネータはプロジェクトのテストケースの一覧を持たないので，executionTestsを指定していないプロジェクトはシャードに分けない
+ */
+public class TestSharder implements TestDispatcher {
+
+  private static final CoordinatorLogger coordinatorLogger =
+      CoordinatorLogger.getCoordinatorLogger();
+
+  /**
+   * 新たに記録した実行時間を見積もりに反映する割合
+   */
+  static final double SMOOTHING = 0.5;
+
+  /**
+   * 今の分け方の見積もり時間が，分け直した場合よりこの割合を超えて長くなったら分け直す
+   */
+  static final double REPLAN_THRESHOLD = 0.2;
+
+  private final WorkerSet workerSet;
+  private final int maxShards;
+  private final Map<Integer, List<String>> executionTestsMap = new ConcurrentHashMap<>();
+
+  // 以下のフィールドはthisで同期してアクセスする
+  private final Map<Integer, Map<String, Double>> durationMap = new HashMap<>();
+  private final Map<Integer, List<List<String>>> planMap = new HashMap<>();
+  private final Map<ExecuteTestRequest, ShardedTest> shardedTests = new HashMap<>();
+
+  /**
+   * @param workerSet テストを実行するWorkerSet
+   * @param maxShards 1つの遺伝子のテストを分ける最大のシャード数．1以下なら分けない
+   */
+  public TestSharder(final WorkerSet workerSet, final int maxShards) {
+    this.workerSet = workerSet;
+    this.maxShards = maxShards;
+  }
+
+  /**
+   * プロジェクトの実行対象テストケースを登録する
+   *
+   * @param projectId プロジェクトID
+   * @param executionTests 実行対象テストケース．空の場合はシャードに分けない
+   */
+  public void addProject(final int projectId, final List<String> executionTests) {
+    executionTestsMap.put(projectId, new ArrayList<>(executionTests));
+    synchronized (this) {
+      planMap.remove(projectId);
+    }
+  }
+
+  /**
+   * プロジェクトの実行対象テストケースと，記録した実行時間とシャードの分け方を捨てる
+   *
+   * @param projectId プロジェクトID
+   */
+  public void removeProject(final int projectId) {
+    executionTestsMap.remove(projectId);
+    synchronized (this) {
+      durationMap.remove(projectId);
+      planMap.remove(projectId);
+    }
+  }
+
+  @Override
+  public void executeTest(final ExecuteTestRequest testRequest) {
+    final GrpcExecuteTestRequest request = testRequest.getRequest();
+    final List<String> executionTests =
+        executionTestsMap.getOrDefault(request.getProjectId(), Collections.emptyList());
+    final int shardCount = Math.min(Math.min(maxShards, executionTests.size()),
+        workerSet.getAllWorker()
+            .size());
+    // 既にテストケースが指定されたリクエストはそのまま実行する
+    if (shardCount <= 1 || request.getExecutionTestsCount() > 0) {
+      workerSet.executeTest(testRequest);
+      return;
+    }
+
+    final ShardedTest shardedTest =
+        new ShardedTest(testRequest, plan(request.getProjectId(), executionTests, shardCount));
+    synchronized (this) {
+      shardedTests.put(testRequest, shardedTest);
+    }
+    for (final Shard shard : shardedTest.shards) {
+      synchronized (this) {
+        // 先に依頼したシャードが拒否されるなどして既に終わっていれば，残りは依頼しない
+        if (shardedTest.finished) {
+          return;
+        }
+      }
+      workerSet.executeTest(shard.testRequest);
+    }
+  }
+
+  @Override
+  public void invalidateRequests(final ExecuteTestRequest testRequest) {
+    workerSet.invalidateRequests(testRequest);
+  }
+
+  @Override
+  public void cancelTest(final ExecuteTestRequest testRequest) {
+    final ShardedTest shardedTest;
+    synchronized (this) {
+      shardedTest = shardedTests.remove(testRequest);
+      if (shardedTest != null) {
+        shardedTest.finished = true;
+      }
+    }
+    if (shardedTest == null) {
+      workerSet.cancelTest(testRequest);
+      return;
+    }
+    shardedTest.shards.forEach(shard -> workerSet.cancelTest(shard.testRequest));
+  }
+
+  /**
+   * プロジェクトのシャードの分け方を返す
+   *
+   * 前回の分け方があり，シャード数が同じで，分け直しても見積もり時間が {@link #REPLAN_THRESHOLD} の割合を超えて縮まらなければ，
+   * 前回の分け方をそのまま使う
+   *
+   * @param projectId プロジェクトID
+   * @param executionTests 実行対象テストケース
+   * @param shardCount シャード数
+   * @return シャードごとのテストケースの列
+   */
+  synchronized List<List<String>> plan(final int projectId, final List<String> executionTests,
+      final int shardCount) {
+    final List<List<String>> current = planMap.get(projectId);
+    final List<List<String>> candidate = split(projectId, executionTests, shardCount);
+    if (current != null && current.size() == shardCount && estimate(projectId,
+        current) <= estimate(projectId, candidate) * (1 + REPLAN_THRESHOLD)) {
+      return current;
+    }
+    planMap.put(projectId, candidate);
+    return candidate;
+  }
+
+  /**
+   * 分け方の見積もり時間．最も時間のかかるシャードの見積もり時間とする
+   */
+  private double estimate(final int projectId, final List<List<String>> shards) {
+    final Map<String, Double> durations =
+        durationMap.getOrDefault(projectId, Collections.emptyMap());
+    final double fallback = average(durations.values());
+    return shards.stream()
+        .mapToDouble(shard -> shard.stream()
+            .mapToDouble(test -> durations.getOrDefault(test, fallback))
+            .sum())
+        .max()
+        .orElse(0.0);
+  }
+
+  /**
+   * 見積もった実行時間の合計が均等になるように，テストケースをシャードに分ける
+   *
+   * 実行時間の長いものから順に，その時点で合計の最も短いシャードに割り当てる．
+   * 記録のないテストケースは，記録のあるテストケースの平均の実行時間がかかるものとみなす
+   *
+   * @param projectId プロジェクトID
+   * @param executionTests 実行対象テストケース
+   * @param shardCount シャード数
+   * @return シャードごとのテストケースの列
+   */
+  synchronized List<List<String>> split(final int projectId, final List<String> executionTests,
+      final int shardCount) {
+    final Map<String, Double> durations =
+        durationMap.getOrDefault(projectId, Collections.emptyMap());
+    final double fallback = average(durations.values());
+    final List<String> sortedTests = new ArrayList<>(executionTests);
+    sortedTests.sort(Comparator
+        .<String>comparingDouble(test -> durations.getOrDefault(test, fallback))
+        .reversed()
+        .thenComparing(Comparator.naturalOrder()));
+
+    final List<List<String>> shards = new ArrayList<>();
+    final double[] loads = new double[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new ArrayList<>());
+    }
+    for (final String test : sortedTests) {
+      int lightest = 0;
+      for (int i = 1; i < shardCount; i++) {
+        if (loads[i] < loads[lightest] || (loads[i] == loads[lightest] && shards.get(i)
+            .size() < shards.get(lightest)
+                .size())) {
+          lightest = i;
+        }
+      }
+      shards.get(lightest)
+          .add(test);
+      loads[lightest] += durations.getOrDefault(test, fallback);
+    }
+    return shards.stream()
+        .map(Collections::unmodifiableList)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * シャードの実行時間を，見積もりの比でテストケースごとに按分して記録する
+   *
+   * @param projectId プロジェクトID
+   * @param executionTests シャードのテストケース
+   * @param elapsedMillis ワーカーが報告したシャードの実行時間
+   */
+  synchronized void record(final int projectId, final List<String> executionTests,
+      final long elapsedMillis) {
+    if (elapsedMillis <= 0 || !executionTestsMap.containsKey(projectId)) {
+      return;
+    }
+    final Map<String, Double> durations =
+        durationMap.computeIfAbsent(projectId, id -> new HashMap<>());
+    final double fallback = average(durations.values());
+    final double total = executionTests.stream()
+        .mapToDouble(test -> durations.getOrDefault(test, fallback))
+        .sum();
+
+    final Map<String, Double> observed = new HashMap<>();
+    for (final String test : executionTests) {
+      observed.put(test, elapsedMillis * durations.getOrDefault(test, fallback) / total);
+    }
+    observed.forEach((test, duration) -> durations.merge(test, duration,
+        (previous, current) -> previous + SMOOTHING * (current - previous)));
+  }
+
+  private static double average(final Collection<Double> durations) {
+    return durations.stream()
+        .mapToDouble(Double::doubleValue)
+        .average()
+        .orElse(1.0);
+  }
+
+  private void complete(final Shard shard, final GrpcExecuteTestResponse response) {
+    final ShardedTest shardedTest = shard.shardedTest;
+    final boolean succeeded = response.getStatus() == GrpcStatus.SUCCESS;
+    if (succeeded) {
+      record(shardedTest.testRequest.getRequest()
+          .getProjectId(), shard.executionTests, response.getElapsedMillis());
+    }
+
+    // 失敗やビルドエラーは他のシャードでも同じなので，待たずに返す
+    final boolean usable = succeeded && !response.getTestResults()
+        .getEmpty();
+    final List<Shard> remainingShards = new ArrayList<>();
+    synchronized (this) {
+      if (shardedTest.finished) {
+        return;
+      }
+      shard.response = response;
+      final boolean waiting = shardedTest.shards.stream()
+          .anyMatch(v -> v.response == null);
+      if (usable && waiting) {
+        return;
+      }
+      if (!usable) {
+        shardedTest.shards.stream()
+            .filter(v -> v.response == null)
+            .forEach(remainingShards::add);
+      }
+      shardedTest.finished = true;
+      shardedTests.remove(shardedTest.testRequest);
+    }
+
+    remainingShards.forEach(v -> workerSet.cancelTest(v.testRequest));
+    send(shardedTest.testRequest, usable ? merge(shardedTest.shards) : response);
+  }
+
+  private void fail(final Shard shard, final Throwable t) {
+    final ShardedTest shardedTest = shard.shardedTest;
+    final List<Shard> remainingShards = new ArrayList<>();
+    synchronized (this) {
+      if (shardedTest.finished) {
+        return;
+      }
+      shardedTest.finished = true;
+      shardedTests.remove(shardedTest.testRequest);
+      shardedTest.shards.stream()
+          .filter(v -> v != shard && v.response == null)
+          .forEach(remainingShards::add);
+    }
+
+    remainingShards.forEach(v -> workerSet.cancelTest(v.testRequest));
+    try {
+      shardedTest.testRequest.getStreamObserver()
+          .onError(t);
+    } catch (final RuntimeException e) {
+      coordinatorLogger.error(shardedTest.testRequest.getRequestId(), e);
+    }
+  }
+
+  /**
+   * シャードごとのテスト結果を1つにまとめる．ビルド結果は全てのシャードで同じなので最初のものを使う
+   */
+  private GrpcExecuteTestResponse merge(final List<Shard> shards) {
+    final GrpcTestResults.Builder builder = GrpcTestResults.newBuilder()
+        .setBuildResults(shards.get(0).response.getTestResults()
+            .getBuildResults());
+    long elapsedMillis = 0;
+    for (final Shard shard : shards) {
+      builder.putAllValue(shard.response.getTestResults()
+          .getValueMap());
+      elapsedMillis = Math.max(elapsedMillis, shard.response.getElapsedMillis());
+    }
+    return GrpcExecuteTestResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .setTestResults(builder)
+        .setElapsedMillis(elapsedMillis)
+        .build();
+  }
+
+  private void send(final ExecuteTestRequest testRequest,
+      final GrpcExecuteTestResponse response) {
+    final StreamObserver<GrpcExecuteTestResponse> responseObserver =
+        testRequest.getStreamObserver();
+    if (responseObserver instanceof ServerCallStreamObserver
+        && ((ServerCallStreamObserver<GrpcExecuteTestResponse>) responseObserver).isCancelled()) {
+      // クライアントが既に取り消しているので結果は送らない
+      return;
+    }
+    try {
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    } catch (final RuntimeException e) {
+      invalidateRequests(testRequest);
+      coordinatorLogger.error(testRequest.getRequestId(), e);
+    }
+  }
+
+  /**
+   * シャードに分けた1つの遺伝子のテスト
+   */
+  private class ShardedTest {
+
+    private final ExecuteTestRequest testRequest;
+    private final List<Shard> shards = new ArrayList<>();
+    private boolean finished = false;
+
+    private ShardedTest(final ExecuteTestRequest testRequest,
+        final List<List<String>> executionTests) {
+      this.testRequest = testRequest;
+      for (final List<String> tests : executionTests) {
+        shards.add(new Shard(this, tests));
+      }
+    }
+  }
+
+  /**
+   * 1つのシャードの実行．結果はこのインスタンスで受け取る
+   */
+  private class Shard implements StreamObserver<GrpcExecuteTestResponse> {
+
+    private final ShardedTest shardedTest;
+    private final List<String> executionTests;
+    private final ExecuteTestRequest testRequest;
+    private GrpcExecuteTestResponse response;
+
+    private Shard(final ShardedTest shardedTest, final List<String> executionTests) {
+      this.shardedTest = shardedTest;
+      this.executionTests = executionTests;
+      final ExecuteTestRequest leader = shardedTest.testRequest;
+      this.testRequest = new ExecuteTestRequest(leader.getRequest()
+          .toBuilder()
+          .addAllExecutionTests(executionTests)
+          .build(), this, leader.getSenderName(), leader.getSenderPort(), leader.getRequestId(),
+          leader.getTestId());
+    }
+
+    @Override
+    public void onNext(final GrpcExecuteTestResponse value) {
+      complete(this, value);
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      fail(this, t);
+    }
+
+    @Override
+    public void onCompleted() {
+      // 結果はonNextで受け取り終えている
+    }
+  }
+}
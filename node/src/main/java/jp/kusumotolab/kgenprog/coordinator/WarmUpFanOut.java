@@ -0,0 +1,116 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * プロジェクトを同時に展開するワーカーの数を，展開元の数に応じて制限する
+ *
+ * 展開元はコーディネータと，プロジェクトを展開済みのワーカーである．
+ * 展開元1つあたり fanOut 台までのワーカーに同時に展開させるので，
+ * 展開を終えたワーカーが次の展開元となり，展開済みのワーカーは1段ごとにおよそ (fanOut + 1) 倍に増える．
+ * そのため全ワーカーへの展開にかかる時間はワーカー数の対数に比例し，コーディネータの送信量も fanOut 台分で済む
+ */
+public class WarmUpFanOut {
+
+  private final int fanOut;
+  private final Map<Integer, Integer> runningMap = new HashMap<>();
+  private final Map<Integer, Deque<Runnable>> pendingMap = new HashMap<>();
+
+  /**
+   * @param fanOut 展開元1つあたりに同時に展開させるワーカーの数．0以下なら制限しない
+   */
+  public WarmUpFanOut(final int fanOut) {
+    this.fanOut = fanOut;
+  }
+
+  /**
+   * 展開を始められるようになったら start を実行する
+   *
+   * @param projectId プロジェクトID
+   * @param sources 現在の展開元の数
+   * @param start 展開を始める処理．呼び出しスレッドか，他の展開を終えたスレッドで実行される
+   */
+  public void acquire(final int projectId, final int sources, final Runnable start) {
+    synchronized (this) {
+      pendingMap.computeIfAbsent(projectId, id -> new ArrayDeque<>())
+          .addLast(start);
+    }
+    run(drain(projectId, sources));
+  }
+
+  /**
+   * 展開が終わったことを伝え，待っている展開を始める
+   *
+   * @param projectId プロジェクトID
+   * @param sources 展開を終えたワーカーを含めた，現在の展開元の数
+   */
+  public void release(final int projectId, final int sources) {
+    synchronized (this) {
+      final Integer running = runningMap.get(projectId);
+      if (running == null) {
+        // 登録解除されたプロジェクト
+        return;
+      }
+      runningMap.put(projectId, running - 1);
+    }
+    run(drain(projectId, sources));
+  }
+
+  /**
+   * プロジェクトの記録を消す．待っている展開は全て始める
+   *
+   * @param projectId プロジェクトID
+   */
+  public void remove(final int projectId) {
+    final Deque<Runnable> pending;
+    synchronized (this) {
+      runningMap.remove(projectId);
+      pending = pendingMap.remove(projectId);
+    }
+    if (pending != null) {
+      run(pending);
+    }
+  }
+
+  public synchronized int getRunningCount(final int projectId) {
+    return runningMap.getOrDefault(projectId, 0);
+  }
+
+  public synchronized int getPendingCount(final int projectId) {
+    final Deque<Runnable> pending = pendingMap.get(projectId);
+    return pending == null ? 0 : pending.size();
+  }
+
+  private synchronized List<Runnable> drain(final int projectId, final int sources) {
+    final List<Runnable> starts = new ArrayList<>();
+    final Deque<Runnable> pending = pendingMap.get(projectId);
+    if (pending == null) {
+      return starts;
+    }
+    int running = runningMap.getOrDefault(projectId, 0);
+    final long limit = fanOut > 0 ? (long) fanOut * Math.max(sources, 1) : Long.MAX_VALUE;
+    while (!pending.isEmpty() && running < limit) {
+      starts.add(pending.pollFirst());
+      running++;
+    }
+    runningMap.put(projectId, running);
+    if (pending.isEmpty()) {
+      pendingMap.remove(projectId);
+    }
+    return starts;
+  }
+
+  /**
+   * 展開はロックの外で始める
+   */
+  private void run(final Iterable<Runnable> starts) {
+    for (final Runnable start : starts) {
+      start.run();
+    }
+  }
+}
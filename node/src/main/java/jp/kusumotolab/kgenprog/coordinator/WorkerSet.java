@@ -1,106 +1,759 @@
 package jp.kusumotolab.kgenprog.coordinator;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import io.reactivex.Observable;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
 import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
-import io.reactivex.subjects.BehaviorSubject;
-import io.reactivex.subjects.Subject;
 import jp.kusumotolab.kgenprog.coordinator.log.CoordinatorLogger;
 import jp.kusumotolab.kgenprog.coordinator.log.WorkerSetLogger;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcWorkerReadiness;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
 import jp.kusumotolab.kgenprog.grpc.Worker;
 
-public class WorkerSet {
+public class WorkerSet implements TestDispatcher {
+
+  /**
+   * キューが溢れたときにクライアントへ伝える，再送までに待つべき時間（ミリ秒）
+   */
+  static final long RETRY_AFTER_MILLIS = 1000;
+
+  /**
+   * ワーカーが実行を取り消したときに，そのワーカーへ再びテストを割り当てるまでに待つ時間（ミリ秒）
+   */
+  static final long WORKER_CANCELLED_BACKOFF_MILLIS = 1000;
+
+  /**
+   * 実行時間を記録しておくテストの数
+   */
+  private static final int LATENCY_WINDOW = 1000;
+
+  /**
+   * テストを複製して実行し始めるのに必要な実行時間の記録の数
+   */
+  static final int MIN_HEDGE_SAMPLES = 20;
+
+  /**
+   * ワーカーへの呼び出しや応答の処理に使うスレッドの数．
+   * ワーカーとの通信は非同期なので，実行中のテストの数によらずこの数で足りる
+   */
+  static final int EVENT_LOOP_THREADS = Math.max(2, Runtime.getRuntime()
+      .availableProcessors());
+
   private static final WorkerSetLogger workerSetLogger = WorkerSetLogger.getWorkerSetLogger();
   private static final CoordinatorLogger coordinatorLogger =
       CoordinatorLogger.getCoordinatorLogger();
 
   private final ConcurrentMap<Worker, Worker> workerMap = new ConcurrentHashMap<>();
-  private final Subject<Worker> workerSubject;
-  private final Subject<ExecuteTestRequest> testRequestSubject;
-  private final ExecutorService executorService = Executors.newCachedThreadPool();
+  private final ConcurrentMap<Worker, Set<Integer>> warmProjectMap = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Worker, Set<Integer>> warmingProjectMap =
+      new ConcurrentHashMap<>();
+  private final ExecutorService executorService =
+      Executors.newFixedThreadPool(EVENT_LOOP_THREADS, new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("worker-set-%d")
+          .build());
+  private final ScheduledExecutorService dispatchScheduler =
+      Executors.newSingleThreadScheduledExecutor();
   private final RequestValidator requestValidator = new RequestValidator();
   private final AtomicInteger testRequestIdCounter = new AtomicInteger(0);
+  private final long coldDispatchWaitMillis;
+  private final int maxQueuedRequests;
+  private final long maxQueuedGeneBytes;
+  private final double hedgePercentile;
+  private final WarmUpFanOut warmUpFanOut;
 
-  public WorkerSet() {
-    final BehaviorSubject<Worker> workerBehaviorSubject = BehaviorSubject.create();
-    this.workerSubject = workerBehaviorSubject.toSerialized();
+  // 以下のフィールドはthisで同期してアクセスする
+  private final Deque<Worker> idleWorkers = new ArrayDeque<>();
+  private final FairShareQueue requestQueue = new FairShareQueue();
+  private final Map<ExecuteTestRequest, InFlightTest> inFlightTests = new HashMap<>();
+  private final LatencyTracker latencyTracker = new LatencyTracker(LATENCY_WINDOW);
+  private long queuedGeneBytes = 0;
+  private boolean dispatchScheduled = false;
 
-    final BehaviorSubject<ExecuteTestRequest> testRequestBehaviorSubject = BehaviorSubject.create();
-    this.testRequestSubject = testRequestBehaviorSubject.toSerialized();
+  public WorkerSet() {
+    this(WorkerSetSettings.defaults());
+  }
 
-    // 2つのSubjectを購読
-    final Object nullObject = new Object();
-    Observable.zip(testRequestSubject, workerSubject, (request, worker) -> {
-      executeTest(request, worker);
-      return nullObject;
-    })
-        .subscribe(o -> {
-        }, error ->  coordinatorLogger.error(-1, error));
+  /**
+   * @param settings テストの割り当ての設定
+   */
+  public WorkerSet(final WorkerSetSettings settings) {
+    this.coldDispatchWaitMillis = settings.getColdDispatchWaitMillis();
+    this.maxQueuedRequests = settings.getMaxQueuedRequests();
+    this.maxQueuedGeneBytes = settings.getMaxQueuedGeneBytes();
+    this.hedgePercentile = settings.getHedgePercentile();
+    this.warmUpFanOut = new WarmUpFanOut(settings.getWarmUpFanOut());
   }
 
   public void addWorker(final Worker worker) {
+    addWorker(worker, 1);
+  }
+
+  /**
+   * ワーカーを追加する
+   *
+   * ワーカーは同時に実行できるテストの数（スロット数）だけトークンとして流される
+   *
+   * @param worker 追加するワーカー
+   * @param slots ワーカーのスロット数
+   */
+  public void addWorker(final Worker worker, final int slots) {
     workerMap.putIfAbsent(worker, worker);
-    workerSubject.onNext(worker);
+    warmProjectMap.putIfAbsent(worker, ConcurrentHashMap.newKeySet());
+    warmingProjectMap.putIfAbsent(worker, ConcurrentHashMap.newKeySet());
+    synchronized (this) {
+      for (int i = 0; i < Math.max(slots, 1); i++) {
+        idleWorkers.addLast(worker);
+      }
+    }
+    dispatch();
+  }
+
+  /**
+   * ワーカーがプロジェクトを展開済みであることを記録する
+   *
+   * @param worker ワーカー
+   * @param projectId 展開済みのプロジェクトID
+   */
+  public void markWarm(final Worker worker, final int projectId) {
+    warmProjectMap.computeIfAbsent(worker, w -> ConcurrentHashMap.newKeySet())
+        .add(projectId);
+  }
+
+  /**
+   * ワーカーに各プロジェクトを並列に展開させる．展開を待たずに戻る
+   *
+   * 展開を終えたプロジェクトから順に展開済みとして記録するので，
+   * そのプロジェクトのテストはすぐにこのワーカーへ優先して割り当てられる．
+   * 展開中のワーカーには，そのプロジェクトのテストを割り当てない．
+   * 同時に展開するワーカーの数は展開元の数に応じて制限され（{@link WarmUpFanOut}），
+   * 制限を超えた分は他のワーカーが展開を終えるまで待つ
+   *
+   * @param worker ワーカー
+   * @param projectIds 展開させるプロジェクトID
+   * @param concurrency 同時に展開させるプロジェクトの数
+   */
+  public void warmUp(final Worker worker, final Collection<Integer> projectIds,
+      final int concurrency) {
+    final List<Integer> targets = new ArrayList<>(projectIds);
+    final Set<Integer> warmingProjects = warmingProjectMap.get(worker);
+    if (warmingProjects == null) {
+      // 追加されていない，または切断されたワーカー
+      return;
+    }
+    warmingProjects.addAll(targets);
+
+    final int totalCount = targets.size();
+    final AtomicInteger finishedCount = new AtomicInteger(0);
+    Flowable.fromIterable(targets)
+        .flatMapSingle(projectId -> warmUp(worker, projectId, finishedCount, totalCount), false,
+            Math.max(concurrency, 1))
+        .subscribe();
   }
 
+  private Single<Boolean> warmUp(final Worker worker, final int projectId,
+      final AtomicInteger finishedCount, final int totalCount) {
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    final Completable acquire = Completable.create(
+        emitter -> warmUpFanOut.acquire(projectId, countSources(projectId), emitter::onComplete));
+    return acquire
+        // 同期的に展開するワーカーもあるので，呼び出し元や他の展開を終えたスレッドをブロックしないようにする
+        .observeOn(Schedulers.from(getExecutorService()))
+        .andThen(Single.defer(() -> {
+          final Instant startTime = Instant.now();
+          // 待っている間に切断されたワーカーや登録解除されたプロジェクトは展開しない
+          final Single<Boolean> warmUpSingle = isWarming(worker, projectId)
+              ? worker.executeTest(request)
+                  .map(response -> response.getStatus() == GrpcStatus.SUCCESS)
+                  .onErrorReturnItem(false)
+              : Single.just(false);
+          return warmUpSingle.doOnSuccess(success -> {
+            // 展開している間に切断されたワーカーや登録解除されたプロジェクトは記録しない
+            final Set<Integer> warmingProjects = warmingProjectMap.get(worker);
+            if (warmingProjects != null && warmingProjects.remove(projectId) && success) {
+              markWarm(worker, projectId);
+            }
+            warmUpFanOut.release(projectId, countSources(projectId));
+            workerSetLogger.finishWarmUp(worker, projectId, success,
+                Duration.between(startTime, Instant.now())
+                    .toMillis(),
+                finishedCount.incrementAndGet(), totalCount);
+            dispatch();
+          });
+        }));
+  }
+
+  /**
+   * プロジェクトの展開元の数を数える．コーディネータと展開済みのワーカーが展開元となる
+   */
+  private int countSources(final int projectId) {
+    return 1 + (int) warmProjectMap.values()
+        .stream()
+        .filter(projects -> projects.contains(projectId))
+        .count();
+  }
+
+  /**
+   * プロジェクトを展開済みのワーカーを取得する
+   *
+   * @param projectId プロジェクトID
+   * @return ワーカーIDの順に並んだワーカー
+   */
+  public List<Worker> getWarmWorkers(final int projectId) {
+    return workerMap.keySet()
+        .stream()
+        .filter(worker -> isWarm(worker, projectId))
+        .sorted(Comparator.comparing(Worker::getId))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * ワーカーがプロジェクトを展開中かを確認する
+   */
+  public boolean isWarming(final Worker worker, final int projectId) {
+    final Set<Integer> projects = warmingProjectMap.get(worker);
+    return projects != null && projects.contains(projectId);
+  }
+
+  /**
+   * プロジェクトを各ワーカーへ展開し終えたかを取得する
+   *
+   * @param projectId プロジェクトID
+   * @return ワーカーIDの順に並んだ展開状況
+   */
+  public List<GrpcWorkerReadiness> getReadiness(final int projectId) {
+    return workerMap.keySet()
+        .stream()
+        .sorted(Comparator.comparing(Worker::getId))
+        .map(worker -> GrpcWorkerReadiness.newBuilder()
+            .setWorkerId(worker.getId())
+            .setName(worker.getName())
+            .setState(isWarm(worker, projectId) ? GrpcWorkerReadiness.State.READY
+                : isWarming(worker, projectId) ? GrpcWorkerReadiness.State.WARMING
+                    : GrpcWorkerReadiness.State.COLD)
+            .build())
+        .collect(Collectors.toList());
+  }
+
+  public boolean isWarm(final Worker worker, final int projectId) {
+    final Set<Integer> projects = warmProjectMap.get(worker);
+    return projects != null && projects.contains(projectId);
+  }
+
+  /**
+   * プロジェクトの重みを設定する．ワーカーは重みに比例してプロジェクト間で分配される
+   *
+   * @param projectId プロジェクトID
+   * @param weight 重み
+   */
+  public synchronized void setWeight(final int projectId, final int weight) {
+    requestQueue.setWeight(projectId, weight);
+  }
+
+  /**
+   * テストの実行を依頼する
+   *
+   * 割り当てを待つリクエストの数または遺伝子の合計サイズが上限を超える場合は，
+   * {@code RESOURCE_EXHAUSTED} で拒否し，再送までに待つべき時間をクライアントに伝える
+   *
+   * @param testRequest リクエスト
+   */
+  @Override
   public void executeTest(final ExecuteTestRequest testRequest) {
+    final boolean admitted;
+    synchronized (this) {
+      admitted = admit(testRequest);
+      if (admitted) {
+        offer(testRequest);
+      } else {
+        workerSetLogger.rejectExecuteTest(testRequest, requestQueue.size(), queuedGeneBytes);
+      }
+    }
+
+    if (!admitted) {
+      try {
+        testRequest.getStreamObserver()
+            .onError(RetryAfter.createException("test request queue is full", RETRY_AFTER_MILLIS));
+      } catch (final RuntimeException e) {
+        coordinatorLogger.error(testRequest.getRequestId(), e);
+      }
+      return;
+    }
     workerSetLogger.offerExecuteTest(testRequest);
-    testRequestSubject.onNext(testRequest);
+    dispatch();
+  }
+
+  /**
+   * クライアントが取り消したリクエストを取り除く．実行中であればワーカーでの実行も取り消す
+   *
+   * @param testRequest 取り消されたリクエスト
+   */
+  @Override
+  public void cancelTest(final ExecuteTestRequest testRequest) {
+    final boolean queued;
+    final List<Attempt> attempts = new ArrayList<>();
+    synchronized (this) {
+      queued = requestQueue.discard(testRequest);
+      if (queued) {
+        queuedGeneBytes -= getGeneBytes(testRequest);
+      }
+
+      final InFlightTest inFlightTest = inFlightTests.remove(testRequest);
+      if (inFlightTest != null) {
+        // まだ購読していない試行は，購読後に自分で取り消す
+        inFlightTest.completed = true;
+        inFlightTest.attempts.stream()
+            .filter(attempt -> attempt.disposable != null)
+            .forEach(attempts::add);
+      }
+    }
+
+    if (queued) {
+      workerSetLogger.skipExecuteTest(testRequest);
+    }
+    attempts.forEach(this::cancelExecuteTest);
+  }
+
+  @Override
+  public void invalidateRequests(final ExecuteTestRequest testRequest) {
+    requestValidator.addInvalidateRequest(testRequest);
   }
 
-  protected void executeTest(final ExecuteTestRequest testRequest, final Worker worker) {
-    final GrpcExecuteTestRequest request = testRequest.getRequest();
+  private boolean isCancelled(final ExecuteTestRequest testRequest) {
     final StreamObserver<GrpcExecuteTestResponse> responseObserver =
         testRequest.getStreamObserver();
+    return responseObserver instanceof ServerCallStreamObserver
+        && ((ServerCallStreamObserver<GrpcExecuteTestResponse>) responseObserver).isCancelled();
+  }
+
+  private boolean admit(final ExecuteTestRequest testRequest) {
+    if (requestQueue.size() >= maxQueuedRequests) {
+      return false;
+    }
+    // 上限より大きい遺伝子でも，キューが空なら受け付ける
+    return requestQueue.isEmpty()
+        || queuedGeneBytes + getGeneBytes(testRequest) <= maxQueuedGeneBytes;
+  }
+
+  /**
+   * 受付済みのリクエストを再びキューに入れる．上限は確認しない
+   */
+  private void enqueue(final ExecuteTestRequest testRequest) {
+    synchronized (this) {
+      offer(testRequest);
+    }
+    dispatch();
+  }
+
+  private void offer(final ExecuteTestRequest testRequest) {
+    final int projectId = testRequest.getRequest()
+        .getProjectId();
+    requestQueue.add(testRequest);
+    queuedGeneBytes += getGeneBytes(testRequest);
+    workerSetLogger.updateProjectQueue(projectId, requestQueue.getWeight(projectId),
+        requestQueue.size(projectId), null);
+  }
+
+  private long getGeneBytes(final ExecuteTestRequest testRequest) {
+    return testRequest.getRequest()
+        .getGene()
+        .getSerializedSize();
+  }
 
-    if (!requestValidator.validate(testRequest)) {
+  private void release(final Worker worker) {
+    if (!workerMap.containsKey(worker)) {
+      // 既に取り除かれたワーカーのスロットは捨てる
+      return;
+    }
+    synchronized (this) {
+      idleWorkers.addLast(worker);
+    }
+    dispatch();
+  }
+
+  /**
+   * 待機中のリクエストを空いているワーカーに割り当てる
+   *
+   * プロジェクト間では{@link FairShareQueue}の重みに従って順番を決める．
+   * ワーカーはリクエストのプロジェクトを展開済みのものを優先する．
+   * 展開済みのワーカーが全て埋まっている場合や展開中のワーカーがいる場合は，
+   * {@code coldDispatchWaitMillis}だけ待ってから未展開のワーカーに割り当てる．展開中のワーカーには割り当てない．
+   * 待機中のリクエストがなくワーカーが空いている場合は，長引いているテストを別のワーカーでも実行する
+   */
+  private void dispatch() {
+    final List<Dispatch> dispatches = new ArrayList<>();
+    synchronized (this) {
+      final Instant now = Instant.now();
+      while (!idleWorkers.isEmpty()) {
+        final Dispatch dispatch = selectDispatch(now);
+        if (dispatch == null) {
+          break;
+        }
+        final ExecuteTestRequest testRequest = dispatch.attempt.inFlightTest.testRequest;
+        final int projectId = testRequest.getRequest()
+            .getProjectId();
+        requestQueue.remove(testRequest);
+        queuedGeneBytes -= getGeneBytes(testRequest);
+        idleWorkers.removeFirstOccurrence(dispatch.attempt.worker);
+        dispatches.add(dispatch);
+        workerSetLogger.updateProjectQueue(projectId, requestQueue.getWeight(projectId),
+            requestQueue.size(projectId), getWaitingMillis(testRequest, now));
+      }
+
+      if (requestQueue.isEmpty()) {
+        while (!idleWorkers.isEmpty()) {
+          final Dispatch dispatch = selectHedge(now);
+          if (dispatch == null) {
+            break;
+          }
+          idleWorkers.removeFirstOccurrence(dispatch.attempt.worker);
+          dispatches.add(dispatch);
+        }
+      }
+      scheduleDispatch(now);
+    }
+
+    for (final Dispatch dispatch : dispatches) {
+      executeTest(dispatch);
+    }
+  }
+
+  private Dispatch selectDispatch(final Instant now) {
+    for (final ExecuteTestRequest testRequest : requestQueue.heads()) {
+      final Worker worker = selectWorker(testRequest, now);
+      if (worker != null) {
+        final int projectId = testRequest.getRequest()
+            .getProjectId();
+        final InFlightTest inFlightTest = new InFlightTest(testRequest, now);
+        inFlightTests.put(testRequest, inFlightTest);
+        return new Dispatch(inFlightTest.addAttempt(worker, false), isWarm(worker, projectId));
+      }
+    }
+    return null;
+  }
+
+  private Worker selectWorker(final ExecuteTestRequest testRequest, final Instant now) {
+    final int projectId = testRequest.getRequest()
+        .getProjectId();
+    for (final Worker worker : idleWorkers) {
+      if (isWarm(worker, projectId)) {
+        return worker;
+      }
+    }
+
+    // 展開中のワーカーに割り当てても展開が終わるまで待たされるので，展開を終えるのを待つ
+    final boolean hasWarmWorker = warmProjectMap.values()
+        .stream()
+        .anyMatch(projects -> projects.contains(projectId));
+    final boolean hasWarmingWorker = warmingProjectMap.values()
+        .stream()
+        .anyMatch(projects -> projects.contains(projectId));
+    if ((!hasWarmWorker && !hasWarmingWorker)
+        || getWaitingMillis(testRequest, now) >= coldDispatchWaitMillis) {
+      for (final Worker worker : idleWorkers) {
+        if (!isWarming(worker, projectId)) {
+          return worker;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 実行時間が直近の実行時間のパーセンタイルを超えたテストを，空いているワーカーにも割り当てる
+   */
+  private Dispatch selectHedge(final Instant now) {
+    final OptionalLong threshold = getHedgeThresholdMillis();
+    if (!threshold.isPresent()) {
+      return null;
+    }
+
+    final List<InFlightTest> candidates = inFlightTests.values()
+        .stream()
+        .filter(t -> !t.hedged && getElapsedMillis(t, now) >= threshold.getAsLong())
+        .sorted(Comparator.comparing(t -> t.startTime))
+        .collect(Collectors.toList());
+    for (final InFlightTest inFlightTest : candidates) {
+      final int projectId = inFlightTest.testRequest.getRequest()
+          .getProjectId();
+      final Worker worker = idleWorkers.stream()
+          .filter(w -> !inFlightTest.isRunningOn(w))
+          .sorted(Comparator.comparing(w -> !isWarm(w, projectId)))
+          .findFirst()
+          .orElse(null);
+      if (worker != null) {
+        inFlightTest.hedged = true;
+        return new Dispatch(inFlightTest.addAttempt(worker, true), isWarm(worker, projectId));
+      }
+    }
+    return null;
+  }
+
+  private OptionalLong getHedgeThresholdMillis() {
+    if (hedgePercentile <= 0 || latencyTracker.size() < MIN_HEDGE_SAMPLES) {
+      return OptionalLong.empty();
+    }
+    return latencyTracker.getPercentile(hedgePercentile);
+  }
+
+  /**
+   * 空いているワーカーがあるのに割り当てを待っているリクエストや，まだ複製していない長引いているテストがあれば，
+   * 待ち時間の経過後に再度割り当てを行う
+   */
+  private void scheduleDispatch(final Instant now) {
+    if (dispatchScheduled || idleWorkers.isEmpty()) {
+      return;
+    }
+
+    final OptionalLong delay;
+    if (!requestQueue.isEmpty()) {
+      // 待ち時間を過ぎても割り当てられないリクエストは，展開中のワーカーを待っている．
+      // それらは展開が終わったときに割り当て直す
+      delay = requestQueue.stream()
+          .mapToLong(r -> coldDispatchWaitMillis - getWaitingMillis(r, now))
+          .filter(d -> d > 0)
+          .min();
+    } else {
+      final OptionalLong threshold = getHedgeThresholdMillis();
+      delay = !threshold.isPresent() ? OptionalLong.empty()
+          : inFlightTests.values()
+              .stream()
+              .filter(t -> !t.hedged)
+              .mapToLong(t -> threshold.getAsLong() - getElapsedMillis(t, now))
+              .min();
+    }
+    if (!delay.isPresent()) {
+      return;
+    }
+
+    dispatchScheduled = true;
+    dispatchScheduler.schedule(() -> {
+      synchronized (this) {
+        dispatchScheduled = false;
+      }
+      dispatch();
+    }, Math.max(delay.getAsLong(), 0), TimeUnit.MILLISECONDS);
+  }
+
+  private long getWaitingMillis(final ExecuteTestRequest testRequest, final Instant now) {
+    return Duration.between(testRequest.getTime(), now)
+        .toMillis();
+  }
+
+  private long getElapsedMillis(final InFlightTest inFlightTest, final Instant now) {
+    return Duration.between(inFlightTest.startTime, now)
+        .toMillis();
+  }
+
+  private void executeTest(final Dispatch dispatch) {
+    final Attempt attempt = dispatch.attempt;
+    final ExecuteTestRequest testRequest = attempt.inFlightTest.testRequest;
+    final Worker worker = attempt.worker;
+
+    if (!attempt.hedge
+        && (isCancelled(testRequest) || !requestValidator.validate(testRequest))) {
       workerSetLogger.skipExecuteTest(testRequest);
-      workerSubject.onNext(worker);
+      synchronized (this) {
+        inFlightTests.remove(testRequest);
+      }
+      release(worker);
+      if (!isCancelled(testRequest)) {
+        // 結果を待っているのが元のクライアントとは限らないので，実行しなかったことを伝える
+        try {
+          testRequest.getStreamObserver()
+              .onError(RequestValidator.createInvalidatedException());
+        } catch (final RuntimeException e) {
+          coordinatorLogger.error(testRequest.getRequestId(), e);
+        }
+      }
       return;
     }
-    
-    final int testReuquestId = testRequestIdCounter.getAndIncrement();
 
-    workerSetLogger.startExecuteTest(testRequest, testReuquestId, worker);
+    attempt.testRequestId = testRequestIdCounter.getAndIncrement();
+    attempt.startTime = Instant.now();
+    if (attempt.hedge) {
+      workerSetLogger.hedgeExecuteTest(testRequest);
+    }
+    workerSetLogger.startExecuteTest(testRequest, attempt.testRequestId, worker, dispatch.warm);
 
-    final Single<GrpcExecuteTestResponse> responseSingle = worker.executeTest(request);
-    responseSingle.subscribeOn(Schedulers.from(getExecutorService()))
-        .subscribe(response -> {
-          workerSubject.onNext(worker);
-          workerSetLogger.finishExecuteTest(testRequest, testReuquestId, worker, response);
+    final Single<GrpcExecuteTestResponse> responseSingle =
+        worker.executeTest(testRequest.getRequest());
+    final Disposable disposable = responseSingle.subscribeOn(Schedulers.from(getExecutorService()))
+        .subscribe(response -> succeededExecuteTest(attempt, response),
+            error -> failedExecuteTest(attempt, error));
 
-          try {
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
-          } catch (final RuntimeException e) {
-            requestValidator.addInvalidateRequest(testRequest);
-            coordinatorLogger.error(testRequest.getRequestId(), e);
-          }
-        }, error -> {
-          // workerとの通信が途絶えるとここに入る
-          workerSetLogger.failedExecuteTest(testRequest, testReuquestId, worker);
-          testRequestSubject.onNext(testRequest);
-          remove(worker);
-        });
+    final boolean cancelled;
+    synchronized (this) {
+      attempt.disposable = disposable;
+      // 購読している間に別の試行が先に終わっていれば，この試行は不要になる
+      cancelled = !disposable.isDisposed() && attempt.inFlightTest.completed;
+    }
+    if (cancelled) {
+      cancelExecuteTest(attempt);
+    }
+  }
+
+  private void succeededExecuteTest(final Attempt attempt, final GrpcExecuteTestResponse response) {
+    final InFlightTest inFlightTest = attempt.inFlightTest;
+    final ExecuteTestRequest testRequest = inFlightTest.testRequest;
+    final Worker worker = attempt.worker;
+    final StreamObserver<GrpcExecuteTestResponse> responseObserver =
+        testRequest.getStreamObserver();
+
+    final boolean won;
+    final List<Attempt> losers = new ArrayList<>();
+    synchronized (this) {
+      if (!inFlightTest.attempts.remove(attempt)) {
+        // 取り消しと入れ違いに返ってきた結果．ワーカーは取り消した側で解放済み
+        return;
+      }
+      won = !inFlightTest.completed;
+      if (won) {
+        inFlightTest.completed = true;
+        inFlightTests.remove(testRequest);
+        // まだ購読していない試行は，購読後に自分で取り消す
+        inFlightTest.attempts.stream()
+            .filter(loser -> loser.disposable != null)
+            .forEach(losers::add);
+        latencyTracker.add(Duration.between(attempt.startTime, Instant.now())
+            .toMillis());
+      }
+    }
+
+    markWarm(worker, testRequest.getRequest()
+        .getProjectId());
+    release(worker);
+    workerSetLogger.finishExecuteTest(testRequest, attempt.testRequestId, worker, response);
+    if (!won) {
+      return;
+    }
+
+    // 最初に返ってきた結果を採用し，残りの試行は取り消す
+    losers.forEach(this::cancelExecuteTest);
+    if (inFlightTest.hedged) {
+      workerSetLogger.finishHedge(testRequest, attempt.hedge);
+    }
+    if (isCancelled(testRequest)) {
+      // クライアントが既に取り消しているので結果は送らない
+      return;
+    }
+
+    try {
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    } catch (final RuntimeException e) {
+      invalidateRequests(testRequest);
+      coordinatorLogger.error(testRequest.getRequestId(), e);
+    }
+  }
+
+  private void failedExecuteTest(final Attempt attempt, final Throwable error) {
+    final InFlightTest inFlightTest = attempt.inFlightTest;
+    final ExecuteTestRequest testRequest = inFlightTest.testRequest;
+
+    final boolean retry;
+    synchronized (this) {
+      if (!inFlightTest.attempts.remove(attempt)) {
+        // 取り消した試行．ワーカーは取り消した側で解放済み
+        return;
+      }
+      // 他の試行が残っていれば，そちらの結果を待つ
+      retry = !inFlightTest.completed && inFlightTest.attempts.isEmpty();
+      if (retry) {
+        inFlightTests.remove(testRequest);
+      }
+    }
+
+    final Optional<Long> retryAfterMillis = RetryAfter.getRetryAfterMillis(error);
+    if (Status.fromThrowable(error)
+        .getCode() == Status.Code.CANCELLED) {
+      // ワーカーが実行を取り消しただけなので，ワーカーは取り除かない．
+      // 停止中などで取り消し続けるワーカーに割り当て直し続けないよう，少し待ってから再び割り当てる
+      workerSetLogger.cancelExecuteTest(testRequest, attempt.testRequestId, attempt.worker);
+      dispatchScheduler.schedule(() -> release(attempt.worker), WORKER_CANCELLED_BACKOFF_MILLIS,
+          TimeUnit.MILLISECONDS);
+    } else if (retryAfterMillis.isPresent()) {
+      // ワーカーが混雑していて受け付けなかったので，指定された時間が経ってから再び割り当てる
+      workerSetLogger.cancelExecuteTest(testRequest, attempt.testRequestId, attempt.worker);
+      dispatchScheduler.schedule(() -> release(attempt.worker), retryAfterMillis.get(),
+          TimeUnit.MILLISECONDS);
+    } else {
+      // workerとの通信が途絶えるとここに入る
+      workerSetLogger.failedExecuteTest(testRequest, attempt.testRequestId, attempt.worker);
+      remove(attempt.worker);
+    }
+    if (retry) {
+      enqueue(testRequest);
+    }
+  }
+
+  /**
+   * 試行を取り消してワーカーを解放する．既に結果が返ってきた試行であれば，そちらで解放済みなので何もしない
+   */
+  private void cancelExecuteTest(final Attempt attempt) {
+    synchronized (this) {
+      if (!attempt.inFlightTest.attempts.remove(attempt)) {
+        return;
+      }
+    }
+    attempt.disposable.dispose();
+    workerSetLogger.cancelExecuteTest(attempt.inFlightTest.testRequest, attempt.testRequestId,
+        attempt.worker);
+    release(attempt.worker);
   }
 
   private void remove(final Worker worker) {
     worker.finish();
     workerMap.remove(worker);
+    warmProjectMap.remove(worker);
+    warmingProjectMap.remove(worker);
+    synchronized (this) {
+      idleWorkers.removeIf(worker::equals);
+    }
   }
 
   public void unregister(final int requestId, final GrpcUnregisterProjectRequest request) {
+    synchronized (this) {
+      requestQueue.removeWeight(request.getProjectId());
+    }
+    for (final Set<Integer> projects : warmProjectMap.values()) {
+      projects.remove(request.getProjectId());
+    }
+    for (final Set<Integer> projects : warmingProjectMap.values()) {
+      projects.remove(request.getProjectId());
+    }
+    warmUpFanOut.remove(request.getProjectId());
     for (final Worker worker : workerMap.values()) {
       worker.unregisterProject(request)
           .subscribe(r -> {
@@ -116,4 +769,59 @@ public class WorkerSet {
   protected ExecutorService getExecutorService() {
     return executorService;
   }
+
+  private static class Dispatch {
+
+    private final Attempt attempt;
+    private final boolean warm;
+
+    private Dispatch(final Attempt attempt, final boolean warm) {
+      this.attempt = attempt;
+      this.warm = warm;
+    }
+  }
+
+  /**
+   * 実行中のテスト．複製して実行している場合は複数の試行を持つ
+   */
+  private static class InFlightTest {
+
+    private final ExecuteTestRequest testRequest;
+    private final Instant startTime;
+    private final List<Attempt> attempts = new ArrayList<>();
+    private boolean hedged = false;
+    private boolean completed = false;
+
+    private InFlightTest(final ExecuteTestRequest testRequest, final Instant startTime) {
+      this.testRequest = testRequest;
+      this.startTime = startTime;
+    }
+
+    private Attempt addAttempt(final Worker worker, final boolean hedge) {
+      final Attempt attempt = new Attempt(this, worker, hedge);
+      attempts.add(attempt);
+      return attempt;
+    }
+
+    private boolean isRunningOn(final Worker worker) {
+      return attempts.stream()
+          .anyMatch(attempt -> attempt.worker.equals(worker));
+    }
+  }
+
+  private static class Attempt {
+
+    private final InFlightTest inFlightTest;
+    private final Worker worker;
+    private final boolean hedge;
+    private int testRequestId;
+    private Instant startTime;
+    private Disposable disposable;
+
+    private Attempt(final InFlightTest inFlightTest, final Worker worker, final boolean hedge) {
+      this.inFlightTest = inFlightTest;
+      this.worker = worker;
+      this.hedge = hedge;
+    }
+  }
 }
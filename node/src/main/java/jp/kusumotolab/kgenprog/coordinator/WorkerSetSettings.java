@@ -0,0 +1,71 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
+
+/**
+ * {@link WorkerSet} がテストをワーカーへ割り当てる際の設定
+ */
+public class WorkerSetSettings {
+
+  private final long coldDispatchWaitMillis;
+  private final int maxQueuedRequests;
+  private final long maxQueuedGeneBytes;
+  private final double hedgePercentile;
+  private final int warmUpFanOut;
+
+  /**
+   * @param coldDispatchWaitMillis プロジェクトを展開済みのワーカーが全て埋まっているとき，
+   *        未展開のワーカーにテストを割り当てるまでに待つ時間（ミリ秒）
+   * @param maxQueuedRequests 割り当てを待つリクエストの最大数
+   * @param maxQueuedGeneBytes 割り当てを待つリクエストの遺伝子の合計サイズの上限（バイト）
+   * @param hedgePercentile 直近の実行時間のこのパーセンタイルを超えたテストを別のワーカーでも実行する．0以下なら複製しない
+   * @param warmUpFanOut 展開元1つあたりに同時にプロジェクトを展開させるワーカーの数．0以下なら制限しない
+   */
+  public WorkerSetSettings(final long coldDispatchWaitMillis, final int maxQueuedRequests,
+      final long maxQueuedGeneBytes, final double hedgePercentile, final int warmUpFanOut) {
+    this.coldDispatchWaitMillis = coldDispatchWaitMillis;
+    this.maxQueuedRequests = maxQueuedRequests;
+    this.maxQueuedGeneBytes = maxQueuedGeneBytes;
+    this.hedgePercentile = hedgePercentile;
+    this.warmUpFanOut = warmUpFanOut;
+  }
+
+  /**
+   * コーディネータの設定から作る
+   */
+  public static WorkerSetSettings from(final ClusterConfiguration config) {
+    return new WorkerSetSettings(config.getColdDispatchWaitMillis(), config.getMaxQueuedRequests(),
+        config.getMaxQueuedGeneBytes(), config.getHedgePercentile(), config.getWarmUpFanOut());
+  }
+
+  /**
+   * コーディネータの設定の既定値
+   */
+  public static WorkerSetSettings defaults() {
+    return new WorkerSetSettings(ClusterConfiguration.DEFAULT_COLD_DISPATCH_WAIT_MILLIS,
+        ClusterConfiguration.DEFAULT_MAX_QUEUED_REQUESTS,
+        ClusterConfiguration.DEFAULT_MAX_QUEUED_GENE_BYTES,
+        ClusterConfiguration.DEFAULT_HEDGE_PERCENTILE,
+        ClusterConfiguration.DEFAULT_WARM_UP_FAN_OUT);
+  }
+
+  public long getColdDispatchWaitMillis() {
+    return coldDispatchWaitMillis;
+  }
+
+  public int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  public long getMaxQueuedGeneBytes() {
+    return maxQueuedGeneBytes;
+  }
+
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public int getWarmUpFanOut() {
+    return warmUpFanOut;
+  }
+}
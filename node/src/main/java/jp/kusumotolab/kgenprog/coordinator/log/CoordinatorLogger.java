@@ -4,11 +4,14 @@ import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 import io.reactivex.Observable;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
-import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.Worker;
 
@@ -41,15 +44,22 @@ public class CoordinatorLogger {
     });
   }
 
+  /**
+   * プロジェクトを登録したことを記録する
+   *
+   * @param requestId リクエストID
+   * @param registerProjectResponse レスポンス
+   * @param bytes 受け取ったプロジェクトのサイズ
+   */
   public void registerProject(final int requestId,
-      final GrpcRegisterProjectRequest registerProjectRequest,
-      final GrpcRegisterProjectResponse registerProjectResponse) {
+      final GrpcRegisterProjectResponse registerProjectResponse, final long bytes) {
 
     events.addEvent(time -> {
       final Request request = requestMap.get(requestId);
 
       request.status = registerProjectResponse.getStatus();
       request.projectId = registerProjectResponse.getProjectId();
+      request.bytes = bytes;
 
       return Observable.empty();
     });
@@ -87,6 +97,72 @@ public class CoordinatorLogger {
     });
   }
 
+  /**
+   * ワーカーにプロジェクトをストリームで送ったことを記録する
+   *
+   * @param requestId リクエストID
+   * @param getProjectRequest リクエスト
+   * @param status 通信ステータス
+   * @param chunkCount 送ったチャンクの数
+   * @param bytes 送ったプロジェクトのサイズ
+   */
+  public void getProjectStream(final int requestId, final GrpcGetProjectRequest getProjectRequest,
+      final int status, final int chunkCount, final long bytes) {
+    events.addEvent(date -> {
+      final Request request = requestMap.get(requestId);
+
+      request.projectId = getProjectRequest.getProjectId();
+      request.status = status;
+      request.chunkCount = chunkCount;
+      request.bytes = bytes;
+      return Observable.empty();
+    });
+  }
+
+  public void getProjectStatus(final int requestId,
+      final GrpcGetProjectStatusRequest getProjectStatusRequest,
+      final GrpcGetProjectStatusResponse response) {
+    events.addEvent(date -> {
+      final Request request = requestMap.get(requestId);
+
+      request.projectId = getProjectStatusRequest.getProjectId();
+      request.status = response.getStatus();
+      return Observable.empty();
+    });
+  }
+
+  public void getProjectManifest(final int requestId,
+      final GrpcGetProjectRequest getProjectRequest,
+      final GrpcGetProjectManifestResponse response) {
+    events.addEvent(date -> {
+      final Request request = requestMap.get(requestId);
+
+      request.projectId = getProjectRequest.getProjectId();
+      request.status = response.getStatus();
+      request.chunkCount = response.getChunkDigestsCount();
+      request.peerCount = response.getPeersCount();
+      return Observable.empty();
+    });
+  }
+
+  /**
+   * ワーカーにチャンクを送ったことを記録する
+   *
+   * @param requestId リクエストID
+   * @param chunkCount 送ったチャンクの数
+   * @param bytes 送ったチャンクの合計サイズ
+   */
+  public void getChunks(final int requestId, final int chunkCount, final long bytes) {
+    events.addEvent(date -> {
+      final Request request = requestMap.get(requestId);
+
+      request.status = GrpcStatus.SUCCESS;
+      request.chunkCount = chunkCount;
+      request.bytes = bytes;
+      return Observable.empty();
+    });
+  }
+
   public void error(final int requestId, final Throwable error) {
     events.addEvent(date -> {
       final Request request = requestMap.get(requestId);
@@ -0,0 +1,31 @@
+package jp.kusumotolab.kgenprog.coordinator.log;
+
+import java.time.Instant;
+
+@SuppressWarnings("unused")
+class Hedge implements EventDocument {
+
+  private final Instant date;
+  private final int projectId;
+  private final int testId;
+  private final int hedgeCount;
+  private final int winCount;
+  private final double hedgeRate;
+  private final double winRate;
+
+  public Hedge(final Instant date, final int projectId, final int testId, final int hedgeCount,
+      final int winCount, final double hedgeRate, final double winRate) {
+    this.date = date;
+    this.projectId = projectId;
+    this.testId = testId;
+    this.hedgeCount = hedgeCount;
+    this.winCount = winCount;
+    this.hedgeRate = hedgeRate;
+    this.winRate = winRate;
+  }
+
+  @Override
+  public String getType() {
+    return "hedge";
+  }
+}
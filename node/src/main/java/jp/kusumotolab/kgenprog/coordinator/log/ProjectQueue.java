@@ -0,0 +1,27 @@
+package jp.kusumotolab.kgenprog.coordinator.log;
+
+import java.time.Instant;
+
+@SuppressWarnings("unused")
+class ProjectQueue implements EventDocument {
+
+  private final Instant date;
+  private final int projectId;
+  private final int weight;
+  private final int value;
+  private final Long waitTime;
+
+  public ProjectQueue(final Instant date, final int projectId, final int weight, final int value,
+      final Long waitTime) {
+    this.date = date;
+    this.projectId = projectId;
+    this.weight = weight;
+    this.value = value;
+    this.waitTime = waitTime;
+  }
+
+  @Override
+  public String getType() {
+    return "projectQueue";
+  }
+}
@@ -21,6 +21,9 @@ class Request implements EventDocument {
   public List<ErrorMessage> errors;
   public int testId;
   public boolean testSuccess;
+  public int chunkCount;
+  public long bytes;
+  public int peerCount;
 
   public Request(final int requestId, final String method, final Instant startDate) {
     this.requestId = requestId;
@@ -0,0 +1,38 @@
+package jp.kusumotolab.kgenprog.coordinator.log;
+
+import java.time.Instant;
+
+@SuppressWarnings("unused")
+class ResultCache implements EventDocument {
+
+  private final Instant date;
+  private final int projectId;
+  private final int testId;
+  private final String access;
+  private final int hitCount;
+  private final int sharedCount;
+  private final int missCount;
+  private final double hitRate;
+  private final int entries;
+  private final long bytes;
+
+  public ResultCache(final Instant date, final int projectId, final int testId,
+      final String access, final int hitCount, final int sharedCount, final int missCount,
+      final double hitRate, final int entries, final long bytes) {
+    this.date = date;
+    this.projectId = projectId;
+    this.testId = testId;
+    this.access = access;
+    this.hitCount = hitCount;
+    this.sharedCount = sharedCount;
+    this.missCount = missCount;
+    this.hitRate = hitRate;
+    this.entries = entries;
+    this.bytes = bytes;
+  }
+
+  @Override
+  public String getType() {
+    return "resultCache";
+  }
+}
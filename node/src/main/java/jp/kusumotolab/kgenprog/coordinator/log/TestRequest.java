@@ -8,12 +8,16 @@ class TestRequest implements EventDocument {
 
   int testRequestId;
   int testId;
+  int projectId;
   int workerId;
   String workerName;
   Instant startDate;
   long responseTime;
   boolean success;
   boolean buildSuccess;
+  boolean cancelled;
+  boolean warm;
+  double warmHitRatio;
 
   public TestRequest(final int testRequestId, final int testId, final Instant startDate,
       final Worker worker) {
@@ -0,0 +1,27 @@
+package jp.kusumotolab.kgenprog.coordinator.log;
+
+import java.time.Instant;
+
+@SuppressWarnings("unused")
+class TestRequestRejection implements EventDocument {
+
+  private final Instant date;
+  private final int projectId;
+  private final int queuedRequests;
+  private final long queuedGeneBytes;
+  private final int value;
+
+  public TestRequestRejection(final Instant date, final int projectId, final int queuedRequests,
+      final long queuedGeneBytes, final int value) {
+    this.date = date;
+    this.projectId = projectId;
+    this.queuedRequests = queuedRequests;
+    this.queuedGeneBytes = queuedGeneBytes;
+    this.value = value;
+  }
+
+  @Override
+  public String getType() {
+    return "testRequestRejection";
+  }
+}
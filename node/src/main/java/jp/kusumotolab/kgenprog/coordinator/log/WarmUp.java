@@ -0,0 +1,35 @@
+package jp.kusumotolab.kgenprog.coordinator.log;
+
+import java.time.Instant;
+import jp.kusumotolab.kgenprog.grpc.Worker;
+
+@SuppressWarnings("unused")
+class WarmUp implements EventDocument {
+
+  private final Instant date;
+  private final int workerId;
+  private final String workerName;
+  private final int projectId;
+  private final boolean success;
+  private final long elapsedMillis;
+  private final int finishedCount;
+  private final int totalCount;
+
+  public WarmUp(final Instant date, final Worker worker, final int projectId,
+      final boolean success, final long elapsedMillis, final int finishedCount,
+      final int totalCount) {
+    this.date = date;
+    this.workerId = worker.getId();
+    this.workerName = worker.getName();
+    this.projectId = projectId;
+    this.success = success;
+    this.elapsedMillis = elapsedMillis;
+    this.finishedCount = finishedCount;
+    this.totalCount = totalCount;
+  }
+
+  @Override
+  public String getType() {
+    return "warmUp";
+  }
+}
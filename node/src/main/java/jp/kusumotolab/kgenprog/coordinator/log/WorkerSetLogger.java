@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Map;
 import io.reactivex.Observable;
 import jp.kusumotolab.kgenprog.coordinator.ExecuteTestRequest;
+import jp.kusumotolab.kgenprog.coordinator.TestResultCache.TestResultCacheAccess;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
 import jp.kusumotolab.kgenprog.grpc.Worker;
 
@@ -19,6 +20,14 @@ public class WorkerSetLogger {
   private final Map<Integer, TestRequest> testRequestMap;
   private final Map<Integer, Integer> queueCount;
   private int testQueueCount;
+  private int dispatchCount;
+  private int warmDispatchCount;
+  private int rejectedCount;
+  private int hedgeCount;
+  private int hedgeWinCount;
+  private int cacheHitCount;
+  private int cacheSharedCount;
+  private int cacheMissCount;
   private final Events events;
 
   public WorkerSetLogger(final Events events) {
@@ -26,6 +35,14 @@ public class WorkerSetLogger {
     testRequestMap = new HashMap<>();
     queueCount = new HashMap<>();
     testQueueCount = 0;
+    dispatchCount = 0;
+    warmDispatchCount = 0;
+    rejectedCount = 0;
+    hedgeCount = 0;
+    hedgeWinCount = 0;
+    cacheHitCount = 0;
+    cacheSharedCount = 0;
+    cacheMissCount = 0;
   }
 
   public void offerExecuteTest(final ExecuteTestRequest executeTestRequest) {
@@ -35,6 +52,24 @@ public class WorkerSetLogger {
     });
   }
 
+  /**
+   * キューが溢れてリクエストを拒否したことを記録する
+   *
+   * @param executeTestRequest 拒否したリクエスト
+   * @param queuedRequests 拒否した時点で割り当てを待っていたリクエストの数
+   * @param queuedGeneBytes 拒否した時点で割り当てを待っていた遺伝子の合計サイズ
+   */
+  public void rejectExecuteTest(final ExecuteTestRequest executeTestRequest,
+      final int queuedRequests, final long queuedGeneBytes) {
+    events.addEvent(date -> {
+      rejectedCount++;
+      final int projectId = executeTestRequest.getRequest()
+          .getProjectId();
+      return Observable.just(
+          new TestRequestRejection(date, projectId, queuedRequests, queuedGeneBytes, rejectedCount));
+    });
+  }
+
   public void skipExecuteTest(final ExecuteTestRequest executeTestRequest) {
     events.addEvent(date -> {
       final TestRequestQueue testRequestQueue = updateQueueCount(date, -1, -1, 0);
@@ -43,10 +78,15 @@ public class WorkerSetLogger {
   }
 
   public void startExecuteTest(final ExecuteTestRequest executeTestRequest, final int testRequestId,
-      final Worker worker) {
+      final Worker worker, final boolean warm) {
     events.addEvent(date -> {
       final int testId = executeTestRequest.getTestId();
-      testRequestMap.put(testRequestId, new TestRequest(testRequestId, testId, date, worker));
+      final TestRequest request = new TestRequest(testRequestId, testId, date, worker);
+      request.projectId = executeTestRequest.getRequest()
+          .getProjectId();
+      request.warm = warm;
+      request.warmHitRatio = updateWarmHitRatio(warm);
+      testRequestMap.put(testRequestId, request);
 
       final TestRequestQueue testRequestQueue = updateQueueCount(date, -1, worker.getId(), 1);
 
@@ -83,6 +123,129 @@ public class WorkerSetLogger {
     });
   }
 
+  /**
+   * プロジェクトごとのキューの長さを記録する
+   *
+   * @param projectId プロジェクトID
+   * @param weight プロジェクトの重み
+   * @param depth キューに溜まっているリクエストの数
+   * @param waitTime 取り出したリクエストの待ち時間（ミリ秒）．追加時はnull
+   */
+  public void updateProjectQueue(final int projectId, final int weight, final int depth,
+      final Long waitTime) {
+    events.addEvent(
+        date -> Observable.just(new ProjectQueue(date, projectId, weight, depth, waitTime)));
+  }
+
+  /**
+   * 長引いているテストを別のワーカーでも実行し始めたことを記録する
+   */
+  public void hedgeExecuteTest(final ExecuteTestRequest executeTestRequest) {
+    events.addEvent(date -> {
+      hedgeCount++;
+      return Observable.just(createHedge(date, executeTestRequest));
+    });
+  }
+
+  /**
+   * 複製して実行したテストの結果が返ってきたことを記録する
+   *
+   * @param executeTestRequest リクエスト
+   * @param hedgeWon 複製した方の結果が先に返ってきたかどうか
+   */
+  public void finishHedge(final ExecuteTestRequest executeTestRequest, final boolean hedgeWon) {
+    events.addEvent(date -> {
+      if (hedgeWon) {
+        hedgeWinCount++;
+      }
+      return Observable.just(createHedge(date, executeTestRequest));
+    });
+  }
+
+  /**
+   * 別の試行が先に終わったためにテストの実行を取り消したことを記録する
+   */
+  public void cancelExecuteTest(final ExecuteTestRequest executeTestRequest,
+      final int testRequestId, final Worker worker) {
+    events.addEvent(date -> {
+      final TestRequest request = testRequestMap.remove(testRequestId);
+      request.setResponseTime(date);
+      request.success = false;
+      request.buildSuccess = false;
+      request.cancelled = true;
+
+      final TestRequestQueue testRequestQueue = updateQueueCount(date, 0, request.workerId, -1);
+
+      return Observable.just(request, testRequestQueue);
+    });
+  }
+
+  /**
+   * テスト結果のキャッシュを引いたことを記録する
+   *
+   * @param executeTestRequest リクエスト
+   * @param access キャッシュを引いた結果
+   * @param entries キャッシュしている結果の件数
+   * @param bytes キャッシュしている結果の合計サイズ
+   */
+  public void accessTestResultCache(final ExecuteTestRequest executeTestRequest,
+      final TestResultCacheAccess access, final int entries, final long bytes) {
+    events.addEvent(date -> {
+      switch (access) {
+        case HIT:
+          cacheHitCount++;
+          break;
+        case SHARED:
+          cacheSharedCount++;
+          break;
+        default:
+          cacheMissCount++;
+          break;
+      }
+      final int total = cacheHitCount + cacheSharedCount + cacheMissCount;
+      final double hitRate = (double) (cacheHitCount + cacheSharedCount) / total;
+      final int projectId = executeTestRequest.getRequest()
+          .getProjectId();
+      return Observable.just(new ResultCache(date, projectId,
+          executeTestRequest.getTestId(), access.name()
+              .toLowerCase(),
+          cacheHitCount, cacheSharedCount, cacheMissCount, hitRate, entries, bytes));
+    });
+  }
+
+  /**
+   * ワーカーがプロジェクトの展開を終えたことを記録する
+   *
+   * @param worker ワーカー
+   * @param projectId プロジェクトID
+   * @param success 展開に成功したか
+   * @param elapsedMillis 展開にかかった時間
+   * @param finishedCount このワーカーで展開を終えたプロジェクトの数
+   * @param totalCount このワーカーで展開するプロジェクトの数
+   */
+  public void finishWarmUp(final Worker worker, final int projectId, final boolean success,
+      final long elapsedMillis, final int finishedCount, final int totalCount) {
+    events.addEvent(date -> Observable.just(
+        new WarmUp(date, worker, projectId, success, elapsedMillis, finishedCount, totalCount)));
+  }
+
+  private Hedge createHedge(final Instant date, final ExecuteTestRequest executeTestRequest) {
+    final int projectId = executeTestRequest.getRequest()
+        .getProjectId();
+    final double hedgeRate = dispatchCount == 0 ? 0.0d : (double) hedgeCount / dispatchCount;
+    final double winRate = hedgeCount == 0 ? 0.0d : (double) hedgeWinCount / hedgeCount;
+    return new Hedge(date, projectId, executeTestRequest.getTestId(), hedgeCount, hedgeWinCount,
+        hedgeRate, winRate);
+  }
+
+  private double updateWarmHitRatio(final boolean warm) {
+    dispatchCount++;
+    if (warm) {
+      warmDispatchCount++;
+    }
+    return (double) warmDispatchCount / dispatchCount;
+  }
+
   private TestRequestQueue updateQueueCount(final Instant date, final int coordinatorDiff,
       final int workerId, final int diff) {
     testQueueCount += coordinatorDiff;
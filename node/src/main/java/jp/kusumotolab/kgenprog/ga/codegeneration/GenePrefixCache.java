@@ -0,0 +1,146 @@
+package jp.kusumotolab.kgenprog.ga.codegeneration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
+
+/**
+ * 遺伝子の接頭辞をキーとして，途中まで操作を適用したソースコードを保持するトライ木
+ *
+ * 各節点は遺伝子の先頭から数えた塩基の列に対応し，その塩基までを適用したソースコードを持つことがある．
+ * ソースコードを持つ節点の数が上限を超えると，最も長く使われていないものから捨てる．
+ * ソースコードも子も持たなくなった節点は木から取り除く
+ */
+class GenePrefixCache {
+
+  private final int maxEntries;
+  private final Node root = new Node(null, null);
+  private final LinkedHashMap<Node, Boolean> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * @param maxEntries 保持するソースコードの最大数
+   */
+  GenePrefixCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * 保持しているソースコードのうち，遺伝子の最も長い接頭辞に対応するものを探す
+   *
+   * @param keys 遺伝子の各塩基を表すキーの列
+   * @return 見つかった接頭辞．見つからなければ長さ0で，ソースコードはnull
+   */
+  synchronized Match findLongestPrefix(final List<ByteString> keys) {
+    Node node = root;
+    Node found = null;
+    int foundLength = 0;
+    for (int i = 0; i < keys.size(); i++) {
+      node = node.children.get(keys.get(i));
+      if (node == null) {
+        break;
+      }
+      if (node.sourceCode != null) {
+        found = node;
+        foundLength = i + 1;
+      }
+    }
+    if (found == null) {
+      return new Match(0, null);
+    }
+    entries.get(found);
+    return new Match(foundLength, found.sourceCode);
+  }
+
+  /**
+   * 遺伝子を全て適用したソースコードを保持する
+   *
+   * @param keys 遺伝子の各塩基を表すキーの列
+   * @param sourceCode 遺伝子を全て適用したソースコード
+   */
+  synchronized void put(final List<ByteString> keys, final GeneratedSourceCode sourceCode) {
+    if (keys.isEmpty() || maxEntries <= 0) {
+      return;
+    }
+    Node node = root;
+    for (final ByteString key : keys) {
+      final Node parent = node;
+      node = node.children.computeIfAbsent(key, k -> new Node(parent, k));
+    }
+    node.sourceCode = sourceCode;
+    entries.put(node, Boolean.TRUE);
+
+    while (entries.size() > maxEntries) {
+      final Iterator<Node> iterator = entries.keySet()
+          .iterator();
+      final Node eldest = iterator.next();
+      iterator.remove();
+      eldest.sourceCode = null;
+      prune(eldest);
+    }
+  }
+
+  synchronized void clear() {
+    root.children.clear();
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * ソースコードも子も持たない節点を根に向かって取り除く
+   */
+  private void prune(final Node node) {
+    Node current = node;
+    while (current != root && current.sourceCode == null && current.children.isEmpty()) {
+      current.parent.children.remove(current.key);
+      current = current.parent;
+    }
+  }
+
+  /**
+   * 探索の結果
+   */
+  static class Match {
+
+    private final int length;
+    private final GeneratedSourceCode sourceCode;
+
+    private Match(final int length, final GeneratedSourceCode sourceCode) {
+      this.length = length;
+      this.sourceCode = sourceCode;
+    }
+
+    /**
+     * 一致した接頭辞の塩基の数
+     */
+    int getLength() {
+      return length;
+    }
+
+    /**
+     * 接頭辞までを適用したソースコード．一致しなかった場合はnull
+     */
+    GeneratedSourceCode getSourceCode() {
+      return sourceCode;
+    }
+  }
+
+  private static class Node {
+
+    private final Node parent;
+    private final ByteString key;
+    private final Map<ByteString, Node> children = new HashMap<>();
+    private GeneratedSourceCode sourceCode;
+
+    private Node(final Node parent, final ByteString key) {
+      this.parent = parent;
+      this.key = key;
+    }
+  }
+}
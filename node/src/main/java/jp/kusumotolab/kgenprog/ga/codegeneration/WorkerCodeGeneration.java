@@ -1,34 +1,74 @@
 package jp.kusumotolab.kgenprog.ga.codegeneration;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.stream.Collectors;
+import com.google.protobuf.ByteString;
 import jp.kusumotolab.kgenprog.ga.variant.Base;
 import jp.kusumotolab.kgenprog.ga.variant.Gene;
 import jp.kusumotolab.kgenprog.ga.variant.Variant;
 import jp.kusumotolab.kgenprog.ga.variant.VariantStore;
+import jp.kusumotolab.kgenprog.grpc.Serializer;
 import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
 
+/**
+ * ワーカー上で遺伝子からソースコードを生成する
+ *
+ * 子の遺伝子は親の遺伝子に塩基を加えたものであることが多いので，生成したソースコードを遺伝子の接頭辞ごとに保持し，
+ * 最も長く一致する接頭辞から残りの塩基だけを適用する．
+ * 生成したソースコードのダイジェストによる結果の再利用は
+ * {@link jp.kusumotolab.kgenprog.grpc.CachedTestExecutor} が行う
+ */
 public class WorkerCodeGeneration implements SourceCodeGeneration {
 
-  private final Set<String> sourceCodeSet = new HashSet<>();
+  /**
+   * 保持するソースコードの数の既定値．1世代の個体数程度
+   */
+  public static final int DEFAULT_CACHE_ENTRIES = 100;
+
+  private final GenePrefixCache cache;
+
+  public WorkerCodeGeneration() {
+    this(DEFAULT_CACHE_ENTRIES);
+  }
+
+  /**
+   * @param cacheEntries 遺伝子の接頭辞ごとに保持するソースコードの最大数．0なら保持しない
+   */
+  public WorkerCodeGeneration(final int cacheEntries) {
+    cache = new GenePrefixCache(cacheEntries);
+  }
 
   @Override
   public void initialize(final Variant initialVariant) {
-    final GeneratedSourceCode generatedSourceCode = initialVariant.getGeneratedSourceCode();
-    sourceCodeSet.add(generatedSourceCode.getMessageDigest());
+    cache.clear();
   }
 
   @Override
   public GeneratedSourceCode exec(final VariantStore variantStore, final Gene gene) {
-    final Variant initialVariant = variantStore.getInitialVariant();
-    GeneratedSourceCode generatedSourceCode = initialVariant.getGeneratedSourceCode();
+    final List<Base> bases = gene.getBases();
+    final List<ByteString> keys = bases.stream()
+        .map(base -> Serializer.serialize(base)
+            .toByteString())
+        .collect(Collectors.toList());
 
-    for (final Base base : gene.getBases()) {
+    final GenePrefixCache.Match match = cache.findLongestPrefix(keys);
+    GeneratedSourceCode generatedSourceCode = match.getSourceCode();
+    if (generatedSourceCode == null) {
+      final Variant initialVariant = variantStore.getInitialVariant();
+      generatedSourceCode = initialVariant.getGeneratedSourceCode();
+    }
+
+    for (final Base base : bases.subList(match.getLength(), bases.size())) {
       generatedSourceCode = base.getOperation()
           .apply(generatedSourceCode, base.getTargetLocation());
     }
-    sourceCodeSet.add(generatedSourceCode.getMessageDigest());
+    if (match.getLength() < bases.size()) {
+      cache.put(keys, generatedSourceCode);
+    }
     return generatedSourceCode;
   }
 
+  int getCacheSize() {
+    return cache.size();
+  }
 }
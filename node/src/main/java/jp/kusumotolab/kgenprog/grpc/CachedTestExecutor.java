@@ -0,0 +1,102 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import io.reactivex.Single;
+import jp.kusumotolab.kgenprog.ga.variant.Variant;
+import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
+import jp.kusumotolab.kgenprog.project.test.EmptyTestResults;
+import jp.kusumotolab.kgenprog.project.test.TestExecutor;
+import jp.kusumotolab.kgenprog.project.test.TestResults;
+
+/**
+ * 生成されたソースコードのダイジェストごとにテスト結果を再利用するTestExecutor
+ *
+ * 異なる遺伝子から同じソースコードが生成された場合，ビルドもテストもせずに以前の結果を返す．
+ * 空の結果は，タイムアウトや実行の取り消しで中断された場合にも返されるので，キャッシュしない
+ */
+public class CachedTestExecutor implements TestExecutor {
+
+  private final TestExecutor testExecutor;
+  private final Map<String, TestResults> cache;
+  private final String scope;
+
+  /**
+   * @param testExecutor キャッシュにない場合にテストを実行するTestExecutor
+   * @param cache {@link #createCache(int)} で生成したキャッシュ．複数のインスタンスで共有できる
+   */
+  public CachedTestExecutor(final TestExecutor testExecutor,
+      final Map<String, TestResults> cache) {
+    this(testExecutor, cache, "");
+  }
+
+  /**
+   * @param testExecutor キャッシュにない場合にテストを実行するTestExecutor
+   * @param cache {@link #createCache(int)} で生成したキャッシュ．複数のインスタンスで共有できる
+   * @param scope 実行するテストが異なるインスタンスとキャッシュを共有する場合に，結果を区別する文字列
+   */
+  public CachedTestExecutor(final TestExecutor testExecutor,
+      final Map<String, TestResults> cache, final String scope) {
+    this.testExecutor = testExecutor;
+    this.cache = cache;
+    this.scope = scope;
+  }
+
+  /**
+   * 最も長く使われていないものから捨てる，スレッドセーフなキャッシュを生成する
+   *
+   * @param maxEntries 保持するテスト結果の最大数
+   * @return キャッシュ
+   */
+  public static Map<String, TestResults> createCache(final int maxEntries) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, TestResults>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, TestResults> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  @Override
+  public TestResults exec(final Variant variant) {
+    final GeneratedSourceCode generatedSourceCode = variant.getGeneratedSourceCode();
+    if (!generatedSourceCode.isGenerationSuccess()) {
+      return testExecutor.exec(variant);
+    }
+
+    final String key = scope.isEmpty() ? generatedSourceCode.getMessageDigest()
+        : scope + ":" + generatedSourceCode.getMessageDigest();
+    final TestResults cachedResults = cache.get(key);
+    if (cachedResults != null) {
+      return cachedResults;
+    }
+
+    final TestResults results = testExecutor.exec(variant);
+    if (results instanceof EmptyTestResults || Thread.currentThread()
+        .isInterrupted()) {
+      // 中断された実行の結果は，同じソースコードの結果として使えない
+      return results;
+    }
+    cache.put(key, results);
+    return results;
+  }
+
+  @Override
+  public Single<TestResults> execAsync(final Single<Variant> variantSingle) {
+    return variantSingle.map(this::exec);
+  }
+
+  @Override
+  public void initialize() {
+    testExecutor.initialize();
+  }
+
+  @Override
+  public void finish() {
+    testExecutor.finish();
+  }
+}
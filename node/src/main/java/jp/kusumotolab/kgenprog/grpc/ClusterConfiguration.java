@@ -18,11 +18,33 @@ public class ClusterConfiguration {
 
   public static final int DEFAULT_PORT = 50051;
   public static final int DEFAULT_KEEPALIVE_SECONDS = Integer.MAX_VALUE;
+  public static final int DEFAULT_PEER_DEADLINE_SECONDS = 60;
   public static final String DEFAULT_LOG_DESTINATION = "localhost:4560";
+  public static final long DEFAULT_COLD_DISPATCH_WAIT_MILLIS = 1000;
+  public static final int DEFAULT_MAX_QUEUED_REQUESTS = 10000;
+  public static final long DEFAULT_MAX_QUEUED_GENE_BYTES = 256L * 1024 * 1024;
+  public static final double DEFAULT_HEDGE_PERCENTILE = 0;
+  public static final int DEFAULT_RESULT_CACHE_ENTRIES = 10000;
+  public static final long DEFAULT_RESULT_CACHE_BYTES = 64L * 1024 * 1024;
+  public static final int DEFAULT_WARM_UP_FAN_OUT = 2;
+  public static final int DEFAULT_TEST_SHARDS = 1;
+
+  /**
+   * プロジェクトの重みの既定値．クライアントが指定しない場合とコーディネータが重みを知らない場合の両方で使う
+   */
+  public static final int DEFAULT_WEIGHT = 1;
 
   private final Path workingDir;
   private final int port;
   private final String logDestination;
+  private final long coldDispatchWaitMillis;
+  private final int maxQueuedRequests;
+  private final long maxQueuedGeneBytes;
+  private final double hedgePercentile;
+  private final int resultCacheEntries;
+  private final long resultCacheBytes;
+  private final int warmUpFanOut;
+  private final int testShards;
 
   private ClusterConfiguration(final Builder builder) {
     if (builder.workingDir == null) {
@@ -39,6 +61,14 @@ public class ClusterConfiguration {
 
     port = builder.port;
     logDestination = builder.logDestination;
+    coldDispatchWaitMillis = builder.coldDispatchWaitMillis;
+    maxQueuedRequests = builder.maxQueuedRequests;
+    maxQueuedGeneBytes = builder.maxQueuedGeneBytes;
+    hedgePercentile = builder.hedgePercentile;
+    resultCacheEntries = builder.resultCacheEntries;
+    resultCacheBytes = builder.resultCacheBytes;
+    warmUpFanOut = builder.warmUpFanOut;
+    testShards = builder.testShards;
   }
 
   public Path getWorkingDir() {
@@ -53,6 +83,38 @@ public class ClusterConfiguration {
     return logDestination;
   }
 
+  public long getColdDispatchWaitMillis() {
+    return coldDispatchWaitMillis;
+  }
+
+  public int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  public long getMaxQueuedGeneBytes() {
+    return maxQueuedGeneBytes;
+  }
+
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public int getResultCacheEntries() {
+    return resultCacheEntries;
+  }
+
+  public long getResultCacheBytes() {
+    return resultCacheBytes;
+  }
+
+  public int getWarmUpFanOut() {
+    return warmUpFanOut;
+  }
+
+  public int getTestShards() {
+    return testShards;
+  }
+
   public static class Builder {
 
     @PreserveNotNull
@@ -70,6 +132,37 @@ public class ClusterConfiguration {
     @PreserveNotNull
     private String logDestination = DEFAULT_LOG_DESTINATION;
 
+    @com.electronwill.nightconfig.core.conversion.Path("cold-dispatch-wait")
+    @PreserveNotNull
+    private long coldDispatchWaitMillis = DEFAULT_COLD_DISPATCH_WAIT_MILLIS;
+
+    @com.electronwill.nightconfig.core.conversion.Path("max-queued-requests")
+    @PreserveNotNull
+    private int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+
+    @com.electronwill.nightconfig.core.conversion.Path("max-queued-gene-bytes")
+    @PreserveNotNull
+    private long maxQueuedGeneBytes = DEFAULT_MAX_QUEUED_GENE_BYTES;
+
+    @com.electronwill.nightconfig.core.conversion.Path("hedge-percentile")
+    @PreserveNotNull
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+    @com.electronwill.nightconfig.core.conversion.Path("result-cache-entries")
+    @PreserveNotNull
+    private int resultCacheEntries = DEFAULT_RESULT_CACHE_ENTRIES;
+
+    @com.electronwill.nightconfig.core.conversion.Path("result-cache-bytes")
+    @PreserveNotNull
+    private long resultCacheBytes = DEFAULT_RESULT_CACHE_BYTES;
+
+    @com.electronwill.nightconfig.core.conversion.Path("warm-up-fan-out")
+    @PreserveNotNull
+    private int warmUpFanOut = DEFAULT_WARM_UP_FAN_OUT;
+
+    @com.electronwill.nightconfig.core.conversion.Path("test-shards")
+    @PreserveNotNull
+    private int testShards = DEFAULT_TEST_SHARDS;
 
     public static ClusterConfiguration buildFromCmdLineArgs(final String[] args) {
 
@@ -113,6 +206,46 @@ public class ClusterConfiguration {
       return this;
     }
 
+    public Builder setColdDispatchWaitMillis(final long coldDispatchWaitMillis) {
+      this.coldDispatchWaitMillis = coldDispatchWaitMillis;
+      return this;
+    }
+
+    public Builder setMaxQueuedRequests(final int maxQueuedRequests) {
+      this.maxQueuedRequests = maxQueuedRequests;
+      return this;
+    }
+
+    public Builder setMaxQueuedGeneBytes(final long maxQueuedGeneBytes) {
+      this.maxQueuedGeneBytes = maxQueuedGeneBytes;
+      return this;
+    }
+
+    public Builder setHedgePercentile(final double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+      return this;
+    }
+
+    public Builder setResultCacheEntries(final int resultCacheEntries) {
+      this.resultCacheEntries = resultCacheEntries;
+      return this;
+    }
+
+    public Builder setResultCacheBytes(final long resultCacheBytes) {
+      this.resultCacheBytes = resultCacheBytes;
+      return this;
+    }
+
+    public Builder setWarmUpFanOut(final int warmUpFanOut) {
+      this.warmUpFanOut = warmUpFanOut;
+      return this;
+    }
+
+    public Builder setTestShards(final int testShards) {
+      this.testShards = testShards;
+      return this;
+    }
+
     private boolean needsParseConfigFile(final String[] args) {
       return Arrays.asList(args)
           .contains("--config") || (args.length == 0 && Files.isRegularFile(configPath));
@@ -155,6 +288,54 @@ public class ClusterConfiguration {
       this.logDestination = logDestination;
     }
 
+    @Option(name = "--cold-dispatch-wait", metaVar = "<millis>",
+        usage = "Time to wait for a worker which already has the project before dispatching a test to another worker.")
+    private void setColdDispatchWaitFromCmdLineParser(final long coldDispatchWaitMillis) {
+      this.coldDispatchWaitMillis = coldDispatchWaitMillis;
+    }
+
+    @Option(name = "--max-queued-requests", metaVar = "<num>",
+        usage = "Maximum number of test requests waiting for a worker. Requests over the limit are rejected.")
+    private void setMaxQueuedRequestsFromCmdLineParser(final int maxQueuedRequests) {
+      this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    @Option(name = "--max-queued-gene-bytes", metaVar = "<bytes>",
+        usage = "Maximum total size of genes in test requests waiting for a worker. Requests over the limit are rejected.")
+    private void setMaxQueuedGeneBytesFromCmdLineParser(final long maxQueuedGeneBytes) {
+      this.maxQueuedGeneBytes = maxQueuedGeneBytes;
+    }
+
+    @Option(name = "--hedge-percentile", metaVar = "<percentile>",
+        usage = "Run a test on another idle worker as well when it takes longer than this percentile (0-1) of recent tests, e.g. 0.95. Disabled (0) by default.")
+    private void setHedgePercentileFromCmdLineParser(final double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+    }
+
+    @Option(name = "--result-cache-entries", metaVar = "<num>",
+        usage = "Maximum number of test results cached by gene. 0 disables the cache.")
+    private void setResultCacheEntriesFromCmdLineParser(final int resultCacheEntries) {
+      this.resultCacheEntries = resultCacheEntries;
+    }
+
+    @Option(name = "--result-cache-bytes", metaVar = "<bytes>",
+        usage = "Maximum total size of test results cached by gene.")
+    private void setResultCacheBytesFromCmdLineParser(final long resultCacheBytes) {
+      this.resultCacheBytes = resultCacheBytes;
+    }
+
+    @Option(name = "--warm-up-fan-out", metaVar = "<num>",
+        usage = "Number of workers that fetch a project at once from each worker already holding it (and from the coordinator). 0 lets all workers fetch at once.")
+    private void setWarmUpFanOutFromCmdLineParser(final int warmUpFanOut) {
+      this.warmUpFanOut = warmUpFanOut;
+    }
+
+    @Option(name = "--test-shards", metaVar = "<num>",
+        usage = "Maximum number of shards the executionTests of a variant are split into to run on different workers. 1 disables sharding.")
+    private void setTestShardsFromCmdLineParser(final int testShards) {
+      this.testShards = testShards;
+    }
+
   }
 
 }
@@ -0,0 +1,136 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import com.google.protobuf.ByteString;
+
+/**
+ * byte列を内容に応じた境界で分割する（Content-Defined Chunking）
+ *
+ * 境界はローリングハッシュ（Gear hash）で決めるので，一部の内容が挿入・削除されても
+ * その前後のチャンクは変わらない．同じjarを含むプロジェクトどうしでは大半のチャンクが一致する
+ */
+public class ContentDefinedChunker {
+
+  /**
+   * チャンクの最小サイズ
+   */
+  public static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * チャンクの最大サイズ
+   */
+  public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+  /**
+   * 平均で64KBごとに境界となるマスク．直近64バイトの影響を受ける上位ビットを使う
+   */
+  private static final long BOUNDARY_MASK = 0xffffL << 48;
+
+  private static final long[] GEAR = createGearTable();
+
+  // 分割途中の状態
+  private ByteString pending = ByteString.EMPTY;
+  private long hash = 0;
+
+  /**
+   * byte列を少しずつ受け取りながら分割する．
+   * 受け取り方に関わらず，{@link #split(ByteString)} と同じ境界で分割される
+   */
+  public ContentDefinedChunker() {}
+
+  /**
+   * byte列をチャンクに分割する．各チャンクは元のbyte列を共有し，コピーしない
+   *
+   * @param data 分割するbyte列
+   * @return 先頭から順に並んだチャンク
+   */
+  public static List<ByteString> split(final ByteString data) {
+    final ContentDefinedChunker chunker = new ContentDefinedChunker();
+    final List<ByteString> chunks = chunker.update(data);
+    chunker.finish()
+        .ifPresent(chunks::add);
+    return chunks;
+  }
+
+  /**
+   * 続きのbyte列を受け取る
+   *
+   * @param piece 続きのbyte列
+   * @return 新たに境界が確定したチャンク
+   */
+  public List<ByteString> update(final ByteString piece) {
+    final List<ByteString> chunks = new ArrayList<>();
+    final int size = piece.size();
+    final ByteString.ByteIterator iterator = piece.iterator();
+    int start = 0;
+    for (int i = 0; i < size; i++) {
+      hash = (hash << 1) + GEAR[iterator.nextByte() & 0xff];
+      final int length = pending.size() + i + 1 - start;
+      if (length >= MAX_CHUNK_SIZE || (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0)) {
+        chunks.add(pending.concat(piece.substring(start, i + 1)));
+        pending = ByteString.EMPTY;
+        start = i + 1;
+        hash = 0;
+      }
+    }
+    pending = pending.concat(piece.substring(start, size));
+    return chunks;
+  }
+
+  /**
+   * 最後のチャンクを取り出す
+   *
+   * @return 残っているチャンク．残りがなければ空
+   */
+  public Optional<ByteString> finish() {
+    final ByteString last = pending;
+    pending = ByteString.EMPTY;
+    hash = 0;
+    return last.isEmpty() ? Optional.empty() : Optional.of(last);
+  }
+
+  /**
+   * チャンクを識別するダイジェスト（SHA-256）を求める
+   *
+   * @param chunk チャンク
+   * @return ダイジェスト
+   */
+  public static ByteString digest(final ByteString chunk) {
+    try {
+      final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+      for (final ByteBuffer buffer : chunk.asReadOnlyByteBufferList()) {
+        messageDigest.update(buffer);
+      }
+      return ByteString.copyFrom(messageDigest.digest());
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * ダイジェストを16進文字列に変換する
+   */
+  public static String toHex(final ByteString digest) {
+    final StringBuilder builder = new StringBuilder(digest.size() * 2);
+    for (final byte b : digest.toByteArray()) {
+      builder.append(String.format("%02x", b));
+    }
+    return builder.toString();
+  }
+
+  private static long[] createGearTable() {
+    // どのノードでも同じ境界になるよう，固定のシードで生成する
+    final Random random = new Random(0x6b47656e50726f67L);
+    final long[] table = new long[256];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = random.nextLong();
+    }
+    return table;
+  }
+}
@@ -0,0 +1,225 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import jp.kusumotolab.kgenprog.ga.variant.Base;
+import jp.kusumotolab.kgenprog.ga.variant.Gene;
+import jp.kusumotolab.kgenprog.ga.variant.Variant;
+import jp.kusumotolab.kgenprog.project.ASTLocation;
+import jp.kusumotolab.kgenprog.project.FullyQualifiedName;
+import jp.kusumotolab.kgenprog.project.GeneratedAST;
+import jp.kusumotolab.kgenprog.project.ProductSourcePath;
+import jp.kusumotolab.kgenprog.project.jdt.GeneratedJDTAST;
+import jp.kusumotolab.kgenprog.project.jdt.JDTASTLocation;
+import jp.kusumotolab.kgenprog.project.test.Coverage;
+import jp.kusumotolab.kgenprog.project.test.EmptyTestResults;
+import jp.kusumotolab.kgenprog.project.test.TestResult;
+import jp.kusumotolab.kgenprog.project.test.TestResults;
+
+/**
+ * 初期バリアントのカバレッジをもとに，遺伝子が変更する行を実行したテストだけを選ぶ
+ *
+ * 遺伝子の各塩基が操作する場所を初期バリアントのASTで探し，その行を実行したテストメソッドのテストクラスを再実行の対象とする．
+ * それ以外のテストの結果は初期バリアントのものを用いる．
+ * 選択が正しいかを確かめるため，{@code fullRunInterval} 回に1回は全てのテストを実行して比べ，
+ * 結果の異なるテストを見逃していた場合はそのプロジェクトでの選択をやめる
+ */
+class CoverageTestSelector {
+
+  private static final Logger log = LoggerFactory.getLogger(CoverageTestSelector.class);
+
+  private final int fullRunInterval;
+  private final AtomicLong runCount = new AtomicLong(0);
+  private volatile boolean enabled = true;
+
+  /**
+   * @param fullRunInterval 何回に1回，全てのテストを実行して選択を確かめるか
+   */
+  CoverageTestSelector(final int fullRunInterval) {
+    this.fullRunInterval = Math.max(fullRunInterval, 1);
+  }
+
+  /**
+   * 再実行するテストクラスを選ぶ
+   *
+   * @param initialVariant 初期バリアント
+   * @param gene 初期状態からの操作列
+   * @return 再実行するテストクラスのFQN．変更する行を特定できないなど，全てのテストを実行すべき場合は空
+   */
+  Optional<Set<String>> select(final Variant initialVariant, final Gene gene) {
+    final TestResults initialResults = initialVariant.getTestResults();
+    if (!enabled || initialResults instanceof EmptyTestResults || gene.getBases()
+        .isEmpty()) {
+      return Optional.empty();
+    }
+
+    final Set<String> selectedTests = new HashSet<>();
+    for (final Base base : gene.getBases()) {
+      final Optional<Set<String>> tests = selectCoveringTests(initialVariant, base);
+      if (!tests.isPresent()) {
+        return Optional.empty();
+      }
+      selectedTests.addAll(tests.get());
+    }
+
+    // どのテストも実行しない行でも，ビルドできるかを確かめるため1つは実行する
+    if (selectedTests.isEmpty()) {
+      initialResults.getExecutedTestFQNs()
+          .stream()
+          .map(CoverageTestSelector::getTestClassName)
+          .sorted()
+          .findFirst()
+          .ifPresent(selectedTests::add);
+    }
+    return Optional.of(selectedTests);
+  }
+
+  /**
+   * 選択を確かめるために，次の実行で全てのテストを実行するかどうか
+   */
+  boolean shouldRunInFull() {
+    return runCount.incrementAndGet() % fullRunInterval == 0;
+  }
+
+  /**
+   * 再実行したテストの結果と，初期バリアントのそれ以外のテストの結果を合わせる
+   *
+   * @param initialResults 初期バリアントのテスト結果
+   * @param selectedResults 選んだテストクラスだけを実行した結果
+   * @param selectedTests 選んだテストクラスのFQN
+   * @return 全てのテストの結果
+   */
+  TestResults merge(final TestResults initialResults, final TestResults selectedResults,
+      final Set<String> selectedTests) {
+    if (selectedResults instanceof EmptyTestResults) {
+      return selectedResults;
+    }
+
+    final TestResults results = new TestResults();
+    for (final FullyQualifiedName fqn : initialResults.getExecutedTestFQNs()) {
+      if (!selectedTests.contains(getTestClassName(fqn))) {
+        results.add(initialResults.getTestResult(fqn));
+      }
+    }
+    for (final FullyQualifiedName fqn : selectedResults.getExecutedTestFQNs()) {
+      results.add(selectedResults.getTestResult(fqn));
+    }
+    results.setBuildResults(selectedResults.getBuildResults());
+    return results;
+  }
+
+  /**
+   * 全てのテストを実行した結果と比べ，選ばなかったテストの成否が初期バリアントと変わっていれば選択をやめる
+   *
+   * @param initialResults 初期バリアントのテスト結果
+   * @param fullResults 全てのテストを実行した結果
+   * @param selectedTests 選んだテストクラスのFQN
+   */
+  void verify(final TestResults initialResults, final TestResults fullResults,
+      final Set<String> selectedTests) {
+    if (fullResults instanceof EmptyTestResults) {
+      return;
+    }
+    for (final FullyQualifiedName fqn : fullResults.getExecutedTestFQNs()) {
+      if (selectedTests.contains(getTestClassName(fqn))) {
+        continue;
+      }
+      final TestResult initialResult = initialResults.getTestResult(fqn);
+      if (initialResult == null || initialResult.failed != fullResults.getTestResult(fqn).failed) {
+        enabled = false;
+        log.warn("coverage-guided test selection missed {}; run all tests from now on",
+            fqn.value);
+        return;
+      }
+    }
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * 塩基が操作する行を実行したテストクラスを求める
+   *
+   * @return テストクラスのFQN．初期バリアントで場所を特定できなければ空
+   */
+  private Optional<Set<String>> selectCoveringTests(final Variant initialVariant,
+      final Base base) {
+    final ASTLocation location = base.getTargetLocation();
+    if (!(location instanceof JDTASTLocation)
+        || !(location.getSourcePath() instanceof ProductSourcePath)) {
+      return Optional.empty();
+    }
+    final ProductSourcePath sourcePath = (ProductSourcePath) location.getSourcePath();
+    final GeneratedAST<ProductSourcePath> ast = initialVariant.getGeneratedSourceCode()
+        .getProductAst(sourcePath);
+    if (!(ast instanceof GeneratedJDTAST)) {
+      return Optional.empty();
+    }
+
+    // 2番目以降の塩基は変更後のASTでの場所なので，初期バリアントのASTで見つからないこともある
+    final CompilationUnit root = ((GeneratedJDTAST<ProductSourcePath>) ast).getRoot();
+    final ASTNode node;
+    try {
+      node = ((JDTASTLocation) location).locate(root);
+    } catch (final RuntimeException e) {
+      return Optional.empty();
+    }
+    if (node == null) {
+      return Optional.empty();
+    }
+    final int start = root.getLineNumber(node.getStartPosition());
+    final int end = root.getLineNumber(node.getStartPosition() + node.getLength() - 1);
+    if (start < 0 || end < 0) {
+      return Optional.empty();
+    }
+
+    final TestResults initialResults = initialVariant.getTestResults();
+    final Set<FullyQualifiedName> targetFqns = initialResults.getCorrespondingFqns(sourcePath);
+    if (targetFqns == null || targetFqns.isEmpty()) {
+      return Optional.empty();
+    }
+
+    final Set<String> tests = new HashSet<>();
+    for (final FullyQualifiedName testFqn : initialResults.getExecutedTestFQNs()) {
+      final TestResult result = initialResults.getTestResult(testFqn);
+      if (targetFqns.stream()
+          .anyMatch(fqn -> covers(result.getCoverages(fqn), start, end))) {
+        tests.add(getTestClassName(testFqn));
+      }
+    }
+    return Optional.of(tests);
+  }
+
+  /**
+   * 行の範囲のいずれかを実行したかどうか．行番号と添字の対応がずれても取りこぼさないよう，範囲を1行広げて調べる
+   */
+  private boolean covers(final Coverage coverage, final int start, final int end) {
+    if (coverage == null) {
+      return false;
+    }
+    final int from = Math.max(start - 1, 0);
+    final int to = Math.min(end, coverage.getStatusesSize() - 1);
+    for (int i = from; i <= to; i++) {
+      final Coverage.Status status = coverage.getStatus(i);
+      if (status == Coverage.Status.COVERED || status == Coverage.Status.PARTLY_COVERED) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * テストメソッドのFQNからテストクラスのFQNを求める
+   */
+  static String getTestClassName(final FullyQualifiedName testMethod) {
+    final int index = testMethod.value.lastIndexOf('.');
+    return index < 0 ? testMethod.value : testMethod.value.substring(0, index);
+  }
+}
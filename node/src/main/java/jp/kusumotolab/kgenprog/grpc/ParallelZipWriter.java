@@ -0,0 +1,386 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ファイルを並列に圧縮し，追加した順にZIPファイル形式で書き出す
+ *
+ * 圧縮は{@link ForkJoinPool}で行い，書き出しは呼び出しスレッドで先頭から順に行う．
+ * 圧縮済みの形式（jarなど）や圧縮しても小さくならないファイルは圧縮せずに格納する．
+ * 圧縮を終えて書き出しを待つファイルの数は制限するので，ZIPファイル全体をメモリに置くことはない．
+ *
+ * 各エントリのサイズとCRCはローカルヘッダに書き込むので，{@link java.util.zip.ZipInputStream}で先頭から読み込める
+ */
+class ParallelZipWriter {
+
+  /**
+   * ファイルIOバッファのサイズ
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * 既に圧縮されているので，そのまま格納するファイルの拡張子
+   */
+  private static final Set<String> STORED_EXTENSIONS = new HashSet<>(
+      Arrays.asList("jar", "zip", "war", "ear", "gz", "tgz", "bz2", "xz", "7z", "png", "jpg",
+          "jpeg", "gif"));
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int VERSION = 20;
+  private static final int ZIP64_VERSION = 45;
+  private static final int UTF8_FLAG = 0x0800;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+  private static final long MAX_32BIT = 0xFFFFFFFFL;
+  private static final int MAX_16BIT = 0xFFFF;
+
+  private final ForkJoinPool pool;
+  private final int level;
+  private final int maxPendingEntries;
+  private final List<Source> sources = new ArrayList<>();
+
+  /**
+   * @param pool 圧縮に用いるプール
+   * @param level 圧縮するファイルの圧縮レベル
+   */
+  ParallelZipWriter(final ForkJoinPool pool, final int level) {
+    this.pool = pool;
+    this.level = level;
+    this.maxPendingEntries = pool.getParallelism() * 4;
+  }
+
+  /**
+   * 書き出すファイルを追加する
+   *
+   * @param file 実際のファイルへのパス
+   * @param name ZIPファイル中での'/'区切りのパス
+   */
+  void add(final Path file, final String name) {
+    sources.add(new Source(file, name));
+  }
+
+  /**
+   * 追加したファイルをZIPファイル形式で書き出す．書き込み先は閉じない
+   *
+   * @param output 書き込み先
+   * @throws IOException ファイルを読み込めなかったとき．書き込みに失敗したとき
+   */
+  void writeTo(final OutputStream output) throws IOException {
+    final CountingOutputStream counter = new CountingOutputStream(output);
+    final List<Entry> written = new ArrayList<>(sources.size());
+    final Deque<ForkJoinTask<Entry>> pending = new ArrayDeque<>();
+    final Iterator<Source> iterator = sources.iterator();
+    try {
+      while (iterator.hasNext() || !pending.isEmpty()) {
+        while (iterator.hasNext() && pending.size() < maxPendingEntries) {
+          final Source source = iterator.next();
+          pending.addLast(pool.submit(() -> compress(source)));
+        }
+        final Entry entry = join(pending.pollFirst());
+        entry.offset = counter.count;
+        writeEntry(counter, entry);
+        entry.data = null;
+        written.add(entry);
+      }
+    } finally {
+      for (final ForkJoinTask<Entry> task : pending) {
+        task.cancel(false);
+      }
+    }
+    writeCentralDirectory(counter, written);
+    counter.flush();
+  }
+
+  private Entry join(final ForkJoinTask<Entry> task) throws IOException {
+    try {
+      return task.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread()
+          .interrupt();
+      throw new IOException(e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * ファイルを読み込んで圧縮する．圧縮せずに格納するファイルはCRCとサイズだけを求める
+   */
+  private Entry compress(final Source source) throws IOException {
+    final Entry entry = new Entry(source);
+    final CRC32 crc = new CRC32();
+    if (isCompressed(source.name)) {
+      // 大きなjarもメモリに置かないよう，書き出すときに改めて読み込む
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      try (final InputStream input = Files.newInputStream(source.file)) {
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+          crc.update(buffer, 0, count);
+          entry.size += count;
+        }
+      }
+      entry.method = STORED;
+      entry.compressedSize = entry.size;
+      entry.crc = crc.getValue();
+      return entry;
+    }
+
+    final byte[] bytes = Files.readAllBytes(source.file);
+    crc.update(bytes);
+    entry.size = bytes.length;
+    entry.crc = crc.getValue();
+
+    final byte[] deflated = deflate(bytes);
+    if (deflated.length < bytes.length) {
+      entry.method = DEFLATED;
+      entry.data = deflated;
+    } else {
+      entry.method = STORED;
+      entry.data = bytes;
+    }
+    entry.compressedSize = entry.data.length;
+    return entry;
+  }
+
+  private byte[] deflate(final byte[] bytes) {
+    final Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      final ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2 + 64);
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        final int count = deflater.deflate(buffer);
+        output.write(buffer, 0, count);
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static boolean isCompressed(final String name) {
+    final int dot = name.lastIndexOf('.');
+    return dot >= 0 && STORED_EXTENSIONS.contains(name.substring(dot + 1)
+        .toLowerCase(Locale.ROOT));
+  }
+
+  private void writeEntry(final CountingOutputStream output, final Entry entry)
+      throws IOException {
+    if (entry.size > MAX_32BIT || entry.offset > MAX_32BIT) {
+      throw new IOException("Project is too large to zip.");
+    }
+    final ByteBuffer header = newBuffer(30 + entry.name.length);
+    header.putInt(LOCAL_HEADER_SIGNATURE)
+        .putShort((short) VERSION)
+        .putShort((short) UTF8_FLAG)
+        .putShort((short) entry.method)
+        .putInt(entry.dosTime)
+        .putInt((int) entry.crc)
+        .putInt((int) entry.compressedSize)
+        .putInt((int) entry.size)
+        .putShort((short) entry.name.length)
+        .putShort((short) 0)
+        .put(entry.name);
+    output.write(header.array());
+
+    if (entry.data != null) {
+      output.write(entry.data);
+      return;
+    }
+    final long copied = copy(entry.source.file, output);
+    if (copied != entry.size) {
+      throw new IOException(entry.source.file + " is modified while zipping.");
+    }
+  }
+
+  private long copy(final Path file, final OutputStream output) throws IOException {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long copied = 0;
+    try (final InputStream input = Files.newInputStream(file)) {
+      int count;
+      while ((count = input.read(buffer)) != -1) {
+        output.write(buffer, 0, count);
+        copied += count;
+      }
+    }
+    return copied;
+  }
+
+  private void writeCentralDirectory(final CountingOutputStream output, final List<Entry> entries)
+      throws IOException {
+    final long start = output.count;
+    for (final Entry entry : entries) {
+      final ByteBuffer header = newBuffer(46 + entry.name.length);
+      header.putInt(CENTRAL_HEADER_SIGNATURE)
+          .putShort((short) VERSION)
+          .putShort((short) VERSION)
+          .putShort((short) UTF8_FLAG)
+          .putShort((short) entry.method)
+          .putInt(entry.dosTime)
+          .putInt((int) entry.crc)
+          .putInt((int) entry.compressedSize)
+          .putInt((int) entry.size)
+          .putShort((short) entry.name.length)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putInt(0)
+          .putInt((int) entry.offset)
+          .put(entry.name);
+      output.write(header.array());
+    }
+    final long end = output.count;
+    final long size = end - start;
+    if (start > MAX_32BIT || size > MAX_32BIT) {
+      throw new IOException("Project is too large to zip.");
+    }
+
+    // エントリ数が16bitに収まらない場合は，ZIP64の終端レコードに書く
+    final int count = entries.size();
+    if (count >= MAX_16BIT) {
+      final ByteBuffer zip64 = newBuffer(56 + 20);
+      zip64.putInt(ZIP64_END_SIGNATURE)
+          .putLong(44)
+          .putShort((short) ZIP64_VERSION)
+          .putShort((short) ZIP64_VERSION)
+          .putInt(0)
+          .putInt(0)
+          .putLong(count)
+          .putLong(count)
+          .putLong(size)
+          .putLong(start)
+          .putInt(ZIP64_LOCATOR_SIGNATURE)
+          .putInt(0)
+          .putLong(end)
+          .putInt(1);
+      output.write(zip64.array());
+    }
+
+    final int shortCount = Math.min(count, MAX_16BIT);
+    final ByteBuffer trailer = newBuffer(22);
+    trailer.putInt(END_SIGNATURE)
+        .putShort((short) 0)
+        .putShort((short) 0)
+        .putShort((short) shortCount)
+        .putShort((short) shortCount)
+        .putInt((int) size)
+        .putInt((int) start)
+        .putShort((short) 0);
+    output.write(trailer.array());
+  }
+
+  private static ByteBuffer newBuffer(final int size) {
+    return ByteBuffer.allocate(size)
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * 最終更新日時をMS-DOS形式に変換する．同じファイルからは同じZIPファイルが得られる
+   */
+  private static int toDosTime(final long millis) {
+    final LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis),
+        ZoneId.systemDefault());
+    if (time.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21
+        | time.getDayOfMonth() << 16 | time.getHour() << 11 | time.getMinute() << 5
+        | time.getSecond() >> 1;
+  }
+
+  private static class Source {
+
+    private final Path file;
+    private final String name;
+
+    private Source(final Path file, final String name) {
+      this.file = file;
+      this.name = name;
+    }
+  }
+
+  private static class Entry {
+
+    private final Source source;
+    private final byte[] name;
+    private final int dosTime;
+    private int method;
+    private long crc;
+    private long size;
+    private long compressedSize;
+    private long offset;
+
+    /**
+     * 圧縮したデータ．nullの場合はファイルからそのまま書き出す
+     */
+    private byte[] data;
+
+    private Entry(final Source source) throws IOException {
+      this.source = source;
+      this.name = source.name.getBytes(StandardCharsets.UTF_8);
+      this.dosTime = toDosTime(Files.getLastModifiedTime(source.file)
+          .toMillis());
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+
+    private final OutputStream output;
+    private long count = 0;
+
+    private CountingOutputStream(final OutputStream output) {
+      this.output = output;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      output.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      output.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      output.flush();
+    }
+  }
+}
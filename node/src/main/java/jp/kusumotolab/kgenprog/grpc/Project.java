@@ -1,11 +1,32 @@
 package jp.kusumotolab.kgenprog.grpc;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import jp.kusumotolab.kgenprog.Configuration;
 import jp.kusumotolab.kgenprog.Strategies;
 import jp.kusumotolab.kgenprog.fl.FaultLocalization;
@@ -27,11 +48,42 @@ import jp.kusumotolab.kgenprog.project.test.TestResults;
 
 public class Project {
 
+  public static final int DEFAULT_RESULT_CACHE_ENTRIES = 1000;
+
+  private static final Logger log = LoggerFactory.getLogger(Project.class);
+
+  /**
+   * スロットを裏で用意するスレッド．全てのプロジェクトで共有する
+   */
+  private static final ExecutorService slotWarmer = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("slot-warmer-%d")
+          .build());
+
   private final Path projectDir;
   private final Configuration config;
   private final int projectId;
-  private final Strategies strategies;
-  private final VariantStore variantStore;
+  private final int slots;
+
+  /**
+   * テスト実行ごとに貸し出されるVariantStore．
+   * ビルドやテストの状態を共有しないよう，同時に実行されるテストごとに別のインスタンスを用いる
+   */
+  private final BlockingQueue<Slot> variantStorePool;
+  private final AtomicInteger variantStoreCount;
+  private final SlotPolicy slotPolicy;
+  private final AtomicInteger recycleCount = new AtomicInteger(0);
+  private volatile boolean unregistered = false;
+
+  /**
+   * 生成されたソースコードのダイジェストからテスト結果へのキャッシュ．全てのVariantStoreで共有する
+   */
+  private final Map<String, TestResults> testResultsCache;
+
+  /**
+   * カバレッジをもとに再実行するテストを選ぶ．選ばない場合はnull
+   */
+  private final CoverageTestSelector testSelector;
 
   /**
    * ローカルに存在するプロジェクトに対するProjectを生成
@@ -40,12 +92,29 @@ public class Project {
    * @param config Configuration
    */
   public Project(final int projectId, final Configuration config) {
+    this(projectId, config, ProjectSettings.defaults());
+  }
+
+  /**
+   * ローカルに存在するプロジェクトに対するProjectを生成
+   *
+   * @param projectId プロジェクトID
+   * @param config Configuration
+   * @param settings テストの実行に関する設定
+   */
+  public Project(final int projectId, final Configuration config,
+      final ProjectSettings settings) {
     this.config = config;
     this.projectId = projectId;
     this.projectDir = null;
+    this.slots = Math.max(settings.getSlots(), 1);
+    this.testResultsCache = CachedTestExecutor.createCache(settings.getResultCacheEntries());
+    this.testSelector = createTestSelector(settings.getCoverageSelectionInterval());
+    this.slotPolicy = settings.getSlotPolicy();
 
-    this.strategies = createStrategies(this.config);
-    this.variantStore = new VariantStore(this.config, strategies);
+    this.variantStorePool = new LinkedBlockingQueue<>();
+    this.variantStoreCount = new AtomicInteger(0);
+    initializeVariantStorePool();
   }
 
   /**
@@ -58,20 +127,151 @@ public class Project {
    */
   public Project(final Path workdir, final GrpcGetProjectResponse response, final int projectId)
       throws IOException {
+    this(workdir, response.getConfiguration(), response.getProject()::newInput, projectId,
+        ProjectSettings.defaults());
+  }
+
+  /**
+   * ファイルに保存されたZIP圧縮のプロジェクトに対するProjectを生成
+   *
+   * @param workdir 作業ディレクトリ
+   * @param configuration プロジェクトのConfiguration
+   * @param zipFile ZIP圧縮したプロジェクトのファイル
+   * @param projectId プロジェクトID
+   * @param settings テストの実行に関する設定
+   * @throws IOException
+   */
+  public Project(final Path workdir, final GrpcConfiguration configuration, final Path zipFile,
+      final int projectId, final ProjectSettings settings) throws IOException {
+    this(workdir, configuration, () -> {
+      try {
+        return new BufferedInputStream(Files.newInputStream(zipFile));
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, projectId, settings);
+  }
+
+  /**
+   * {@link ProjectUnzipper} で展開済みのディレクトリにあるプロジェクトに対するProjectを生成
+   *
+   * ディレクトリは呼び出し元が管理するので，登録解除の際に削除しない
+   *
+   * @param unpackedDir 展開済みのディレクトリ
+   * @param configuration プロジェクトのConfiguration
+   * @param projectId プロジェクトID
+   * @param settings テストの実行に関する設定
+   */
+  public Project(final Path unpackedDir, final GrpcConfiguration configuration,
+      final int projectId, final ProjectSettings settings) {
+    this.projectId = projectId;
+    this.projectDir = null;
+    this.config = resolveProject(unpackedDir, configuration);
+    this.slots = Math.max(settings.getSlots(), 1);
+    this.testResultsCache = CachedTestExecutor.createCache(settings.getResultCacheEntries());
+    this.testSelector = createTestSelector(settings.getCoverageSelectionInterval());
+    this.slotPolicy = settings.getSlotPolicy();
+
+    this.variantStorePool = new LinkedBlockingQueue<>();
+    this.variantStoreCount = new AtomicInteger(0);
+    initializeVariantStorePool();
+  }
+
+  private Project(final Path workdir, final GrpcConfiguration configuration,
+      final Supplier<InputStream> zip, final int projectId, final ProjectSettings settings)
+      throws IOException {
 
     this.projectId = projectId;
     this.projectDir = workdir.resolve(Integer.toString(projectId));
-    this.config = unzipProject(projectDir, response);
-    this.strategies = createStrategies(this.config);
-    this.variantStore = new VariantStore(this.config, strategies);
+    this.config = unzipProject(projectDir, configuration, zip);
+    this.slots = Math.max(settings.getSlots(), 1);
+    this.testResultsCache = CachedTestExecutor.createCache(settings.getResultCacheEntries());
+    this.testSelector = createTestSelector(settings.getCoverageSelectionInterval());
+    this.slotPolicy = settings.getSlotPolicy();
+
+    this.variantStorePool = new LinkedBlockingQueue<>();
+    this.variantStoreCount = new AtomicInteger(0);
+    initializeVariantStorePool();
   }
 
+  /**
+   * テストを実行する
+   *
+   * 最大{@code slots}個のテストを並列に実行できる．それ以上の呼び出しは空きが出るまで待たされる
+   *
+   * @param gene 初期状態からの操作列
+   * @return テスト結果
+   */
   public TestResults executeTest(final Gene gene) {
-    final Variant variant = variantStore.createVariant(gene, EmptyHistoricalElement.shared);
-    return variant.getTestResults();
+    return executeTest(gene, Collections.emptyList());
+  }
+
+  /**
+   * 指定したテストケースだけを実行する
+   *
+   * 最大{@code slots}個のテストを並列に実行できる．それ以上の呼び出しは空きが出るまで待たされる
+   *
+   * @param gene 初期状態からの操作列
+   * @param executionTests 実行するテストケース．空ならプロジェクトの全てのテストケース
+   * @return テスト結果
+   */
+  public TestResults executeTest(final Gene gene, final List<String> executionTests) {
+    final Slot slot = borrowVariantStore();
+    slot.testExecutor.resetExecNanos();
+    try {
+      // シャードとして指定されたテストはそのまま実行する
+      if (testSelector == null || !executionTests.isEmpty()) {
+        return executeTest(slot, gene, executionTests);
+      }
+      return executeSelectedTests(slot, gene);
+    } finally {
+      releaseVariantStore(slot);
+    }
+  }
+
+  /**
+   * カバレッジをもとに選んだテストだけを実行し，それ以外のテストの結果は初期バリアントのものを用いる
+   */
+  private TestResults executeSelectedTests(final Slot slot, final Gene gene) {
+    final Variant initialVariant = slot.variantStore.getInitialVariant();
+    final Optional<Set<String>> selectedTests = testSelector.select(initialVariant, gene);
+    if (!selectedTests.isPresent()) {
+      return executeTest(slot, gene, Collections.emptyList());
+    }
+
+    final TestResults initialResults = initialVariant.getTestResults();
+    if (testSelector.shouldRunInFull()) {
+      final TestResults fullResults = executeTest(slot, gene, Collections.emptyList());
+      testSelector.verify(initialResults, fullResults, selectedTests.get());
+      return fullResults;
+    }
+
+    final List<String> executionTests = selectedTests.get()
+        .stream()
+        .sorted()
+        .collect(Collectors.toList());
+    final TestResults selectedResults = executeTest(slot, gene, executionTests);
+    return testSelector.merge(initialResults, selectedResults, selectedTests.get());
+  }
+
+  private TestResults executeTest(final Slot slot, final Gene gene,
+      final List<String> executionTests) {
+    slot.testExecutor.setExecutionTests(executionTests);
+    try {
+      final Variant variant = slot.variantStore.createVariant(gene, EmptyHistoricalElement.shared);
+      return variant.getTestResults();
+    } finally {
+      slot.testExecutor.setExecutionTests(Collections.emptyList());
+    }
   }
 
   public void unregister() throws IOException {
+    unregistered = true;
+    testResultsCache.clear();
+    Slot idle;
+    while ((idle = variantStorePool.poll()) != null) {
+      idle.testExecutor.finish();
+    }
     if (projectDir == null) {
       return;
     }
@@ -103,30 +303,195 @@ public class Project {
     return config;
   }
 
+  public int getSlots() {
+    return slots;
+  }
+
+  private static CoverageTestSelector createTestSelector(final int coverageSelectionInterval) {
+    return coverageSelectionInterval > 0 ? new CoverageTestSelector(coverageSelectionInterval)
+        : null;
+  }
+
+  private void initializeVariantStorePool() {
+    // 最初の1つは生成時に作り，初期バリアントのビルドに失敗する場合はここで検出する
+    variantStoreCount.incrementAndGet();
+    variantStorePool.offer(createVariantStore());
+    if (slotPolicy.isPrewarm()) {
+      warmUpVariantStores();
+    }
+  }
+
+  /**
+   * スロット数に満たない分のVariantStoreを裏で生成し，プールに加える
+   */
+  private void warmUpVariantStores() {
+    while (variantStoreCount.getAndUpdate(v -> v < slots ? v + 1 : v) < slots) {
+      slotWarmer.execute(() -> {
+        final Slot slot;
+        try {
+          slot = createVariantStore();
+        } catch (final RuntimeException e) {
+          // 使われるときに改めて生成する
+          variantStoreCount.decrementAndGet();
+          if (!unregistered) {
+            log.warn("failed to warm up a slot of project {}", projectId, e);
+          }
+          return;
+        }
+        offerVariantStore(slot);
+      });
+    }
+  }
+
+  /**
+   * 空いているVariantStoreを取り出す．空きがなく，生成数がスロット数未満の場合は新たに生成する
+   */
+  private Slot borrowVariantStore() {
+    Slot idle = variantStorePool.poll();
+    while (idle == null) {
+      final int count = variantStoreCount.getAndUpdate(v -> v < slots ? v + 1 : v);
+      if (count < slots) {
+        try {
+          return createVariantStore();
+        } catch (final RuntimeException e) {
+          variantStoreCount.decrementAndGet();
+          throw e;
+        }
+      }
+
+      // 作り直しや裏での生成に失敗すると空きが戻らないので，待つ間も生成できるか確かめる
+      try {
+        idle = variantStorePool.poll(1, TimeUnit.SECONDS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread()
+            .interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    return idle;
+  }
+
+  /**
+   * 使い終えたVariantStoreをプールに戻す．方針に従って作り直す場合は捨てて，空いた分を生成し直す
+   *
+   * テストの制限時間を超えたかどうかは，ビルドを除いたテストの実行時間で判断する
+   */
+  private void releaseVariantStore(final Slot slot) {
+    slot.runs++;
+    final long timeLimitSeconds = config.getTestTimeLimitSeconds();
+    final boolean timedOut = timeLimitSeconds > 0 && slot.testExecutor
+        .getLongestExecNanos() > TimeUnit.SECONDS.toNanos(timeLimitSeconds);
+    if (!slotPolicy.shouldRecycle(slot.runs, timedOut)) {
+      offerVariantStore(slot);
+      return;
+    }
+
+    slot.testExecutor.finish();
+    recycleCount.incrementAndGet();
+    variantStoreCount.decrementAndGet();
+    if (slotPolicy.isPrewarm() && !unregistered) {
+      warmUpVariantStores();
+    }
+  }
+
+  private void offerVariantStore(final Slot slot) {
+    variantStorePool.offer(slot);
+    // 登録解除と入れ違いに戻されたものは，ここで後始末する
+    if (unregistered && variantStorePool.remove(slot)) {
+      slot.testExecutor.finish();
+    }
+  }
+
+  /**
+   * 作り直すために捨てたスロットの数
+   */
+  int getRecycleCount() {
+    return recycleCount.get();
+  }
+
+  private Slot createVariantStore() {
+    final ShardTestExecutor testExecutor = new ShardTestExecutor(
+        new CachedTestExecutor(new LocalTestExecutor(config), testResultsCache),
+        this::createShardExecutor);
+    final Strategies strategies = createStrategies(config, testExecutor);
+    return new Slot(new VariantStore(config, strategies), testExecutor);
+  }
+
+  /**
+   * 指定したテストケースだけを実行するTestExecutorを生成する．
+   * テスト結果のキャッシュは，テストケースの集合ごとに区別して共有する
+   */
+  private TestExecutor createShardExecutor(final List<String> executionTests) {
+    final GrpcConfiguration shardConfiguration = Serializer.serialize(config)
+        .toBuilder()
+        .clearExecutionTests()
+        .addAllExecutionTests(executionTests)
+        .build();
+    final String scope = Hashing.sha256()
+        .hashString(String.join("\n", executionTests), StandardCharsets.UTF_8)
+        .toString();
+    return new CachedTestExecutor(
+        new LocalTestExecutor(Serializer.deserialize(shardConfiguration)), testResultsCache,
+        scope);
+  }
+
   private Configuration unzipProject(final Path projectDir,
-      final GrpcGetProjectResponse response) throws IOException {
+      final GrpcConfiguration configuration, final Supplier<InputStream> zip)
+      throws IOException {
 
-    final Configuration config = Serializer.deserialize(response.getConfiguration());
+    final Configuration config = Serializer.deserialize(configuration);
     Files.createDirectory(projectDir);
     final TargetProject project = ProjectUnzipper.unzipProject(projectDir,
-        config.getTargetProject(), response.getProject()::newInput);
-    final GrpcConfiguration updateConfig = Serializer.updateConfiguration(response.getConfiguration()
+        config.getTargetProject(), zip);
+    return updateConfiguration(configuration, project);
+  }
+
+  private Configuration resolveProject(final Path unpackedDir,
+      final GrpcConfiguration configuration) {
+    final Configuration config = Serializer.deserialize(configuration);
+    final TargetProject project = ProjectUnzipper.resolveProject(unpackedDir,
+        config.getTargetProject());
+    return updateConfiguration(configuration, project);
+  }
+
+  private Configuration updateConfiguration(final GrpcConfiguration configuration,
+      final TargetProject project) {
+    final GrpcConfiguration updateConfig = Serializer.updateConfiguration(configuration
         .toBuilder(), project)
         .build();
 
     return Serializer.deserialize(updateConfig);
   }
 
-  private Strategies createStrategies(final Configuration configuration) {
+  private Strategies createStrategies(final Configuration configuration,
+      final TestExecutor testExecutor) {
     final FaultLocalization faultLocaliztion = new Ochiai();
     final JDTASTConstruction astConstruction = new JDTASTConstruction();
     final SourceCodeGeneration sourceCodeGeneration = new WorkerCodeGeneration();
     final SourceCodeValidation sourceCodeValidation = new DefaultCodeValidation();
-    final TestExecutor testExecutor = new LocalTestExecutor(configuration);
     final VariantSelection variantSelection =
         new GenerationalVariantSelection(configuration.getHeadcount());
     return new Strategies(faultLocaliztion, astConstruction, sourceCodeGeneration,
         sourceCodeValidation, testExecutor, variantSelection);
   }
 
+  /**
+   * 貸し出すVariantStoreと，そのテストケースを切り替えるTestExecutorの組
+   */
+  private static class Slot {
+
+    private final VariantStore variantStore;
+    private final ShardTestExecutor testExecutor;
+
+    /**
+     * このスロットでテストを実行した回数．貸し出している間だけ更新する
+     */
+    private int runs = 0;
+
+    private Slot(final VariantStore variantStore, final ShardTestExecutor testExecutor) {
+      this.variantStore = variantStore;
+      this.testExecutor = testExecutor;
+    }
+  }
+
 }
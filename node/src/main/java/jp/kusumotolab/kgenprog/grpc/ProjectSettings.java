@@ -0,0 +1,51 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+/**
+ * {@link Project} がテストを実行する際の設定
+ *
+ * ワーカーの設定から作り，ワーカーが読み込む全てのプロジェクトで共有する
+ */
+public class ProjectSettings {
+
+  private final int slots;
+  private final int resultCacheEntries;
+  private final int coverageSelectionInterval;
+  private final SlotPolicy slotPolicy;
+
+  /**
+   * @param slots 同時に実行できるテストの数
+   * @param resultCacheEntries 再利用のために保持するテスト結果の最大数
+   * @param coverageSelectionInterval 0より大きければ，カバレッジをもとに選んだテストだけを再実行し，この回数に1回は全てのテストを実行する
+   * @param slotPolicy スロットの準備と作り直しの方針
+   */
+  public ProjectSettings(final int slots, final int resultCacheEntries,
+      final int coverageSelectionInterval, final SlotPolicy slotPolicy) {
+    this.slots = slots;
+    this.resultCacheEntries = resultCacheEntries;
+    this.coverageSelectionInterval = coverageSelectionInterval;
+    this.slotPolicy = slotPolicy;
+  }
+
+  /**
+   * 1つずつテストを実行し，全てのテストを毎回実行する
+   */
+  public static ProjectSettings defaults() {
+    return new ProjectSettings(1, Project.DEFAULT_RESULT_CACHE_ENTRIES, 0, SlotPolicy.defaults());
+  }
+
+  public int getSlots() {
+    return slots;
+  }
+
+  public int getResultCacheEntries() {
+    return resultCacheEntries;
+  }
+
+  public int getCoverageSelectionInterval() {
+    return coverageSelectionInterval;
+  }
+
+  public SlotPolicy getSlotPolicy() {
+    return slotPolicy;
+  }
+}
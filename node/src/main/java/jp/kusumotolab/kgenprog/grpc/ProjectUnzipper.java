@@ -86,6 +86,18 @@ public class ProjectUnzipper {
       }
     }
 
+    return resolveProject(destination, project);
+  }
+
+  /**
+   * 展開済みのディレクトリに対して，各パスを展開先ディレクトリでのパスに変換する
+   *
+   * @param destination {@link #unzipProject(Path, TargetProject, Supplier)} で展開したディレクトリ
+   * @param project 展開対象プロジェクト
+   * @return 各パスを展開先ディレクトリでのパスに変換した{@link TargetProject}
+   */
+  public static TargetProject resolveProject(final Path destination,
+      final TargetProject project) {
     final List<Path> productPaths = project.getProductSourcePaths()
         .stream()
         .map(v -> v.path)
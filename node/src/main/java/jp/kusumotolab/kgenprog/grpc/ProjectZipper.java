@@ -1,7 +1,6 @@
 package jp.kusumotolab.kgenprog.grpc;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
@@ -9,12 +8,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 import jp.kusumotolab.kgenprog.project.ClassPath;
 import jp.kusumotolab.kgenprog.project.factory.RawProjectFactory;
 import jp.kusumotolab.kgenprog.project.factory.TargetProject;
@@ -27,11 +26,6 @@ import jp.kusumotolab.kgenprog.project.factory.TargetProject;
  */
 public class ProjectZipper {
 
-  /**
-   * ファイルIOバッファのサイズ
-   */
-  private static final int BUFFER_SIZE = 4048;
-
   /**
    * プロジェクト本体のファイルを格納するディレクトリ
    */
@@ -56,7 +50,8 @@ public class ProjectZipper {
    * </ul>
    * </ul>
    * 
-   * 生成されたZIPファイルは{@code stream}から取得される{@link OutputStream}に書き込まれる
+   * 生成されたZIPファイルは{@code stream}から取得される{@link OutputStream}に書き込まれる．
+   * 各ファイルは{@link ForkJoinPool#commonPool()}で並列に圧縮され，jarなどの圧縮済みのファイルは圧縮せずに格納される
    *
    * @param project ZIP対象プロジェクト
    * @param stream 書き込み先ストリーム
@@ -64,8 +59,22 @@ public class ProjectZipper {
    */
   public static TargetProject zipProject(final TargetProject project,
       final Supplier<OutputStream> stream) throws IOException {
+    return zipProject(project, stream, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * TargetProjectに含まれるファイルを，指定したプールで並列に圧縮してZIPファイル形式として1つにまとめる
+   *
+   * @param project ZIP対象プロジェクト
+   * @param stream 書き込み先ストリーム
+   * @param pool 圧縮に用いるプール
+   * @return 各パスをZIPファイル内のパスへ変換した{@link TargetProject}
+   * @see #zipProject(TargetProject, Supplier)
+   */
+  public static TargetProject zipProject(final TargetProject project,
+      final Supplier<OutputStream> stream, final ForkJoinPool pool) throws IOException {
     try {
-      return new ProjectZipper(project, stream).zip();
+      return new ProjectZipper(project, stream, pool).zip();
     } catch (final UncheckedIOException e) {
       throw new IOException(e.getCause());
     }
@@ -75,27 +84,27 @@ public class ProjectZipper {
   private final Supplier<OutputStream> stream;
 
   private final Path root;
-  private ZipOutputStream zipOutputStream;
-  private final byte[] buffer;
+  private final ParallelZipWriter zipWriter;
   private final List<Path> classPaths;
 
-  private ProjectZipper(final TargetProject project, final Supplier<OutputStream> stream)
-      throws IOException {
+  private ProjectZipper(final TargetProject project, final Supplier<OutputStream> stream,
+      final ForkJoinPool pool) throws IOException {
     this.project = project;
     this.stream = stream;
 
     root = project.rootPath.toRealPath();
 
-    buffer = new byte[BUFFER_SIZE];
+    zipWriter = new ParallelZipWriter(pool, Deflater.DEFAULT_COMPRESSION);
     classPaths = new ArrayList<>();
   }
 
   private TargetProject zip() throws IOException {
-    try (final ZipOutputStream zos = new ZipOutputStream(stream.get())) {
-      zipOutputStream = zos;
+    // 書き込むファイルを全て列挙してから，まとめて並列に圧縮する
+    writeProjectFiles();
+    writeClassPaths();
 
-      writeProjectFiles();
-      writeClassPaths();
+    try (final OutputStream outputStream = stream.get()) {
+      zipWriter.writeTo(outputStream);
     }
 
     final List<Path> productPaths = convertProductSourcePaths();
@@ -105,7 +114,7 @@ public class ProjectZipper {
   }
 
   /**
-   * rootディレクトリ以下にあるプロジェクト本体のファイルをZipOutputStreamに書き込む
+   * rootディレクトリ以下にあるプロジェクト本体のファイルを書き込む対象に加える
    */
   private void writeProjectFiles() throws IOException {
     try (final Stream<Path> paths = Files.walk(root)) {
@@ -115,7 +124,7 @@ public class ProjectZipper {
   }
 
   /**
-   * 依存ファイルをZipOutputStreamに書き込む
+   * 依存ファイルを書き込む対象に加える
    */
   private void writeClassPaths() throws IOException {
     final AtomicInteger classDirCnt = new AtomicInteger(0);
@@ -150,25 +159,13 @@ public class ProjectZipper {
   }
 
   /**
-   * 1つのファイルをZipOutputStreamに書き込む
+   * 1つのファイルを書き込む対象に加える
    * 
    * @param realPath 実際のファイルへのパス
    * @param zipPath ZIPファイル中でのパス
    */
   private void writeEachFile(final Path realPath, final Path zipPath) {
-    final String zipPathStr = pathToString(zipPath);
-    try (final InputStream inputStream = Files.newInputStream(realPath)) {
-      final ZipEntry entry = new ZipEntry(zipPathStr);
-      zipOutputStream.putNextEntry(entry);
-
-      int count;
-      while ((count = inputStream.read(buffer, 0, BUFFER_SIZE)) != -1) {
-        zipOutputStream.write(buffer, 0, count);
-      }
-      zipOutputStream.closeEntry();
-    } catch (final IOException e) {
-      throw new UncheckedIOException(e);
-    }
+    zipWriter.add(realPath, pathToString(zipPath));
   }
 
   /**
@@ -0,0 +1,59 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.util.Optional;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * 混雑によりリクエストを受け付けなかったことを表す {@code RESOURCE_EXHAUSTED} と，
+ * 再送までに待つべき時間をトレイラーでやり取りするためのユーティリティ
+ */
+public class RetryAfter {
+
+  public static final Metadata.Key<String> RETRY_AFTER_MILLIS_KEY =
+      Metadata.Key.of("retry-after-millis", Metadata.ASCII_STRING_MARSHALLER);
+
+  private RetryAfter() {}
+
+  /**
+   * 再送までに待つべき時間を付けた {@code RESOURCE_EXHAUSTED} を作る
+   *
+   * @param description エラーの説明
+   * @param retryAfterMillis 再送までに待つべき時間（ミリ秒）
+   * @return 例外
+   */
+  public static StatusRuntimeException createException(final String description,
+      final long retryAfterMillis) {
+    final Metadata trailers = new Metadata();
+    trailers.put(RETRY_AFTER_MILLIS_KEY, String.valueOf(retryAfterMillis));
+    return Status.RESOURCE_EXHAUSTED.withDescription(description)
+        .asRuntimeException(trailers);
+  }
+
+  /**
+   * {@link #createException} で作られた例外であれば，再送までに待つべき時間を返す
+   *
+   * メッセージサイズの超過など，トレイラーを持たない {@code RESOURCE_EXHAUSTED} は再送しても成功しないので対象外とする
+   *
+   * @param throwable 例外
+   * @return 待つべき時間（ミリ秒）．再送すべきでない例外の場合は空
+   */
+  public static Optional<Long> getRetryAfterMillis(final Throwable throwable) {
+    final Status status = Status.fromThrowable(throwable);
+    if (status.getCode() != Status.Code.RESOURCE_EXHAUSTED) {
+      return Optional.empty();
+    }
+
+    final Metadata trailers = Status.trailersFromThrowable(throwable);
+    final String value = trailers == null ? null : trailers.get(RETRY_AFTER_MILLIS_KEY);
+    if (value == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(Math.max(Long.parseLong(value), 0L));
+    } catch (final NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import io.reactivex.Single;
+import jp.kusumotolab.kgenprog.ga.variant.Variant;
+import jp.kusumotolab.kgenprog.project.test.TestExecutor;
+import jp.kusumotolab.kgenprog.project.test.TestResults;
+
+/**
+ * 指定されたテストケースだけを実行するTestExecutor
+ *
+ * コーディネータが1つの遺伝子のテストをシャードに分けた場合，シャードのテストケースだけを実行する．
+ * 指定がなければプロジェクトの全てのテストケースを実行する．
+ * 実行するテストケースの集合ごとのTestExecutorは，最も長く使われていないものから捨てる．
+ *
+ * 1つのVariantStoreとともに貸し出されるので，同時に複数のスレッドから使われることはない
+ */
+class ShardTestExecutor implements TestExecutor {
+
+  /**
+   * 保持するシャードごとのTestExecutorの最大数
+   */
+  static final int MAX_SHARD_EXECUTORS = 16;
+
+  private final TestExecutor testExecutor;
+  private final Function<List<String>, TestExecutor> shardExecutorFactory;
+  private final LinkedHashMap<List<String>, TestExecutor> shardExecutors =
+      new LinkedHashMap<List<String>, TestExecutor>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<List<String>, TestExecutor> eldest) {
+          if (size() <= MAX_SHARD_EXECUTORS) {
+            return false;
+          }
+          eldest.getValue()
+              .finish();
+          return true;
+        }
+      };
+  private List<String> executionTests = Collections.emptyList();
+  private long longestExecNanos = 0;
+
+  /**
+   * @param testExecutor プロジェクトの全てのテストケースを実行するTestExecutor
+   * @param shardExecutorFactory テストケースの列から，それだけを実行するTestExecutorを生成する
+   */
+  ShardTestExecutor(final TestExecutor testExecutor,
+      final Function<List<String>, TestExecutor> shardExecutorFactory) {
+    this.testExecutor = testExecutor;
+    this.shardExecutorFactory = shardExecutorFactory;
+  }
+
+  /**
+   * 次に実行するテストケースを指定する
+   *
+   * @param executionTests 実行するテストケース．空ならプロジェクトの全てのテストケース
+   */
+  void setExecutionTests(final List<String> executionTests) {
+    this.executionTests = executionTests;
+  }
+
+  /**
+   * テストの実行時間の記録を消す
+   */
+  void resetExecNanos() {
+    longestExecNanos = 0;
+  }
+
+  /**
+   * 記録を消してから最も長くかかったテストの実行時間．ビルドなどテストの実行以外にかかった時間は含まない
+   */
+  long getLongestExecNanos() {
+    return longestExecNanos;
+  }
+
+  @Override
+  public TestResults exec(final Variant variant) {
+    final long start = System.nanoTime();
+    try {
+      return getTestExecutor().exec(variant);
+    } finally {
+      longestExecNanos = Math.max(longestExecNanos, System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public Single<TestResults> execAsync(final Single<Variant> variantSingle) {
+    return variantSingle.map(this::exec);
+  }
+
+  @Override
+  public void initialize() {
+    testExecutor.initialize();
+  }
+
+  @Override
+  public void finish() {
+    testExecutor.finish();
+    shardExecutors.values()
+        .forEach(TestExecutor::finish);
+    shardExecutors.clear();
+  }
+
+  private TestExecutor getTestExecutor() {
+    if (executionTests.isEmpty()) {
+      return testExecutor;
+    }
+    TestExecutor shardExecutor = shardExecutors.get(executionTests);
+    if (shardExecutor == null) {
+      final List<String> key = new ArrayList<>(executionTests);
+      shardExecutor = shardExecutorFactory.apply(key);
+      shardExecutor.initialize();
+      shardExecutors.put(key, shardExecutor);
+    }
+    return shardExecutor;
+  }
+}
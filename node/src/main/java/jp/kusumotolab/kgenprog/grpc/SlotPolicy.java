@@ -0,0 +1,55 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+/**
+ * {@link Project} がテストの実行に用いるスロットの準備と作り直しの方針
+ *
+ * スロットはVariantStoreとTestExecutorの組で，生成時に初期バリアントのビルドとテストを行うので，
+ * JUnitや依存ライブラリのクラスはその時点で読み込まれる．
+ * 事前に全てのスロットを用意しておけば，最初の並列な実行がこの準備を待たずに済む．
+ * また，テストは同じプロセスで実行されるので，対象のテストが残した状態やタイムアウトしたスレッドを持ち越さないよう，
+ * 一定回数使ったスロットやタイムアウトしたスロットは捨てて作り直す
+ */
+public class SlotPolicy {
+
+  /**
+   * 作り直さないことを表す値
+   */
+  public static final int NEVER_RECYCLE = 0;
+
+  private final boolean prewarm;
+  private final int recycleRuns;
+
+  /**
+   * @param prewarm 真なら，登録時と作り直しの際にスロットを裏で用意しておく
+   * @param recycleRuns この回数使ったスロットを作り直す．0以下なら回数では作り直さない
+   */
+  public SlotPolicy(final boolean prewarm, final int recycleRuns) {
+    this.prewarm = prewarm;
+    this.recycleRuns = recycleRuns;
+  }
+
+  /**
+   * 使われるときにスロットを用意し，タイムアウトしたときだけ作り直す
+   */
+  public static SlotPolicy defaults() {
+    return new SlotPolicy(false, NEVER_RECYCLE);
+  }
+
+  public boolean isPrewarm() {
+    return prewarm;
+  }
+
+  public int getRecycleRuns() {
+    return recycleRuns;
+  }
+
+  /**
+   * スロットを作り直すべきかどうか
+   *
+   * @param runs スロットでテストを実行した回数
+   * @param timedOut 直前の実行がテストの制限時間を超えたかどうか
+   */
+  public boolean shouldRecycle(final int runs, final boolean timedOut) {
+    return timedOut || (recycleRuns > 0 && runs >= recycleRuns);
+  }
+}
@@ -0,0 +1,250 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.grpc.ContentDefinedChunker;
+
+/**
+ * コーディネータから取得したチャンクをローカルのディレクトリに保持する
+ *
+ * チャンクはダイジェストの16進文字列をファイル名として保存する．
+ * 一度取得したチャンクは，別のプロジェクトを取得するときにも再利用する．
+ * 保持しているチャンクは {@link PeerService} を通じて他のワーカーにも配る．
+ *
+ * 合計サイズが上限を超えると，使用中でないチャンクを最後に使われた順が古いものから削除する．
+ * 再起動後は，ファイルの更新時刻を最後に使われた時刻とみなす
+ */
+public class ChunkStore {
+
+  private static final Logger log = LoggerFactory.getLogger(ChunkStore.class);
+
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private final Path directory;
+  private final long maxBytes;
+
+  // 以下のフィールドはthisで同期してアクセスする
+  private final LinkedHashMap<String, Long> chunkSizes = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Integer> references = new HashMap<>();
+  private long totalBytes = 0;
+
+  /**
+   * 合計サイズを制限しないチャンクストアを生成する
+   *
+   * @param directory チャンクを保存するディレクトリ．存在しなければ作成する
+   * @throws IOException ディレクトリを作成できなかったとき
+   */
+  public ChunkStore(final Path directory) throws IOException {
+    this(directory, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param directory チャンクを保存するディレクトリ．存在しなければ作成する
+   * @param maxBytes 保持するチャンクの合計サイズの上限
+   * @throws IOException ディレクトリを作成できなかったとき
+   */
+  public ChunkStore(final Path directory, final long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+    load();
+  }
+
+  /**
+   * チャンクを保持しているかを確認する．保持していれば最後に使われたものとして扱う
+   *
+   * @param digest チャンクのダイジェスト
+   */
+  public synchronized boolean contains(final ByteString digest) {
+    return chunkSizes.get(ContentDefinedChunker.toHex(digest)) != null;
+  }
+
+  /**
+   * チャンクを取得する
+   *
+   * @param digest チャンクのダイジェスト
+   * @return チャンクの内容．保持していない場合は空
+   * @throws IOException 読み込みに失敗したとき
+   */
+  public Optional<ByteString> get(final ByteString digest) throws IOException {
+    if (!contains(digest)) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(ByteString.copyFrom(Files.readAllBytes(getPath(digest))));
+    } catch (final NoSuchFileException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * 保持していないチャンクを列挙する．重複は取り除く
+   *
+   * @param digests チャンクのダイジェストの列
+   * @return 保持していないチャンクのダイジェスト
+   */
+  public List<ByteString> findMissing(final List<ByteString> digests) {
+    final Set<ByteString> missing = new LinkedHashSet<>();
+    for (final ByteString digest : digests) {
+      if (!contains(digest)) {
+        missing.add(digest);
+      }
+    }
+    return new ArrayList<>(missing);
+  }
+
+  /**
+   * チャンクを使用中にし，上限を超えても削除されないようにする．使用を終えたら {@link #release(List)} を呼び出す
+   *
+   * まだ保持していないチャンクも，保存された後は使用中として扱う
+   *
+   * @param digests チャンクのダイジェストの列
+   */
+  public synchronized void retain(final List<ByteString> digests) {
+    for (final ByteString digest : digests) {
+      references.merge(ContentDefinedChunker.toHex(digest), 1, Integer::sum);
+    }
+  }
+
+  /**
+   * チャンクの使用を終える．合計サイズが上限を超えていれば，使用中でないチャンクを削除する
+   *
+   * @param digests {@link #retain(List)} に渡したチャンクのダイジェストの列
+   */
+  public synchronized void release(final List<ByteString> digests) {
+    for (final ByteString digest : digests) {
+      references.computeIfPresent(ContentDefinedChunker.toHex(digest),
+          (name, count) -> count > 1 ? count - 1 : null);
+    }
+    evict();
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * チャンクを保存する
+   *
+   * @param digest コーディネータが示したダイジェスト
+   * @param data チャンクの内容
+   * @throws IOException 内容がダイジェストと一致しないとき．保存に失敗したとき
+   */
+  public void put(final ByteString digest, final ByteString data) throws IOException {
+    if (!ContentDefinedChunker.digest(data)
+        .equals(digest)) {
+      throw new IOException(
+          "chunk " + ContentDefinedChunker.toHex(digest) + " does not match its digest.");
+    }
+
+    // 書きかけのファイルを他のスレッドから読まれないよう，一時ファイルに書いてから移動する
+    final Path temporary = Files.createTempFile(directory, "chunk", TEMPORARY_SUFFIX);
+    try {
+      Files.write(temporary, data.toByteArray());
+      synchronized (this) {
+        Files.move(temporary, getPath(digest), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        final Long previous = chunkSizes.put(ContentDefinedChunker.toHex(digest),
+            (long) data.size());
+        totalBytes += data.size() - (previous == null ? 0 : previous);
+        evict();
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * チャンクをつなげて書き出す．チャンクを1つずつ読み込むので，全体をメモリに置くことはない
+   *
+   * @param digests 先頭から順に並んだチャンクのダイジェスト
+   * @param output 書き込み先
+   * @throws IOException 保持していないチャンクがあるとき．書き込みに失敗したとき
+   */
+  public void writeTo(final List<ByteString> digests, final OutputStream output)
+      throws IOException {
+    for (final ByteString digest : digests) {
+      Files.copy(getPath(digest), output);
+    }
+  }
+
+  /**
+   * 以前の起動で保存したチャンクを古い順に読み込み，書きかけの一時ファイルを削除する
+   */
+  private void load() throws IOException {
+    final List<Path> paths = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      stream.forEach(paths::add);
+    }
+
+    final Map<Path, Long> modifiedTimes = new HashMap<>();
+    for (final Path path : paths) {
+      if (path.getFileName()
+          .toString()
+          .endsWith(TEMPORARY_SUFFIX)) {
+        Files.deleteIfExists(path);
+      } else if (Files.isRegularFile(path)) {
+        modifiedTimes.put(path, Files.getLastModifiedTime(path)
+            .toMillis());
+      }
+    }
+
+    final List<Path> chunks = new ArrayList<>(modifiedTimes.keySet());
+    chunks.sort(Comparator.comparing(modifiedTimes::get));
+    synchronized (this) {
+      for (final Path chunk : chunks) {
+        final long size = Files.size(chunk);
+        chunkSizes.put(chunk.getFileName()
+            .toString(), size);
+        totalBytes += size;
+      }
+      evict();
+    }
+    log.info("chunk store {}: {} chunks, {} bytes", directory, chunkSizes.size(), totalBytes);
+  }
+
+  /**
+   * 合計サイズが上限を超えている間，使用中でないチャンクを最後に使われた順が古いものから削除する．
+   * 削除中のファイルを保存し直されないよう，ロックを保持したまま削除する
+   */
+  private synchronized void evict() {
+    final Iterator<Map.Entry<String, Long>> iterator = chunkSizes.entrySet()
+        .iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      final Map.Entry<String, Long> entry = iterator.next();
+      if (references.containsKey(entry.getKey())) {
+        continue;
+      }
+      try {
+        Files.deleteIfExists(directory.resolve(entry.getKey()));
+      } catch (final IOException e) {
+        log.warn("failed to delete chunk {}", entry.getKey(), e);
+        continue;
+      }
+      totalBytes -= entry.getValue();
+      iterator.remove();
+    }
+  }
+
+  private Path getPath(final ByteString digest) {
+    return directory.resolve(ContentDefinedChunker.toHex(digest));
+  }
+}
@@ -1,28 +1,80 @@
 package jp.kusumotolab.kgenprog.worker;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
 import jp.kusumotolab.kgenprog.grpc.CoordinatorServiceGrpc;
 import jp.kusumotolab.kgenprog.grpc.CoordinatorServiceGrpc.CoordinatorServiceBlockingStub;
+import jp.kusumotolab.kgenprog.grpc.GrpcChunk;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetChunksRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcPeer;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.PeerServiceGrpc;
 
 public class CoordinatorClient {
 
   private static final Logger log = LoggerFactory.getLogger(CoordinatorClient.class);
 
   private final CoordinatorServiceBlockingStub blockingStub;
+  private final ChunkStore chunkStore;
+  private final long peerDeadlineMillis;
+  private volatile boolean chunkSupported;
+  private volatile boolean streamSupported = true;
 
   public CoordinatorClient(final ManagedChannel managedChannel) {
+    this(managedChannel, null);
+  }
+
+  /**
+   * @param managedChannel コーディネータとのチャネル
+   * @param chunkStore 取得したチャンクを保持するストア．nullの場合はプロジェクト全体を毎回取得する
+   */
+  public CoordinatorClient(final ManagedChannel managedChannel, final ChunkStore chunkStore) {
+    this(managedChannel, chunkStore,
+        TimeUnit.SECONDS.toMillis(ClusterConfiguration.DEFAULT_PEER_DEADLINE_SECONDS));
+  }
+
+  /**
+   * @param managedChannel コーディネータとのチャネル
+   * @param chunkStore 取得したチャンクを保持するストア．nullの場合はプロジェクト全体を毎回取得する
+   * @param peerDeadlineMillis 他のワーカーからチャンクを取得する際の制限時間．
+   *        超えた場合は残りのチャンクを次のワーカーかコーディネータから取得する
+   */
+  public CoordinatorClient(final ManagedChannel managedChannel, final ChunkStore chunkStore,
+      final long peerDeadlineMillis) {
     blockingStub = CoordinatorServiceGrpc.newBlockingStub(managedChannel);
+    this.chunkStore = chunkStore;
+    this.peerDeadlineMillis = peerDeadlineMillis;
+    this.chunkSupported = chunkStore != null;
   }
 
   public GrpcRegisterWorkerResponse registerWorker(final int port) {
+    return registerWorker(port, 1);
+  }
+
+  public GrpcRegisterWorkerResponse registerWorker(final int port, final int slots) {
     final GrpcRegisterWorkerRequest request = GrpcRegisterWorkerRequest.newBuilder()
         .setPort(port)
+        .setSlots(slots)
         .build();
     log.info("registerWorker request");
 
@@ -32,15 +84,230 @@ public class CoordinatorClient {
     return response;
   }
 
-  public GrpcGetProjectResponse getProject(final int projectId) {
+  /**
+   * プロジェクトを取得し，zip圧縮したプロジェクトをファイルに書き出す
+   *
+   * プロジェクトは少しずつ受け取ってファイルに書き込むので，全体をメモリに置くことはない
+   *
+   * @param projectId プロジェクトID
+   * @param zipFile zip圧縮したプロジェクトの書き込み先
+   * @return 通信ステータスと設定．プロジェクト本体は含まない
+   * @throws IOException ファイルに書き込めなかったとき
+   */
+  public GrpcGetProjectResponse downloadProject(final int projectId, final Path zipFile)
+      throws IOException {
     final GrpcGetProjectRequest request = GrpcGetProjectRequest.newBuilder()
         .setProjectId(projectId)
         .build();
+    if (chunkSupported) {
+      try {
+        return downloadProjectByChunks(request, zipFile);
+      } catch (final StatusRuntimeException e) {
+        if (e.getStatus()
+            .getCode() != Status.Code.UNIMPLEMENTED) {
+          throw e;
+        }
+        // チャンクに対応していないコーディネータ
+        log.info("getProjectManifest is not supported, fall back to getProjectStream");
+        chunkSupported = false;
+      }
+    }
+
+    if (streamSupported) {
+      try {
+        return downloadProjectByStream(request, zipFile);
+      } catch (final StatusRuntimeException e) {
+        if (e.getStatus()
+            .getCode() != Status.Code.UNIMPLEMENTED) {
+          throw e;
+        }
+        // ストリームに対応していないコーディネータ
+        log.info("getProjectStream is not supported, fall back to getProject");
+        streamSupported = false;
+      }
+    }
+
     log.info("getProject request");
 
     final GrpcGetProjectResponse response = blockingStub.getProject(request);
     log.info("getProject response");
 
-    return response;
+    try (final OutputStream output = Files.newOutputStream(zipFile)) {
+      response.getProject()
+          .writeTo(output);
+    }
+    return response.toBuilder()
+        .clearProject()
+        .build();
+  }
+
+  /**
+   * プロジェクトのマニフェストを取得する
+   *
+   * @param projectId プロジェクトID
+   * @return マニフェスト．チャンクストアがない場合や，コーディネータがチャンクに対応していない場合は空
+   */
+  public Optional<GrpcGetProjectManifestResponse> getProjectManifest(final int projectId) {
+    if (!chunkSupported) {
+      return Optional.empty();
+    }
+    final GrpcGetProjectRequest request = GrpcGetProjectRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    try {
+      log.info("getProjectManifest request");
+      return Optional.of(blockingStub.getProjectManifest(request));
+    } catch (final StatusRuntimeException e) {
+      if (e.getStatus()
+          .getCode() != Status.Code.UNIMPLEMENTED) {
+        throw e;
+      }
+      // チャンクに対応していないコーディネータ
+      log.info("getProjectManifest is not supported");
+      chunkSupported = false;
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * 取得済みのマニフェストに従ってプロジェクトを取得し，zip圧縮したプロジェクトをファイルに書き出す
+   *
+   * @param manifest {@link #getProjectManifest(int)} で取得したマニフェスト
+   * @param zipFile zip圧縮したプロジェクトの書き込み先
+   * @return 通信ステータスと設定．プロジェクト本体は含まない
+   * @throws IOException ファイルに書き込めなかったとき
+   */
+  public GrpcGetProjectResponse downloadProject(final GrpcGetProjectManifestResponse manifest,
+      final Path zipFile) throws IOException {
+    if (manifest.getStatus() == GrpcStatus.SUCCESS) {
+      // 書き出し終えるまで，チャンクストアの上限を超えてもチャンクを削除させない
+      chunkStore.retain(manifest.getChunkDigestsList());
+      try {
+        fetchChunks(manifest);
+        try (final OutputStream output = Files.newOutputStream(zipFile)) {
+          chunkStore.writeTo(manifest.getChunkDigestsList(), output);
+        }
+      } finally {
+        chunkStore.release(manifest.getChunkDigestsList());
+      }
+    }
+    return GrpcGetProjectResponse.newBuilder()
+        .setStatus(manifest.getStatus())
+        .setConfiguration(manifest.getConfiguration())
+        .build();
+  }
+
+  private GrpcGetProjectResponse downloadProjectByChunks(final GrpcGetProjectRequest request,
+      final Path zipFile) throws IOException {
+    log.info("getProjectManifest request");
+    return downloadProject(blockingStub.getProjectManifest(request), zipFile);
+  }
+
+  private GrpcGetProjectResponse downloadProjectByStream(final GrpcGetProjectRequest request,
+      final Path zipFile) throws IOException {
+    log.info("getProjectStream request");
+    final Iterator<GrpcGetProjectStreamResponse> responses =
+        blockingStub.getProjectStream(request);
+
+    // 最初のメッセージで通信ステータスと設定が返ってくる
+    final GrpcGetProjectStreamResponse header = responses.next();
+    if (header.getStatus() != GrpcStatus.SUCCESS) {
+      // 残りを読み捨ててストリームを閉じる
+      responses.forEachRemaining(response -> {
+      });
+      return GrpcGetProjectResponse.newBuilder()
+          .setStatus(header.getStatus())
+          .build();
+    }
+
+    long bytes = 0;
+    try (final OutputStream output = Files.newOutputStream(zipFile)) {
+      while (responses.hasNext()) {
+        final ByteString data = responses.next()
+            .getData();
+        data.writeTo(output);
+        bytes += data.size();
+      }
+    }
+    log.info("getProjectStream response: {} bytes", bytes);
+
+    return GrpcGetProjectResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .setConfiguration(header.getConfiguration())
+        .build();
+  }
+
+  /**
+   * マニフェストに含まれるチャンクのうち，手元にないものを取得してチャンクストアに保存する
+   *
+   * チャンクはマニフェストに含まれる他のワーカーから順に取得を試み，
+   * 取得できなかったものだけをコーディネータから取得する
+   */
+  private void fetchChunks(final GrpcGetProjectManifestResponse manifest) throws IOException {
+    final List<ByteString> digests = manifest.getChunkDigestsList();
+    List<ByteString> missing = chunkStore.findMissing(digests);
+    log.info("getProjectManifest response: {} chunks, {} missing, {} peers", digests.size(),
+        missing.size(), manifest.getPeersCount());
+
+    for (final GrpcPeer peer : manifest.getPeersList()) {
+      if (missing.isEmpty()) {
+        break;
+      }
+      fetchChunksFromPeer(peer, missing);
+      missing = chunkStore.findMissing(missing);
+    }
+
+    if (!missing.isEmpty()) {
+      putChunks(blockingStub.getChunks(GrpcGetChunksRequest.newBuilder()
+          .addAllDigests(missing)
+          .build()));
+      log.info("getChunks response: {} chunks", missing.size());
+    }
+  }
+
+  /**
+   * 他のワーカーからチャンクを取得する．失敗しても，取得できた分はチャンクストアに残る
+   *
+   * 応答しないワーカーを待ち続けないよう，制限時間を設ける
+   */
+  private void fetchChunksFromPeer(final GrpcPeer peer, final List<ByteString> digests) {
+    final ManagedChannel channel = createPeerChannel(peer);
+    try {
+      putChunks(PeerServiceGrpc.newBlockingStub(channel)
+          .withDeadlineAfter(peerDeadlineMillis, TimeUnit.MILLISECONDS)
+          .getChunks(GrpcGetChunksRequest.newBuilder()
+              .addAllDigests(digests)
+              .build()));
+      log.info("getChunks response from peer {}:{}: {} chunks", peer.getHost(), peer.getPort(),
+          digests.size());
+    } catch (final StatusRuntimeException | IOException e) {
+      // 残りは次のワーカーかコーディネータから取得する
+      log.info("failed to get chunks from peer {}:{}: {}", peer.getHost(), peer.getPort(),
+          e.toString());
+    } finally {
+      channel.shutdownNow();
+    }
+  }
+
+  private void putChunks(final Iterator<GrpcChunk> chunks) throws IOException {
+    while (chunks.hasNext()) {
+      final GrpcChunk chunk = chunks.next();
+      chunkStore.put(chunk.getDigest(), chunk.getData());
+    }
+  }
+
+  /**
+   * チャンクを取得する他のワーカーとのチャネルを生成する
+   *
+   * テストの際に差し替えることを想定している
+   *
+   * @param peer 取得元のワーカー
+   * @return チャネル．使い終わったら閉じられる
+   */
+  protected ManagedChannel createPeerChannel(final GrpcPeer peer) {
+    return ManagedChannelBuilder.forAddress(peer.getHost(), peer.getPort())
+        .usePlaintext()
+        .maxInboundMessageSize(Integer.MAX_VALUE)
+        .build();
   }
 }
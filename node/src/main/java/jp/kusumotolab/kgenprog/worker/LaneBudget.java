@@ -0,0 +1,62 @@
+package jp.kusumotolab.kgenprog.worker;
+
+/**
+ * ワーカー内でプロジェクトごとに割り当てる資源の上限
+ *
+ * ワーカーはプロジェクトごとにレーンを設け，レーンごとに同時に実行するテストの数を制限する．
+ * レーンの上限をワーカー全体より小さくすることで，1つのワーカーで複数の修正を同時に扱える．
+ * メモリはレーンごとに見込む量から同時に読み込むレーンの数を決めるだけで，
+ * 各レーンの実際の使用量を測ったり制限したりはせず，レーンごとにクラスローダを分けることもしない
+ */
+public class LaneBudget {
+
+  /**
+   * 制限しないことを表す値
+   */
+  public static final int UNLIMITED = 0;
+
+  private final int slots;
+  private final long memoryBytes;
+
+  /**
+   * @param slots 1つのレーンで同時に実行できるテストの数．0以下ならワーカー全体のスロット数
+   * @param memoryBytes 1つのレーンに見込むヒープの量．レーンの数の上限を決めるのに使う．0以下なら制限しない
+   */
+  public LaneBudget(final int slots, final long memoryBytes) {
+    this.slots = slots;
+    this.memoryBytes = memoryBytes;
+  }
+
+  /**
+   * レーンごとの制限を設けない
+   */
+  public static LaneBudget unlimited() {
+    return new LaneBudget(UNLIMITED, UNLIMITED);
+  }
+
+  /**
+   * 1つのレーンで同時に実行できるテストの数
+   *
+   * @param workerSlots ワーカー全体のスロット数
+   */
+  public int getSlots(final int workerSlots) {
+    return slots > 0 ? Math.min(slots, workerSlots) : workerSlots;
+  }
+
+  /**
+   * 同時に読み込んでおけるレーンの数
+   *
+   * @param maxHeapBytes ワーカーが使えるヒープの量
+   * @return レーンの数．制限しない場合は {@link Integer#MAX_VALUE}
+   */
+  public int getMaxLanes(final long maxHeapBytes) {
+    if (memoryBytes <= 0) {
+      return Integer.MAX_VALUE;
+    }
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxHeapBytes / memoryBytes));
+  }
+
+  public long getMemoryBytes() {
+    return memoryBytes;
+  }
+}
@@ -1,68 +1,349 @@
 package jp.kusumotolab.kgenprog.worker;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import io.reactivex.Single;
 import jp.kusumotolab.kgenprog.ga.variant.Gene;
+import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.Project;
+import jp.kusumotolab.kgenprog.grpc.ProjectSettings;
+import jp.kusumotolab.kgenprog.grpc.ProjectUnzipper;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
 import jp.kusumotolab.kgenprog.grpc.Serializer;
 import jp.kusumotolab.kgenprog.grpc.Worker;
+import jp.kusumotolab.kgenprog.project.factory.TargetProject;
 import jp.kusumotolab.kgenprog.project.test.TestResults;
 
 /**
  * ローカルでテストを実行するワーカー
  *
+ * プロジェクトごとにレーン（{@link ProjectLane}）を設け，各レーンは独立した作業ディレクトリとテスト実行環境を持つ．
+ * レーンごとに同時に実行するテストの数と，同時に読み込んでおくレーンの数を {@link LaneBudget} で制限する．
+ * レーンの上限を超えたテストは待たせずに {@code RESOURCE_EXHAUSTED} で拒否し，コーディネータに割り当て直させる
+ *
  * @author Ryo Arima
  */
 public class LocalWorker implements Worker {
 
-  private final ConcurrentMap<Integer, Project> projectMap;
+  private static final Logger log = LoggerFactory.getLogger(LocalWorker.class);
+
+  /**
+   * レーンが埋まっているときにコーディネータへ伝える，このワーカーに再び割り当てるまでに待つべき時間（ミリ秒）
+   */
+  static final long LANE_RETRY_AFTER_MILLIS = 500;
+
+  // 以下の3つのフィールドはthisで同期してアクセスする
+  private final Map<Integer, ProjectLane> laneMap;
+  private final Map<Integer, ProjectLane> unloadingMap;
+  private long laneClock;
+
   private final Path workdir;
   private final CoordinatorClient coordinatorClient;
   private final int workerId;
+  private final int laneSlots;
+  private final int maxLanes;
+  private final ProjectSettings projectSettings;
+  private final ProjectCache projectCache;
 
   public LocalWorker(final int workerId, final Path workdir, final CoordinatorClient coordinatorClient) {
+    this(workerId, workdir, coordinatorClient, new WorkerConfiguration.Builder().build(), null);
+  }
+
+  /**
+   * @param workerId ワーカーID
+   * @param workdir 作業ディレクトリ
+   * @param coordinatorClient コーディネータとの通信に用いるクライアント
+   * @param configuration スロット数やレーンの上限などのワーカーの設定
+   * @param projectCache 展開済みのプロジェクトを再利用するキャッシュ．nullの場合は毎回取得して展開する
+   */
+  public LocalWorker(final int workerId, final Path workdir,
+      final CoordinatorClient coordinatorClient, final WorkerConfiguration configuration,
+      final ProjectCache projectCache) {
     this.workerId = workerId;
     this.workdir = workdir;
     this.coordinatorClient = coordinatorClient;
-    projectMap = new ConcurrentHashMap<>();
+    final LaneBudget laneBudget = configuration.getLaneBudget();
+    this.laneSlots = laneBudget.getSlots(configuration.getSlots());
+    this.maxLanes = laneBudget.getMaxLanes(Runtime.getRuntime()
+        .maxMemory());
+    this.projectSettings = new ProjectSettings(laneSlots, configuration.getResultCacheEntries(),
+        configuration.getCoverageSelectionInterval(), configuration.getSlotPolicy());
+    this.projectCache = projectCache;
+    laneMap = new HashMap<>();
+    unloadingMap = new HashMap<>();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * テストは返したSingleを購読したときに実行し，レーンはテストを実行している間だけ使用中として扱う．
+   * レーンで実行中のテストが上限に達していれば，待たずに {@code RESOURCE_EXHAUSTED} を返す
+   */
   @Override
   public Single<GrpcExecuteTestResponse> executeTest(final GrpcExecuteTestRequest request) {
-    final Single<GrpcExecuteTestResponse> responseSingle;
-    final Project project = getProject(request.getProjectId());
-
-    final Path rootPath = project.getConfiguration()
-        .getTargetProject().rootPath;
-    final Gene gene = Serializer.deserialize(rootPath, request.getGene());
-    final Single<Gene> geneSingle = Single.just(gene);
-    final Single<TestResults> resultsSingle = geneSingle.map(project::executeTest);
-    responseSingle = resultsSingle.map(results -> GrpcExecuteTestResponse.newBuilder()
-        .setStatus(GrpcStatus.SUCCESS)
-        .setTestResults(Serializer.serialize(results))
-        .build());
+    return Single.fromCallable(() -> {
+      final ProjectLane lane = acquireLane(request.getProjectId());
+      // 結果を返す前にレーンを空け，コーディネータが次に割り当てるテストを受け付けられるようにする
+      try {
+        if (isLaneFull(lane)) {
+          log.info("lane of project {} is full", request.getProjectId());
+          throw RetryAfter.createException(
+              "lane of project " + request.getProjectId() + " is full", LANE_RETRY_AFTER_MILLIS);
+        }
 
-    return responseSingle;
+        final Project project = loadProject(lane);
+        final Path rootPath = project.getConfiguration()
+            .getTargetProject().rootPath;
+        final Gene gene = Serializer.deserialize(rootPath, request.getGene());
+        final long start = System.nanoTime();
+        final TestResults results = project.executeTest(gene, request.getExecutionTestsList());
+        return GrpcExecuteTestResponse.newBuilder()
+            .setStatus(GrpcStatus.SUCCESS)
+            .setTestResults(Serializer.serialize(results))
+            .setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+            .build();
+      } finally {
+        releaseLane(lane);
+      }
+    });
   }
 
   Project getProject(final int projectId) {
-    return projectMap.computeIfAbsent(projectId, id -> {
-      final GrpcGetProjectResponse response = coordinatorClient.getProject(id);
+    final ProjectLane lane = acquireLane(projectId);
+    try {
+      return loadProject(lane);
+    } finally {
+      releaseLane(lane);
+    }
+  }
+
+  synchronized int getLaneCount() {
+    return laneMap.size();
+  }
+
+  /**
+   * プロジェクトのレーンを使用中にする．レーンがなければ作り，上限を超えた分だけ使われていないレーンを取り除く
+   */
+  private ProjectLane acquireLane(final int projectId) {
+    final ProjectLane lane;
+    final List<ProjectLane> victims = new ArrayList<>();
+    synchronized (this) {
+      ProjectLane existing = laneMap.get(projectId);
+      if (existing == null) {
+        existing = new ProjectLane(projectId);
+        laneMap.put(projectId, existing);
+        victims.addAll(selectVictims());
+      }
+      lane = existing;
+      lane.acquire(++laneClock);
+    }
+    for (final ProjectLane victim : victims) {
+      log.info("unload project {} to keep within the lane budget", victim.getProjectId());
       try {
-        return createProject(response, id);
+        unload(victim);
       } catch (final IOException e) {
-        throw new RuntimeException(e);
+        log.warn("failed to unload project {}", victim.getProjectId(), e);
       }
-    });
+    }
+    return lane;
+  }
+
+  private synchronized void releaseLane(final ProjectLane lane) {
+    lane.release();
+  }
+
+  /**
+   * 使用中にしたレーンが，同時に実行できるテストの数を超えているか
+   */
+  private synchronized boolean isLaneFull(final ProjectLane lane) {
+    return lane.getRunning() > laneSlots;
+  }
+
+  /**
+   * レーンの数が上限を超えている間，使われていないレーンを最後に使われた順が古いものから取り除く
+   */
+  private synchronized List<ProjectLane> selectVictims() {
+    final List<ProjectLane> victims = new ArrayList<>();
+    if (laneMap.size() <= maxLanes) {
+      return victims;
+    }
+    final List<ProjectLane> candidates = laneMap.values()
+        .stream()
+        .filter(lane -> lane.isIdle() && lane.isLoaded())
+        .sorted(Comparator.comparingLong(ProjectLane::getLastUsed))
+        .collect(Collectors.toList());
+    for (final ProjectLane candidate : candidates) {
+      if (laneMap.size() <= maxLanes) {
+        break;
+      }
+      laneMap.remove(candidate.getProjectId());
+      unloadingMap.put(candidate.getProjectId(), candidate);
+      victims.add(candidate);
+    }
+    return victims;
+  }
+
+  /**
+   * レーンのプロジェクトを読み込む．最初に呼び出したスレッドが読み込み，他のスレッドはそれを待つ
+   */
+  private Project loadProject(final ProjectLane lane) {
+    final boolean loader;
+    final ProjectLane previous;
+    synchronized (this) {
+      loader = lane.startLoading();
+      previous = unloadingMap.get(lane.getProjectId());
+    }
+    if (!loader) {
+      return lane.await();
+    }
+
+    try {
+      // 取り除いたレーンの作業ディレクトリを消し終えてから読み込む
+      if (previous != null) {
+        previous.awaitUnloaded();
+      }
+      lane.complete(createLaneProject(lane));
+    } catch (final RuntimeException e) {
+      synchronized (this) {
+        laneMap.remove(lane.getProjectId(), lane);
+      }
+      lane.fail(e);
+    }
+    return lane.await();
+  }
+
+  private Project createLaneProject(final ProjectLane lane) {
+    final int id = lane.getProjectId();
+    if (projectCache != null) {
+      final Optional<GrpcGetProjectManifestResponse> manifest =
+          coordinatorClient.getProjectManifest(id);
+      if (manifest.isPresent()) {
+        return getCachedProject(lane, manifest.get());
+      }
+    }
+
+    // プロジェクト全体をメモリに置かないよう，ファイルに受け取ってから展開する
+    final Path zipFile = workdir.resolve(id + ".zip");
+    try {
+      final GrpcGetProjectResponse response = coordinatorClient.downloadProject(id, zipFile);
+      if (response.getStatus() != GrpcStatus.SUCCESS) {
+        throw new RuntimeException("failed to get project " + id);
+      }
+      return createProject(response.getConfiguration(), zipFile, id);
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      try {
+        Files.deleteIfExists(zipFile);
+      } catch (final IOException e) {
+        // 展開し終えているので，消せなくても動作に影響はない
+      }
+    }
+  }
+
+  /**
+   * レーンのプロジェクトを破棄する
+   *
+   * @return 破棄したら真．読み込みに失敗していたレーンであれば偽
+   * @throws IOException 作業ディレクトリを削除できなかったとき
+   */
+  private boolean unload(final ProjectLane lane) throws IOException {
+    try {
+      final Project project;
+      try {
+        project = lane.await();
+      } catch (final RuntimeException e) {
+        return false;
+      }
+      try {
+        project.unregister();
+      } finally {
+        final String key = lane.getCacheKey();
+        if (key != null) {
+          projectCache.release(key);
+        }
+      }
+      return true;
+    } finally {
+      synchronized (this) {
+        unloadingMap.remove(lane.getProjectId(), lane);
+      }
+      lane.markUnloaded();
+    }
+  }
+
+  /**
+   * キャッシュにある展開済みのプロジェクトを用いる．キャッシュにない場合は取得して展開し，キャッシュに加える
+   */
+  private Project getCachedProject(final ProjectLane lane,
+      final GrpcGetProjectManifestResponse manifest) {
+    final int projectId = lane.getProjectId();
+    if (manifest.getStatus() != GrpcStatus.SUCCESS) {
+      throw new RuntimeException("failed to get project " + projectId);
+    }
+
+    final String key = ProjectCache.computeKey(manifest.getChunkDigestsList());
+    try {
+      Optional<Path> unpackedDir = projectCache.acquire(key);
+      if (!unpackedDir.isPresent()) {
+        unpackedDir = Optional.of(projectCache.put(key,
+            destination -> unpackProject(projectId, manifest, destination)));
+      }
+      try {
+        final Project project =
+            createUnpackedProject(manifest.getConfiguration(), unpackedDir.get(),
+                projectId);
+        lane.setCacheKey(key);
+        return project;
+      } catch (final IOException | RuntimeException e) {
+        projectCache.release(key);
+        throw e;
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void unpackProject(final int projectId, final GrpcGetProjectManifestResponse manifest,
+      final Path destination) throws IOException {
+    final Path zipFile = workdir.resolve(projectId + ".zip");
+    try {
+      final GrpcGetProjectResponse response = coordinatorClient.downloadProject(manifest, zipFile);
+      if (response.getStatus() != GrpcStatus.SUCCESS) {
+        throw new IOException("failed to get project " + projectId);
+      }
+      final TargetProject project = Serializer.deserialize(response.getConfiguration())
+          .getTargetProject();
+      ProjectUnzipper.unzipProject(destination, project, () -> {
+        try {
+          return new BufferedInputStream(Files.newInputStream(zipFile));
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } finally {
+      Files.deleteIfExists(zipFile);
+    }
   }
 
   @Override
@@ -70,15 +351,20 @@ public class LocalWorker implements Worker {
       final GrpcUnregisterProjectRequest request) {
     try {
       final GrpcUnregisterProjectResponse response;
-      final Project project = projectMap.remove(request.getProjectId());
-      if (project == null) {
+      final ProjectLane lane;
+      synchronized (this) {
+        lane = laneMap.remove(request.getProjectId());
+        if (lane != null) {
+          unloadingMap.put(lane.getProjectId(), lane);
+        }
+      }
+      if (lane == null || !unload(lane)) {
         // プロジェクトが見つからなかった場合、実行失敗メッセージを返す
         response = GrpcUnregisterProjectResponse.newBuilder()
             .setStatus(GrpcStatus.FAILED)
             .build();
 
       } else {
-        project.unregister();
         response = GrpcUnregisterProjectResponse.newBuilder()
             .setStatus(GrpcStatus.SUCCESS)
             .build();
@@ -95,14 +381,31 @@ public class LocalWorker implements Worker {
    *
    * テストの際にモックとして差し替えることを想定している
    *
-   * @param response プロジェクトID
-   * @param projectId プロジェクトのConfiguration
+   * @param configuration プロジェクトのConfiguration
+   * @param zipFile zip圧縮したプロジェクトのファイル
+   * @param projectId プロジェクトID
+   * @return 生成されたプロジェクト
+   * @throws IOException
+   */
+  protected Project createProject(final GrpcConfiguration configuration, final Path zipFile,
+      final int projectId) throws IOException {
+    return new Project(workdir, configuration, zipFile, projectId, projectSettings);
+  }
+
+  /**
+   * 展開済みのディレクトリにあるプロジェクトから，新たなプロジェクトを生成する
+   *
+   * テストの際にモックとして差し替えることを想定している
+   *
+   * @param configuration プロジェクトのConfiguration
+   * @param unpackedDir プロジェクトを展開したディレクトリ．キャッシュが管理する
+   * @param projectId プロジェクトID
    * @return 生成されたプロジェクト
    * @throws IOException
    */
-  protected Project createProject(final GrpcGetProjectResponse response, final int projectId)
-      throws IOException {
-    return new Project(workdir, response, projectId);
+  protected Project createUnpackedProject(final GrpcConfiguration configuration,
+      final Path unpackedDir, final int projectId) throws IOException {
+    return new Project(unpackedDir, configuration, projectId, projectSettings);
   }
 
   @Override
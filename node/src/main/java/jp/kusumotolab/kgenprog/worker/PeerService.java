@@ -0,0 +1,63 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import java.io.IOException;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.grpc.ContentDefinedChunker;
+import jp.kusumotolab.kgenprog.grpc.GrpcChunk;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetChunksRequest;
+import jp.kusumotolab.kgenprog.grpc.PeerServiceGrpc.PeerServiceImplBase;
+
+/**
+ * 保持しているチャンクを他のワーカーに配る
+ *
+ * コーディネータはプロジェクトを展開済みのワーカーを取得元として伝えるので，
+ * 各ワーカーはコーディネータではなく他のワーカーからチャンクを取得できる
+ */
+public class PeerService extends PeerServiceImplBase {
+
+  private static final Logger log = LoggerFactory.getLogger(PeerService.class);
+
+  private final ChunkStore chunkStore;
+
+  public PeerService(final ChunkStore chunkStore) {
+    this.chunkStore = chunkStore;
+  }
+
+  @Override
+  public void getChunks(final GrpcGetChunksRequest request,
+      final StreamObserver<GrpcChunk> responseObserver) {
+    log.info("getChunks request from peer: {} chunks", request.getDigestsCount());
+
+    for (final ByteString digest : request.getDigestsList()) {
+      final Optional<ByteString> chunk;
+      try {
+        chunk = chunkStore.get(digest);
+      } catch (final IOException e) {
+        log.error(e.toString());
+        responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage())
+            .withCause(e)
+            .asRuntimeException());
+        return;
+      }
+      if (!chunk.isPresent()) {
+        // 取得元として伝えられた後に消されたか，チャンクを使わずに展開した
+        responseObserver.onError(Status.NOT_FOUND
+            .withDescription("chunk " + ContentDefinedChunker.toHex(digest) + " is not found")
+            .asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(GrpcChunk.newBuilder()
+          .setDigest(digest)
+          .setData(chunk.get())
+          .build());
+    }
+
+    log.info("getChunks response to peer");
+    responseObserver.onCompleted();
+  }
+}
@@ -0,0 +1,474 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.protobuf.ByteString;
+
+/**
+ * 展開済みのプロジェクトをローカルのディレクトリに保持し，ワーカーを再起動した後も再利用する
+ *
+ * プロジェクトはZIPファイルを構成するチャンクのダイジェストから求めたキーで識別するので，
+ * プロジェクトIDが変わっても内容が同じであれば再利用できる．
+ * 各エントリはキーを名前とするディレクトリと，含まれるファイルのサイズとCRCを記録したインデックスファイルからなる．
+ * インデックスは展開を終えた後に書き込むので，インデックスのないディレクトリは展開途中のものとして起動時に削除する．
+ * 以前の起動で作られたエントリは，最初に使うときにインデックスと照合してから用いる．
+ *
+ * 合計サイズが上限を超えると，使用中でないエントリを最後に使われた時刻が古い順に削除する．
+ * ディレクトリはロックファイルで排他し，複数のワーカーで共有しない
+ */
+public class ProjectCache implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(ProjectCache.class);
+
+  private static final String INDEX_SUFFIX = ".index";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final String LOCK_FILE = ".lock";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+  private final long maxBytes;
+  private final FileChannel lockChannel;
+  private final Map<String, Entry> entryMap = new HashMap<>();
+  private long lastTime;
+
+  /**
+   * @param directory エントリを保存するディレクトリ．存在しなければ作成する
+   * @param maxBytes 保持するエントリの合計サイズの上限
+   * @throws IOException ディレクトリを作成できなかったとき．他のワーカーが使用中のとき
+   */
+  public ProjectCache(final Path directory, final long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+
+    lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    final FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (final OverlappingFileLockException e) {
+      lockChannel.close();
+      throw new IOException(directory + " is used by another worker.", e);
+    }
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException(directory + " is used by another worker.");
+    }
+
+    load();
+    delete(evict());
+  }
+
+  /**
+   * プロジェクトを識別するキーを求める
+   *
+   * @param chunkDigests ZIP圧縮したプロジェクトを構成するチャンクのダイジェストの列
+   * @return キー．16進文字列
+   */
+  public static String computeKey(final List<ByteString> chunkDigests) {
+    final MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    for (final ByteString digest : chunkDigests) {
+      messageDigest.update(digest.asReadOnlyByteBuffer());
+    }
+    final StringBuilder builder = new StringBuilder();
+    for (final byte b : messageDigest.digest()) {
+      builder.append(String.format("%02x", b));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * エントリを使用する．使用を終えたら {@link #release(String)} を呼び出す
+   *
+   * 以前の起動で作られたエントリは内容をインデックスと照合し，一致しなければ削除する
+   *
+   * @param key プロジェクトを識別するキー
+   * @return 展開済みのプロジェクトのディレクトリ．保持していない場合は空
+   */
+  public Optional<Path> acquire(final String key) {
+    final Entry entry;
+    synchronized (this) {
+      entry = entryMap.get(key);
+      if (entry == null) {
+        return Optional.empty();
+      }
+      entry.references++;
+      entry.lastUsed = nextTime();
+    }
+    touch(key, entry);
+
+    if (!entry.verified) {
+      if (!verify(key)) {
+        log.warn("project cache entry {} is broken, discard it", key);
+        synchronized (this) {
+          entry.references--;
+          if (entryMap.get(key) == entry) {
+            entryMap.remove(key);
+          }
+        }
+        delete(key);
+        return Optional.empty();
+      }
+      entry.verified = true;
+    }
+    log.info("reuse project cache entry {}", key);
+    return Optional.of(getPath(key));
+  }
+
+  /**
+   * プロジェクトを展開してエントリとして保存し，使用する．使用を終えたら {@link #release(String)} を呼び出す
+   *
+   * @param key プロジェクトを識別するキー
+   * @param unpacker 与えられたディレクトリにプロジェクトを展開する処理
+   * @return 展開済みのプロジェクトのディレクトリ
+   * @throws IOException 展開や保存に失敗したとき
+   */
+  public Path put(final String key, final Unpacker unpacker) throws IOException {
+    final Path temporary = Files.createTempDirectory(directory, key + TEMPORARY_SUFFIX);
+    final long bytes;
+    try {
+      unpacker.unpack(temporary);
+      bytes = writeIndex(temporary, directory.resolve(temporary.getFileName() + INDEX_SUFFIX));
+    } catch (final IOException | RuntimeException e) {
+      deleteDirectory(temporary);
+      Files.deleteIfExists(directory.resolve(temporary.getFileName() + INDEX_SUFFIX));
+      throw e;
+    }
+
+    final List<String> victims;
+    synchronized (this) {
+      final Entry existing = entryMap.get(key);
+      if (existing != null) {
+        // 同じ内容のプロジェクトが同時に展開された
+        existing.references++;
+        existing.lastUsed = nextTime();
+      } else {
+        // インデックスを最後に置くので，途中で止まってもインデックスのないディレクトリが残るだけになる
+        Files.move(temporary, getPath(key), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(directory.resolve(temporary.getFileName() + INDEX_SUFFIX), getIndexPath(key),
+            StandardCopyOption.ATOMIC_MOVE);
+        final Entry entry = new Entry(bytes, nextTime());
+        entry.verified = true;
+        entry.references = 1;
+        entryMap.put(key, entry);
+      }
+      victims = evict();
+    }
+    if (Files.exists(temporary)) {
+      deleteDirectory(temporary);
+      Files.deleteIfExists(directory.resolve(temporary.getFileName() + INDEX_SUFFIX));
+    }
+    delete(victims);
+    return getPath(key);
+  }
+
+  /**
+   * エントリの使用を終える．合計サイズが上限を超えていれば，使用中でないエントリを削除する
+   *
+   * @param key プロジェクトを識別するキー
+   */
+  public void release(final String key) {
+    final List<String> victims;
+    synchronized (this) {
+      final Entry entry = entryMap.get(key);
+      if (entry != null && entry.references > 0) {
+        entry.references--;
+      }
+      victims = evict();
+    }
+    delete(victims);
+  }
+
+  public synchronized boolean contains(final String key) {
+    return entryMap.containsKey(key);
+  }
+
+  /**
+   * ロックを解放する．保存したエントリは次に開いたときに再利用される
+   */
+  @Override
+  public void close() throws IOException {
+    lockChannel.close();
+  }
+
+  public synchronized long getTotalBytes() {
+    return entryMap.values()
+        .stream()
+        .mapToLong(entry -> entry.bytes)
+        .sum();
+  }
+
+  /**
+   * 以前の起動で作られたエントリを読み込み，展開途中のものを削除する
+   */
+  private void load() throws IOException {
+    final List<Path> paths = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      stream.forEach(paths::add);
+    }
+
+    for (final Path path : paths) {
+      final String name = path.getFileName()
+          .toString();
+      if (name.equals(LOCK_FILE)) {
+        continue;
+      }
+      if (Files.isDirectory(path)) {
+        if (!name.contains(TEMPORARY_SUFFIX) && Files.isRegularFile(getIndexPath(name))) {
+          continue;
+        }
+        deleteDirectory(path);
+      } else if (name.endsWith(INDEX_SUFFIX)) {
+        final String key = name.substring(0, name.length() - INDEX_SUFFIX.length());
+        if (key.contains(TEMPORARY_SUFFIX) || !Files.isDirectory(getPath(key))) {
+          Files.delete(path);
+          continue;
+        }
+        try {
+          entryMap.put(key, new Entry(readIndex(path).stream()
+              .mapToLong(file -> file.size)
+              .sum(), Files.getLastModifiedTime(path)
+                  .toMillis()));
+        } catch (final IOException | RuntimeException e) {
+          log.warn("failed to read index of project cache entry {}", key, e);
+          Files.delete(path);
+          deleteDirectory(getPath(key));
+        }
+      } else {
+        Files.delete(path);
+      }
+    }
+    log.info("project cache {}: {} entries, {} bytes", directory, entryMap.size(),
+        getTotalBytes());
+  }
+
+  /**
+   * 使用順が同じミリ秒内でも区別できるよう，単調に増加する時刻を返す
+   */
+  private synchronized long nextTime() {
+    lastTime = Math.max(System.currentTimeMillis(), lastTime + 1);
+    return lastTime;
+  }
+
+  /**
+   * 合計サイズが上限を超えている間，使用中でないエントリを古い順に取り除く．
+   * ファイルの削除はロックの外で行う
+   *
+   * @return 取り除いたエントリのキー
+   */
+  private synchronized List<String> evict() {
+    final List<String> victims = new ArrayList<>();
+    long totalBytes = getTotalBytes();
+    if (totalBytes <= maxBytes) {
+      return victims;
+    }
+
+    final List<Map.Entry<String, Entry>> candidates = entryMap.entrySet()
+        .stream()
+        .filter(e -> e.getValue().references == 0)
+        .sorted(Comparator.comparingLong(e -> e.getValue().lastUsed))
+        .collect(Collectors.toList());
+    for (final Map.Entry<String, Entry> candidate : candidates) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      entryMap.remove(candidate.getKey());
+      totalBytes -= candidate.getValue().bytes;
+      victims.add(candidate.getKey());
+    }
+    return victims;
+  }
+
+  private void delete(final List<String> keys) {
+    for (final String key : keys) {
+      log.info("evict project cache entry {}", key);
+      delete(key);
+    }
+  }
+
+  /**
+   * エントリを削除する．インデックスを先に消すので，途中で止まっても次の起動時に削除される
+   */
+  private void delete(final String key) {
+    try {
+      Files.deleteIfExists(getIndexPath(key));
+      deleteDirectory(getPath(key));
+    } catch (final IOException e) {
+      log.warn("failed to delete project cache entry {}", key, e);
+    }
+  }
+
+  private boolean verify(final String key) {
+    try {
+      for (final IndexedFile file : readIndex(getIndexPath(key))) {
+        final Path path = getPath(key).resolve(file.name)
+            .normalize();
+        if (!path.startsWith(getPath(key)) || !Files.isRegularFile(path)
+            || Files.size(path) != file.size || computeCrc(path) != file.crc) {
+          return false;
+        }
+      }
+      return true;
+    } catch (final IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void touch(final String key, final Entry entry) {
+    try {
+      Files.setLastModifiedTime(getIndexPath(key), FileTime.fromMillis(entry.lastUsed));
+    } catch (final IOException e) {
+      // 最終使用時刻は次の起動時の削除順にしか使わないので，記録できなくても動作に影響はない
+    }
+  }
+
+  /**
+   * 展開したディレクトリに含まれるファイルを記録する
+   *
+   * @return ファイルサイズの合計
+   */
+  private long writeIndex(final Path root, final Path index) throws IOException {
+    final List<Path> files;
+    try (final Stream<Path> stream = Files.walk(root)) {
+      files = stream.filter(Files::isRegularFile)
+          .sorted()
+          .collect(Collectors.toList());
+    }
+
+    long bytes = 0;
+    try (final BufferedWriter writer = Files.newBufferedWriter(index, StandardCharsets.UTF_8)) {
+      for (final Path file : files) {
+        final long size = Files.size(file);
+        writer.write(Long.toString(size));
+        writer.write('\t');
+        writer.write(Long.toHexString(computeCrc(file)));
+        writer.write('\t');
+        writer.write(root.relativize(file)
+            .toString());
+        writer.newLine();
+        bytes += size;
+      }
+    }
+    return bytes;
+  }
+
+  private List<IndexedFile> readIndex(final Path index) throws IOException {
+    final List<IndexedFile> files = new ArrayList<>();
+    try (final BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] fields = line.split("\t", 3);
+        if (fields.length != 3) {
+          throw new IOException("malformed index: " + index);
+        }
+        files.add(new IndexedFile(fields[2], Long.parseLong(fields[0]),
+            Long.parseLong(fields[1], 16)));
+      }
+    }
+    return files;
+  }
+
+  private long computeCrc(final Path file) throws IOException {
+    final CRC32 crc = new CRC32();
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    try (final InputStream input = Files.newInputStream(file)) {
+      int count;
+      while ((count = input.read(buffer)) != -1) {
+        crc.update(buffer, 0, count);
+      }
+    }
+    return crc.getValue();
+  }
+
+  private void deleteDirectory(final Path root) throws IOException {
+    final List<Path> paths;
+    try (final Stream<Path> stream = Files.walk(root)) {
+      paths = stream.sorted(Comparator.reverseOrder())
+          .collect(Collectors.toList());
+    } catch (final NoSuchFileException e) {
+      return;
+    }
+    for (final Path path : paths) {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  private Path getPath(final String key) {
+    return directory.resolve(key);
+  }
+
+  private Path getIndexPath(final String key) {
+    return directory.resolve(key + INDEX_SUFFIX);
+  }
+
+  /**
+   * プロジェクトを展開する処理
+   */
+  @FunctionalInterface
+  public interface Unpacker {
+
+    /**
+     * @param destination 展開先ディレクトリ．作成済みで空である
+     * @throws IOException 展開に失敗したとき
+     */
+    void unpack(Path destination) throws IOException;
+  }
+
+  private static class Entry {
+
+    private final long bytes;
+    private long lastUsed;
+    private int references;
+    private volatile boolean verified;
+
+    private Entry(final long bytes, final long lastUsed) {
+      this.bytes = bytes;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  private static class IndexedFile {
+
+    private final String name;
+    private final long size;
+    private final long crc;
+
+    private IndexedFile(final String name, final long size, final long crc) {
+      this.name = name;
+      this.size = size;
+      this.crc = crc;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import jp.kusumotolab.kgenprog.grpc.Project;
+
+/**
+ * ワーカー内で1つのプロジェクトのテストを実行するレーン
+ *
+ * プロジェクトの読み込みはレーンを作ったスレッドが1度だけ行い，他のスレッドは読み込みを待つ．
+ * 読み込みはワーカー全体のロックの外で行うので，あるプロジェクトの読み込みが他のプロジェクトのテストを止めることはない
+ */
+class ProjectLane {
+
+  private final int projectId;
+  private final CompletableFuture<Project> project = new CompletableFuture<>();
+  private final CompletableFuture<Void> unloaded = new CompletableFuture<>();
+  private volatile String cacheKey;
+
+  // 以下のフィールドは LocalWorker で同期してアクセスする
+  private int running;
+  private long lastUsed;
+  private boolean loading;
+
+  ProjectLane(final int projectId) {
+    this.projectId = projectId;
+  }
+
+  int getProjectId() {
+    return projectId;
+  }
+
+  /**
+   * 読み込みを担当するかを決める
+   *
+   * @return 最初の呼び出しであれば真
+   */
+  boolean startLoading() {
+    if (loading) {
+      return false;
+    }
+    loading = true;
+    return true;
+  }
+
+  void complete(final Project loaded) {
+    project.complete(loaded);
+  }
+
+  void fail(final Throwable error) {
+    project.completeExceptionally(error);
+  }
+
+  /**
+   * 読み込みを待つ
+   *
+   * @return 読み込んだプロジェクト
+   * @throws RuntimeException 読み込みに失敗したとき
+   */
+  Project await() {
+    try {
+      return project.join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * 読み込みを終え，成功しているか
+   */
+  boolean isLoaded() {
+    return project.isDone() && !project.isCompletedExceptionally();
+  }
+
+  void acquire(final long time) {
+    running++;
+    lastUsed = time;
+  }
+
+  void release() {
+    running--;
+  }
+
+  boolean isIdle() {
+    return running == 0;
+  }
+
+  int getRunning() {
+    return running;
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  /**
+   * プロジェクトキャッシュから借りているエントリのキー．借りていなければnull
+   */
+  String getCacheKey() {
+    return cacheKey;
+  }
+
+  void setCacheKey(final String cacheKey) {
+    this.cacheKey = cacheKey;
+  }
+
+  void markUnloaded() {
+    unloaded.complete(null);
+  }
+
+  /**
+   * 取り除かれたレーンが後片付けを終えるのを待つ
+   */
+  void awaitUnloaded() {
+    unloaded.join();
+  }
+}
@@ -2,24 +2,53 @@ package jp.kusumotolab.kgenprog.worker;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import com.electronwill.nightconfig.core.conversion.InvalidValueException;
+import jp.kusumotolab.kgenprog.grpc.Project;
+import jp.kusumotolab.kgenprog.grpc.SlotPolicy;
 
 public class WorkerConfiguration {
 
   public static final String DEFAULT_HOST = "localhost";
   public static final int DEFAULT_PORT = 50051;
+  public static final int DEFAULT_SLOTS = 1;
+  public static final int DEFAULT_RESULT_CACHE_ENTRIES = Project.DEFAULT_RESULT_CACHE_ENTRIES;
+  public static final String DEFAULT_PROJECT_CACHE_DIR = "worker-cache";
+  public static final long DEFAULT_PROJECT_CACHE_BYTES = 8L * 1024 * 1024 * 1024;
+  public static final long DEFAULT_CHUNK_STORE_BYTES = 4L * 1024 * 1024 * 1024;
 
   private final String host;
   private final int port;
+  private final int slots;
+  private final int resultCacheEntries;
+  private final Path projectCacheDir;
+  private final long projectCacheBytes;
+  private final long chunkStoreBytes;
+  private final int laneSlots;
+  private final long laneMemoryBytes;
+  private final int coverageSelectionInterval;
+  private final boolean prewarmSlots;
+  private final int recycleRuns;
   private Integer workerPort;
 
   protected WorkerConfiguration(
       final WorkerConfiguration.Builder builder) {
     this.host = builder.host;
     this.port = builder.port;
+    this.slots = builder.slots;
+    this.resultCacheEntries = builder.resultCacheEntries;
+    this.projectCacheDir = Paths.get(builder.projectCacheDir);
+    this.projectCacheBytes = builder.projectCacheBytes;
+    this.chunkStoreBytes = builder.chunkStoreBytes;
+    this.laneSlots = builder.laneSlots;
+    this.laneMemoryBytes = builder.laneMemoryBytes;
+    this.coverageSelectionInterval = builder.coverageSelectionInterval;
+    this.prewarmSlots = builder.prewarmSlots;
+    this.recycleRuns = builder.recycleRuns;
     this.workerPort = builder.workerPort;
   }
 
@@ -31,6 +60,38 @@ public class WorkerConfiguration {
     return port;
   }
 
+  public int getSlots() {
+    return slots;
+  }
+
+  public int getResultCacheEntries() {
+    return resultCacheEntries;
+  }
+
+  public Path getProjectCacheDir() {
+    return projectCacheDir;
+  }
+
+  public long getProjectCacheBytes() {
+    return projectCacheBytes;
+  }
+
+  public long getChunkStoreBytes() {
+    return chunkStoreBytes;
+  }
+
+  public LaneBudget getLaneBudget() {
+    return new LaneBudget(laneSlots, laneMemoryBytes);
+  }
+
+  public int getCoverageSelectionInterval() {
+    return coverageSelectionInterval;
+  }
+
+  public SlotPolicy getSlotPolicy() {
+    return new SlotPolicy(prewarmSlots, recycleRuns);
+  }
+
   public int getWorkerPort() {
     if (workerPort != null) {
       return workerPort;
@@ -54,9 +115,19 @@ public class WorkerConfiguration {
 
     private String host = DEFAULT_HOST;
     private int port = DEFAULT_PORT;
+    private int slots = DEFAULT_SLOTS;
+    private int resultCacheEntries = DEFAULT_RESULT_CACHE_ENTRIES;
+    private String projectCacheDir = DEFAULT_PROJECT_CACHE_DIR;
+    private long projectCacheBytes = DEFAULT_PROJECT_CACHE_BYTES;
+    private long chunkStoreBytes = DEFAULT_CHUNK_STORE_BYTES;
+    private int laneSlots = LaneBudget.UNLIMITED;
+    private long laneMemoryBytes = LaneBudget.UNLIMITED;
+    private int coverageSelectionInterval = 0;
+    private boolean prewarmSlots = false;
+    private int recycleRuns = SlotPolicy.NEVER_RECYCLE;
     private Integer workerPort = null;
 
-    private Builder() {
+    public Builder() {
     }
 
     public static WorkerConfiguration buildFromCmdLineArgs(final String[] args)
@@ -96,6 +167,90 @@ public class WorkerConfiguration {
     private void setWorkerPortNumberFromCmdLineParser(final Integer port) {
       this.workerPort = port;
     }
+
+    @Option(name = "--slots", metaVar = "<num>",
+        usage = "Number of tests executed concurrently on this worker.")
+    private void setSlotsFromCmdLineParser(final int slots) {
+      if (slots < 1) {
+        throw new IllegalArgumentException("slots must be positive.");
+      }
+      this.slots = slots;
+    }
+
+    @Option(name = "--result-cache-entries", metaVar = "<num>",
+        usage = "Number of test results kept per project to reuse for variants with identical source code.")
+    private void setResultCacheEntriesFromCmdLineParser(final int resultCacheEntries) {
+      if (resultCacheEntries < 0) {
+        throw new IllegalArgumentException("result-cache-entries must not be negative.");
+      }
+      this.resultCacheEntries = resultCacheEntries;
+    }
+
+    @Option(name = "--project-cache-dir", metaVar = "<path>",
+        usage = "Directory where unpacked projects are kept to reuse after restarting the worker.")
+    private void setProjectCacheDirFromCmdLineParser(final String projectCacheDir) {
+      this.projectCacheDir = projectCacheDir;
+    }
+
+    @Option(name = "--project-cache-bytes", metaVar = "<bytes>",
+        usage = "Maximum total size of unpacked projects kept in the project cache. 0 disables the cache.")
+    private void setProjectCacheBytesFromCmdLineParser(final long projectCacheBytes) {
+      if (projectCacheBytes < 0) {
+        throw new IllegalArgumentException("project-cache-bytes must not be negative.");
+      }
+      this.projectCacheBytes = projectCacheBytes;
+    }
+
+    @Option(name = "--chunk-store-bytes", metaVar = "<bytes>",
+        usage = "Maximum total size of project chunks kept for reuse and for other workers. Least recently used chunks are deleted first.")
+    private void setChunkStoreBytesFromCmdLineParser(final long chunkStoreBytes) {
+      if (chunkStoreBytes < 0) {
+        throw new IllegalArgumentException("chunk-store-bytes must not be negative.");
+      }
+      this.chunkStoreBytes = chunkStoreBytes;
+    }
+
+    @Option(name = "--lane-slots", metaVar = "<num>",
+        usage = "Maximum number of tests of one project executed concurrently on this worker. 0 allows all slots.")
+    private void setLaneSlotsFromCmdLineParser(final int laneSlots) {
+      if (laneSlots < 0) {
+        throw new IllegalArgumentException("lane-slots must not be negative.");
+      }
+      this.laneSlots = laneSlots;
+    }
+
+    @Option(name = "--lane-memory", metaVar = "<bytes>",
+        usage = "Heap assumed for each project, used only to cap the number of loaded projects at (maximum heap size / this value); idle projects over the cap are unloaded. The heap used by each project is not measured or enforced, and projects are not isolated in separate class loaders. 0 disables the cap.")
+    private void setLaneMemoryFromCmdLineParser(final long laneMemoryBytes) {
+      if (laneMemoryBytes < 0) {
+        throw new IllegalArgumentException("lane-memory must not be negative.");
+      }
+      this.laneMemoryBytes = laneMemoryBytes;
+    }
+
+    @Option(name = "--coverage-selection", metaVar = "<num>",
+        usage = "Rerun only the tests covering the lines modified by each variant, and run all tests of every <num>-th variant to check the selection. 0 runs all tests.")
+    private void setCoverageSelectionFromCmdLineParser(final int coverageSelectionInterval) {
+      if (coverageSelectionInterval < 0) {
+        throw new IllegalArgumentException("coverage-selection must not be negative.");
+      }
+      this.coverageSelectionInterval = coverageSelectionInterval;
+    }
+
+    @Option(name = "--prewarm-slots",
+        usage = "Prepare all slots of a project in the background when it is registered, and prepare a replacement whenever a slot is recycled.")
+    private void setPrewarmSlotsFromCmdLineParser(final boolean prewarmSlots) {
+      this.prewarmSlots = prewarmSlots;
+    }
+
+    @Option(name = "--recycle-runs", metaVar = "<num>",
+        usage = "Discard and recreate a slot after it has executed <num> tests. Slots whose test exceeded the time limit are always recreated. 0 never recreates slots by count.")
+    private void setRecycleRunsFromCmdLineParser(final int recycleRuns) {
+      if (recycleRuns < 0) {
+        throw new IllegalArgumentException("recycle-runs must not be negative.");
+      }
+      this.recycleRuns = recycleRuns;
+    }
   }
 
 }
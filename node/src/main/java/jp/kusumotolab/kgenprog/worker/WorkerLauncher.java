@@ -6,6 +6,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
@@ -16,6 +18,9 @@ import jp.kusumotolab.kgenprog.worker.WorkerConfiguration.Builder;
 
 public class WorkerLauncher {
 
+  private static final Logger log = LoggerFactory.getLogger(WorkerLauncher.class);
+  private static final int MAX_PROJECT_CACHE_DIRS = 16;
+
   public static void main(final String[] args) {
     final WorkerLauncher workerLauncher = new WorkerLauncher();
     final WorkerConfiguration workerConfiguration = Builder.buildFromCmdLineArgs(args);
@@ -30,29 +35,62 @@ public class WorkerLauncher {
             .maxInboundMessageSize(Integer.MAX_VALUE)
             .build();
 
-    final CoordinatorClient coordinatorClient = new CoordinatorClient(managedChannel);
     final int freePort = configuration.getWorkerPort();
+    final int slots = configuration.getSlots();
 
     final Path path = Paths.get("worker-" + freePort);
+    final ChunkStore chunkStore;
     try {
-      Files.createDirectory(path);
+      // 同じポートで再起動した場合は，以前のディレクトリをそのまま使う
+      Files.createDirectories(path);
+      chunkStore = new ChunkStore(path.resolve("chunks"), configuration.getChunkStoreBytes());
     } catch (final IOException e) {
       throw new RuntimeException(e);
     }
-    final Worker worker = new LocalWorker(0, path, coordinatorClient);
+    final ProjectCache projectCache = openProjectCache(configuration);
+    final CoordinatorClient coordinatorClient = new CoordinatorClient(managedChannel, chunkStore);
+    final Worker worker =
+        new LocalWorker(0, path, coordinatorClient, configuration, projectCache);
     final WorkerService workerService = new WorkerService(worker);
+    final PeerService peerService = new PeerService(chunkStore);
 
+    // テストの実行中でも他のワーカーへチャンクを配れるよう，スロット数より1つ多くスレッドを用意する
     final Server server = ServerBuilder.forPort(freePort)
         .addService(workerService)
-        .executor(Executors.newSingleThreadExecutor())
+        .addService(peerService)
+        .executor(Executors.newFixedThreadPool(slots + 1))
         .maxInboundMessageSize(Integer.MAX_VALUE)
         .build();
     try {
       server.start();
-      coordinatorClient.registerWorker(freePort);
+      coordinatorClient.registerWorker(freePort, slots);
       server.awaitTermination();
     } catch (final IOException | InterruptedException e) {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * プロジェクトのキャッシュを開く
+   *
+   * 同じホストの他のワーカーが使用中であれば，末尾に番号を付けたディレクトリを順に試す．
+   * どれも開けなければキャッシュを使わない
+   */
+  private ProjectCache openProjectCache(final WorkerConfiguration configuration) {
+    if (configuration.getProjectCacheBytes() <= 0) {
+      return null;
+    }
+    final Path directory = configuration.getProjectCacheDir();
+    for (int i = 0; i < MAX_PROJECT_CACHE_DIRS; i++) {
+      final Path candidate = i == 0 ? directory
+          : directory.resolveSibling(directory.getFileName() + "-" + i);
+      try {
+        return new ProjectCache(candidate, configuration.getProjectCacheBytes());
+      } catch (final IOException e) {
+        log.info("failed to open project cache {}: {}", candidate, e.getMessage());
+      }
+    }
+    log.warn("project cache is disabled");
+    return null;
+  }
 }
@@ -2,6 +2,10 @@ package jp.kusumotolab.kgenprog.worker;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
+import io.grpc.Context.CancellationListener;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import io.reactivex.Single;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
@@ -27,17 +31,40 @@ public class WorkerService extends KGenProgClusterImplBase {
     log.info("executeTest request");
     log.debug(request.toString());
 
-    final Single<GrpcExecuteTestResponse> responseSingle = worker.executeTest(request);
-    responseSingle.subscribe(response -> {
-      log.info("executeTest response");
+    // 待っている間にコーディネータが取り消したり期限が切れたりしていれば実行しない
+    final Context context = Context.current();
+    if (context.isCancelled()) {
+      log.info("executeTest cancelled before execution");
+      responseObserver.onError(Status.CANCELLED.withDescription("executeTest cancelled")
+          .asRuntimeException());
+      return;
+    }
 
-      responseObserver.onNext(response);
-      responseObserver.onCompleted();
-    }, e -> {
-      log.error(e.toString());
-      responseObserver.onError(e);
-    });
+    final Single<GrpcExecuteTestResponse> responseSingle = worker.executeTest(request);
+    final CancellationInterrupter interrupter = new CancellationInterrupter(Thread.currentThread());
+    context.addListener(interrupter, MoreExecutors.directExecutor());
+    try {
+      responseSingle.subscribe(response -> {
+        if (context.isCancelled()) {
+          log.info("executeTest cancelled");
+          return;
+        }
+        log.info("executeTest response");
 
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+      }, e -> {
+        if (context.isCancelled()) {
+          log.info("executeTest cancelled");
+          return;
+        }
+        log.error(e.toString());
+        responseObserver.onError(e);
+      });
+    } finally {
+      context.removeListener(interrupter);
+      interrupter.finish();
+    }
   }
 
   @Override
@@ -57,4 +84,33 @@ public class WorkerService extends KGenProgClusterImplBase {
       responseObserver.onError(e);
     });
   }
+
+  /**
+   * 呼び出しが取り消されたら，テストを実行しているスレッドに割り込んで中断させる
+   */
+  private static class CancellationInterrupter implements CancellationListener {
+
+    private final Thread thread;
+    private boolean running = true;
+
+    private CancellationInterrupter(final Thread thread) {
+      this.thread = thread;
+    }
+
+    @Override
+    public synchronized void cancelled(final Context context) {
+      if (running) {
+        log.info("interrupt cancelled executeTest");
+        thread.interrupt();
+      }
+    }
+
+    /**
+     * 実行が終わった後に割り込まれないようにし，残っている割り込み状態を消す
+     */
+    private synchronized void finish() {
+      running = false;
+      Thread.interrupted();
+    }
+  }
 }
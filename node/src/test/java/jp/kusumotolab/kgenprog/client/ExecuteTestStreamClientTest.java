@@ -0,0 +1,114 @@
+package jp.kusumotolab.kgenprog.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterImplBase;
+
+public class ExecuteTestStreamClientTest {
+
+  @Rule
+  public final GrpcCleanupRule grpcCleanupRule = new GrpcCleanupRule();
+
+  private final AtomicInteger unaryCount = new AtomicInteger(0);
+  private final AtomicInteger streamCount = new AtomicInteger(0);
+
+  @Test
+  public void testStream() throws IOException {
+    final ExecuteTestStreamClient client = createClient(new KGenProgClusterImplBase() {
+
+      @Override
+      public StreamObserver<GrpcExecuteTestStreamRequest> executeTestStream(
+          final StreamObserver<GrpcExecuteTestStreamResponse> responseObserver) {
+        streamCount.incrementAndGet();
+        return new StreamObserver<GrpcExecuteTestStreamRequest>() {
+
+          @Override
+          public void onNext(final GrpcExecuteTestStreamRequest value) {
+            responseObserver.onNext(GrpcExecuteTestStreamResponse.newBuilder()
+                .setId(value.getId())
+                .setResponse(createResponse(value.getRequest()))
+                .build());
+          }
+
+          @Override
+          public void onError(final Throwable t) {}
+
+          @Override
+          public void onCompleted() {
+            responseObserver.onCompleted();
+          }
+        };
+      }
+    });
+
+    assertThat(executeTest(client, 1).getStatus()).isEqualTo(1);
+    assertThat(executeTest(client, 2).getStatus()).isEqualTo(2);
+
+    // 1本のストリームで送られる
+    assertThat(streamCount).hasValue(1);
+    client.close();
+  }
+
+  @Test
+  public void testFallbackToUnary() throws IOException {
+    // executeTestStreamに対応していないコーディネータ
+    final ExecuteTestStreamClient client = createClient(new KGenProgClusterImplBase() {
+
+      @Override
+      public void executeTest(final GrpcExecuteTestRequest request,
+          final StreamObserver<GrpcExecuteTestResponse> responseObserver) {
+        unaryCount.incrementAndGet();
+        responseObserver.onNext(createResponse(request));
+        responseObserver.onCompleted();
+      }
+    });
+
+    assertThat(executeTest(client, 1).getStatus()).isEqualTo(1);
+    assertThat(executeTest(client, 2).getStatus()).isEqualTo(2);
+    assertThat(unaryCount).hasValue(2);
+  }
+
+  private GrpcExecuteTestResponse executeTest(final ExecuteTestStreamClient client,
+      final int projectId) {
+    return client.executeTest(GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId)
+        .build())
+        .blockingGet();
+  }
+
+  private static GrpcExecuteTestResponse createResponse(final GrpcExecuteTestRequest request) {
+    // プロジェクトIDをそのままステータスとして返し，どのリクエストの結果か分かるようにする
+    return GrpcExecuteTestResponse.newBuilder()
+        .setStatus(request.getProjectId() == 0 ? GrpcStatus.SUCCESS : request.getProjectId())
+        .build();
+  }
+
+  private ExecuteTestStreamClient createClient(final BindableService service) throws IOException {
+    final String name = InProcessServerBuilder.generateName();
+    grpcCleanupRule.register(InProcessServerBuilder.forName(name)
+        .directExecutor()
+        .addService(service)
+        .build()
+        .start());
+    final ManagedChannel channel = grpcCleanupRule.register(InProcessChannelBuilder.forName(name)
+        .directExecutor()
+        .build());
+    return new ExecuteTestStreamClient(KGenProgClusterGrpc.newStub(channel),
+        KGenProgClusterGrpc.newFutureStub(channel));
+  }
+}
@@ -23,8 +23,10 @@ import java.util.Optional;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.stubbing.Answer;
 import io.grpc.ManagedChannel;
 import io.grpc.Server;
+import io.grpc.Status;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -38,9 +40,11 @@ import jp.kusumotolab.kgenprog.ga.variant.Variant;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectStreamRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.Project;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
 import jp.kusumotolab.kgenprog.grpc.Serializer;
 import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
 import jp.kusumotolab.kgenprog.project.factory.TargetProject;
@@ -60,6 +64,7 @@ public class RemoteTestExecutorTest {
   private RemoteTestExecutor remoteTestExecutor;
   private TargetProject targetProject;
   private Configuration config;
+  private Answer<Void> executeTestAnswer;
 
   private static final int PROJECT_ID = 100;
 
@@ -82,13 +87,30 @@ public class RemoteTestExecutorTest {
   @Test
   public void testRegister() {
     remoteTestExecutor.initialize();
-    verify(coordinator, times(1)).registerProject(any(), any());
+    verify(coordinator, times(1)).registerProjectStream(any());
+    verify(coordinator, times(0)).registerProject(any(), any());
 
     final Optional<Integer> projectId = remoteTestExecutor.getProjectId();
     assertThat(projectId).isPresent();
     assertThat(projectId.get()).isEqualTo(PROJECT_ID);
   }
 
+  @Test
+  public void testRegisterFallbackToUnary() {
+    // ストリームに対応していないコーディネータ
+    doAnswer(invocation -> {
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver =
+          invocation.getArgument(0);
+      responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+      return new NoopStreamObserver<GrpcRegisterProjectStreamRequest>();
+    }).when(coordinator)
+        .registerProjectStream(any());
+
+    remoteTestExecutor.initialize();
+    verify(coordinator, times(1)).registerProject(any(), any());
+    assertThat(remoteTestExecutor.getProjectId()).contains(PROJECT_ID);
+  }
+
   @Test
   public void testExec() {
     remoteTestExecutor.initialize();
@@ -124,6 +146,32 @@ public class RemoteTestExecutorTest {
         EMPTY, COVERED, EMPTY, COVERED, NOT_COVERED, EMPTY, EMPTY, COVERED, EMPTY, COVERED);
   }
 
+  @Test
+  public void testRetryOnResourceExhausted() {
+    remoteTestExecutor.initialize();
+
+    // 1回目はコーディネータの混雑により拒否される
+    doAnswer(invocation -> {
+      final StreamObserver<GrpcExecuteTestResponse> responseObserver = invocation.getArgument(1);
+      responseObserver.onError(RetryAfter.createException("test request queue is full", 10));
+      return null;
+    }).doAnswer(executeTestAnswer)
+        .when(coordinator)
+        .executeTest(any(), any());
+
+    final GeneratedSourceCode source = TestUtil.createGeneratedSourceCode(targetProject);
+    final Variant variant = mock(Variant.class);
+    when(variant.getGeneratedSourceCode()).thenReturn(source);
+    when(variant.getGene()).thenReturn(new Gene(Collections.emptyList()));
+    final TestResults result = remoteTestExecutor.execAsync(Single.just(variant))
+        .blockingGet();
+
+    // 再送されたリクエストでテストが実行される
+    verify(coordinator, times(2)).executeTest(any(), any());
+    assertThat(result.getExecutedTestFQNs()).containsExactlyInAnyOrder( //
+        FOO_TEST01, FOO_TEST02, FOO_TEST03, FOO_TEST04);
+  }
+
   @Test
   public void testUnregister() {
     remoteTestExecutor.initialize();
@@ -147,7 +195,7 @@ public class RemoteTestExecutorTest {
     final Project project = new Project(0, config);
 
     // テストを実行
-    doAnswer(invocation -> {
+    executeTestAnswer = invocation -> {
       final GrpcExecuteTestRequest request = invocation.getArgument(0);
       final StreamObserver<GrpcExecuteTestResponse> responseObserver = invocation.getArgument(1);
       final Gene gene = Serializer.deserialize(targetProject.rootPath, request.getGene());
@@ -160,10 +208,28 @@ public class RemoteTestExecutorTest {
       responseObserver.onNext(response);
       responseObserver.onCompleted();
       return null;
-    }).when(coordinator)
+    };
+    doAnswer(executeTestAnswer).when(coordinator)
         .executeTest(any(), any());
 
     // 登録のモック処理
+    doAnswer(invocation -> {
+      final StreamObserver<GrpcRegisterProjectResponse> responseObserver =
+          invocation.getArgument(0);
+      return new NoopStreamObserver<GrpcRegisterProjectStreamRequest>() {
+
+        @Override
+        public void onCompleted() {
+          final GrpcRegisterProjectResponse response = GrpcRegisterProjectResponse.newBuilder()
+              .setStatus(GrpcStatus.SUCCESS)
+              .setProjectId(PROJECT_ID)
+              .build();
+          responseObserver.onNext(response);
+          responseObserver.onCompleted();
+        }
+      };
+    }).when(coordinator)
+        .registerProjectStream(any());
     doAnswer(invocation -> {
       final StreamObserver<GrpcRegisterProjectResponse> responseObserver =
           invocation.getArgument(1);
@@ -190,5 +256,16 @@ public class RemoteTestExecutorTest {
     }).when(coordinator)
         .unregisterProject(any(), any());
   }
-}
 
+  private static class NoopStreamObserver<T> implements StreamObserver<T> {
+
+    @Override
+    public void onNext(final T value) {}
+
+    @Override
+    public void onError(final Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+}
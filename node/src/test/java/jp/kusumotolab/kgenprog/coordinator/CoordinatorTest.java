@@ -4,34 +4,53 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ServerServiceDefinition;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
 import io.grpc.testing.GrpcCleanupRule;
 import io.reactivex.Single;
+import io.reactivex.subjects.PublishSubject;
 import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
+import jp.kusumotolab.kgenprog.grpc.CoordinatorServiceGrpc;
+import jp.kusumotolab.kgenprog.grpc.CoordinatorServiceGrpc.CoordinatorServiceBlockingStub;
+import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectStatusResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcPeer;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcRegisterProjectStreamRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcRegisterWorkerResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcWorkerReadiness;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc;
 import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterBlockingStub;
 import jp.kusumotolab.kgenprog.grpc.Worker;
+import jp.kusumotolab.kgenprog.worker.ChunkStore;
 import jp.kusumotolab.kgenprog.worker.CoordinatorClient;
 
 
@@ -40,6 +59,9 @@ public class CoordinatorTest {
   @Rule
   public GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private final String serverName = InProcessServerBuilder.generateName();
   private final InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName(serverName)
       .directExecutor();
@@ -150,14 +172,153 @@ public class CoordinatorTest {
     assertThat(response.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
   }
 
+  @Test
+  public void testRegisterWorkerWithoutWaitingWarmUp() throws IOException {
+    // 展開が終わらないワーカー
+    final Worker worker = mock(Worker.class);
+    when(worker.executeTest(any())).thenReturn(Single.never());
+    startCoordinator(worker);
+    registerBinary(ByteString.copyFromUtf8("kGenProg"));
+    registerBinary(ByteString.copyFromUtf8("kusumoto-lab"));
+
+    // 展開を待たずに登録が終わり，全プロジェクトの展開が並列に始まる
+    final CoordinatorClient coordinatorClient = new CoordinatorClient(channel);
+    final GrpcRegisterWorkerResponse response = coordinatorClient.registerWorker(100, 2);
+    assertThat(response.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+    verify(worker, timeout(5000).times(2)).executeTest(any());
+  }
+
+  @Test
+  public void testGetProjectStatus() throws IOException {
+    final Worker worker = mock(Worker.class);
+    final PublishSubject<GrpcExecuteTestResponse> subject = PublishSubject.create();
+    when(worker.executeTest(any())).thenReturn(subject.firstOrError());
+    when(worker.getName()).thenReturn("worker");
+    startCoordinator(worker);
+    new CoordinatorClient(channel).registerWorker(100);
+
+    // 展開を待たずに登録が終わる
+    final int projectId = registerBinary(ByteString.copyFromUtf8("kGenProg"));
+    verify(worker, timeout(5000).times(1)).executeTest(any());
+    final KGenProgClusterBlockingStub stub = KGenProgClusterGrpc.newBlockingStub(channel);
+    final GrpcGetProjectStatusRequest request = GrpcGetProjectStatusRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    final GrpcGetProjectStatusResponse warming = stub.getProjectStatus(request);
+    assertThat(warming.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+    assertThat(warming.getReadyWorkerCount()).isZero();
+    assertThat(warming.getWorkersList()).extracting(GrpcWorkerReadiness::getState)
+        .containsExactly(GrpcWorkerReadiness.State.WARMING);
+
+    // 展開を終えると READY になる
+    subject.onNext(GrpcExecuteTestResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .build());
+    final GrpcGetProjectStatusResponse ready = stub.getProjectStatus(request);
+    assertThat(ready.getReadyWorkerCount()).isEqualTo(1);
+    assertThat(ready.getWorkersList()).extracting(GrpcWorkerReadiness::getState)
+        .containsExactly(GrpcWorkerReadiness.State.READY);
+
+    // 登録されていないプロジェクト
+    assertThat(stub.getProjectStatus(GrpcGetProjectStatusRequest.newBuilder()
+        .setProjectId(projectId + 1)
+        .build())
+        .getStatus()).isEqualTo(GrpcStatus.FAILED);
+  }
+
+  @Test
+  public void testRegisterSameProject() throws Exception {
+    final Worker worker = mock(Worker.class);
+    when(worker.executeTest(any())).thenReturn(Single.just(GrpcExecuteTestResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .build()));
+    when(worker.unregisterProject(any()))
+        .thenReturn(Single.just(GrpcUnregisterProjectResponse.newBuilder()
+            .setStatus(GrpcStatus.SUCCESS)
+            .build()));
+    when(worker.getName()).thenReturn("worker");
+    startCoordinator(worker);
+    new CoordinatorClient(channel).registerWorker(100);
+
+    // 同じプロジェクトを登録しても別のIDが返り，展開は1度だけ行われる
+    final int projectId1 = registerBinary(ByteString.copyFromUtf8("kGenProg"));
+    final int projectId2 = registerBinary(ByteString.copyFromUtf8("kGenProg"));
+    assertThat(projectId2).isNotEqualTo(projectId1);
+    awaitReady(projectId2);
+    verify(worker, times(1)).executeTest(any());
+
+    // どちらのIDでも，共有しているプロジェクトのテストとして実行される
+    final KGenProgClusterBlockingStub stub = KGenProgClusterGrpc.newBlockingStub(channel);
+    stub.executeTest(GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId2)
+        .build());
+    final ArgumentCaptor<GrpcExecuteTestRequest> captor =
+        ArgumentCaptor.forClass(GrpcExecuteTestRequest.class);
+    verify(worker, times(2)).executeTest(captor.capture());
+    assertThat(captor.getValue()
+        .getProjectId()).isEqualTo(projectId1);
+
+    // 他の登録が残っている間はワーカーから削除しない
+    stub.unregisterProject(GrpcUnregisterProjectRequest.newBuilder()
+        .setProjectId(projectId1)
+        .build());
+    verify(worker, times(0)).unregisterProject(any());
+    assertThat(stub.getProjectStatus(GrpcGetProjectStatusRequest.newBuilder()
+        .setProjectId(projectId1)
+        .build())
+        .getStatus()).isEqualTo(GrpcStatus.FAILED);
+    assertThat(stub.getProjectStatus(GrpcGetProjectStatusRequest.newBuilder()
+        .setProjectId(projectId2)
+        .build())
+        .getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+
+    // 最後の登録を解除するとワーカーから削除する
+    stub.unregisterProject(GrpcUnregisterProjectRequest.newBuilder()
+        .setProjectId(projectId2)
+        .build());
+    final ArgumentCaptor<GrpcUnregisterProjectRequest> unregisterCaptor =
+        ArgumentCaptor.forClass(GrpcUnregisterProjectRequest.class);
+    verify(worker, timeout(5000).times(1)).unregisterProject(unregisterCaptor.capture());
+    assertThat(unregisterCaptor.getValue()
+        .getProjectId()).isEqualTo(projectId1);
+  }
+
+  @Test
+  public void testGetProjectManifestWithPeers() throws Exception {
+    final Worker worker = mock(Worker.class);
+    when(worker.executeTest(any())).thenReturn(Single.just(GrpcExecuteTestResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .build()));
+    when(worker.getName()).thenReturn("worker");
+    startCoordinator(worker);
+    new CoordinatorClient(channel).registerWorker(100);
+    final int projectId = registerBinary(ByteString.copyFromUtf8("kGenProg"));
+
+    final CoordinatorServiceBlockingStub stub = CoordinatorServiceGrpc.newBlockingStub(channel);
+    final GrpcGetProjectRequest request = GrpcGetProjectRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    awaitReady(projectId);
+
+    // 展開を終えたワーカーがチャンクの取得元として伝えられる
+    final GrpcGetProjectManifestResponse manifest = stub.getProjectManifest(request);
+    assertThat(manifest.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+    assertThat(manifest.getPeersList()).extracting(GrpcPeer::getPort)
+        .containsExactly(100);
+  }
+
   @Test
   public void testGetProject() {
     final int projectId1 = registerBinary(ByteString.copyFromUtf8("kGenProg"));
     final int projectId2 = registerBinary(ByteString.copyFromUtf8("kusumoto-lab"));
 
-    final CoordinatorClient coordinatorClient = new CoordinatorClient(channel);
-    final GrpcGetProjectResponse response1 = coordinatorClient.getProject(projectId1);
-    final GrpcGetProjectResponse response2 = coordinatorClient.getProject(projectId2);
+    final CoordinatorServiceBlockingStub stub = CoordinatorServiceGrpc.newBlockingStub(channel);
+    final GrpcGetProjectResponse response1 = stub.getProject(GrpcGetProjectRequest.newBuilder()
+        .setProjectId(projectId1)
+        .build());
+    final GrpcGetProjectResponse response2 = stub.getProject(GrpcGetProjectRequest.newBuilder()
+        .setProjectId(projectId2)
+        .build());
 
     assertThat(response1.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
     assertThat(response2.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
@@ -169,6 +330,122 @@ public class CoordinatorTest {
 
   }
 
+  @Test
+  public void testProjectStream() throws Exception {
+    // 複数のメッセージに分けてプロジェクトを登録する
+    final byte[] bytes = new byte[3 * 1024 * 1024];
+    new Random(0).nextBytes(bytes);
+    final ByteString project = ByteString.copyFrom(bytes);
+    final SettableFuture<GrpcRegisterProjectResponse> registerResponse = SettableFuture.create();
+    final StreamObserver<GrpcRegisterProjectStreamRequest> requestObserver =
+        KGenProgClusterGrpc.newStub(channel)
+            .registerProjectStream(new StreamObserver<GrpcRegisterProjectResponse>() {
+
+              @Override
+              public void onNext(final GrpcRegisterProjectResponse value) {
+                registerResponse.set(value);
+              }
+
+              @Override
+              public void onError(final Throwable t) {
+                registerResponse.setException(t);
+              }
+
+              @Override
+              public void onCompleted() {}
+            });
+    final GrpcConfiguration configuration = GrpcConfiguration.newBuilder()
+        .setTestTimeLimit(10)
+        .build();
+    for (int i = 0; i < project.size(); i += 1024 * 1024) {
+      final GrpcRegisterProjectStreamRequest.Builder builder =
+          GrpcRegisterProjectStreamRequest.newBuilder()
+              .setData(project.substring(i, i + 1024 * 1024));
+      if (i == 0) {
+        builder.setConfiguration(configuration);
+      }
+      requestObserver.onNext(builder.build());
+    }
+    requestObserver.onCompleted();
+    final int projectId = registerResponse.get()
+        .getProjectId();
+
+    // ストリームで取得したプロジェクトは登録したものと一致する
+    final Path zipFile = temporaryFolder.getRoot()
+        .toPath()
+        .resolve("project.zip");
+    final CoordinatorClient coordinatorClient = new CoordinatorClient(channel);
+    final GrpcGetProjectResponse response = coordinatorClient.downloadProject(projectId, zipFile);
+    assertThat(response.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+    assertThat(response.getConfiguration()).isEqualTo(configuration);
+    assertThat(Files.readAllBytes(zipFile)).isEqualTo(bytes);
+
+    // 登録されていないプロジェクト
+    assertThat(coordinatorClient.downloadProject(projectId + 1, zipFile)
+        .getStatus()).isEqualTo(GrpcStatus.FAILED);
+  }
+
+  @Test
+  public void testDownloadProjectByChunks() throws Exception {
+    final byte[] bytes = new byte[3 * 1024 * 1024];
+    new Random(0).nextBytes(bytes);
+    final int projectId = registerBinary(ByteString.copyFrom(bytes));
+
+    // 多数のチャンクに分かれたプロジェクトも，受け取れる分ずつ送られて元に戻る
+    final ChunkStore chunkStore = new ChunkStore(temporaryFolder.newFolder()
+        .toPath());
+    final Path zipFile = temporaryFolder.getRoot()
+        .toPath()
+        .resolve("project.zip");
+    final CoordinatorClient coordinatorClient = new CoordinatorClient(channel, chunkStore);
+    final GrpcGetProjectResponse response = coordinatorClient.downloadProject(projectId, zipFile);
+    assertThat(response.getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+    assertThat(Files.readAllBytes(zipFile)).isEqualTo(bytes);
+  }
+
+  /**
+   * 常に指定したワーカーを登録するコーディネータを起動し，そのチャネルを使うようにする
+   */
+  private void startCoordinator(final Worker worker) throws IOException {
+    final Coordinator workerCoordinator =
+        new Coordinator(new ClusterConfiguration.Builder().build()) {
+
+          @Override
+          protected Worker createWorker(final int workerId, final String name, final int port) {
+            return worker;
+          }
+        };
+    final String name = InProcessServerBuilder.generateName();
+    final InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName(name)
+        .directExecutor();
+    for (final ServerServiceDefinition service : workerCoordinator.getServices()) {
+      serverBuilder.addService(service);
+    }
+    grpcCleanup.register(serverBuilder.build()
+        .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name)
+        .directExecutor()
+        .build());
+  }
+
+  /**
+   * プロジェクトを展開し終えたワーカーが現れるまで待つ
+   */
+  private void awaitReady(final int projectId) throws InterruptedException {
+    final KGenProgClusterBlockingStub stub = KGenProgClusterGrpc.newBlockingStub(channel);
+    final GrpcGetProjectStatusRequest request = GrpcGetProjectStatusRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    for (int i = 0; i < 500; i++) {
+      if (stub.getProjectStatus(request)
+          .getReadyWorkerCount() > 0) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("project " + projectId + " is not ready");
+  }
+
   private int registerBinary(final ByteString byteString) {
     final KGenProgClusterBlockingStub kGenProgClusterBlockingStub = KGenProgClusterGrpc.newBlockingStub(
         channel);
@@ -0,0 +1,203 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestStreamResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
+
+public class ExecuteTestStreamTest {
+
+  @Rule
+  public final GrpcCleanupRule grpcCleanupRule = new GrpcCleanupRule();
+
+  private final Map<Integer, StreamObserver<GrpcExecuteTestResponse>> observerMap =
+      new ConcurrentHashMap<>();
+  private final AtomicBoolean cancelled = new AtomicBoolean(false);
+  private ManagedChannel channel;
+
+  @Before
+  public void setup() throws IOException {
+    // プロジェクトIDごとに結果を返すための口を保持しておくコーディネータ
+    final Coordinator coordinator = mock(Coordinator.class);
+    doAnswer(invocation -> {
+      final GrpcExecuteTestRequest request = invocation.getArgument(0);
+      final ServerCallStreamObserver<GrpcExecuteTestResponse> observer = invocation.getArgument(1);
+      observer.setOnCancelHandler(() -> cancelled.set(true));
+      observerMap.put(request.getProjectId(), observer);
+      return null;
+    }).when(coordinator)
+        .executeTest(any(), any());
+
+    final String name = InProcessServerBuilder.generateName();
+    grpcCleanupRule.register(InProcessServerBuilder.forName(name)
+        .directExecutor()
+        .addService(new KGenProgCluster(coordinator))
+        .build()
+        .start());
+    channel = grpcCleanupRule.register(InProcessChannelBuilder.forName(name)
+        .directExecutor()
+        .build());
+  }
+
+  @Test
+  public void testResultsCorrelatedById() {
+    final List<GrpcExecuteTestStreamResponse> responses = new ArrayList<>();
+    final AtomicBoolean completed = new AtomicBoolean(false);
+    final StreamObserver<GrpcExecuteTestStreamRequest> requestObserver =
+        KGenProgClusterGrpc.newStub(channel)
+            .executeTestStream(createResponseObserver(responses, completed));
+
+    requestObserver.onNext(createRequest(10, 1));
+    requestObserver.onNext(createRequest(11, 2));
+    requestObserver.onCompleted();
+
+    // 後に送ったものが先に終わっても，IDで対応付けられる
+    respond(2, GrpcStatus.FAILED);
+    respond(1, GrpcStatus.SUCCESS);
+
+    assertThat(responses).extracting(GrpcExecuteTestStreamResponse::getId)
+        .containsExactly(11L, 10L);
+    assertThat(responses).extracting(r -> r.getResponse()
+        .getStatus())
+        .containsExactly(GrpcStatus.FAILED, GrpcStatus.SUCCESS);
+    assertThat(completed).isTrue();
+  }
+
+  @Test
+  public void testRejectedRequest() {
+    final List<GrpcExecuteTestStreamResponse> responses = new ArrayList<>();
+    final StreamObserver<GrpcExecuteTestStreamRequest> requestObserver =
+        KGenProgClusterGrpc.newStub(channel)
+            .executeTestStream(createResponseObserver(responses, new AtomicBoolean()));
+
+    requestObserver.onNext(createRequest(0, 1));
+    observerMap.get(1)
+        .onError(RetryAfter.createException("test request queue is full", 500));
+
+    assertThat(responses).hasSize(1);
+    assertThat(responses.get(0)
+        .getErrorCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED.value());
+    assertThat(responses.get(0)
+        .getRetryAfterMillis()).isEqualTo(500);
+    requestObserver.onCompleted();
+  }
+
+  @Test
+  public void testCancel() {
+    final StreamObserver<GrpcExecuteTestStreamRequest> requestObserver =
+        KGenProgClusterGrpc.newStub(channel)
+            .executeTestStream(createResponseObserver(new ArrayList<>(), new AtomicBoolean()));
+
+    requestObserver.onNext(createRequest(0, 1));
+    assertThat(cancelled).isFalse();
+
+    requestObserver.onNext(GrpcExecuteTestStreamRequest.newBuilder()
+        .setId(0)
+        .setCancel(true)
+        .build());
+    assertThat(cancelled).isTrue();
+    assertThat(((ServerCallStreamObserver<GrpcExecuteTestResponse>) observerMap.get(1))
+        .isCancelled()).isTrue();
+    requestObserver.onCompleted();
+  }
+
+  @Test
+  public void testFlowControl() {
+    final Coordinator coordinator = mock(Coordinator.class);
+    final List<StreamObserver<GrpcExecuteTestResponse>> observers = new ArrayList<>();
+    doAnswer(invocation -> observers.add(invocation.getArgument(1))).when(coordinator)
+        .executeTest(any(), any());
+    @SuppressWarnings("unchecked") final ServerCallStreamObserver<GrpcExecuteTestStreamResponse> responseObserver =
+        mock(ServerCallStreamObserver.class);
+    final AtomicBoolean ready = new AtomicBoolean(false);
+    when(responseObserver.isReady()).then(invocation -> ready.get());
+    final ExecuteTestStream stream = new ExecuteTestStream(coordinator, responseObserver);
+    final ArgumentCaptor<Runnable> onReadyHandler = ArgumentCaptor.forClass(Runnable.class);
+    verify(responseObserver).setOnReadyHandler(onReadyHandler.capture());
+    verify(responseObserver, times(1)).request(1);
+
+    // クライアントが受け取れない間は結果を溜めておき，上限に達したら次のリクエストを読まない
+    final int count = ExecuteTestStream.MAX_BUFFERED_RESPONSES;
+    for (int i = 0; i < count; i++) {
+      stream.onNext(createRequest(i, 1));
+      respond(observers.get(i), GrpcStatus.SUCCESS);
+    }
+    verify(responseObserver, never()).onNext(any());
+    verify(responseObserver, times(count + 1)).request(1);
+    stream.onNext(createRequest(count, 1));
+    verify(responseObserver, times(count + 1)).request(1);
+
+    // 受け取れるようになれば溜まった結果を書き出し，リクエストを読むのを再開する
+    ready.set(true);
+    onReadyHandler.getValue()
+        .run();
+    verify(responseObserver, times(count)).onNext(any());
+    verify(responseObserver, times(count + 2)).request(1);
+  }
+
+  private void respond(final int projectId, final int status) {
+    respond(observerMap.get(projectId), status);
+  }
+
+  private void respond(final StreamObserver<GrpcExecuteTestResponse> observer, final int status) {
+    observer.onNext(GrpcExecuteTestResponse.newBuilder()
+        .setStatus(status)
+        .build());
+    observer.onCompleted();
+  }
+
+  private GrpcExecuteTestStreamRequest createRequest(final long id, final int projectId) {
+    return GrpcExecuteTestStreamRequest.newBuilder()
+        .setId(id)
+        .setRequest(GrpcExecuteTestRequest.newBuilder()
+            .setProjectId(projectId))
+        .build();
+  }
+
+  private StreamObserver<GrpcExecuteTestStreamResponse> createResponseObserver(
+      final List<GrpcExecuteTestStreamResponse> responses, final AtomicBoolean completed) {
+    return new StreamObserver<GrpcExecuteTestStreamResponse>() {
+
+      @Override
+      public void onNext(final GrpcExecuteTestStreamResponse value) {
+        responses.add(value);
+      }
+
+      @Override
+      public void onError(final Throwable t) {}
+
+      @Override
+      public void onCompleted() {
+        completed.set(true);
+      }
+    };
+  }
+}
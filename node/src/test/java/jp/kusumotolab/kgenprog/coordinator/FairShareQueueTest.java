@@ -0,0 +1,118 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+
+public class FairShareQueueTest {
+
+  @Test
+  public void testWeightedShare() {
+    final FairShareQueue queue = new FairShareQueue();
+    queue.setWeight(1, 2);
+    queue.setWeight(2, 1);
+    for (int i = 0; i < 6; i++) {
+      queue.add(createTestRequest(1, i));
+      queue.add(createTestRequest(2, i));
+    }
+    assertThat(queue.size()).isEqualTo(12);
+
+    final List<Integer> projectIds = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      projectIds.add(poll(queue).getRequest()
+          .getProjectId());
+    }
+
+    // 重み2:1なので取り出されたリクエストの数も2:1になる
+    assertThat(projectIds).filteredOn(id -> id == 1)
+        .hasSize(4);
+    assertThat(projectIds).filteredOn(id -> id == 2)
+        .hasSize(2);
+    assertThat(queue.size(1)).isEqualTo(2);
+    assertThat(queue.size(2)).isEqualTo(4);
+  }
+
+  @Test
+  public void testFifoInProject() {
+    final FairShareQueue queue = new FairShareQueue();
+    for (int i = 0; i < 3; i++) {
+      queue.add(createTestRequest(1, i));
+    }
+
+    assertThat(poll(queue).getTestId()).isEqualTo(0);
+    assertThat(poll(queue).getTestId()).isEqualTo(1);
+    assertThat(poll(queue).getTestId()).isEqualTo(2);
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testIdleProjectDoesNotAccumulateCredit() {
+    final FairShareQueue queue = new FairShareQueue();
+    for (int i = 0; i < 10; i++) {
+      queue.add(createTestRequest(1, i));
+    }
+    for (int i = 0; i < 5; i++) {
+      poll(queue);
+    }
+
+    // 後から来たプロジェクトが先行するプロジェクトを締め出さない
+    for (int i = 0; i < 5; i++) {
+      queue.add(createTestRequest(2, i));
+    }
+    final List<Integer> projectIds = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      projectIds.add(poll(queue).getRequest()
+          .getProjectId());
+    }
+    assertThat(projectIds).containsOnly(1, 2)
+        .filteredOn(id -> id == 1)
+        .hasSize(2);
+  }
+
+  @Test
+  public void testDiscard() {
+    final FairShareQueue queue = new FairShareQueue();
+    final ExecuteTestRequest request1 = createTestRequest(1, 0);
+    final ExecuteTestRequest request2 = createTestRequest(1, 1);
+    queue.add(request1);
+    queue.add(request2);
+
+    assertThat(queue.discard(request2)).isTrue();
+    assertThat(queue.discard(request2)).isFalse();
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.heads()).containsExactly(request1);
+  }
+
+  @Test
+  public void testInvalidWeight() {
+    final FairShareQueue queue = new FairShareQueue();
+    queue.setWeight(1, 0);
+    assertThat(queue.getWeight(1)).isEqualTo(1);
+    assertThat(queue.getWeight(2)).isEqualTo(ClusterConfiguration.DEFAULT_WEIGHT);
+
+    queue.removeWeight(1);
+    assertThat(queue.getWeight(1)).isEqualTo(ClusterConfiguration.DEFAULT_WEIGHT);
+  }
+
+  private ExecuteTestRequest poll(final FairShareQueue queue) {
+    final ExecuteTestRequest request = queue.heads()
+        .get(0);
+    queue.remove(request);
+    return request;
+  }
+
+  private ExecuteTestRequest createTestRequest(final int projectId, final int testId) {
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    @SuppressWarnings("unchecked") final StreamObserver<GrpcExecuteTestResponse> mockObserver = mock(
+        StreamObserver.class);
+    return new ExecuteTestRequest(request, mockObserver, "localhost", 8080, 0, testId);
+  }
+}
@@ -0,0 +1,34 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+  @Test
+  public void testPercentile() {
+    final LatencyTracker tracker = new LatencyTracker(100);
+    assertThat(tracker.getPercentile(0.5)).isEmpty();
+
+    for (int i = 100; i > 0; i--) {
+      tracker.add(i);
+    }
+    assertThat(tracker.size()).isEqualTo(100);
+    assertThat(tracker.getPercentile(0.5)).hasValue(50);
+    assertThat(tracker.getPercentile(0.95)).hasValue(95);
+    assertThat(tracker.getPercentile(1.0)).hasValue(100);
+  }
+
+  @Test
+  public void testWindow() {
+    final LatencyTracker tracker = new LatencyTracker(3);
+    tracker.add(1000);
+    tracker.add(1);
+    tracker.add(2);
+    tracker.add(3);
+
+    // 古い記録から捨てられる
+    assertThat(tracker.size()).isEqualTo(3);
+    assertThat(tracker.getPercentile(1.0)).hasValue(3);
+  }
+}
@@ -0,0 +1,132 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.grpc.ContentDefinedChunker;
+
+public class ProjectChunkStoreTest {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+  private ProjectChunkStore store;
+
+  @Before
+  public void setup() throws IOException {
+    directory = temporaryFolder.getRoot()
+        .toPath()
+        .resolve("chunks");
+    store = new ProjectChunkStore(directory);
+  }
+
+  @Test
+  public void testPutAndGet() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+
+    final List<ByteString> digests = store.put(0, project);
+    assertThat(store.getManifest(0)).hasValue(digests);
+    assertThat(store.getProject(0)).hasValue(project);
+    assertThat(store.getChunk(digests.get(0))).isPresent();
+    assertThat(store.getProject(1)).isEmpty();
+  }
+
+  @Test
+  public void testShareChunks() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+    final ByteString similarProject = project.concat(createRandomBytes(1, 1024));
+
+    store.put(0, project);
+    final int chunkCount = store.getChunkCount();
+
+    // 末尾だけが異なるプロジェクトは，ほとんどのチャンクを共有する
+    store.put(1, similarProject);
+    assertThat(store.getChunkCount()).isLessThanOrEqualTo(chunkCount + 2);
+    assertThat(store.getProject(1)).hasValue(similarProject);
+
+    // 片方を捨てても，もう片方は復元できる
+    store.remove(0);
+    assertThat(store.getProject(1)).hasValue(similarProject);
+
+    store.remove(1);
+    assertThat(store.getChunkCount()).isZero();
+  }
+
+  @Test
+  public void testUpload() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+
+    final ProjectChunkStore.Upload upload = store.startUpload();
+    for (int i = 0; i < project.size(); i += 100 * 1024) {
+      upload.write(project.substring(i, Math.min(i + 100 * 1024, project.size())));
+    }
+    assertThat(upload.getSize()).isEqualTo(project.size());
+    final List<ByteString> digests = upload.commit(0);
+    assertThat(digests).isEqualTo(ContentDefinedChunker.split(project)
+        .stream()
+        .map(ContentDefinedChunker::digest)
+        .collect(Collectors.toList()));
+    assertThat(store.getProject(0)).hasValue(project);
+
+    // 中断した場合は，受け取ったチャンクを手放す
+    final ProjectChunkStore.Upload abortedUpload = store.startUpload();
+    abortedUpload.write(createRandomBytes(1, 1024 * 1024));
+    assertThat(store.getChunkCount()).isGreaterThan(digests.size());
+    abortedUpload.abort();
+    assertThat(store.getChunkCount()).isEqualTo(digests.size());
+  }
+
+  @Test
+  public void testChunkFiles() throws IOException {
+    final List<ByteString> digests = store.put(0, createRandomBytes(0, 1024 * 1024));
+
+    // チャンクはファイルに書き出される
+    assertThat(directory.toFile()
+        .list()).hasSize(digests.size());
+
+    store.remove(0);
+    assertThat(directory.toFile()
+        .list()).isEmpty();
+  }
+
+  @Test
+  public void testReadChunkFromFile() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+    final List<ByteString> digests = store.put(0, project);
+    final ByteString chunk = store.getChunk(digests.get(0))
+        .get();
+    assertThat(ContentDefinedChunker.digest(chunk)).isEqualTo(digests.get(0));
+
+    // 読み込んだチャンクはファイルを削除した後も使える
+    store.remove(0);
+    assertThat(store.getChunk(digests.get(0))).isEmpty();
+    assertThat(ContentDefinedChunker.digest(chunk)).isEqualTo(digests.get(0));
+    assertThat(project.startsWith(chunk)).isTrue();
+  }
+
+  @Test
+  public void testRemoveStaleChunks() throws IOException {
+    store.put(0, createRandomBytes(0, 1024 * 1024));
+
+    // 作り直すと前回のチャンクは消える
+    final ProjectChunkStore newStore = new ProjectChunkStore(directory);
+    assertThat(directory.toFile()
+        .list()).isEmpty();
+    assertThat(newStore.getProject(0)).isEmpty();
+  }
+
+  private ByteString createRandomBytes(final long seed, final int size) {
+    final byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+}
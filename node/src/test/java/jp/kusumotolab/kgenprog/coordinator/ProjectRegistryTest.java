@@ -0,0 +1,65 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.grpc.GrpcConfiguration;
+
+public class ProjectRegistryTest {
+
+  @Test
+  public void testComputeKey() {
+    final ByteString digest = ByteString.copyFromUtf8("chunk");
+    final GrpcConfiguration configuration = GrpcConfiguration.newBuilder()
+        .setTestTimeLimit(60)
+        .build();
+    final ByteString key =
+        ProjectRegistry.computeKey(Collections.singletonList(digest), configuration);
+
+    assertThat(ProjectRegistry.computeKey(Collections.singletonList(digest), configuration))
+        .isEqualTo(key);
+    // 設定や内容が異なれば別のプロジェクトとして扱う
+    assertThat(ProjectRegistry.computeKey(Collections.singletonList(digest),
+        configuration.toBuilder()
+            .setTestTimeLimit(120)
+            .build())).isNotEqualTo(key);
+    assertThat(ProjectRegistry.computeKey(Arrays.asList(digest, digest), configuration))
+        .isNotEqualTo(key);
+  }
+
+  @Test
+  public void testRegisterAndUnregister() {
+    final ProjectRegistry registry = new ProjectRegistry();
+    final ByteString key = ByteString.copyFromUtf8("key");
+
+    final ProjectRegistry.Registration first = registry.register(key, 0, 1);
+    assertThat(first.getProjectId()).isEqualTo(0);
+    assertThat(first.isChanged()).isTrue();
+
+    // 同じキーの登録は最初のプロジェクトを共有し，重みは合計される
+    final ProjectRegistry.Registration second = registry.register(key, 1, 2);
+    assertThat(second.getProjectId()).isEqualTo(0);
+    assertThat(second.isChanged()).isFalse();
+    assertThat(second.getWeight()).isEqualTo(3);
+    assertThat(registry.resolve(1)).hasValue(0);
+    assertThat(registry.getReferenceCount(0)).isEqualTo(2);
+
+    // 最初の登録を解除しても，共有しているプロジェクトは残る
+    final ProjectRegistry.Registration firstRemoved = registry.unregister(0);
+    assertThat(firstRemoved.isChanged()).isFalse();
+    assertThat(firstRemoved.getWeight()).isEqualTo(2);
+    assertThat(registry.resolve(0)).isEmpty();
+    assertThat(registry.resolve(1)).hasValue(0);
+
+    final ProjectRegistry.Registration secondRemoved = registry.unregister(1);
+    assertThat(secondRemoved.getProjectId()).isEqualTo(0);
+    assertThat(secondRemoved.isChanged()).isTrue();
+    assertThat(registry.unregister(1)).isNull();
+
+    // 全て解除された後は新しいプロジェクトとして登録される
+    assertThat(registry.register(key, 2, 1)
+        .getProjectId()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,130 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.KGenProgClusterGrpc.KGenProgClusterImplBase;
+
+/**
+ * 多数のテストを同時に実行中にしても，コーディネータのスレッドが増えないことを確かめる負荷試験
+ */
+public class RemoteWorkerLoadTest {
+
+  private static final Logger log = LoggerFactory.getLogger(RemoteWorkerLoadTest.class);
+
+  private static final int IN_FLIGHT_TESTS = 1000;
+  private static final int CALL_EXECUTOR_THREADS = 4;
+
+  @Rule
+  public final GrpcCleanupRule grpcCleanupRule = new GrpcCleanupRule();
+
+  private final ExecutorService callExecutor = Executors.newFixedThreadPool(CALL_EXECUTOR_THREADS);
+
+  @After
+  public void tearDown() {
+    callExecutor.shutdownNow();
+  }
+
+  @Test(timeout = 60_000)
+  public void testThousandInFlightTests() throws IOException, InterruptedException {
+    // 受け取ったテストを保留しておき，全て揃ってから応答するワーカー
+    final List<StreamObserver<GrpcExecuteTestResponse>> pendingObservers =
+        Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch arrivedLatch = new CountDownLatch(IN_FLIGHT_TESTS);
+    final KGenProgClusterImplBase workerService = new KGenProgClusterImplBase() {
+
+      @Override
+      public void executeTest(final GrpcExecuteTestRequest request,
+          final StreamObserver<GrpcExecuteTestResponse> responseObserver) {
+        pendingObservers.add(responseObserver);
+        arrivedLatch.countDown();
+      }
+    };
+
+    final String name = InProcessServerBuilder.generateName();
+    grpcCleanupRule.register(InProcessServerBuilder.forName(name)
+        .directExecutor()
+        .addService(workerService)
+        .build()
+        .start());
+    final ManagedChannel channel = grpcCleanupRule.register(InProcessChannelBuilder.forName(name)
+        .executor(callExecutor)
+        .build());
+
+    final WorkerSet workerSet = new WorkerSet();
+    workerSet.addWorker(new RemoteWorker(0, "load-test", channel), IN_FLIGHT_TESTS);
+
+    final int threadsBefore = Thread.activeCount();
+    final long[] responseTimes = new long[IN_FLIGHT_TESTS];
+    final CountDownLatch respondedLatch = new CountDownLatch(IN_FLIGHT_TESTS);
+    final long dispatchStart = System.nanoTime();
+    for (int i = 0; i < IN_FLIGHT_TESTS; i++) {
+      final int index = i;
+      final StreamObserver<GrpcExecuteTestResponse> observer =
+          new StreamObserver<GrpcExecuteTestResponse>() {
+
+            @Override
+            public void onNext(final GrpcExecuteTestResponse value) {
+              responseTimes[index] = System.nanoTime();
+            }
+
+            @Override
+            public void onError(final Throwable t) {}
+
+            @Override
+            public void onCompleted() {
+              respondedLatch.countDown();
+            }
+          };
+      final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+          .setProjectId(0)
+          .build();
+      workerSet.executeTest(new ExecuteTestRequest(request, observer, "localhost", 8080, i, i));
+    }
+
+    assertThat(arrivedLatch.await(30, TimeUnit.SECONDS)).isTrue();
+    final long dispatchMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dispatchStart);
+    final int threadsInFlight = Thread.activeCount();
+
+    final long releaseTime = System.nanoTime();
+    synchronized (pendingObservers) {
+      for (final StreamObserver<GrpcExecuteTestResponse> observer : pendingObservers) {
+        observer.onNext(GrpcExecuteTestResponse.getDefaultInstance());
+        observer.onCompleted();
+      }
+    }
+    assertThat(respondedLatch.await(30, TimeUnit.SECONDS)).isTrue();
+
+    final long[] latencies = new long[IN_FLIGHT_TESTS];
+    for (int i = 0; i < IN_FLIGHT_TESTS; i++) {
+      latencies[i] = TimeUnit.NANOSECONDS.toMicros(responseTimes[i] - releaseTime);
+    }
+    Arrays.sort(latencies);
+    log.info("{} tests in flight: dispatch {} ms, threads {} -> {}, latency p50 {} us, p99 {} us",
+        IN_FLIGHT_TESTS, dispatchMillis, threadsBefore, threadsInFlight,
+        latencies[IN_FLIGHT_TESTS / 2], latencies[IN_FLIGHT_TESTS * 99 / 100]);
+
+    // 実行中のテストの数ではなく，Executorの大きさの分だけしかスレッドは増えない
+    assertThat(threadsInFlight - threadsBefore)
+        .isLessThanOrEqualTo(WorkerSet.EVENT_LOOP_THREADS + CALL_EXECUTOR_THREADS + 2);
+  }
+}
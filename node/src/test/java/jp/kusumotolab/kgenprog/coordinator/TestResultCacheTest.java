@@ -0,0 +1,278 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.reactivex.Single;
+import jp.kusumotolab.kgenprog.grpc.GrpcASTLocation;
+import jp.kusumotolab.kgenprog.grpc.GrpcBase;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGene;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.GrpcTestResults;
+import jp.kusumotolab.kgenprog.grpc.Worker;
+
+public class TestResultCacheTest {
+
+  private static final GrpcExecuteTestResponse RESPONSE = GrpcExecuteTestResponse.newBuilder()
+      .setStatus(GrpcStatus.SUCCESS)
+      .setTestResults(GrpcTestResults.newBuilder()
+          .setEmpty(true))
+      .build();
+
+  @Test
+  public void testHit() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    final ExecuteTestRequest request1 = createTestRequest(1, "A.java");
+    cache.executeTest(request1);
+    respond(workerSet, 1, RESPONSE);
+    verify(request1.getStreamObserver(), times(1)).onNext(RESPONSE);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.getBytes()).isEqualTo(RESPONSE.getTestResults()
+        .getSerializedSize());
+
+    // 同じ遺伝子はワーカーで実行せずにキャッシュから返す
+    final ExecuteTestRequest request2 = createTestRequest(1, "A.java");
+    cache.executeTest(request2);
+    verify(workerSet, times(1)).executeTest(any());
+    verify(request2.getStreamObserver(), times(1)).onNext(RESPONSE);
+
+    // プロジェクトが違えば別の結果
+    cache.executeTest(createTestRequest(2, "A.java"));
+    verify(workerSet, times(2)).executeTest(any());
+  }
+
+  @Test
+  public void testSharedExecution() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    // 実行中のテストと同じ遺伝子は，実行を1回にまとめる
+    final ExecuteTestRequest request1 = createTestRequest(1, "A.java");
+    final ExecuteTestRequest request2 = createTestRequest(1, "A.java");
+    cache.executeTest(request1);
+    cache.executeTest(request2);
+    verify(workerSet, times(1)).executeTest(any());
+
+    respond(workerSet, 1, RESPONSE);
+    verify(request1.getStreamObserver(), times(1)).onNext(RESPONSE);
+    verify(request2.getStreamObserver(), times(1)).onNext(RESPONSE);
+  }
+
+  @Test
+  public void testCancelSharedExecution() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    final ExecuteTestRequest request1 = createTestRequest(1, "A.java");
+    final ExecuteTestRequest request2 = createTestRequest(1, "A.java");
+    cache.executeTest(request1);
+    cache.executeTest(request2);
+
+    // 結果を待つリクエストが残っていれば実行は続ける
+    cache.cancelTest(request1);
+    verify(workerSet, never()).cancelTest(any());
+
+    cache.cancelTest(request2);
+    verify(workerSet, times(1)).cancelTest(any());
+  }
+
+  @Test
+  public void testEviction() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 2, 1024);
+
+    cache.executeTest(createTestRequest(1, "A.java"));
+    cache.executeTest(createTestRequest(1, "B.java"));
+    respond(workerSet, 2, RESPONSE);
+
+    // Aを使ってから新しい結果を入れると，使われていないBが捨てられる
+    cache.executeTest(createTestRequest(1, "A.java"));
+    cache.executeTest(createTestRequest(1, "C.java"));
+    respond(workerSet, 3, RESPONSE);
+    assertThat(cache.size()).isEqualTo(2);
+
+    cache.executeTest(createTestRequest(1, "A.java"));
+    verify(workerSet, times(3)).executeTest(any());
+    cache.executeTest(createTestRequest(1, "B.java"));
+    verify(workerSet, times(4)).executeTest(any());
+  }
+
+  @Test
+  public void testFailureNotCached() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    final ExecuteTestRequest request1 = createTestRequest(1, "A.java");
+    cache.executeTest(request1);
+    final ExecuteTestRequest executed = captureExecutedRequests(workerSet, 1)[0];
+    final Throwable error = Status.UNAVAILABLE.asRuntimeException();
+    executed.getStreamObserver()
+        .onError(error);
+    verify(request1.getStreamObserver(), times(1)).onError(error);
+
+    cache.executeTest(createTestRequest(1, "A.java"));
+    verify(workerSet, times(2)).executeTest(any());
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void testExecutionTestsInKey() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    cache.executeTest(createTestRequest(1, "A.java", "ATest"));
+    respond(workerSet, 1, RESPONSE);
+
+    // 実行対象テストケースが違えば，同じ遺伝子でも別の結果
+    cache.executeTest(createTestRequest(1, "A.java"));
+    verify(workerSet, times(2)).executeTest(any());
+    cache.executeTest(createTestRequest(1, "A.java", "BTest"));
+    verify(workerSet, times(3)).executeTest(any());
+
+    final ExecuteTestRequest hit = createTestRequest(1, "A.java", "ATest");
+    cache.executeTest(hit);
+    verify(workerSet, times(3)).executeTest(any());
+    verify(hit.getStreamObserver(), times(1)).onNext(RESPONSE);
+  }
+
+  @Test
+  public void testInvalidateOnSendFailure() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    // クライアントに結果を送れなければ，そのクライアントの以前のリクエストを無効にする
+    final ExecuteTestRequest request = createTestRequest(1, "A.java");
+    doThrow(new IllegalStateException()).when(request.getStreamObserver())
+        .onNext(any());
+    cache.executeTest(request);
+    respond(workerSet, 1, RESPONSE);
+    verify(workerSet, times(1)).invalidateRequests(request);
+  }
+
+  @Test
+  public void testRetryAfterLeaderInvalidated() {
+    final ExecutorService executorService = MoreExecutors.newDirectExecutorService();
+    final WorkerSet workerSet = new WorkerSet() {
+
+      @Override
+      protected ExecutorService getExecutorService() {
+        return executorService;
+      }
+    };
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    // 別々のクライアントから同じ遺伝子のリクエストを受け付ける
+    final ExecuteTestRequest request1 = createTestRequestFrom(1, "A.java", "client1");
+    final ExecuteTestRequest request2 = createTestRequestFrom(1, "A.java", "client2");
+    cache.executeTest(request1);
+    cache.executeTest(request2);
+
+    // 割り当てを待っている間に最初のクライアントが無効になる
+    workerSet.invalidateRequests(createTestRequestFrom(1, "B.java", "client1"));
+    final Worker worker = mock(Worker.class);
+    when(worker.executeTest(any())).thenReturn(Single.just(RESPONSE));
+    workerSet.addWorker(worker);
+
+    // 残ったリクエストの情報で実行し直し，結果を待っていたリクエストに返す
+    verify(worker, times(1)).executeTest(any());
+    verify(request1.getStreamObserver(), times(1)).onError(any());
+    verify(request2.getStreamObserver(), times(1)).onNext(RESPONSE);
+  }
+
+  @Test
+  public void testFailAfterAllWaitersInvalidated() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 10, 1024);
+
+    final ExecuteTestRequest request1 = createTestRequestFrom(1, "A.java", "client1");
+    final ExecuteTestRequest request2 = createTestRequestFrom(1, "A.java", "client1");
+    cache.executeTest(request1);
+    cache.executeTest(request2);
+
+    // 無効になったリクエストの代わりに，待っているリクエストの情報で実行し直す
+    final Throwable error = RequestValidator.createInvalidatedException();
+    captureExecutedRequests(workerSet, 1)[0].getStreamObserver()
+        .onError(error);
+    verify(request1.getStreamObserver(), times(1)).onError(error);
+    verify(request2.getStreamObserver(), never()).onError(any());
+
+    // 待っているリクエストがなくなれば失敗を返し，次のリクエストは新たに実行する
+    captureExecutedRequests(workerSet, 2)[1].getStreamObserver()
+        .onError(error);
+    verify(request2.getStreamObserver(), times(1)).onError(error);
+    cache.executeTest(createTestRequest(1, "A.java"));
+    verify(workerSet, times(3)).executeTest(any());
+  }
+
+  @Test
+  public void testDisabled() {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final TestResultCache cache = new TestResultCache(workerSet, 0, 1024);
+
+    final ExecuteTestRequest request = createTestRequest(1, "A.java");
+    cache.executeTest(request);
+    cache.executeTest(createTestRequest(1, "A.java"));
+    verify(workerSet, times(2)).executeTest(any());
+    verify(workerSet, times(1)).executeTest(request);
+  }
+
+  /**
+   * WorkerSetに渡されたリクエストに全て結果を返す
+   */
+  private void respond(final WorkerSet workerSet, final int times,
+      final GrpcExecuteTestResponse response) {
+    for (final ExecuteTestRequest request : captureExecutedRequests(workerSet, times)) {
+      request.getStreamObserver()
+          .onNext(response);
+      request.getStreamObserver()
+          .onCompleted();
+    }
+  }
+
+  private ExecuteTestRequest[] captureExecutedRequests(final WorkerSet workerSet,
+      final int times) {
+    final ArgumentCaptor<ExecuteTestRequest> captor =
+        ArgumentCaptor.forClass(ExecuteTestRequest.class);
+    verify(workerSet, times(times)).executeTest(captor.capture());
+    return captor.getAllValues()
+        .toArray(new ExecuteTestRequest[0]);
+  }
+
+  private ExecuteTestRequest createTestRequest(final int projectId, final String sourcePath,
+      final String... executionTests) {
+    return createTestRequestFrom(projectId, sourcePath, "localhost", executionTests);
+  }
+
+  private ExecuteTestRequest createTestRequestFrom(final int projectId, final String sourcePath,
+      final String senderName, final String... executionTests) {
+    final GrpcGene gene = GrpcGene.newBuilder()
+        .addBase(GrpcBase.newBuilder()
+            .setLocation(GrpcASTLocation.newBuilder()
+                .setSourcePath(sourcePath)))
+        .build();
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId)
+        .setGene(gene)
+        .addAllExecutionTests(Arrays.asList(executionTests))
+        .build();
+    @SuppressWarnings("unchecked") final StreamObserver<GrpcExecuteTestResponse> mockObserver = mock(
+        StreamObserver.class);
+    return new ExecuteTestRequest(request, mockObserver, senderName, 8080, 0, 0);
+  }
+}
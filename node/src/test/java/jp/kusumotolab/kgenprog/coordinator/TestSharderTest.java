@@ -0,0 +1,170 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import io.grpc.stub.StreamObserver;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.GrpcTestResult;
+import jp.kusumotolab.kgenprog.grpc.GrpcTestResults;
+import jp.kusumotolab.kgenprog.grpc.Worker;
+
+public class TestSharderTest {
+
+  private static final List<String> TESTS = Arrays.asList("ATest", "BTest", "CTest", "DTest");
+
+  @Test
+  public void testMergeShards() {
+    final WorkerSet workerSet = createWorkerSet(3);
+    final TestSharder sharder = new TestSharder(workerSet, 2);
+    sharder.addProject(1, TESTS);
+
+    final ExecuteTestRequest request = createTestRequest(1);
+    sharder.executeTest(request);
+    final ExecuteTestRequest[] shards = captureExecutedRequests(workerSet, 2);
+    assertThat(shards[0].getRequest()
+        .getExecutionTestsList()).hasSize(2);
+    assertThat(shards[1].getRequest()
+        .getExecutionTestsList()).hasSize(2);
+
+    // 全てのシャードの結果がそろってから，まとめた結果を返す
+    shards[0].getStreamObserver()
+        .onNext(createResponse(shards[0], false));
+    verify(request.getStreamObserver(), never()).onNext(any());
+    shards[1].getStreamObserver()
+        .onNext(createResponse(shards[1], false));
+
+    final ArgumentCaptor<GrpcExecuteTestResponse> captor =
+        ArgumentCaptor.forClass(GrpcExecuteTestResponse.class);
+    verify(request.getStreamObserver(), times(1)).onNext(captor.capture());
+    assertThat(captor.getValue()
+        .getTestResults()
+        .getValueMap()).containsOnlyKeys(TESTS.toArray(new String[0]));
+  }
+
+  @Test
+  public void testBuildFailure() {
+    final WorkerSet workerSet = createWorkerSet(2);
+    final TestSharder sharder = new TestSharder(workerSet, 2);
+    sharder.addProject(1, TESTS);
+
+    final ExecuteTestRequest request = createTestRequest(1);
+    sharder.executeTest(request);
+    final ExecuteTestRequest[] shards = captureExecutedRequests(workerSet, 2);
+
+    // ビルドに失敗した結果は他のシャードを待たずに返し，残りは取り消す
+    final GrpcExecuteTestResponse failure = createResponse(shards[0], true);
+    shards[0].getStreamObserver()
+        .onNext(failure);
+    verify(request.getStreamObserver(), times(1)).onNext(failure);
+    verify(workerSet, times(1)).cancelTest(shards[1]);
+  }
+
+  @Test
+  public void testNotSharded() {
+    final WorkerSet workerSet = createWorkerSet(1);
+    final TestSharder sharder = new TestSharder(workerSet, 4);
+    sharder.addProject(1, TESTS);
+    sharder.addProject(2, Arrays.asList());
+
+    // ワーカーが1台しかない場合や，実行対象テストケースの指定がない場合は分けない
+    final ExecuteTestRequest request1 = createTestRequest(1);
+    sharder.executeTest(request1);
+    final ExecuteTestRequest request2 = createTestRequest(2);
+    sharder.executeTest(request2);
+    verify(workerSet, times(1)).executeTest(request1);
+    verify(workerSet, times(1)).executeTest(request2);
+  }
+
+  @Test
+  public void testSplitByDuration() {
+    final TestSharder sharder = new TestSharder(createWorkerSet(2), 2);
+    sharder.addProject(1, TESTS);
+
+    // 記録がなければ数で均等に分ける
+    assertThat(sharder.split(1, TESTS, 2)).containsExactly(Arrays.asList("ATest", "CTest"),
+        Arrays.asList("BTest", "DTest"));
+
+    // ATestに時間がかかると分かれば，ATestだけのシャードを作る
+    sharder.record(1, Arrays.asList("ATest"), 300);
+    sharder.record(1, Arrays.asList("BTest", "CTest", "DTest"), 300);
+    assertThat(sharder.split(1, TESTS, 2)).containsExactly(Arrays.asList("ATest"),
+        Arrays.asList("BTest", "CTest", "DTest"));
+  }
+
+  @Test
+  public void testKeepPlanUntilDrift() {
+    final TestSharder sharder = new TestSharder(createWorkerSet(2), 2);
+    sharder.addProject(1, TESTS);
+    final List<List<String>> initialPlan = sharder.plan(1, TESTS, 2);
+    assertThat(initialPlan).containsExactly(Arrays.asList("ATest", "CTest"),
+        Arrays.asList("BTest", "DTest"));
+
+    // 見積もりが少し変わっただけでは分け直さない
+    sharder.record(1, Arrays.asList("ATest", "CTest"), 110);
+    sharder.record(1, Arrays.asList("BTest", "DTest"), 100);
+    assertThat(sharder.split(1, TESTS, 2)).isNotEqualTo(initialPlan);
+    assertThat(sharder.plan(1, TESTS, 2)).isSameAs(initialPlan);
+
+    // 同じシャードのテストケースに時間がかかると分かれば分け直す
+    sharder.record(1, Arrays.asList("ATest", "CTest"), 1000);
+    assertThat(sharder.plan(1, TESTS, 2)).containsExactly(Arrays.asList("ATest", "BTest"),
+        Arrays.asList("CTest", "DTest"));
+
+    // シャード数が変われば分け直す
+    assertThat(sharder.plan(1, TESTS, 3)).hasSize(3);
+  }
+
+  private WorkerSet createWorkerSet(final int workers) {
+    final WorkerSet workerSet = mock(WorkerSet.class);
+    final List<Worker> workerList = Arrays.asList(new Worker[workers]);
+    when(workerSet.getAllWorker()).thenReturn(workerList);
+    return workerSet;
+  }
+
+  private GrpcExecuteTestResponse createResponse(final ExecuteTestRequest shard,
+      final boolean empty) {
+    final GrpcTestResults.Builder builder = GrpcTestResults.newBuilder()
+        .setEmpty(empty);
+    if (!empty) {
+      shard.getRequest()
+          .getExecutionTestsList()
+          .forEach(test -> builder.putValue(test, GrpcTestResult.newBuilder()
+              .setExecutedTestFQN(test)
+              .build()));
+    }
+    return GrpcExecuteTestResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .setTestResults(builder)
+        .setElapsedMillis(100)
+        .build();
+  }
+
+  private ExecuteTestRequest[] captureExecutedRequests(final WorkerSet workerSet,
+      final int times) {
+    final ArgumentCaptor<ExecuteTestRequest> captor =
+        ArgumentCaptor.forClass(ExecuteTestRequest.class);
+    verify(workerSet, times(times)).executeTest(captor.capture());
+    return captor.getAllValues()
+        .toArray(new ExecuteTestRequest[0]);
+  }
+
+  private ExecuteTestRequest createTestRequest(final int projectId) {
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId)
+        .build();
+    @SuppressWarnings("unchecked") final StreamObserver<GrpcExecuteTestResponse> mockObserver = mock(
+        StreamObserver.class);
+    return new ExecuteTestRequest(request, mockObserver, "localhost", 8080, 0, 0);
+  }
+}
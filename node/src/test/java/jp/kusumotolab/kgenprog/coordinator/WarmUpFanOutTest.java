@@ -0,0 +1,59 @@
+package jp.kusumotolab.kgenprog.coordinator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class WarmUpFanOutTest {
+
+  @Test
+  public void testLimitBySources() {
+    final WarmUpFanOut fanOut = new WarmUpFanOut(2);
+    final List<Integer> started = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      final int index = i;
+      fanOut.acquire(0, 1, () -> started.add(index));
+    }
+
+    // 展開元1つあたり2台まで
+    assertThat(started).containsExactly(0, 1);
+    assertThat(fanOut.getRunningCount(0)).isEqualTo(2);
+    assertThat(fanOut.getPendingCount(0)).isEqualTo(3);
+
+    // 展開を終えたワーカーが展開元に加わる
+    fanOut.release(0, 2);
+    assertThat(started).containsExactly(0, 1, 2, 3, 4);
+    assertThat(fanOut.getPendingCount(0)).isZero();
+
+    // 他のプロジェクトには影響しない
+    fanOut.acquire(1, 1, () -> started.add(5));
+    assertThat(started).contains(5);
+  }
+
+  @Test
+  public void testRemove() {
+    final WarmUpFanOut fanOut = new WarmUpFanOut(1);
+    final List<Integer> started = new ArrayList<>();
+    fanOut.acquire(0, 1, () -> started.add(0));
+    fanOut.acquire(0, 1, () -> started.add(1));
+    assertThat(started).containsExactly(0);
+
+    // 登録解除されたプロジェクトの展開は待たせない
+    fanOut.remove(0);
+    assertThat(started).containsExactly(0, 1);
+    fanOut.release(0, 1);
+    assertThat(fanOut.getRunningCount(0)).isZero();
+  }
+
+  @Test
+  public void testUnlimited() {
+    final WarmUpFanOut fanOut = new WarmUpFanOut(0);
+    final List<Integer> started = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      final int index = i;
+      fanOut.acquire(0, 1, () -> started.add(index));
+    }
+    assertThat(started).hasSize(100);
+  }
+}
@@ -1,19 +1,41 @@
 package jp.kusumotolab.kgenprog.coordinator;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import io.reactivex.Single;
 import io.reactivex.subjects.PublishSubject;
 import io.reactivex.subjects.Subject;
+import jp.kusumotolab.kgenprog.grpc.ClusterConfiguration;
+import jp.kusumotolab.kgenprog.grpc.GrpcASTLocation;
+import jp.kusumotolab.kgenprog.grpc.GrpcBase;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGene;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcWorkerReadiness;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
 import jp.kusumotolab.kgenprog.grpc.Worker;
 
 public class WorkerSetTest {
@@ -36,7 +58,7 @@ public class WorkerSetTest {
     when(worker3.executeTest(any())).then(
         invocation -> Single.create(emitter -> responseSubject3.subscribe(emitter::onSuccess)));
 
-    final WorkerSet workerSet = new WorkerSet();
+    final WorkerSet workerSet = createWorkerSet();
     workerSet.addWorker(worker1);
     workerSet.addWorker(worker2);
     workerSet.addWorker(worker3);
@@ -108,6 +130,365 @@ public class WorkerSetTest {
     verify(worker3, times(3)).executeTest(any());
   }
 
+  @Test
+  public void testMultiSlotWorker() {
+    final Worker worker1 = mock(Worker.class);
+    final Worker worker2 = mock(Worker.class);
+
+    final Subject<GrpcExecuteTestResponse> responseSubject1 = PublishSubject.create();
+    final Subject<GrpcExecuteTestResponse> responseSubject2 = PublishSubject.create();
+
+    when(worker1.executeTest(any())).then(
+        invocation -> Single.create(emitter -> responseSubject1.subscribe(emitter::onSuccess)));
+    when(worker2.executeTest(any())).then(
+        invocation -> Single.create(emitter -> responseSubject2.subscribe(emitter::onSuccess)));
+
+    final WorkerSet workerSet = createWorkerSet();
+    workerSet.addWorker(worker1, 2);
+    workerSet.addWorker(worker2, 1);
+
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .build();
+    @SuppressWarnings("unchecked") final StreamObserver<GrpcExecuteTestResponse> mockObserver = mock(
+        StreamObserver.class);
+    final ExecuteTestRequest testRequest = new ExecuteTestRequest(request, mockObserver,
+        "localhost", 8080, 0, 0);
+    final GrpcExecuteTestResponse response = GrpcExecuteTestResponse.newBuilder()
+        .build();
+
+    // worker1はスロット数2なので2つ続けてテストを受け付ける
+    workerSet.executeTest(testRequest);
+    workerSet.executeTest(testRequest);
+    verify(worker1, times(2)).executeTest(any());
+    verify(worker2, times(0)).executeTest(any());
+
+    workerSet.executeTest(testRequest);
+    verify(worker1, times(2)).executeTest(any());
+    verify(worker2, times(1)).executeTest(any());
+
+    // 全スロットが埋まっているので実行されない
+    workerSet.executeTest(testRequest);
+    verify(worker1, times(2)).executeTest(any());
+    verify(worker2, times(1)).executeTest(any());
+
+    // worker1の2つのテストが終わると，空いたスロットにテストが割り当てられる
+    responseSubject1.onNext(response);
+    verify(mockObserver, times(2)).onNext(any());
+    verify(worker1, times(3)).executeTest(any());
+    verify(worker2, times(1)).executeTest(any());
+  }
+
+  @Test
+  public void testProjectAffinity() {
+    final Worker coldWorker = mock(Worker.class);
+    final Worker warmWorker = mock(Worker.class);
+
+    final Subject<GrpcExecuteTestResponse> coldSubject = PublishSubject.create();
+    final Subject<GrpcExecuteTestResponse> warmSubject = PublishSubject.create();
+
+    when(coldWorker.executeTest(any())).then(
+        invocation -> Single.create(emitter -> coldSubject.subscribe(emitter::onSuccess)));
+    when(warmWorker.executeTest(any())).then(
+        invocation -> Single.create(emitter -> warmSubject.subscribe(emitter::onSuccess)));
+
+    // 待ち時間を十分長くして，未展開のワーカーへのフォールバックが起きないようにする
+    final WorkerSet workerSet = createWorkerSet(60_000);
+    workerSet.markWarm(warmWorker, 1);
+    workerSet.addWorker(coldWorker);
+    workerSet.addWorker(warmWorker);
+
+    final ExecuteTestRequest request1 = createTestRequest(1);
+    final ExecuteTestRequest request2 = createTestRequest(2);
+    final GrpcExecuteTestResponse response = GrpcExecuteTestResponse.newBuilder()
+        .build();
+
+    // 先に追加されたのはcoldWorkerだが，プロジェクト1を展開済みのwarmWorkerが選ばれる
+    workerSet.executeTest(request1);
+    verify(warmWorker, times(1)).executeTest(any());
+    verify(coldWorker, times(0)).executeTest(any());
+
+    // warmWorkerが埋まっていても，すぐにはcoldWorkerに割り当てない
+    workerSet.executeTest(request1);
+    verify(warmWorker, times(1)).executeTest(any());
+    verify(coldWorker, times(0)).executeTest(any());
+
+    // プロジェクト2を展開済みのワーカーはいないので，待たずにcoldWorkerに割り当てる
+    workerSet.executeTest(request2);
+    verify(coldWorker, times(1)).executeTest(any());
+
+    // warmWorkerが空くと待っていたリクエストが割り当てられる
+    warmSubject.onNext(response);
+    verify(warmWorker, times(2)).executeTest(any());
+    verify(coldWorker, times(1)).executeTest(any());
+  }
+
+  @Test
+  public void testColdWorkerFallback() {
+    final Worker coldWorker = mock(Worker.class);
+    final Worker warmWorker = mock(Worker.class);
+
+    when(coldWorker.executeTest(any())).then(invocation -> Single.never());
+    when(warmWorker.executeTest(any())).then(invocation -> Single.never());
+
+    final WorkerSet workerSet = createWorkerSet(100);
+    workerSet.markWarm(warmWorker, 1);
+    workerSet.addWorker(warmWorker);
+    workerSet.addWorker(coldWorker);
+
+    final ExecuteTestRequest request = createTestRequest(1);
+    workerSet.executeTest(request);
+    workerSet.executeTest(request);
+    verify(warmWorker, times(1)).executeTest(any());
+
+    // 待ち時間を過ぎるとcoldWorkerに割り当てられる
+    verify(coldWorker, timeout(5000).times(1)).executeTest(any());
+    assertThat(workerSet.isWarm(coldWorker, 1)).isFalse();
+  }
+
+  @Test
+  public void testQueueLimit() {
+    final Worker worker = mock(Worker.class);
+    final Subject<GrpcExecuteTestResponse> responseSubject = PublishSubject.create();
+    when(worker.executeTest(any())).then(
+        invocation -> Single.create(emitter -> responseSubject.subscribe(emitter::onSuccess)));
+
+    final WorkerSet workerSet = createWorkerSet(
+        new WorkerSetSettings(ClusterConfiguration.DEFAULT_COLD_DISPATCH_WAIT_MILLIS, 2,
+            Long.MAX_VALUE, ClusterConfiguration.DEFAULT_HEDGE_PERCENTILE,
+            ClusterConfiguration.DEFAULT_WARM_UP_FAN_OUT));
+    workerSet.addWorker(worker);
+
+    // 1つ目はワーカーに割り当てられ，2つ目と3つ目がキューに溜まる
+    final ExecuteTestRequest request1 = createTestRequest(1);
+    final ExecuteTestRequest request2 = createTestRequest(1);
+    final ExecuteTestRequest request3 = createTestRequest(1);
+    final ExecuteTestRequest request4 = createTestRequest(1);
+    workerSet.executeTest(request1);
+    workerSet.executeTest(request2);
+    workerSet.executeTest(request3);
+    workerSet.executeTest(request4);
+
+    final ArgumentCaptor<Throwable> captor = ArgumentCaptor.forClass(Throwable.class);
+    verify(request4.getStreamObserver(), times(1)).onError(captor.capture());
+    assertThat(Status.fromThrowable(captor.getValue())
+        .getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    assertThat(RetryAfter.getRetryAfterMillis(captor.getValue()))
+        .hasValue(WorkerSet.RETRY_AFTER_MILLIS);
+    verify(request2.getStreamObserver(), never()).onError(any());
+    verify(request3.getStreamObserver(), never()).onError(any());
+
+    // ワーカーが空けばキューに空きができる
+    responseSubject.onNext(GrpcExecuteTestResponse.newBuilder()
+        .build());
+    final ExecuteTestRequest request5 = createTestRequest(1);
+    workerSet.executeTest(request5);
+    verify(request5.getStreamObserver(), never()).onError(any());
+  }
+
+  @Test
+  public void testQueueGeneBytesLimit() {
+    final GrpcGene gene = GrpcGene.newBuilder()
+        .addBase(GrpcBase.newBuilder()
+            .setLocation(GrpcASTLocation.newBuilder()
+                .setSourcePath("src/example/Foo.java")))
+        .build();
+    final WorkerSet workerSet = createWorkerSet(
+        new WorkerSetSettings(ClusterConfiguration.DEFAULT_COLD_DISPATCH_WAIT_MILLIS,
+            Integer.MAX_VALUE, gene.getSerializedSize() * 2,
+            ClusterConfiguration.DEFAULT_HEDGE_PERCENTILE,
+            ClusterConfiguration.DEFAULT_WARM_UP_FAN_OUT));
+
+    final ExecuteTestRequest request1 = createTestRequest(1, gene);
+    final ExecuteTestRequest request2 = createTestRequest(1, gene);
+    final ExecuteTestRequest request3 = createTestRequest(1, gene);
+    workerSet.executeTest(request1);
+    workerSet.executeTest(request2);
+    workerSet.executeTest(request3);
+
+    verify(request1.getStreamObserver(), never()).onError(any());
+    verify(request2.getStreamObserver(), never()).onError(any());
+    verify(request3.getStreamObserver(), times(1)).onError(any());
+  }
+
+  @Test
+  public void testHedgeStraggler() {
+    final Worker slowWorker = mock(Worker.class);
+    final Worker idleWorker = mock(Worker.class);
+    final GrpcExecuteTestResponse response = GrpcExecuteTestResponse.newBuilder()
+        .build();
+
+    // 実行時間の記録が貯まった後は，slowWorkerから結果が返ってこなくなる
+    final AtomicInteger callCount = new AtomicInteger(0);
+    final AtomicBoolean disposed = new AtomicBoolean(false);
+    when(slowWorker.executeTest(any())).then(invocation -> {
+      if (callCount.getAndIncrement() < WorkerSet.MIN_HEDGE_SAMPLES) {
+        return Single.just(response);
+      }
+      return Single.never()
+          .doOnDispose(() -> disposed.set(true));
+    });
+    when(idleWorker.executeTest(any())).thenReturn(Single.just(response));
+
+    final WorkerSet workerSet = createWorkerSet(
+        new WorkerSetSettings(ClusterConfiguration.DEFAULT_COLD_DISPATCH_WAIT_MILLIS,
+            ClusterConfiguration.DEFAULT_MAX_QUEUED_REQUESTS,
+            ClusterConfiguration.DEFAULT_MAX_QUEUED_GENE_BYTES, 0.5,
+            ClusterConfiguration.DEFAULT_WARM_UP_FAN_OUT));
+    workerSet.addWorker(slowWorker);
+    for (int i = 0; i < WorkerSet.MIN_HEDGE_SAMPLES; i++) {
+      workerSet.executeTest(createTestRequest(1));
+    }
+
+    final ExecuteTestRequest straggler = createTestRequest(1);
+    workerSet.executeTest(straggler);
+    verify(straggler.getStreamObserver(), never()).onNext(any());
+
+    // 空いたワーカーに複製が割り当てられ，先に返ってきた結果が採用される
+    workerSet.addWorker(idleWorker);
+    verify(idleWorker, timeout(5000).times(1)).executeTest(any());
+    verify(straggler.getStreamObserver(), timeout(5000).times(1)).onNext(response);
+    verify(straggler.getStreamObserver(), times(1)).onCompleted();
+    assertThat(disposed).isTrue();
+  }
+
+  @Test
+  public void testHedgeLoserCompletesWhileCancelled() {
+    final Worker slowWorker = mock(Worker.class);
+    final Worker idleWorker = mock(Worker.class);
+    final GrpcExecuteTestResponse response = GrpcExecuteTestResponse.newBuilder()
+        .build();
+    final Subject<GrpcExecuteTestResponse> loserSubject = PublishSubject.create();
+    final Subject<GrpcExecuteTestResponse> winnerSubject = PublishSubject.create();
+
+    // slowWorkerで同時に実行しているテストの数を数える
+    final AtomicInteger running = new AtomicInteger(0);
+    final AtomicInteger maxRunning = new AtomicInteger(0);
+    final AtomicInteger slowCallCount = new AtomicInteger(0);
+    when(slowWorker.executeTest(any())).then(invocation -> {
+      final int count = slowCallCount.getAndIncrement();
+      final Single<GrpcExecuteTestResponse> single = count < WorkerSet.MIN_HEDGE_SAMPLES
+          ? Single.just(response)
+          : count == WorkerSet.MIN_HEDGE_SAMPLES ? loserSubject.firstOrError() : Single.never();
+      return single.doOnSubscribe(d -> maxRunning.accumulateAndGet(running.incrementAndGet(),
+          Math::max))
+          .doOnSuccess(r -> running.decrementAndGet())
+          .doOnDispose(running::decrementAndGet);
+    });
+
+    // 複製が勝ってidleWorkerが次のテストを受け取るときに，負けた試行の結果が返ってくる
+    final AtomicInteger idleCallCount = new AtomicInteger(0);
+    when(idleWorker.executeTest(any())).then(invocation -> {
+      if (idleCallCount.getAndIncrement() == 0) {
+        return winnerSubject.firstOrError();
+      }
+      loserSubject.onNext(response);
+      return Single.never();
+    });
+
+    final WorkerSet workerSet = createWorkerSet(
+        new WorkerSetSettings(ClusterConfiguration.DEFAULT_COLD_DISPATCH_WAIT_MILLIS,
+            ClusterConfiguration.DEFAULT_MAX_QUEUED_REQUESTS,
+            ClusterConfiguration.DEFAULT_MAX_QUEUED_GENE_BYTES, 0.5,
+            ClusterConfiguration.DEFAULT_WARM_UP_FAN_OUT));
+    workerSet.addWorker(slowWorker);
+    for (int i = 0; i < WorkerSet.MIN_HEDGE_SAMPLES; i++) {
+      workerSet.executeTest(createTestRequest(1));
+    }
+    maxRunning.set(0);
+
+    final ExecuteTestRequest straggler = createTestRequest(1);
+    workerSet.executeTest(straggler);
+    workerSet.addWorker(idleWorker);
+    verify(idleWorker, timeout(5000).times(1)).executeTest(any());
+    workerSet.executeTest(createTestRequest(1));
+
+    winnerSubject.onNext(response);
+    verify(straggler.getStreamObserver(), timeout(5000).times(1)).onNext(response);
+
+    // 負けた試行の取り消しでslowWorkerを二重に解放していなければ，slowWorkerで同時に実行されるのは1つまで
+    workerSet.executeTest(createTestRequest(1));
+    workerSet.executeTest(createTestRequest(1));
+    assertThat(maxRunning.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCancelTest() {
+    final Worker worker = mock(Worker.class);
+    final AtomicBoolean disposed = new AtomicBoolean(false);
+    when(worker.executeTest(any())).then(invocation -> Single.never()
+        .doOnDispose(() -> disposed.set(true)));
+
+    final WorkerSet workerSet = createWorkerSet();
+    workerSet.addWorker(worker);
+
+    // 1つ目は実行中，2つ目は待機中になる
+    final ExecuteTestRequest running = createTestRequest(1);
+    final ExecuteTestRequest queued = createTestRequest(1);
+    workerSet.executeTest(running);
+    workerSet.executeTest(queued);
+    verify(worker, times(1)).executeTest(any());
+
+    // 待機中のリクエストを取り消すと，ワーカーには割り当てられない
+    workerSet.cancelTest(queued);
+    assertThat(disposed).isFalse();
+
+    // 実行中のリクエストを取り消すと，ワーカーでの実行も取り消されワーカーが空く
+    workerSet.cancelTest(running);
+    assertThat(disposed).isTrue();
+    verify(worker, times(1)).executeTest(any());
+
+    final ExecuteTestRequest next = createTestRequest(1);
+    workerSet.executeTest(next);
+    verify(worker, times(2)).executeTest(any());
+    verify(running.getStreamObserver(), never()).onNext(any());
+    verify(queued.getStreamObserver(), never()).onNext(any());
+  }
+
+  @Test
+  public void testCancelledByWorker() {
+    final Worker worker = mock(Worker.class);
+    final GrpcExecuteTestResponse response = GrpcExecuteTestResponse.newBuilder()
+        .build();
+    final AtomicInteger callCount = new AtomicInteger(0);
+    when(worker.executeTest(any())).then(invocation -> callCount.getAndIncrement() == 0
+        ? Single.error(Status.CANCELLED.asRuntimeException())
+        : Single.just(response));
+
+    final WorkerSet workerSet = createWorkerSet();
+    workerSet.addWorker(worker);
+
+    // ワーカーが実行を取り消しても，ワーカーは取り除かずに少し待ってからテストを再び割り当てる
+    final ExecuteTestRequest request = createTestRequest(1);
+    workerSet.executeTest(request);
+    verify(worker, times(1)).executeTest(any());
+    verify(worker, timeout(5000).times(2)).executeTest(any());
+    verify(request.getStreamObserver(), timeout(5000).times(1)).onNext(response);
+    verify(worker, never()).finish();
+    assertThat(workerSet.getAllWorker()).containsExactly(worker);
+  }
+
+  @Test
+  public void testRejectedByBusyWorker() {
+    final Worker worker = mock(Worker.class);
+    final GrpcExecuteTestResponse response = GrpcExecuteTestResponse.newBuilder()
+        .build();
+    final AtomicInteger callCount = new AtomicInteger(0);
+    when(worker.executeTest(any())).then(invocation -> callCount.getAndIncrement() == 0
+        ? Single.error(RetryAfter.createException("lane is full", 100))
+        : Single.just(response));
+
+    final WorkerSet workerSet = createWorkerSet();
+    workerSet.addWorker(worker);
+
+    // 混雑で拒否したワーカーは取り除かず，指定された時間の後に再びテストを割り当てる
+    final ExecuteTestRequest request = createTestRequest(1);
+    workerSet.executeTest(request);
+    verify(worker, timeout(5000).times(2)).executeTest(any());
+    verify(request.getStreamObserver(), timeout(5000).times(1)).onNext(response);
+    verify(worker, never()).finish();
+    assertThat(workerSet.getAllWorker()).containsExactly(worker);
+  }
+
   @Test
   public void testUnregister() {
     final Worker worker1 = mock(Worker.class);
@@ -121,7 +502,7 @@ public class WorkerSetTest {
     when(worker2.unregisterProject(any())).thenReturn(Single.just(response));
     when(worker3.unregisterProject(any())).thenReturn(Single.just(response));
 
-    final WorkerSet workerSet = new WorkerSet();
+    final WorkerSet workerSet = createWorkerSet();
     workerSet.addWorker(worker1);
     workerSet.addWorker(worker2);
     workerSet.addWorker(worker3);
@@ -132,4 +513,160 @@ public class WorkerSetTest {
     verify(worker2, times(1)).unregisterProject(any());
     verify(worker3, times(1)).unregisterProject(any());
   }
+
+  @Test
+  public void testWarmUp() {
+    final Worker worker = mock(Worker.class);
+    final Map<Integer, Subject<GrpcExecuteTestResponse>> subjects = new HashMap<>();
+    when(worker.executeTest(any())).then(invocation -> {
+      final GrpcExecuteTestRequest request = invocation.getArgument(0);
+      final Subject<GrpcExecuteTestResponse> subject = PublishSubject.create();
+      subjects.put(request.getProjectId(), subject);
+      return subject.firstOrError();
+    });
+
+    final WorkerSet workerSet = createWorkerSet();
+    workerSet.addWorker(worker, 2);
+    workerSet.warmUp(worker, Arrays.asList(1, 2, 3), 2);
+
+    // スロット数だけ並列に展開させる
+    assertThat(subjects).containsOnlyKeys(1, 2);
+
+    // 展開を終えたプロジェクトから展開済みになり，次のプロジェクトの展開が始まる
+    subjects.get(2)
+        .onNext(GrpcExecuteTestResponse.newBuilder()
+            .setStatus(GrpcStatus.SUCCESS)
+            .build());
+    assertThat(workerSet.isWarm(worker, 2)).isTrue();
+    assertThat(workerSet.isWarm(worker, 1)).isFalse();
+    assertThat(subjects).containsOnlyKeys(1, 2, 3);
+
+    // 展開に失敗したプロジェクトは展開済みにならない
+    subjects.get(1)
+        .onNext(GrpcExecuteTestResponse.newBuilder()
+            .setStatus(GrpcStatus.FAILED)
+            .build());
+    subjects.get(3)
+        .onError(new Exception());
+    assertThat(workerSet.isWarm(worker, 1)).isFalse();
+    assertThat(workerSet.isWarm(worker, 3)).isFalse();
+  }
+
+  @Test
+  public void testWarmUpFanOut() {
+    // 展開を始めたワーカーと，展開を終わらせるSubject
+    final Map<Worker, Subject<GrpcExecuteTestResponse>> subjects = new LinkedHashMap<>();
+    final List<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      final Worker worker = mock(Worker.class);
+      when(worker.getId()).thenReturn(i);
+      when(worker.executeTest(any())).then(invocation -> {
+        final Subject<GrpcExecuteTestResponse> subject = PublishSubject.create();
+        subjects.put(worker, subject);
+        return subject.firstOrError();
+      });
+      workers.add(worker);
+    }
+
+    final WorkerSet workerSet = createWorkerSet(
+        new WorkerSetSettings(ClusterConfiguration.DEFAULT_COLD_DISPATCH_WAIT_MILLIS,
+            ClusterConfiguration.DEFAULT_MAX_QUEUED_REQUESTS,
+            ClusterConfiguration.DEFAULT_MAX_QUEUED_GENE_BYTES,
+            ClusterConfiguration.DEFAULT_HEDGE_PERCENTILE, 1));
+    for (final Worker worker : workers) {
+      workerSet.addWorker(worker);
+      workerSet.warmUp(worker, Arrays.asList(1), 1);
+    }
+
+    // 展開元はコーディネータだけなので，1台ずつ展開させる
+    assertThat(subjects).hasSize(1);
+
+    // 展開を終えたワーカーが展開元に加わり，同時に展開させる数が倍々に増える
+    finishWarmUps(subjects);
+    assertThat(subjects).hasSize(2);
+    finishWarmUps(subjects);
+    assertThat(subjects).hasSize(4);
+    finishWarmUps(subjects);
+    assertThat(workerSet.getWarmWorkers(1)).containsExactlyElementsOf(workers);
+  }
+
+  @Test
+  public void testWaitForWarmingWorker() {
+    final Worker worker = mock(Worker.class);
+    final Subject<GrpcExecuteTestResponse> warmUpSubject = PublishSubject.create();
+    when(worker.executeTest(any())).thenReturn(warmUpSubject.firstOrError())
+        .thenReturn(Single.never());
+    when(worker.getName()).thenReturn("worker");
+
+    final WorkerSet workerSet = createWorkerSet(0);
+    workerSet.addWorker(worker, 2);
+    workerSet.warmUp(worker, Arrays.asList(1), 1);
+    assertThat(workerSet.getReadiness(1)).extracting(GrpcWorkerReadiness::getState)
+        .containsExactly(GrpcWorkerReadiness.State.WARMING);
+
+    // 展開中のワーカーには，待ち時間を過ぎても割り当てない
+    workerSet.executeTest(createTestRequest(1));
+    verify(worker, times(1)).executeTest(any());
+
+    // 展開を終えると割り当てられる
+    warmUpSubject.onNext(GrpcExecuteTestResponse.newBuilder()
+        .setStatus(GrpcStatus.SUCCESS)
+        .build());
+    verify(worker, times(2)).executeTest(any());
+    assertThat(workerSet.getReadiness(1)).extracting(GrpcWorkerReadiness::getState)
+        .containsExactly(GrpcWorkerReadiness.State.READY);
+  }
+
+  /**
+   * 展開中のワーカーを全て展開し終えさせる
+   */
+  private void finishWarmUps(final Map<Worker, Subject<GrpcExecuteTestResponse>> subjects) {
+    final List<Subject<GrpcExecuteTestResponse>> running = new ArrayList<>(subjects.values());
+    subjects.clear();
+    for (final Subject<GrpcExecuteTestResponse> subject : running) {
+      subject.onNext(GrpcExecuteTestResponse.newBuilder()
+          .setStatus(GrpcStatus.SUCCESS)
+          .build());
+    }
+  }
+
+  private WorkerSet createWorkerSet() {
+    return createWorkerSet(WorkerSetSettings.defaults());
+  }
+
+  private WorkerSet createWorkerSet(final long coldDispatchWaitMillis) {
+    return createWorkerSet(new WorkerSetSettings(coldDispatchWaitMillis,
+        ClusterConfiguration.DEFAULT_MAX_QUEUED_REQUESTS,
+        ClusterConfiguration.DEFAULT_MAX_QUEUED_GENE_BYTES,
+        ClusterConfiguration.DEFAULT_HEDGE_PERCENTILE,
+        ClusterConfiguration.DEFAULT_WARM_UP_FAN_OUT));
+  }
+
+  /**
+   * ワーカーへのリクエストを呼び出しスレッドで購読するWorkerSetを生成する
+   */
+  private WorkerSet createWorkerSet(final WorkerSetSettings settings) {
+    final ExecutorService executorService = MoreExecutors.newDirectExecutorService();
+    return new WorkerSet(settings) {
+
+      @Override
+      protected ExecutorService getExecutorService() {
+        return executorService;
+      }
+    };
+  }
+
+  private ExecuteTestRequest createTestRequest(final int projectId) {
+    return createTestRequest(projectId, GrpcGene.getDefaultInstance());
+  }
+
+  private ExecuteTestRequest createTestRequest(final int projectId, final GrpcGene gene) {
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(projectId)
+        .setGene(gene)
+        .build();
+    @SuppressWarnings("unchecked") final StreamObserver<GrpcExecuteTestResponse> mockObserver = mock(
+        StreamObserver.class);
+    return new ExecuteTestRequest(request, mockObserver, "localhost", 8080, 0, 0);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package jp.kusumotolab.kgenprog.ga.codegeneration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
+
+public class GenePrefixCacheTest {
+
+  private static final ByteString A = ByteString.copyFromUtf8("a");
+  private static final ByteString B = ByteString.copyFromUtf8("b");
+  private static final ByteString C = ByteString.copyFromUtf8("c");
+
+  @Test
+  public void testFindLongestPrefix() {
+    final GenePrefixCache cache = new GenePrefixCache(10);
+    final GeneratedSourceCode codeA = mock(GeneratedSourceCode.class);
+    final GeneratedSourceCode codeAB = mock(GeneratedSourceCode.class);
+    cache.put(Collections.singletonList(A), codeA);
+    cache.put(Arrays.asList(A, B), codeAB);
+
+    final GenePrefixCache.Match match = cache.findLongestPrefix(Arrays.asList(A, B, C));
+    assertThat(match.getLength()).isEqualTo(2);
+    assertThat(match.getSourceCode()).isSameAs(codeAB);
+
+    // 途中で分岐した遺伝子は共通の接頭辞までを使う
+    final GenePrefixCache.Match branched = cache.findLongestPrefix(Arrays.asList(A, C));
+    assertThat(branched.getLength()).isEqualTo(1);
+    assertThat(branched.getSourceCode()).isSameAs(codeA);
+
+    final GenePrefixCache.Match missed = cache.findLongestPrefix(Arrays.asList(B, A));
+    assertThat(missed.getLength()).isEqualTo(0);
+    assertThat(missed.getSourceCode()).isNull();
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    final GenePrefixCache cache = new GenePrefixCache(2);
+    final List<ByteString> geneA = Collections.singletonList(A);
+    final List<ByteString> geneAB = Arrays.asList(A, B);
+    final List<ByteString> geneC = Collections.singletonList(C);
+    cache.put(geneA, mock(GeneratedSourceCode.class));
+    cache.put(geneAB, mock(GeneratedSourceCode.class));
+
+    // A を使ったので，A B が最も長く使われていないものになる
+    cache.findLongestPrefix(geneA);
+    cache.put(geneC, mock(GeneratedSourceCode.class));
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.findLongestPrefix(geneAB)
+        .getLength()).isEqualTo(1);
+    assertThat(cache.findLongestPrefix(geneC)
+        .getLength()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDisabled() {
+    final GenePrefixCache cache = new GenePrefixCache(0);
+    cache.put(Collections.singletonList(A), mock(GeneratedSourceCode.class));
+
+    assertThat(cache.size()).isEqualTo(0);
+    assertThat(cache.findLongestPrefix(Collections.singletonList(A))
+        .getSourceCode()).isNull();
+  }
+
+  @Test
+  public void testClear() {
+    final GenePrefixCache cache = new GenePrefixCache(10);
+    cache.put(Arrays.asList(A, B), mock(GeneratedSourceCode.class));
+    cache.clear();
+
+    assertThat(cache.size()).isEqualTo(0);
+    assertThat(cache.findLongestPrefix(Arrays.asList(A, B))
+        .getLength()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,114 @@
+package jp.kusumotolab.kgenprog.ga.codegeneration;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.Statement;
+import jp.kusumotolab.kgenprog.ga.variant.Base;
+import jp.kusumotolab.kgenprog.ga.variant.Gene;
+import jp.kusumotolab.kgenprog.ga.variant.Variant;
+import jp.kusumotolab.kgenprog.ga.variant.VariantStore;
+import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
+import jp.kusumotolab.kgenprog.project.ProductSourcePath;
+import jp.kusumotolab.kgenprog.project.factory.TargetProject;
+import jp.kusumotolab.kgenprog.project.factory.TargetProjectFactory;
+import jp.kusumotolab.kgenprog.project.jdt.ASTStream;
+import jp.kusumotolab.kgenprog.project.jdt.GeneratedJDTAST;
+import jp.kusumotolab.kgenprog.project.jdt.InsertOperation;
+import jp.kusumotolab.kgenprog.project.jdt.JDTASTLocation;
+import jp.kusumotolab.kgenprog.testutil.TestUtil;
+
+/**
+ * 遺伝子の長さごとに，{@link WorkerCodeGeneration} で1個体のソースコードを生成するのにかかる時間を比べる
+ *
+ * 親の遺伝子に1つずつ塩基を加えた系譜を作り，毎回初期個体から全ての塩基を適用する場合と，
+ * 親のソースコードを保持しておき最後の塩基だけを適用する場合とを計測する．
+ * テストとしては実行されないので，mainメソッドから実行する
+ *
+ * <pre>
+ * java ... jp.kusumotolab.kgenprog.ga.codegeneration.WorkerCodeGenerationBenchmark [プロジェクトのパス] [最大の遺伝子長] [系譜の数]
+ * </pre>
+ */
+public class WorkerCodeGenerationBenchmark {
+
+  public static void main(final String[] args) {
+    final String rootPath = args.length > 0 ? args[0] : "../main/example/BuildSuccess01";
+    final int maxLength = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    final int lineages = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+    final TargetProject targetProject = TargetProjectFactory.create(Paths.get(rootPath));
+    final GeneratedSourceCode initialCode = TestUtil.createGeneratedSourceCode(targetProject);
+    final Variant initialVariant = mock(Variant.class);
+    when(initialVariant.getGeneratedSourceCode()).thenReturn(initialCode);
+    final VariantStore variantStore = mock(VariantStore.class);
+    when(variantStore.getInitialVariant()).thenReturn(initialVariant);
+
+    final Random random = new Random(0);
+    final List<List<Base>> bases = new ArrayList<>();
+    for (int i = 0; i < lineages; i++) {
+      bases.add(createBases(initialCode, maxLength, random));
+    }
+
+    // JITが効くまで読み捨てる
+    measure(variantStore, bases, maxLength, 0);
+    measure(variantStore, bases, maxLength, WorkerCodeGeneration.DEFAULT_CACHE_ENTRIES);
+
+    System.out.printf("%6s %14s %14s%n", "length", "no cache", "prefix cache");
+    final double[] uncached = measure(variantStore, bases, maxLength, 0);
+    final double[] cached =
+        measure(variantStore, bases, maxLength, WorkerCodeGeneration.DEFAULT_CACHE_ENTRIES);
+    for (int length = 1; length <= maxLength; length++) {
+      System.out.printf("%6d %8.3f ms/op %8.3f ms/op%n", length, uncached[length - 1],
+          cached[length - 1]);
+    }
+  }
+
+  /**
+   * 系譜ごとに，遺伝子の短い順に世代を模して生成し，遺伝子の長さごとの1個体あたりの時間を返す
+   */
+  private static double[] measure(final VariantStore variantStore, final List<List<Base>> bases,
+      final int maxLength, final int cacheEntries) {
+    final long[] totalNanos = new long[maxLength];
+    for (final List<Base> lineage : bases) {
+      final WorkerCodeGeneration codeGeneration = new WorkerCodeGeneration(cacheEntries);
+      for (int length = 1; length <= maxLength; length++) {
+        final Gene gene = new Gene(lineage.subList(0, length));
+        final long start = System.nanoTime();
+        codeGeneration.exec(variantStore, gene);
+        totalNanos[length - 1] += System.nanoTime() - start;
+      }
+    }
+    final double[] result = new double[maxLength];
+    for (int i = 0; i < maxLength; i++) {
+      result[i] = totalNanos[i] / 1e6 / bases.size();
+    }
+    return result;
+  }
+
+  /**
+   * 初期個体の文を別の文の位置に挿入する塩基を並べる
+   */
+  private static List<Base> createBases(final GeneratedSourceCode initialCode, final int length,
+      final Random random) {
+    final GeneratedJDTAST<ProductSourcePath> ast =
+        (GeneratedJDTAST<ProductSourcePath>) initialCode.getProductAsts()
+            .get(0);
+    final List<ASTNode> statements = ASTStream.stream(ast.getRoot())
+        .filter(Statement.class::isInstance)
+        .collect(Collectors.toList());
+
+    final List<Base> bases = new ArrayList<>();
+    for (int i = 0; i < length; i++) {
+      final ASTNode target = statements.get(random.nextInt(statements.size()));
+      final ASTNode ingredient = statements.get(random.nextInt(statements.size()));
+      final JDTASTLocation location = new JDTASTLocation(ast.getSourcePath(), target, ast);
+      bases.add(new Base(location, new InsertOperation(ingredient)));
+    }
+    return bases;
+  }
+}
@@ -0,0 +1,117 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.Map;
+import org.junit.Test;
+import jp.kusumotolab.kgenprog.ga.variant.Variant;
+import jp.kusumotolab.kgenprog.project.GeneratedSourceCode;
+import jp.kusumotolab.kgenprog.project.test.EmptyTestResults;
+import jp.kusumotolab.kgenprog.project.test.TestExecutor;
+import jp.kusumotolab.kgenprog.project.test.TestResults;
+
+public class CachedTestExecutorTest {
+
+  @Test
+  public void testReuseResultsForSameSource() {
+    final TestExecutor testExecutor = mock(TestExecutor.class);
+    final TestResults results = mock(TestResults.class);
+    when(testExecutor.exec(any())).thenReturn(results);
+    final CachedTestExecutor executor =
+        new CachedTestExecutor(testExecutor, CachedTestExecutor.createCache(10));
+
+    assertThat(executor.exec(createVariant("a", true))).isSameAs(results);
+    // 遺伝子が違っても，同じソースコードならテストを実行しない
+    assertThat(executor.exec(createVariant("a", true))).isSameAs(results);
+    verify(testExecutor, times(1)).exec(any());
+
+    executor.exec(createVariant("b", true));
+    verify(testExecutor, times(2)).exec(any());
+  }
+
+  @Test
+  public void testSharedCache() {
+    final TestExecutor testExecutor1 = mock(TestExecutor.class);
+    final TestExecutor testExecutor2 = mock(TestExecutor.class);
+    when(testExecutor1.exec(any())).thenReturn(mock(TestResults.class));
+    final Map<String, TestResults> cache = CachedTestExecutor.createCache(10);
+
+    new CachedTestExecutor(testExecutor1, cache).exec(createVariant("a", true));
+    new CachedTestExecutor(testExecutor2, cache).exec(createVariant("a", true));
+    verify(testExecutor2, times(0)).exec(any());
+  }
+
+  @Test
+  public void testGenerationFailureNotCached() {
+    final TestExecutor testExecutor = mock(TestExecutor.class);
+    final Map<String, TestResults> cache = CachedTestExecutor.createCache(10);
+    final CachedTestExecutor executor = new CachedTestExecutor(testExecutor, cache);
+
+    executor.exec(createVariant("a", false));
+    executor.exec(createVariant("a", false));
+    verify(testExecutor, times(2)).exec(any());
+    assertThat(cache).isEmpty();
+  }
+
+  @Test
+  public void testInterruptedResultsNotCached() {
+    final TestExecutor testExecutor = mock(TestExecutor.class);
+    final Map<String, TestResults> cache = CachedTestExecutor.createCache(10);
+    final CachedTestExecutor executor = new CachedTestExecutor(testExecutor, cache);
+
+    // 中断やタイムアウトで空になった結果はキャッシュしない
+    when(testExecutor.exec(any())).thenReturn(EmptyTestResults.instance);
+    executor.exec(createVariant("a", true));
+    assertThat(cache).isEmpty();
+
+    // 実行の取り消しで割り込まれたスレッドの結果もキャッシュしない
+    doAnswer(invocation -> {
+      Thread.currentThread()
+          .interrupt();
+      return mock(TestResults.class);
+    }).when(testExecutor)
+        .exec(any());
+    try {
+      executor.exec(createVariant("a", true));
+    } finally {
+      Thread.interrupted();
+    }
+    assertThat(cache).isEmpty();
+
+    doReturn(mock(TestResults.class)).when(testExecutor)
+        .exec(any());
+    executor.exec(createVariant("a", true));
+    assertThat(cache).containsOnlyKeys("a");
+  }
+
+  @Test
+  public void testEviction() {
+    final TestExecutor testExecutor = mock(TestExecutor.class);
+    when(testExecutor.exec(any())).then(invocation -> mock(TestResults.class));
+    final Map<String, TestResults> cache = CachedTestExecutor.createCache(2);
+    final CachedTestExecutor executor = new CachedTestExecutor(testExecutor, cache);
+
+    executor.exec(createVariant("a", true));
+    executor.exec(createVariant("b", true));
+    executor.exec(createVariant("a", true));
+    executor.exec(createVariant("c", true));
+
+    // 最も長く使われていないbが捨てられる
+    assertThat(cache).containsOnlyKeys("a", "c");
+  }
+
+  private Variant createVariant(final String digest, final boolean generationSuccess) {
+    final GeneratedSourceCode generatedSourceCode = mock(GeneratedSourceCode.class);
+    when(generatedSourceCode.getMessageDigest()).thenReturn(digest);
+    when(generatedSourceCode.isGenerationSuccess()).thenReturn(generationSuccess);
+    final Variant variant = mock(Variant.class);
+    when(variant.getGeneratedSourceCode()).thenReturn(generatedSourceCode);
+    return variant;
+  }
+}
@@ -0,0 +1,81 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import com.google.protobuf.ByteString;
+
+public class ContentDefinedChunkerTest {
+
+  @Test
+  public void testSplit() {
+    final ByteString data = createRandomBytes(0, 2 * 1024 * 1024);
+    final List<ByteString> chunks = ContentDefinedChunker.split(data);
+
+    assertThat(ByteString.copyFrom(chunks)).isEqualTo(data);
+    assertThat(chunks.size()).isGreaterThan(1);
+    // 最後のチャンク以外は最小サイズ以上，全て最大サイズ以下
+    assertThat(chunks.subList(0, chunks.size() - 1)).allMatch(
+        c -> c.size() >= ContentDefinedChunker.MIN_CHUNK_SIZE);
+    assertThat(chunks).allMatch(c -> c.size() <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+  }
+
+  @Test
+  public void testUpdateIncrementally() {
+    final ByteString data = createRandomBytes(0, 2 * 1024 * 1024);
+
+    // 受け取り方に関わらず同じ境界で分割される
+    final ContentDefinedChunker chunker = new ContentDefinedChunker();
+    final List<ByteString> chunks = new ArrayList<>();
+    for (int i = 0; i < data.size(); i += 1000) {
+      chunks.addAll(chunker.update(data.substring(i, Math.min(i + 1000, data.size()))));
+    }
+    chunker.finish()
+        .ifPresent(chunks::add);
+
+    assertThat(chunks).isEqualTo(ContentDefinedChunker.split(data));
+    assertThat(chunker.finish()).isEmpty();
+  }
+
+  @Test
+  public void testSplitEmpty() {
+    assertThat(ContentDefinedChunker.split(ByteString.EMPTY)).isEmpty();
+  }
+
+  @Test
+  public void testInsertionKeepsOtherChunks() {
+    final ByteString data = createRandomBytes(0, 2 * 1024 * 1024);
+    final ByteString inserted = data.substring(0, 1024 * 1024)
+        .concat(createRandomBytes(1, 100))
+        .concat(data.substring(1024 * 1024));
+
+    final List<ByteString> chunks = ContentDefinedChunker.split(data);
+    final List<ByteString> insertedChunks = ContentDefinedChunker.split(inserted);
+
+    // 挿入した箇所の周辺以外のチャンクは変わらない
+    final long sharedCount = insertedChunks.stream()
+        .filter(chunks::contains)
+        .count();
+    assertThat(sharedCount).isGreaterThanOrEqualTo(chunks.size() - 2);
+  }
+
+  @Test
+  public void testDigest() {
+    final ByteString data = createRandomBytes(0, 1024);
+    final ByteString rope = data.substring(0, 100)
+        .concat(data.substring(100));
+
+    assertThat(ContentDefinedChunker.digest(rope)).isEqualTo(ContentDefinedChunker.digest(data));
+    assertThat(ContentDefinedChunker.digest(data).size()).isEqualTo(32);
+    assertThat(ContentDefinedChunker.toHex(ByteString.copyFrom(new byte[] {0x0f, (byte) 0xa0})))
+        .isEqualTo("0fa0");
+  }
+
+  private ByteString createRandomBytes(final long seed, final int size) {
+    final byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+}
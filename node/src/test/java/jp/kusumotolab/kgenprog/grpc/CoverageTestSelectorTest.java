@@ -0,0 +1,84 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import jp.kusumotolab.kgenprog.project.FullyQualifiedName;
+import jp.kusumotolab.kgenprog.project.TestFullyQualifiedName;
+import jp.kusumotolab.kgenprog.project.test.EmptyTestResults;
+import jp.kusumotolab.kgenprog.project.test.TestResult;
+import jp.kusumotolab.kgenprog.project.test.TestResults;
+
+public class CoverageTestSelectorTest {
+
+  private static final FullyQualifiedName A1 = new TestFullyQualifiedName("example.ATest.test01");
+  private static final FullyQualifiedName A2 = new TestFullyQualifiedName("example.ATest.test02");
+  private static final FullyQualifiedName B1 = new TestFullyQualifiedName("example.BTest.test01");
+
+  @Test
+  public void testGetTestClassName() {
+    assertThat(CoverageTestSelector.getTestClassName(A1)).isEqualTo("example.ATest");
+    assertThat(CoverageTestSelector.getTestClassName(new TestFullyQualifiedName("ATest")))
+        .isEqualTo("ATest");
+  }
+
+  @Test
+  public void testMerge() {
+    final CoverageTestSelector selector = new CoverageTestSelector(10);
+    final TestResults initialResults = createTestResults(false, false, false);
+    final TestResults selectedResults = new TestResults();
+    selectedResults.add(new TestResult(A1, true, Collections.emptyMap()));
+    selectedResults.add(new TestResult(A2, false, Collections.emptyMap()));
+
+    // 選ばなかったBTestの結果は初期バリアントのものを用いる
+    final TestResults results =
+        selector.merge(initialResults, selectedResults, setOf("example.ATest"));
+    assertThat(results.getExecutedTestFQNs()).containsOnly(A1, A2, B1);
+    assertThat(results.getTestResult(A1)).isSameAs(selectedResults.getTestResult(A1));
+    assertThat(results.getTestResult(B1)).isSameAs(initialResults.getTestResult(B1));
+
+    // ビルドに失敗した場合はそのまま返す
+    final TestResults failure = EmptyTestResults.instance;
+    assertThat(selector.merge(initialResults, failure, setOf("example.ATest"))).isSameAs(failure);
+  }
+
+  @Test
+  public void testVerify() {
+    final CoverageTestSelector selector = new CoverageTestSelector(10);
+    final TestResults initialResults = createTestResults(false, false, false);
+
+    // 選んだテストの成否が変わるのは問題ない
+    selector.verify(initialResults, createTestResults(true, false, false), setOf("example.ATest"));
+    assertThat(selector.isEnabled()).isTrue();
+
+    // 選ばなかったテストの成否が変われば，以降は選ばない
+    selector.verify(initialResults, createTestResults(false, false, true), setOf("example.ATest"));
+    assertThat(selector.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void testShouldRunInFull() {
+    final CoverageTestSelector selector = new CoverageTestSelector(3);
+    assertThat(selector.shouldRunInFull()).isFalse();
+    assertThat(selector.shouldRunInFull()).isFalse();
+    assertThat(selector.shouldRunInFull()).isTrue();
+    assertThat(selector.shouldRunInFull()).isFalse();
+  }
+
+  private TestResults createTestResults(final boolean a1Failed, final boolean a2Failed,
+      final boolean b1Failed) {
+    final TestResults testResults = new TestResults();
+    testResults.add(new TestResult(A1, a1Failed, Collections.emptyMap()));
+    testResults.add(new TestResult(A2, a2Failed, Collections.emptyMap()));
+    testResults.add(new TestResult(B1, b1Failed, Collections.emptyMap()));
+    return testResults;
+  }
+
+  private Set<String> setOf(final String... values) {
+    final Set<String> set = new HashSet<>();
+    Collections.addAll(set, values);
+    return set;
+  }
+}
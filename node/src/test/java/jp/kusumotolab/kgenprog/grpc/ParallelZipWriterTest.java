@@ -0,0 +1,118 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.common.io.ByteStreams;
+
+public class ParallelZipWriterTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testWriteTo() throws IOException {
+    final Map<String, byte[]> files = new HashMap<>();
+    final List<String> names = new ArrayList<>();
+    final ParallelZipWriter writer = new ParallelZipWriter(new ForkJoinPool(4),
+        Deflater.DEFAULT_COMPRESSION);
+    for (int i = 0; i < 100; i++) {
+      final String name = "project/src/Foo" + i + ".java";
+      final StringBuilder source = new StringBuilder("class Foo" + i + " {\n");
+      for (int j = 0; j < 20; j++) {
+        source.append("  int bar" + j + "() { return " + i * j + "; }\n");
+      }
+      final byte[] bytes = source.append("}\n")
+          .toString()
+          .getBytes(StandardCharsets.UTF_8);
+      names.add(name);
+      files.put(name, bytes);
+    }
+    names.add("classes/lib.jar");
+    files.put("classes/lib.jar", createRandomBytes(0, 1024 * 1024));
+    names.add("project/data.bin");
+    files.put("project/data.bin", createRandomBytes(1, 1024));
+    for (final String name : names) {
+      final Path file = tempFolder.newFile()
+          .toPath();
+      Files.write(file, files.get(name));
+      writer.add(file, name);
+    }
+
+    final Path zip = tempFolder.newFile()
+        .toPath();
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    writer.writeTo(output);
+    Files.write(zip, output.toByteArray());
+
+    // 先頭から順に読み込める
+    final List<String> entries = new ArrayList<>();
+    try (final ZipInputStream input =
+        new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        entries.add(entry.getName());
+        assertThat(ByteStreams.toByteArray(input)).isEqualTo(files.get(entry.getName()));
+      }
+    }
+    assertThat(entries).containsExactlyElementsOf(names);
+
+    // 末尾のセントラルディレクトリからも読み込め，圧縮済みのファイルは圧縮せずに格納される
+    try (final ZipFile zipFile = new ZipFile(zip.toFile())) {
+      assertThat(zipFile.size()).isEqualTo(names.size());
+      assertThat(zipFile.getEntry("classes/lib.jar")
+          .getMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(zipFile.getEntry("project/data.bin")
+          .getMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(zipFile.getEntry("project/src/Foo0.java")
+          .getMethod()).isEqualTo(ZipEntry.DEFLATED);
+      for (final String name : names) {
+        assertThat(ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry(name))))
+            .isEqualTo(files.get(name));
+      }
+    }
+  }
+
+  @Test
+  public void testDeterministic() throws IOException {
+    final Path file = tempFolder.newFile()
+        .toPath();
+    Files.write(file, "kGenProg".getBytes(StandardCharsets.UTF_8));
+
+    // 同じファイルからは同じbyte列が得られるので，チャンクを再利用できる
+    final List<byte[]> zips = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      final ParallelZipWriter writer = new ParallelZipWriter(ForkJoinPool.commonPool(),
+          Deflater.DEFAULT_COMPRESSION);
+      writer.add(file, "project/a.txt");
+      writer.add(file, "project/b.txt");
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      writer.writeTo(output);
+      zips.add(output.toByteArray());
+    }
+    assertThat(zips.get(0)).isEqualTo(zips.get(1));
+  }
+
+  private byte[] createRandomBytes(final long seed, final int size) {
+    final byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
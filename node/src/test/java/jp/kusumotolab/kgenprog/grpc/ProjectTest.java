@@ -92,6 +92,22 @@ public class ProjectTest {
             v -> assertTestResult(remoteResults.getTestResult(v), localResults.getTestResult(v)));
   }
 
+  @Test
+  public void testExecuteTestWithRecycledSlots() {
+    // 1回使うごとにスロットを作り直し，代わりを裏で用意する
+    final Project project = new Project(0, config, new ProjectSettings(1,
+        Project.DEFAULT_RESULT_CACHE_ENTRIES, 0, new SlotPolicy(true, 1)));
+    for (int i = 0; i < 2; i++) {
+      final TestResults remoteResults = project.executeTest(gene);
+      assertThat(remoteResults.getExecutedTestFQNs())
+          .containsExactlyElementsOf(localResults.getExecutedTestFQNs());
+      remoteResults.getExecutedTestFQNs()
+          .forEach(v -> assertTestResult(remoteResults.getTestResult(v),
+              localResults.getTestResult(v)));
+    }
+    assertThat(project.getRecycleCount()).isEqualTo(2);
+  }
+
   @Test
   public void testExecuteTestZipProject() throws IOException {
     final ByteArrayOutputStream stream = new ByteArrayOutputStream();
@@ -0,0 +1,209 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import jp.kusumotolab.kgenprog.project.ClassPath;
+import jp.kusumotolab.kgenprog.project.factory.RawProjectFactory;
+import jp.kusumotolab.kgenprog.project.factory.TargetProject;
+
+/**
+ * {@link ProjectZipper} と，以前の逐次的に全てのファイルを圧縮する実装とでZIP圧縮にかかる時間を比べる
+ *
+ * Mavenの構成を模した大きなプロジェクト（ソースコード，target/classes，依存jar）を一時ディレクトリに生成して用いる．
+ * テストとしては実行されないので，mainメソッドから実行する
+ *
+ * <pre>
+ * java ... jp.kusumotolab.kgenprog.grpc.ProjectZipperBenchmark [ソースファイル数] [jarの数] [繰り返し回数]
+ * </pre>
+ */
+public class ProjectZipperBenchmark {
+
+  private static final int LEGACY_BUFFER_SIZE = 4048;
+
+  public static void main(final String[] args) throws IOException {
+    final int sourceCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    final int jarCount = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+    final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    final Path workdir = Files.createTempDirectory("kgenprog-zip-benchmark");
+    try {
+      final TargetProject project = createMavenProject(workdir, sourceCount, jarCount);
+      System.out.printf("project: %d sources, %d jars, %d MB%n", sourceCount, jarCount,
+          sizeOf(workdir) / 1024 / 1024);
+
+      // JITが効くまで読み捨てる
+      measure("warm up (legacy)", () -> zipLegacy(project), 1);
+      measure("warm up (parallel)", () -> zipParallel(project), 1);
+
+      measure("legacy: sequential, deflate all", () -> zipLegacy(project), iterations);
+      measure("parallel: " + ForkJoinPool.commonPool()
+          .getParallelism() + " threads, store jars", () -> zipParallel(project), iterations);
+    } finally {
+      delete(workdir);
+    }
+  }
+
+  private static void measure(final String name, final Zip zip, final int iterations)
+      throws IOException {
+    long totalNanos = 0;
+    long bytes = 0;
+    for (int i = 0; i < iterations; i++) {
+      final long start = System.nanoTime();
+      bytes = zip.run();
+      totalNanos += System.nanoTime() - start;
+    }
+    System.out.printf("%-40s %8.1f ms/op, %8.1f MB%n", name,
+        totalNanos / 1e6 / iterations, bytes / 1024.0 / 1024.0);
+  }
+
+  private static long zipParallel(final TargetProject project) throws IOException {
+    final CountingOutputStream output = new CountingOutputStream(ByteStreams.nullOutputStream());
+    ProjectZipper.zipProject(project, () -> output);
+    return output.getCount();
+  }
+
+  /**
+   * 以前の {@link ProjectZipper} と同じく，1つずつ読み込んで全て圧縮する
+   */
+  private static long zipLegacy(final TargetProject project) throws IOException {
+    final CountingOutputStream output = new CountingOutputStream(ByteStreams.nullOutputStream());
+    final byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+    final List<Path> files = new ArrayList<>(listFiles(project.rootPath));
+    // ProjectZipperと同じ条件で，プロジェクト外の依存ファイルとして格納する
+    for (final ClassPath classPath : project.getClassPaths()) {
+      if (!project.rootPath.startsWith(classPath.path)) {
+        files.addAll(listFiles(classPath.path));
+      }
+    }
+    try (final ZipOutputStream zipOutputStream = new ZipOutputStream(output)) {
+      for (int i = 0; i < files.size(); i++) {
+        final Path file = files.get(i);
+        zipOutputStream.putNextEntry(new ZipEntry(i + "/" + file.getFileName()));
+        try (final InputStream input = Files.newInputStream(file)) {
+          int count;
+          while ((count = input.read(buffer, 0, LEGACY_BUFFER_SIZE)) != -1) {
+            zipOutputStream.write(buffer, 0, count);
+          }
+        }
+        zipOutputStream.closeEntry();
+      }
+    }
+    return output.getCount();
+  }
+
+  /**
+   * Mavenの構成を模したプロジェクトを生成する
+   */
+  private static TargetProject createMavenProject(final Path workdir, final int sourceCount,
+      final int jarCount) throws IOException {
+    final Random random = new Random(0);
+    final Path root = workdir.resolve("project");
+    final Path repository = workdir.resolve("m2");
+    final List<Path> productPaths = new ArrayList<>();
+    final List<Path> testPaths = new ArrayList<>();
+    final List<Path> classPaths = new ArrayList<>();
+
+    write(root.resolve("pom.xml"), "<project></project>\n".getBytes(StandardCharsets.UTF_8));
+    for (int i = 0; i < sourceCount; i++) {
+      final String packageName = "pkg" + i % 50;
+      final boolean test = i % 5 == 0;
+      final String className = test ? "Foo" + i + "Test" : "Foo" + i;
+      final Path source = root.resolve(test ? "src/test/java" : "src/main/java")
+          .resolve(packageName)
+          .resolve(className + ".java");
+      write(source, createSource(packageName, className, random));
+      (test ? testPaths : productPaths).add(root.relativize(source));
+
+      // コンパイル結果は圧縮が効きにくいので乱数で代用する
+      write(root.resolve("target/classes")
+          .resolve(packageName)
+          .resolve(className + ".class"), createRandomBytes(random, 2 * 1024));
+    }
+    classPaths.add(root.resolve("target/classes"));
+
+    for (int i = 0; i < jarCount; i++) {
+      final Path jar = repository.resolve("dependency" + i + ".jar");
+      write(jar, createRandomBytes(random, 256 * 1024 + random.nextInt(4 * 1024 * 1024)));
+      classPaths.add(jar);
+    }
+
+    return new RawProjectFactory(root, productPaths, testPaths, classPaths).create();
+  }
+
+  private static byte[] createSource(final String packageName, final String className,
+      final Random random) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("package ")
+        .append(packageName)
+        .append(";\n\npublic class ")
+        .append(className)
+        .append(" {\n");
+    for (int i = 0; i < 50; i++) {
+      builder.append("  public int method")
+          .append(i)
+          .append("(final int value) {\n    return value * ")
+          .append(random.nextInt(1000))
+          .append(" + ")
+          .append(i)
+          .append(";\n  }\n\n");
+    }
+    return builder.append("}\n")
+        .toString()
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] createRandomBytes(final Random random, final int size) {
+    final byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void write(final Path path, final byte[] bytes) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, bytes);
+  }
+
+  private static List<Path> listFiles(final Path directory) throws IOException {
+    try (final Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(Files::isRegularFile)
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long sizeOf(final Path directory) throws IOException {
+    long size = 0;
+    for (final Path file : listFiles(directory)) {
+      size += Files.size(file);
+    }
+    return size;
+  }
+
+  private static void delete(final Path directory) throws IOException {
+    try (final Stream<Path> paths = Files.walk(directory)) {
+      for (final Path path : paths.sorted(Comparator.reverseOrder())
+          .collect(Collectors.toList())) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface Zip {
+
+    long run() throws IOException;
+  }
+}
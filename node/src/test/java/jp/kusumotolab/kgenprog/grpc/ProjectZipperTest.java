@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -51,6 +53,18 @@ public class ProjectZipperTest {
     assertThat(zip.getClassPaths()).extracting(v -> v.path)
         .contains(zipJUnit);
 
+    // jarは既に圧縮されているので，そのまま格納される
+    try (final ZipInputStream zipInputStream =
+        new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      ZipEntry entry;
+      while ((entry = zipInputStream.getNextEntry()) != null) {
+        if (entry.getName()
+            .endsWith(".jar")) {
+          assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+        }
+      }
+    }
+
     // Unzipする
     final ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
     final Path destination = tempFolder.newFolder()
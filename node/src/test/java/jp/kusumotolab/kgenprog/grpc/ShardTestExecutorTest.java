@@ -0,0 +1,41 @@
+package jp.kusumotolab.kgenprog.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import jp.kusumotolab.kgenprog.ga.variant.Variant;
+import jp.kusumotolab.kgenprog.project.test.TestExecutor;
+import jp.kusumotolab.kgenprog.project.test.TestResults;
+
+public class ShardTestExecutorTest {
+
+  @Test
+  public void testLongestExecNanos() throws InterruptedException {
+    final TestExecutor fullExecutor = mock(TestExecutor.class);
+    final TestExecutor shardExecutor = mock(TestExecutor.class);
+    final TestResults results = mock(TestResults.class);
+    when(fullExecutor.exec(any())).thenReturn(results);
+    when(shardExecutor.exec(any())).then(invocation -> {
+      Thread.sleep(50);
+      return results;
+    });
+    final ShardTestExecutor executor = new ShardTestExecutor(fullExecutor, tests -> shardExecutor);
+    final Variant variant = mock(Variant.class);
+
+    // 最も時間のかかったテストの実行時間を記録する
+    executor.resetExecNanos();
+    executor.setExecutionTests(Arrays.asList("ATest"));
+    assertThat(executor.exec(variant)).isSameAs(results);
+    executor.setExecutionTests(Arrays.asList());
+    assertThat(executor.exec(variant)).isSameAs(results);
+    assertThat(executor.getLongestExecNanos())
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+
+    executor.resetExecNanos();
+    assertThat(executor.getLongestExecNanos()).isZero();
+  }
+}
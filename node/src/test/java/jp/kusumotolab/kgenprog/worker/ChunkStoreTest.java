@@ -0,0 +1,95 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.protobuf.ByteString;
+import jp.kusumotolab.kgenprog.grpc.ContentDefinedChunker;
+
+public class ChunkStoreTest {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void setup() {
+    directory = temporaryFolder.getRoot()
+        .toPath()
+        .resolve("chunks");
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() throws IOException {
+    final ChunkStore store = new ChunkStore(directory, 20);
+    final ByteString a = put(store, "aaaaaaaaaa");
+    final ByteString b = put(store, "bbbbbbbbbb");
+
+    // aを使ってからcを保存すると，最後に使われた順が古いbが削除される
+    assertThat(store.contains(a)).isTrue();
+    final ByteString c = put(store, "cccccccccc");
+
+    assertThat(store.findMissing(Arrays.asList(a, b, c))).containsExactly(b);
+    assertThat(store.get(b)).isEmpty();
+    assertThat(store.getTotalBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void testKeepRetainedChunks() throws IOException {
+    final ChunkStore store = new ChunkStore(directory, 20);
+    final ByteString a = put(store, "aaaaaaaaaa");
+    final ByteString b = put(store, "bbbbbbbbbb");
+
+    // 使用中のチャンクは上限を超えても削除しない．保存前に使用中にしたチャンクも同様
+    final ByteString c = ContentDefinedChunker.digest(ByteString.copyFromUtf8("cccccccccc"));
+    store.retain(Arrays.asList(a, b, c));
+    put(store, "cccccccccc");
+    assertThat(store.findMissing(Arrays.asList(a, b, c))).isEmpty();
+    assertThat(store.getTotalBytes()).isEqualTo(30);
+
+    // 使用を終えると上限まで削除する
+    store.release(Arrays.asList(a, b, c));
+    assertThat(store.findMissing(Arrays.asList(a, b, c))).containsExactly(a);
+    assertThat(store.getTotalBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void testReloadAfterRestart() throws IOException {
+    final ChunkStore store = new ChunkStore(directory);
+    final ByteString a = put(store, "aaaaaaaaaa");
+
+    final ChunkStore restarted = new ChunkStore(directory);
+    assertThat(restarted.get(a)).contains(ByteString.copyFromUtf8("aaaaaaaaaa"));
+    assertThat(restarted.getTotalBytes()).isEqualTo(10);
+
+    // 上限を下げて再起動すると，読み込んだ時点で削除する
+    final ChunkStore shrunk = new ChunkStore(directory, 5);
+    assertThat(shrunk.contains(a)).isFalse();
+    assertThat(shrunk.getTotalBytes()).isZero();
+  }
+
+  @Test
+  public void testFindMissingWithoutDuplicates() throws IOException {
+    final ChunkStore store = new ChunkStore(directory);
+    final ByteString a = put(store, "a");
+    final ByteString b = ContentDefinedChunker.digest(ByteString.copyFromUtf8("b"));
+    final ByteString c = ContentDefinedChunker.digest(ByteString.copyFromUtf8("c"));
+
+    assertThat(store.findMissing(Arrays.asList(c, a, b, c, b))).containsExactly(c, b);
+    assertThat(store.findMissing(Collections.emptyList())).isEmpty();
+  }
+
+  private ByteString put(final ChunkStore store, final String content) throws IOException {
+    final ByteString data = ByteString.copyFromUtf8(content);
+    final ByteString digest = ContentDefinedChunker.digest(data);
+    store.put(digest, data);
+    return digest;
+  }
+}
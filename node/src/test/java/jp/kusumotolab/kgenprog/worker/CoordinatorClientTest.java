@@ -0,0 +1,234 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import jp.kusumotolab.kgenprog.coordinator.ProjectChunkStore;
+import jp.kusumotolab.kgenprog.grpc.CoordinatorServiceGrpc.CoordinatorServiceImplBase;
+import jp.kusumotolab.kgenprog.grpc.GrpcChunk;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetChunksRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectManifestResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
+import jp.kusumotolab.kgenprog.grpc.GrpcPeer;
+import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
+import jp.kusumotolab.kgenprog.grpc.PeerServiceGrpc.PeerServiceImplBase;
+
+public class CoordinatorClientTest {
+
+  @Rule
+  public final GrpcCleanupRule grpcCleanupRule = new GrpcCleanupRule();
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private ProjectChunkStore projectChunkStore;
+  private final List<ByteString> requestedDigests = new ArrayList<>();
+  private final List<GrpcPeer> peers = new ArrayList<>();
+  private int getProjectCount = 0;
+  private ManagedChannel managedChannel;
+
+  @Before
+  public void setup() throws IOException {
+    projectChunkStore = new ProjectChunkStore(temporaryFolder.newFolder()
+        .toPath());
+    final String name = InProcessServerBuilder.generateName();
+    grpcCleanupRule.register(InProcessServerBuilder.forName(name)
+        .directExecutor()
+        .addService(new CoordinatorServiceImplBase() {
+
+          @Override
+          public void getProject(final GrpcGetProjectRequest request,
+              final StreamObserver<GrpcGetProjectResponse> responseObserver) {
+            getProjectCount++;
+            responseObserver.onNext(GrpcGetProjectResponse.newBuilder()
+                .setStatus(GrpcStatus.SUCCESS)
+                .setProject(projectChunkStore.getProject(request.getProjectId())
+                    .get())
+                .build());
+            responseObserver.onCompleted();
+          }
+
+          @Override
+          public void getProjectManifest(final GrpcGetProjectRequest request,
+              final StreamObserver<GrpcGetProjectManifestResponse> responseObserver) {
+            responseObserver.onNext(GrpcGetProjectManifestResponse.newBuilder()
+                .setStatus(GrpcStatus.SUCCESS)
+                .addAllChunkDigests(projectChunkStore.getManifest(request.getProjectId())
+                    .get())
+                .addAllPeers(peers)
+                .build());
+            responseObserver.onCompleted();
+          }
+
+          @Override
+          public void getChunks(final GrpcGetChunksRequest request,
+              final StreamObserver<GrpcChunk> responseObserver) {
+            for (final ByteString digest : request.getDigestsList()) {
+              requestedDigests.add(digest);
+              responseObserver.onNext(GrpcChunk.newBuilder()
+                  .setDigest(digest)
+                  .setData(projectChunkStore.getChunk(digest)
+                      .get())
+                  .build());
+            }
+            responseObserver.onCompleted();
+          }
+        })
+        .build()
+        .start());
+    managedChannel = grpcCleanupRule.register(InProcessChannelBuilder.forName(name)
+        .directExecutor()
+        .build());
+  }
+
+  @Test
+  public void testGetProjectByChunks() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+    final ByteString similarProject = project.concat(createRandomBytes(1, 1024));
+    final int chunkCount = projectChunkStore.put(0, project)
+        .size();
+    projectChunkStore.put(1, similarProject);
+
+    final ChunkStore chunkStore = new ChunkStore(temporaryFolder.newFolder()
+        .toPath());
+    final CoordinatorClient client = new CoordinatorClient(managedChannel, chunkStore);
+
+    assertThat(download(client, 0)).isEqualTo(project);
+    assertThat(requestedDigests).hasSize(chunkCount);
+
+    // 既に持っているチャンクは取得しない
+    requestedDigests.clear();
+    assertThat(download(client, 1)).isEqualTo(similarProject);
+    assertThat(requestedDigests.size()).isLessThanOrEqualTo(2);
+
+    requestedDigests.clear();
+    assertThat(download(client, 0)).isEqualTo(project);
+    assertThat(requestedDigests).isEmpty();
+    assertThat(getProjectCount).isZero();
+  }
+
+  @Test
+  public void testGetProjectFromPeer() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+    final List<ByteString> digests = projectChunkStore.put(0, project);
+
+    // 最後のチャンク以外を持っているワーカー
+    final ChunkStore peerChunkStore = new ChunkStore(temporaryFolder.newFolder()
+        .toPath());
+    for (final ByteString digest : digests.subList(0, digests.size() - 1)) {
+      peerChunkStore.put(digest, projectChunkStore.getChunk(digest)
+          .get());
+    }
+    final String peerName = InProcessServerBuilder.generateName();
+    grpcCleanupRule.register(InProcessServerBuilder.forName(peerName)
+        .directExecutor()
+        .addService(new PeerService(peerChunkStore))
+        .build()
+        .start());
+
+    // 応答しないワーカーは飛ばす
+    peers.add(GrpcPeer.newBuilder()
+        .setHost(InProcessServerBuilder.generateName())
+        .build());
+    peers.add(GrpcPeer.newBuilder()
+        .setHost(peerName)
+        .build());
+
+    final ChunkStore chunkStore = new ChunkStore(temporaryFolder.newFolder()
+        .toPath());
+    final CoordinatorClient client = new CoordinatorClient(managedChannel, chunkStore) {
+
+      @Override
+      protected ManagedChannel createPeerChannel(final GrpcPeer peer) {
+        return InProcessChannelBuilder.forName(peer.getHost())
+            .directExecutor()
+            .build();
+      }
+    };
+
+    // ワーカーが持っていないチャンクだけをコーディネータから取得する
+    assertThat(download(client, 0)).isEqualTo(project);
+    assertThat(requestedDigests).containsExactly(digests.get(digests.size() - 1));
+  }
+
+  @Test
+  public void testGetProjectFromHangingPeer() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024 * 1024);
+    final List<ByteString> digests = projectChunkStore.put(0, project);
+
+    // 応答を返さないワーカー
+    final String peerName = InProcessServerBuilder.generateName();
+    grpcCleanupRule.register(InProcessServerBuilder.forName(peerName)
+        .directExecutor()
+        .addService(new PeerServiceImplBase() {
+
+          @Override
+          public void getChunks(final GrpcGetChunksRequest request,
+              final StreamObserver<GrpcChunk> responseObserver) {}
+        })
+        .build()
+        .start());
+    peers.add(GrpcPeer.newBuilder()
+        .setHost(peerName)
+        .build());
+
+    final ChunkStore chunkStore = new ChunkStore(temporaryFolder.newFolder()
+        .toPath());
+    final CoordinatorClient client = new CoordinatorClient(managedChannel, chunkStore, 100) {
+
+      @Override
+      protected ManagedChannel createPeerChannel(final GrpcPeer peer) {
+        return InProcessChannelBuilder.forName(peer.getHost())
+            .build();
+      }
+    };
+
+    // 制限時間を過ぎたらコーディネータから取得する
+    assertThat(download(client, 0)).isEqualTo(project);
+    assertThat(requestedDigests).isEqualTo(digests);
+  }
+
+  @Test
+  public void testGetProjectWithoutChunkStore() throws IOException {
+    final ByteString project = createRandomBytes(0, 1024);
+    projectChunkStore.put(0, project);
+
+    final CoordinatorClient client = new CoordinatorClient(managedChannel);
+    assertThat(download(client, 0)).isEqualTo(project);
+    assertThat(getProjectCount).isEqualTo(1);
+  }
+
+  /**
+   * プロジェクトをファイルに取得して読み込む
+   */
+  private ByteString download(final CoordinatorClient client, final int projectId)
+      throws IOException {
+    final Path zipFile = temporaryFolder.getRoot()
+        .toPath()
+        .resolve("project.zip");
+    assertThat(client.downloadProject(projectId, zipFile)
+        .getStatus()).isEqualTo(GrpcStatus.SUCCESS);
+    return ByteString.copyFrom(Files.readAllBytes(zipFile));
+  }
+
+  private ByteString createRandomBytes(final long seed, final int size) {
+    final byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+}
@@ -3,6 +3,7 @@ package jp.kusumotolab.kgenprog.worker;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -13,6 +14,9 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -21,13 +25,17 @@ import io.grpc.ManagedChannel;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.testing.GrpcCleanupRule;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
 import jp.kusumotolab.kgenprog.Configuration;
 import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestRequest;
+import jp.kusumotolab.kgenprog.grpc.GrpcExecuteTestResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcGetProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.GrpcStatus;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectRequest;
 import jp.kusumotolab.kgenprog.grpc.GrpcUnregisterProjectResponse;
 import jp.kusumotolab.kgenprog.grpc.Project;
+import jp.kusumotolab.kgenprog.grpc.RetryAfter;
 import jp.kusumotolab.kgenprog.project.TargetFullyQualifiedName;
 import jp.kusumotolab.kgenprog.project.build.EmptyBuildResults;
 import jp.kusumotolab.kgenprog.project.test.TestResult;
@@ -72,29 +80,31 @@ public class LocalWorkerTest {
 
     // ダミーの Project
     final Project project = mock(Project.class);
-    when(project.executeTest(any())).thenReturn(testResults);
+    when(project.executeTest(any(), any())).thenReturn(testResults);
     when(project.getConfiguration()).thenReturn(config);
 
     // LocalWorkerの作成
     final CoordinatorClient coordinatorClient = spy(new CoordinatorClient(managedChannel));
     final LocalWorker worker = spy(new LocalWorker(0, path, coordinatorClient));
     doReturn(project).when(worker)
-        .createProject(any(), anyInt());
+        .createProject(any(), any(), anyInt());
     final GrpcGetProjectResponse response = GrpcGetProjectResponse.newBuilder()
         .build();
     doReturn(response).when(coordinatorClient)
-        .getProject(anyInt());
+        .downloadProject(anyInt(), any());
 
     final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
         .setProjectId(0)
         .build();
 
     // 二回テスト実行
-    worker.executeTest(request);
-    worker.executeTest(request);
+    worker.executeTest(request)
+        .blockingGet();
+    worker.executeTest(request)
+        .blockingGet();
 
     // 呼ばれているの1回のはず
-    verify(worker, times(1)).createProject(any(), anyInt());
+    verify(worker, times(1)).createProject(any(), any(), anyInt());
   }
 
   @Test
@@ -106,9 +116,9 @@ public class LocalWorkerTest {
     final GrpcGetProjectResponse response = GrpcGetProjectResponse.newBuilder()
         .build();
     doReturn(project).when(worker)
-        .createProject(any(), anyInt());
+        .createProject(any(), any(), anyInt());
     doReturn(response).when(coordinatorClient)
-        .getProject(anyInt());
+        .downloadProject(anyInt(), any());
 
     // プロジェクトを登録する
     final int projectId = 1;
@@ -131,4 +141,91 @@ public class LocalWorkerTest {
     // unregisterが呼ばれているはず
     verify(project, times(1)).unregister();
   }
+
+  @Test
+  public void testRejectOverLaneSlots() throws Exception {
+    final Configuration config = new Configuration.Builder(Paths.get(""), Collections.emptyList(),
+        Collections.emptyList()).build();
+    final TestResults testResults = new TestResults();
+    testResults.setBuildResults(EmptyBuildResults.instance);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    final Project project = mock(Project.class);
+    when(project.getConfiguration()).thenReturn(config);
+    when(project.executeTest(any(), any())).then(invocation -> {
+      started.countDown();
+      finish.await();
+      return testResults;
+    });
+    final CoordinatorClient coordinatorClient = spy(new CoordinatorClient(managedChannel));
+    doReturn(GrpcGetProjectResponse.newBuilder()
+        .build()).when(coordinatorClient)
+            .downloadProject(anyInt(), any());
+
+    // ワーカー全体では2つ実行できるが，1つのレーンでは1つまで
+    final WorkerConfiguration configuration = WorkerConfiguration.Builder.buildFromCmdLineArgs(
+        new String[] {"--slots", "2", "--lane-slots", "1"});
+    final LocalWorker worker = spy(new LocalWorker(0, path, coordinatorClient, configuration, null));
+    doReturn(project).when(worker)
+        .createProject(any(), any(), anyInt());
+    final GrpcExecuteTestRequest request = GrpcExecuteTestRequest.newBuilder()
+        .setProjectId(0)
+        .build();
+
+    // 購読していないSingleはレーンを使わない
+    worker.executeTest(request);
+
+    // 実行中のテストがレーンを使っているので，2つ目は待たずに拒否される
+    final TestObserver<GrpcExecuteTestResponse> running = worker.executeTest(request)
+        .subscribeOn(Schedulers.newThread())
+        .test();
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    worker.executeTest(request)
+        .test()
+        .assertError(e -> RetryAfter.getRetryAfterMillis(e)
+            .equals(Optional.of(LocalWorker.LANE_RETRY_AFTER_MILLIS)));
+
+    // 実行を終えればレーンが空き，次のテストを実行できる
+    finish.countDown();
+    running.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    running.assertValueCount(1);
+    worker.executeTest(request)
+        .test()
+        .assertValueCount(1);
+    verify(project, times(2)).executeTest(any(), any());
+  }
+
+  @Test
+  public void testUnloadIdleProjectOverBudget() throws IOException {
+    final Project project1 = mock(Project.class);
+    final Project project2 = mock(Project.class);
+    final CoordinatorClient coordinatorClient = spy(new CoordinatorClient(managedChannel));
+    doReturn(GrpcGetProjectResponse.newBuilder()
+        .build()).when(coordinatorClient)
+            .downloadProject(anyInt(), any());
+
+    // ヒープ全体を1つのレーンに割り当てるので，同時に読み込めるプロジェクトは1つ
+    final WorkerConfiguration configuration = WorkerConfiguration.Builder.buildFromCmdLineArgs(
+        new String[] {"--slots", "2", "--lane-slots", "1", "--lane-memory",
+            String.valueOf(Runtime.getRuntime()
+                .maxMemory())});
+    final LocalWorker worker = spy(new LocalWorker(0, path, coordinatorClient, configuration, null));
+    doReturn(project1).when(worker)
+        .createProject(any(), any(), eq(1));
+    doReturn(project2).when(worker)
+        .createProject(any(), any(), eq(2));
+
+    worker.getProject(1);
+    worker.getProject(2);
+
+    // 使われていないプロジェクト1が破棄される
+    verify(project1, times(1)).unregister();
+    verify(project2, times(0)).unregister();
+    assertThat(worker.getLaneCount()).isEqualTo(1);
+
+    // 再び必要になれば読み込み直す
+    worker.getProject(1);
+    verify(worker, times(2)).createProject(any(), any(), eq(1));
+    verify(project2, times(1)).unregister();
+  }
 }
@@ -0,0 +1,131 @@
+package jp.kusumotolab.kgenprog.worker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.protobuf.ByteString;
+
+public class ProjectCacheTest {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void setup() {
+    directory = temporaryFolder.getRoot()
+        .toPath()
+        .resolve("cache");
+  }
+
+  @Test
+  public void testComputeKey() {
+    final ByteString a = ByteString.copyFromUtf8("a");
+    final ByteString b = ByteString.copyFromUtf8("b");
+
+    assertThat(ProjectCache.computeKey(Arrays.asList(a, b)))
+        .isEqualTo(ProjectCache.computeKey(Arrays.asList(a, b)))
+        .isNotEqualTo(ProjectCache.computeKey(Arrays.asList(b, a)))
+        .hasSize(64);
+  }
+
+  @Test
+  public void testReuseAfterRestart() throws IOException {
+    final ProjectCache cache = new ProjectCache(directory, 1024 * 1024);
+    final Path unpackedDir = cache.put("key", destination -> write(destination, "A.java", "a"));
+    assertThat(unpackedDir.resolve("project/A.java")).hasContent("a");
+    cache.release("key");
+    cache.close();
+
+    // 再起動後も展開済みのディレクトリを使える
+    final ProjectCache restarted = new ProjectCache(directory, 1024 * 1024);
+    assertThat(restarted.acquire("key")).contains(unpackedDir);
+    assertThat(restarted.acquire("missing")).isEmpty();
+  }
+
+  @Test
+  public void testDiscardBrokenEntry() throws IOException {
+    final ProjectCache cache = new ProjectCache(directory, 1024 * 1024);
+    final Path unpackedDir = cache.put("key", destination -> write(destination, "A.java", "a"));
+    cache.release("key");
+    cache.close();
+
+    // 内容が書き換えられていれば使わない
+    Files.write(unpackedDir.resolve("project/A.java"), "b".getBytes(StandardCharsets.UTF_8));
+    final ProjectCache restarted = new ProjectCache(directory, 1024 * 1024);
+    assertThat(restarted.acquire("key")).isEmpty();
+    assertThat(restarted.contains("key")).isFalse();
+    assertThat(unpackedDir).doesNotExist();
+  }
+
+  @Test
+  public void testDiscardIncompleteEntry() throws IOException {
+    final ProjectCache cache = new ProjectCache(directory, 1024 * 1024);
+    assertThatThrownBy(() -> cache.put("key", destination -> {
+      write(destination, "A.java", "a");
+      throw new IOException("interrupted");
+    })).isInstanceOf(IOException.class);
+    assertThat(cache.contains("key")).isFalse();
+    cache.close();
+
+    // インデックスのないディレクトリは展開途中として削除される
+    write(directory.resolve("other"), "B.java", "b");
+    new ProjectCache(directory, 1024 * 1024);
+    assertThat(directory.resolve("other")).doesNotExist();
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() throws IOException {
+    final ProjectCache cache = new ProjectCache(directory, 25);
+    cache.put("a", destination -> write(destination, "A.java", "0123456789"));
+    cache.put("b", destination -> write(destination, "B.java", "0123456789"));
+    cache.release("a");
+    cache.release("b");
+    assertThat(cache.acquire("a")).isPresent();
+    cache.release("a");
+
+    // 上限を超えると，最後に使われた時刻が最も古いbが削除される
+    cache.put("c", destination -> write(destination, "C.java", "0123456789"));
+    assertThat(cache.contains("a")).isTrue();
+    assertThat(cache.contains("b")).isFalse();
+    assertThat(cache.contains("c")).isTrue();
+    assertThat(cache.getTotalBytes()).isEqualTo(20);
+    assertThat(directory.resolve("b")).doesNotExist();
+  }
+
+  @Test
+  public void testKeepEntryInUse() throws IOException {
+    final ProjectCache cache = new ProjectCache(directory, 5);
+    cache.put("a", destination -> write(destination, "A.java", "0123456789"));
+
+    // 使用中のエントリは上限を超えていても削除しない
+    assertThat(cache.contains("a")).isTrue();
+
+    cache.release("a");
+    assertThat(cache.contains("a")).isFalse();
+  }
+
+  @Test
+  public void testLockDirectory() throws IOException {
+    new ProjectCache(directory, 1024);
+
+    assertThatThrownBy(() -> new ProjectCache(directory, 1024)).isInstanceOf(IOException.class);
+  }
+
+  private void write(final Path destination, final String name, final String content)
+      throws IOException {
+    final Path file = destination.resolve("project")
+        .resolve(name);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+}